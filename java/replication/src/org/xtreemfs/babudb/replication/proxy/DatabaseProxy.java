@@ -8,6 +8,10 @@
 package org.xtreemfs.babudb.replication.proxy;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.xtreemfs.babudb.BabuDBRequestResultImpl;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
@@ -15,10 +19,12 @@ import org.xtreemfs.babudb.api.database.DatabaseRequestListener;
 import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.database.UserDefinedLookup;
+import org.xtreemfs.babudb.api.database.ValueBuffer;
 import org.xtreemfs.babudb.api.dev.DatabaseInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.ValueBufferImpl;
 import org.xtreemfs.babudb.lsmdb.BabuDBInsertGroup;
 import org.xtreemfs.babudb.lsmdb.LSMDatabase;
 import org.xtreemfs.babudb.replication.policy.Policy;
@@ -96,6 +102,106 @@ public class DatabaseProxy implements DatabaseInternal {
         return result;
     }
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#multiLookup(int, 
+     *          byte[][], java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<byte[][]> multiLookup(final int indexId, final byte[][] keys, 
+            final Object context) {
+        
+        assert (keys != null);
+        
+        InetSocketAddress master = null;
+        final BabuDBRequestResultImpl<byte[][]> result = 
+            new BabuDBRequestResultImpl<byte[][]>(context, dbMan.getResponseManager());
+        
+        try {
+            master = getServerToPerformAt(0);
+            if (master == null) {
+                return localDB.multiLookup(indexId, keys, context);
+            }
+        } catch (BabuDBException e) {
+            result.failed(e);
+            return result;
+        }
+        
+        if (keys.length == 0) {
+            result.finished(new byte[0][]);
+            return result;
+        }
+        
+        // there is no batch RPC yet, so that keys are looked up individually
+        // at the master, and the batch is answered once all lookups are
+        // finished
+        final byte[][] values = new byte[keys.length][];
+        final AtomicInteger remaining = new AtomicInteger(keys.length);
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (int i = 0; i < keys.length; i++) {
+            
+            final int pos = i;
+            lookup(indexId, keys[i], context).registerListener(new DatabaseRequestListener<byte[]>() {
+                
+                @Override
+                public void finished(byte[] value, Object context) {
+                    values[pos] = value;
+                    if (remaining.decrementAndGet() == 0 && !failed.get())
+                        result.finished(values);
+                }
+                
+                @Override
+                public void failed(BabuDBException error, Object context) {
+                    if (failed.compareAndSet(false, true))
+                        result.failed(error);
+                }
+            });
+        }
+        
+        return result;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#lookupBuffer(int, 
+     *          byte[], java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<ValueBuffer> lookupBuffer(final int indexId, final byte[] key, 
+            final Object context) {
+        
+        assert (key != null);
+        
+        InetSocketAddress master = null;
+        final BabuDBRequestResultImpl<ValueBuffer> result = 
+            new BabuDBRequestResultImpl<ValueBuffer>(context, dbMan.getResponseManager());
+        
+        try {
+            master = getServerToPerformAt(0);
+            if (master == null) {
+                return localDB.lookupBuffer(indexId, key, context);
+            }
+        } catch (BabuDBException e) {
+            result.failed(e);
+            return result;
+        }
+        
+        // values retrieved from a remote master are copies anyway, so that
+        // they are simply wrapped
+        lookup(indexId, key, context).registerListener(new DatabaseRequestListener<byte[]>() {
+            
+            @Override
+            public void finished(byte[] value, Object context) {
+                result.finished(ValueBufferImpl.wrap(value));
+            }
+            
+            @Override
+            public void failed(BabuDBException error, Object context) {
+                result.failed(error);
+            }
+        });
+        
+        return result;
+    }
+    
     // TODO ugly code! redesign!!
     public DatabaseRequestResult<byte[]> lookupNonblocking(int indexId, byte[] key, Object context) {
         
@@ -296,6 +402,47 @@ public class DatabaseProxy implements DatabaseInternal {
         
         return result;
     }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#parallelRangeLookup(int, 
+     *          byte[], byte[], int, java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<List<ResultSet<byte[], byte[]>>> parallelRangeLookup(final int indexId, 
+            final byte[] from, final byte[] to, final int parallelism, final Object context) {
+        
+        InetSocketAddress master = null;
+        final BabuDBRequestResultImpl<List<ResultSet<byte[], byte[]>>> result = 
+            new BabuDBRequestResultImpl<List<ResultSet<byte[], byte[]>>>(context, dbMan.getResponseManager());
+        
+        try {
+            master = getServerToPerformAt(0);
+            if (master == null) {
+                return localDB.parallelRangeLookup(indexId, from, to, parallelism, context);
+            }
+        } catch (BabuDBException e) {
+            result.failed(e);
+            return result;
+        }
+        
+        // the block structure of the master's index is not known here, so
+        // that a remote range lookup is not split
+        rangeLookup(indexId, from, to, context).registerListener(
+                new DatabaseRequestListener<ResultSet<byte[], byte[]>>() {
+                    
+                    @Override
+                    public void finished(ResultSet<byte[], byte[]> it, Object context) {
+                        result.finished(Collections.singletonList(it));
+                    }
+                    
+                    @Override
+                    public void failed(BabuDBException error, Object context) {
+                        result.failed(error);
+                    }
+                });
+        
+        return result;
+    }
 
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.database.DatabaseRO#reverseRangeLookup(int, 
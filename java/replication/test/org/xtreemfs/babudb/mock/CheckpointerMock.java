@@ -107,6 +107,14 @@ public class CheckpointerMock extends CheckpointerInternal {
         
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.dev.CheckpointerInternal#throttleWriter()
+     */
+    @Override
+    public void throttleWriter() {
+        // nothing to do
+    }
+
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.dev.CheckpointerInternal#getRuntimeState(java.lang.String)
      */
@@ -9,11 +9,13 @@ package org.xtreemfs.babudb.mock;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
 import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.database.UserDefinedLookup;
+import org.xtreemfs.babudb.api.database.ValueBuffer;
 import org.xtreemfs.babudb.api.dev.DatabaseInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
@@ -89,6 +91,20 @@ public class DatabaseMock implements DatabaseInternal {
         return null;
     }
 
+    @Override
+    public DatabaseRequestResult<byte[][]> multiLookup(int indexId, byte[][] keys,
+            Object context) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
+    @Override
+    public DatabaseRequestResult<ValueBuffer> lookupBuffer(int indexId, byte[] key,
+            Object context) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> prefixLookup(
             int indexId, byte[] key, Object context) {
@@ -103,6 +119,13 @@ public class DatabaseMock implements DatabaseInternal {
         return null;
     }
 
+    @Override
+    public DatabaseRequestResult<List<ResultSet<byte[], byte[]>>> parallelRangeLookup(
+            int indexId, byte[] from, byte[] to, int parallelism, Object context) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> reversePrefixLookup(
             int indexId, byte[] key, Object context) {
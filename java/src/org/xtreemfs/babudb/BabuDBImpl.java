@@ -40,6 +40,8 @@ import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.config.BabuDBConfig;
 import org.xtreemfs.babudb.conversion.AutoConverter;
+import org.xtreemfs.babudb.index.reader.BlockCache;
+import org.xtreemfs.babudb.index.writer.WriteRateLimiter;
 import org.xtreemfs.babudb.log.DiskLogIterator;
 import org.xtreemfs.babudb.log.DiskLogger;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
@@ -147,6 +149,8 @@ public class BabuDBImpl implements BabuDBInternal {
     BabuDBImpl(BabuDBConfig configuration) throws BabuDBException {
         
         this.configuration = configuration;
+        BlockCache.getInstance().setCapacity(configuration.getBlockCacheSize());
+        WriteRateLimiter.getInstance().setRate(configuration.getIndexWriteRate());
         this.responseManager = new ResponseManagerImpl(configuration.getMaxQueueLength());
         this.txnMan = new TransactionManagerImpl(configuration.getSyncMode().equals(SyncMode.ASYNC));
         this.databaseManager = new DatabaseManagerImpl(this);
@@ -198,11 +202,19 @@ public class BabuDBImpl implements BabuDBInternal {
             }
             Logging.logMessage(Logging.LEVEL_INFO, this, "log replay done, using LSN: " + nextLSN);
             
-            // set up and start the disk logger
+            // set up and start the disk logger; its queue used to be bounded
+            // by the max queue length of the workers
+            if (configuration.getMaxQueueLength() > 0)
+                Logging.logMessage(Logging.LEVEL_INFO, this, "babudb.worker.maxQueueLength no longer bounds "
+                    + "the disk logger queue, which is bounded to %d bytes by babudb.log.maxQueueSize",
+                    configuration.getMaxLogQueueSize());
+            
             try {
                 logger = new DiskLogger(configuration.getDbLogDir(), nextLSN, configuration.getSyncMode(),
-                    configuration.getPseudoSyncWait(), configuration.getMaxQueueLength()
-                        * Math.max(1, configuration.getNumThreads()));
+                    configuration.getPseudoSyncWait(), configuration.getMaxLogQueueSize(),
+                    configuration.getMaxLogBatchSize(),
+                    configuration.getMaxLogCommitDelay(), configuration.getLogPipelined(),
+                    configuration.getLogSegmentSize(), configuration.getLogRecycleSegments());
                 logger.setLifeCycleListener(this);
                 logger.start();
                 logger.waitForStartup();
@@ -343,8 +355,10 @@ public class BabuDBImpl implements BabuDBInternal {
             
             try {
                 logger = new DiskLogger(configuration.getDbLogDir(), nextLSN, configuration.getSyncMode(),
-                    configuration.getPseudoSyncWait(), configuration.getMaxQueueLength()
-                        * configuration.getNumThreads());
+                    configuration.getPseudoSyncWait(), configuration.getMaxLogQueueSize(),
+                    configuration.getMaxLogBatchSize(),
+                    configuration.getMaxLogCommitDelay(), configuration.getLogPipelined(),
+                    configuration.getLogSegmentSize(), configuration.getLogRecycleSegments());
                 logger.setLifeCycleListener(this);
                 logger.start();
                 logger.waitForStartup();
@@ -551,6 +565,9 @@ public class BabuDBImpl implements BabuDBInternal {
         if (property.startsWith("diskLogger"))
             return logger.getRuntimeState(property);
 
+        if (property.startsWith("blockCache"))
+            return BlockCache.getInstance().getRuntimeState(property);
+
         return null;
     }
     
@@ -566,6 +583,7 @@ public class BabuDBImpl implements BabuDBInternal {
         info.putAll(dbCheckptr.getRuntimeState());
         info.putAll(databaseManager.getRuntimeState());
         info.putAll(logger.getRuntimeState());
+        info.putAll(BlockCache.getInstance().getRuntimeState());
         
         return info;
     }
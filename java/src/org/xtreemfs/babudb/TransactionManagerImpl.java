@@ -185,17 +185,21 @@ class TransactionManagerImpl extends TransactionManagerInternal {
      */
     private final void onDisk(TransactionInternal txn, LogEntry entry) throws BabuDBException {
         
-        // append the entry to the DiskLogger if available, wait otherwise
+        // append the entry to the DiskLogger if available, wait otherwise; 
+        // appending does not require any locks
         try {
             
-            synchronized (diskLogger) {
-                
-                while (diskLogger.get() == null) {
-                    diskLogger.wait();
+            DiskLogger logger = diskLogger.get();
+            if (logger == null) {
+                synchronized (diskLogger) {
+                    
+                    while ((logger = diskLogger.get()) == null) {
+                        diskLogger.wait();
+                    }
                 }
-                
-                diskLogger.get().append(entry);
             }
+            
+            logger.append(entry);
         } catch (InterruptedException ie) {
             
             if (entry != null) entry.free();
@@ -8,6 +8,8 @@
 
 package org.xtreemfs.babudb.api.database;
 
+import java.util.List;
+
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 
 /**
@@ -34,6 +36,42 @@ public interface DatabaseRO {
     public DatabaseRequestResult<byte[]> lookup(int indexId, byte[] key, 
             Object context);
     
+    /**
+     * Performs a lookup for a batch of keys. The result object contains an
+     * array with the value of each key at the key's position in
+     * <code>keys</code>, or <code>null</code> for each key that could not be
+     * found. Looking up many keys at once is considerably more efficient than
+     * looking them up individually, as the keys are processed in sorted
+     * order and the whole batch is answered with a single response.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @param keys
+     *            the keys to look up
+     * @param context
+     *            arbitrary context which is passed to the listener.
+     * @return a future as proxy for the request result.
+     */
+    public DatabaseRequestResult<byte[][]> multiLookup(int indexId, byte[][] keys, 
+            Object context);
+    
+    /**
+     * Performs a lookup for a single key that avoids copying the value. The
+     * result object contains a read-only view on the value, or
+     * <code>null</code> if the key could not be found. The view has to be
+     * freed once it is no longer needed.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @param key
+     *            the key to look up
+     * @param context
+     *            arbitrary context which is passed to the listener.
+     * @return a future as proxy for the request result.
+     */
+    public DatabaseRequestResult<ValueBuffer> lookupBuffer(int indexId, byte[] key, 
+            Object context);
+    
     /**
      * Executes a prefix lookup. The result object contains an iterator to the
      * database starting at the first matching key and returning key/value pairs
@@ -111,6 +149,31 @@ public interface DatabaseRO {
             reverseRangeLookup(int indexId, byte[] from, byte[] to, 
                     Object context);
     
+    /**
+     * Executes a range lookup that is split into sub-ranges, which can be
+     * iterated independently of each other, e.g. by different threads. The
+     * result object contains a list of iterators over consecutive sub-ranges
+     * in ascending key order; concatenating them yields the same key/value
+     * pairs as {@link #rangeLookup(int, byte[], byte[], Object)}. All
+     * iterators reflect the same state of the database. Each of them should
+     * be freed once it is no longer needed.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @param from
+     *            the key to start the iterator at (inclusively)
+     * @param to
+     *            the key to end the iterator at (exclusively)
+     * @param parallelism
+     *            the maximum number of sub-ranges
+     * @param context
+     *            arbitrary context which is passed to the listener.
+     * @return a future as proxy for the request result.
+     */
+    public DatabaseRequestResult<List<ResultSet<byte[], byte[]>>> 
+            parallelRangeLookup(int indexId, byte[] from, byte[] to, 
+                    int parallelism, Object context);
+    
     /**
      * <p>
      * Performs a user-defined lookup. Return value will contain the result
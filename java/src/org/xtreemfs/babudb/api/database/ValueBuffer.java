@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Felix Langner, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.api.database;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The result of a buffer lookup, which provides a read-only view on a value.
+ * 
+ * <p>
+ * Unlike values returned by regular lookups, the view is not necessarily a
+ * copy: with memory-mapped indices, it may directly refer to the mapped index
+ * file, which is kept open until the view is freed. Applications have to
+ * invoke <code>free()</code> once the value is no longer needed; afterwards,
+ * the buffer must no longer be accessed.
+ * </p>
+ * 
+ * @author stenjan
+ * 
+ */
+public interface ValueBuffer {
+    
+    /**
+     * Returns a read-only view on the value. The position of the buffer is 0,
+     * and its limit is the size of the value.
+     * 
+     * @return the view on the value
+     */
+    public ByteBuffer getBuffer();
+    
+    /**
+     * Frees any resources attached to the view. Invoking the method more than
+     * once has no effect.
+     */
+    public void free();
+    
+}
@@ -91,6 +91,17 @@ public abstract class CheckpointerInternal extends LifeCycleThread implements Ch
      */
     public abstract void removeSnapshotMaterializationRequest(String dbName, String snapshotName);
     
+    /**
+     * Invoked by writers before modifying any database. If the total size of
+     * all in-memory overlays exceeds the configured memtable budget, a flush is
+     * requested and the writer is slowed down; if it has reached the hard
+     * limit, the writer is blocked until databases have been flushed.
+     * 
+     * @throws InterruptedException
+     *             if the writer was interrupted while being blocked
+     */
+    public abstract void throttleWriter() throws InterruptedException;
+    
     /**
      * Returns runtime information about the checkpointer.
      * 
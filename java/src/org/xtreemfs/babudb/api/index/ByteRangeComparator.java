@@ -9,6 +9,7 @@
 package org.xtreemfs.babudb.api.index;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 
 import org.xtreemfs.babudb.index.ByteRange;
@@ -43,6 +44,29 @@ public interface ByteRangeComparator extends Comparator<byte[]>, Serializable {
      */
     public int compare(ByteRange rng, byte[] buf);
     
+    /**
+     * Compares a range of bytes from a potentially large buffer to the entire
+     * content of a given buffer. Unlike {@link #compare(ByteRange, byte[])},
+     * this method does not require a range object, so that index lookups may
+     * search blocks without any allocations.<br>
+     * 
+     * Implementations must not modify the position or limit of the buffer, as
+     * it may be shared by concurrent lookups.
+     * 
+     * @param rng
+     *            the buffer containing the range
+     * @param startOffset
+     *            the offset of the first byte of the range
+     * @param endOffset
+     *            the offset after the last byte of the range
+     * @param buf
+     *            the buffer
+     * @return a negative value if <code>buf</code> is considered as smaller
+     *         than the range, 0 if both are considered as equal, and a
+     *         positive value if <code>buf</code> is considered as greater.
+     */
+    public int compare(ByteBuffer rng, int startOffset, int endOffset, byte[] buf);
+    
     /**
      * Converts a prefix to a range. The method is needed to translate prefix
      * queries into range queries.
@@ -12,6 +12,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 
+import org.xtreemfs.babudb.index.codec.BlockCodec;
+import org.xtreemfs.babudb.log.DiskLogger;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
 import org.xtreemfs.foundation.logging.Logging;
 
@@ -62,6 +64,12 @@ public class BabuDBConfig extends Config {
      */
     protected int      numThreads;
     
+    /**
+     * Specifies whether lookups are performed directly by the calling threads
+     * rather than being enqueued at the worker threads.
+     */
+    protected boolean  directLookups;
+    
     /**
      * MaxLogfileSize a checkpoint is generated ,if maxLogfileSize is exceeded.
      */
@@ -81,21 +89,71 @@ public class BabuDBConfig extends Config {
      */
     protected int      pseudoSyncWait;
     
+    /**
+     * The max number of bytes of log entries that are written with a single
+     * write operation before the log is synced. If set to 0, log entries are
+     * written separately.
+     */
+    protected int      maxLogBatchSize = DiskLogger.DEFAULT_MAX_BATCH_SIZE;
+    
+    /**
+     * The max time in microseconds to wait for further log entries if a batch
+     * is not full.
+     */
+    protected int      maxLogCommitDelay;
+    
+    /**
+     * The max number of bytes of log entries that may be queued at the disk
+     * logger before appending threads are blocked. If set to 0, the queue is
+     * unbounded.
+     */
+    protected int      maxLogQueueSize = DiskLogger.DEFAULT_MAX_QUEUE_SIZE;
+    
+    /**
+     * Indicates if log entries are synced and listeners are notified by
+     * separate threads, while the next batch of log entries is written.
+     */
+    protected boolean  logPipelined;
+    
+    /**
+     * The size in bytes of zero-filled segments that are preallocated for
+     * log files. If set to 0, log files are not preallocated.
+     */
+    protected int      logSegmentSize;
+    
+    /**
+     * Indicates if obsolete log files are recycled as preallocated segments
+     * rather than deleted.
+     */
+    protected boolean  logRecycleSegments;
+    
     /**
      * Indicates if compression is enabled or not.
      */
     protected boolean  compression;
     
+    /**
+     * The name of the codec that compresses the blocks of on-disk indices, or
+     * "none" if blocks are not compressed.
+     */
+    protected String   blockCodec     = "none";
+    
     /**
      * Defines the maximum number of records per block of an index.
      */
     protected int      maxNumRecordsPerBlock;
     
+    /**
+     * Defines the target size of a block of an index in bytes. If > 0, blocks
+     * are bounded by their size rather than by their number of records.
+     */
+    protected int      maxBlockSize;
+    
     /**
      * Defines the maximum size of the block file. If the size is exceeded by an
      * index, another block file will be created.
      */
-    protected int      maxBlockFileSize;
+    protected long     maxBlockFileSize;
     
     /**
      * Specifies whether <code>mmap</code> is used in order to read database
@@ -109,6 +167,74 @@ public class BabuDBConfig extends Config {
      */
     protected int      mmapLimit;
     
+    /**
+     * The false-positive rate of the Bloom filters that are written for each
+     * on-disk index. If set to 0, no Bloom filters will be used.
+     */
+    protected double   bloomFilterFPR;
+    
+    /**
+     * The maximum total size of all index blocks that are cached in memory
+     * when block files are not memory-mapped. If set to 0, no blocks will be
+     * cached.
+     */
+    protected int      blockCacheSize;
+    
+    /**
+     * The number of threads that write the indices of all databases in
+     * parallel when a checkpoint is created. If set to 1, indices are written
+     * one after another by the checkpointer thread.
+     */
+    protected int      checkpointThreads = 1;
+    
+    /**
+     * The maximum total rate in bytes per second at which on-disk indices are
+     * written. If set to 0, the rate is unlimited.
+     */
+    protected long     indexWriteRate;
+    
+    /**
+     * The number of on-disk levels of each index. If set to 1, the on-disk
+     * index is entirely rewritten with each checkpoint.
+     */
+    protected int      numLevels      = 1;
+    
+    /**
+     * The maximum size of level 0 of an index in bytes.
+     */
+    protected int      level0Size     = 16 * 1024 * 1024;
+    
+    /**
+     * The factor by which the maximum size of each subsequent level grows.
+     */
+    protected int      levelFanout    = 10;
+    
+    /**
+     * Specifies whether checkpoints only write the in-memory overlay of each
+     * index to a new on-disk run, and leave the merge with existing runs to
+     * background compactions.
+     */
+    protected boolean  incrementalCheckpoints;
+    
+    /**
+     * Specifies whether the in-memory overlays of all indices keep their
+     * entries in off-heap arenas rather than in heap-based trees.
+     */
+    protected boolean  offHeapOverlays;
+    
+    /**
+     * The maximum total size of the in-memory overlays of all databases in
+     * bytes. If exceeded, the largest databases are flushed to disk. A budget
+     * of 0 disables memory-based flushes.
+     */
+    protected long     memtableBudget;
+    
+    /**
+     * The total overlay size in bytes at which writers are blocked until
+     * databases have been flushed to disk.
+     */
+    protected long     memtableHardLimit;
+    
     /**
      * Paths to plugins initialized on startup of BabuDB.
      */
@@ -163,7 +289,7 @@ public class BabuDBConfig extends Config {
      */
     public BabuDBConfig(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize, boolean disableMMap, int mmapLimit, int debugLevel) {
+        int maxNumRecordsPerBlock, long maxBlockFileSize, boolean disableMMap, int mmapLimit, int debugLevel) {
         
         checkArgs(dbDir, dbLogDir, numThreads, maxLogFileSize, checkInterval, syncMode, pseudoSyncWait, maxQ,
             compression, maxNumRecordsPerBlock, maxBlockFileSize, mmapLimit);
@@ -241,7 +367,7 @@ public class BabuDBConfig extends Config {
      */
     public BabuDBConfig(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize) {
+        int maxNumRecordsPerBlock, long maxBlockFileSize) {
         
         this(dbDir, dbLogDir, numThreads, maxLogFileSize, checkInterval, syncMode, pseudoSyncWait, maxQ,
             compression, maxNumRecordsPerBlock, maxBlockFileSize, !"x86_64".equals(System
@@ -308,6 +434,8 @@ public class BabuDBConfig extends Config {
         
         this.numThreads = this.readOptionalInt("babudb.worker.numThreads", 1);
         
+        this.directLookups = this.readOptionalBoolean("babudb.worker.directLookups", false);
+        
         this.maxQueueLength = this.readOptionalInt("babudb.worker.maxQueueLength", 0);
         
         this.maxLogfileSize = this.readOptionalInt("babudb.maxLogfileSize", 1);
@@ -316,17 +444,55 @@ public class BabuDBConfig extends Config {
         
         this.pseudoSyncWait = this.readOptionalInt("babudb.pseudoSyncWait", 0);
         
+        this.maxLogBatchSize = this.readOptionalInt("babudb.log.maxBatchSize", DiskLogger.DEFAULT_MAX_BATCH_SIZE);
+        
+        this.maxLogCommitDelay = this.readOptionalInt("babudb.log.maxCommitDelay", 0);
+        
+        this.logPipelined = this.readOptionalBoolean("babudb.log.pipelined", false);
+        
+        this.maxLogQueueSize = this.readOptionalInt("babudb.log.maxQueueSize", DiskLogger.DEFAULT_MAX_QUEUE_SIZE);
+        
+        this.logSegmentSize = this.readOptionalInt("babudb.log.segmentSize", 0);
+        
+        this.logRecycleSegments = this.readOptionalBoolean("babudb.log.recycleSegments", false);
+        
         this.compression = this.readOptionalBoolean("babudb.compression", false);
         
+        this.blockCodec = this.readOptionalString("babudb.blockCodec", "none");
+        
         this.maxNumRecordsPerBlock = this.readOptionalInt("babudb.maxNumRecordsPerBlock", 64);
         
-        this.maxBlockFileSize = this.readOptionalInt("babudb.maxBlockFileSize", 1024 * 1024 * 512);
+        this.maxBlockSize = this.readOptionalInt("babudb.maxBlockSize", 0);
+        
+        this.maxBlockFileSize = this.readOptionalLong("babudb.maxBlockFileSize", 1024 * 1024 * 512);
         
         this.disableMMap = this.readOptionalBoolean("babudb.disableMmap",
             System.getProperty("os.arch") != null && !System.getProperty("os.arch").endsWith("64"));
         
         this.mmapLimit = this.readOptionalInt("babudb.mmapLimit", -1);
         
+        this.bloomFilterFPR = this.readOptionalDouble("babudb.bloomFilterFPR", 0);
+        
+        this.blockCacheSize = this.readOptionalInt("babudb.blockCacheSize", 0);
+        
+        this.checkpointThreads = this.readOptionalInt("babudb.checkpointThreads", 1);
+        
+        this.indexWriteRate = this.readOptionalLong("babudb.indexWriteRate", 0);
+        
+        this.numLevels = this.readOptionalInt("babudb.lsm.numLevels", 1);
+        
+        this.level0Size = this.readOptionalInt("babudb.lsm.level0Size", 16 * 1024 * 1024);
+        
+        this.levelFanout = this.readOptionalInt("babudb.lsm.levelFanout", 10);
+        
+        this.incrementalCheckpoints = this.readOptionalBoolean("babudb.lsm.incrementalCheckpoints", false);
+        
+        this.offHeapOverlays = this.readOptionalBoolean("babudb.lsm.offHeapOverlays", false);
+        
+        this.memtableBudget = this.readOptionalLong("babudb.lsm.memtableBudget", 0);
+        
+        this.memtableHardLimit = this.readOptionalLong("babudb.lsm.memtableHardLimit", 2 * memtableBudget);
+        
         int count = 0;
         String pluginConfigPath = null;
         while ((pluginConfigPath = readOptionalString("babudb.plugin." + count, null)) != null) {
@@ -337,6 +503,54 @@ public class BabuDBConfig extends Config {
         checkArgs(this.baseDir, this.dbLogDir, numThreads, maxLogfileSize, 
                 checkInterval, syncMode, pseudoSyncWait, maxQueueLength, 
                 compression, maxNumRecordsPerBlock, maxBlockFileSize, mmapLimit);
+        
+        try {
+            BlockCodec.getCodec(blockCodec);
+        } catch (IllegalArgumentException exc) {
+            throw new IllegalArgumentException("block codec must be one of 'none', 'deflate' and 'lz4'!");
+        }
+        
+        if (maxLogBatchSize < 0)
+            throw new IllegalArgumentException("max. log batch size must be >= 0!");
+        
+        if (maxLogCommitDelay < 0)
+            throw new IllegalArgumentException("max. log commit delay must be >= 0!");
+        
+        if (maxLogQueueSize < 0)
+            throw new IllegalArgumentException("max. log queue size must be >= 0!");
+        
+        if (logSegmentSize < 0)
+            throw new IllegalArgumentException("log segment size must be >= 0!");
+        
+        if (maxBlockSize < 0)
+            throw new IllegalArgumentException("maximum block size must be >= 0!");
+        
+        if (bloomFilterFPR < 0 || bloomFilterFPR >= 1)
+            throw new IllegalArgumentException("Bloom filter false-positive rate must be >= 0 and < 1!");
+        
+        if (blockCacheSize < 0)
+            throw new IllegalArgumentException("block cache size must be >= 0!");
+        
+        if (checkpointThreads < 1)
+            throw new IllegalArgumentException("number of checkpoint threads must be > 0!");
+        
+        if (indexWriteRate < 0)
+            throw new IllegalArgumentException("index write rate must be >= 0!");
+        
+        if (numLevels < 1)
+            throw new IllegalArgumentException("number of LSM tree levels must be > 0!");
+        
+        if ((numLevels > 1 || incrementalCheckpoints) && level0Size <= 0)
+            throw new IllegalArgumentException("max. size of level 0 must be > 0!");
+        
+        if ((numLevels > 1 || incrementalCheckpoints) && levelFanout < 2)
+            throw new IllegalArgumentException("level fanout must be > 1!");
+        
+        if (memtableBudget < 0)
+            throw new IllegalArgumentException("memtable budget must be >= 0!");
+        
+        if (memtableBudget > 0 && memtableHardLimit <= memtableBudget)
+            throw new IllegalArgumentException("memtable hard limit must be > memtable budget!");
     }
     
     public int getDebugLevel() {
@@ -371,6 +585,10 @@ public class BabuDBConfig extends Config {
         return numThreads;
     }
     
+    public boolean getDirectLookups() {
+        return directLookups;
+    }
+    
     public long getMaxLogfileSize() {
         return maxLogfileSize;
     }
@@ -383,15 +601,47 @@ public class BabuDBConfig extends Config {
         return pseudoSyncWait;
     }
     
+    public int getMaxLogBatchSize() {
+        return maxLogBatchSize;
+    }
+    
+    public int getMaxLogCommitDelay() {
+        return maxLogCommitDelay;
+    }
+    
+    public boolean getLogPipelined() {
+        return logPipelined;
+    }
+    
+    public int getMaxLogQueueSize() {
+        return maxLogQueueSize;
+    }
+    
+    public int getLogSegmentSize() {
+        return logSegmentSize;
+    }
+    
+    public boolean getLogRecycleSegments() {
+        return logRecycleSegments;
+    }
+    
     public boolean getCompression() {
         return compression;
     }
     
+    public String getBlockCodec() {
+        return blockCodec;
+    }
+    
     public int getMaxNumRecordsPerBlock() {
         return maxNumRecordsPerBlock;
     }
     
-    public int getMaxBlockFileSize() {
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+    
+    public long getMaxBlockFileSize() {
         return maxBlockFileSize;
     }
     
@@ -403,6 +653,50 @@ public class BabuDBConfig extends Config {
         return this.mmapLimit;
     }
     
+    public double getBloomFilterFPR() {
+        return bloomFilterFPR;
+    }
+    
+    public int getBlockCacheSize() {
+        return blockCacheSize;
+    }
+    
+    public int getCheckpointThreads() {
+        return checkpointThreads;
+    }
+    
+    public long getIndexWriteRate() {
+        return indexWriteRate;
+    }
+    
+    public int getNumLevels() {
+        return numLevels;
+    }
+    
+    public int getLevel0Size() {
+        return level0Size;
+    }
+    
+    public int getLevelFanout() {
+        return levelFanout;
+    }
+    
+    public boolean getIncrementalCheckpoints() {
+        return incrementalCheckpoints;
+    }
+    
+    public boolean getOffHeapOverlays() {
+        return offHeapOverlays;
+    }
+    
+    public long getMemtableBudget() {
+        return memtableBudget;
+    }
+    
+    public long getMemtableHardLimit() {
+        return memtableHardLimit;
+    }
+    
     public List<String> getPlugins() {
         return plugins;
     }
@@ -415,16 +709,42 @@ public class BabuDBConfig extends Config {
         buf.append("#                sync mode: " + syncMode + "\n");
         if (syncMode != SyncMode.ASYNC)
             buf.append("#     pseudo sync interval: " + pseudoSyncWait + "\n");
+        buf.append("#      max. log batch size: " + maxLogBatchSize + "\n");
+        if (maxLogBatchSize > 0)
+            buf.append("#    max. log commit delay: " + maxLogCommitDelay + "\n");
+        buf.append("#            pipelined log: " + logPipelined + "\n");
+        buf.append("#      max. log queue size: " + maxLogQueueSize + "\n");
+        buf.append("#         log segment size: " + logSegmentSize + "\n");
+        if (logSegmentSize > 0)
+            buf.append("#     recycle log segments: " + logRecycleSegments + "\n");
         buf.append("#        max. queue length: " + maxQueueLength + "\n");
         buf.append("#             num. threads: " + numThreads + "\n");
+        if (numThreads > 0)
+            buf.append("#           direct lookups: " + directLookups + "\n");
         buf.append("#   checkpointing interval: " + checkInterval + "\n");
         buf.append("#       max. log file size: " + maxLogfileSize + "\n");
         buf.append("#   num. records per block: " + maxNumRecordsPerBlock + "\n");
+        buf.append("#          max. block size: " + maxBlockSize + "\n");
         buf.append("#     max. block file size: " + maxBlockFileSize + "\n");
         buf.append("#      compression enabled: " + compression + "\n");
+        buf.append("#              block codec: " + blockCodec + "\n");
         buf.append("#            mmap disabled: " + disableMMap + "\n");
         if (!disableMMap)
             buf.append("#               mmap limit: " + mmapLimit + "\n");
+        buf.append("#     Bloom filter FP rate: " + bloomFilterFPR + "\n");
+        buf.append("#         block cache size: " + blockCacheSize + "\n");
+        buf.append("#  num. checkpoint threads: " + checkpointThreads + "\n");
+        buf.append("#         index write rate: " + indexWriteRate + "\n");
+        buf.append("#        num. index levels: " + numLevels + "\n");
+        if (numLevels > 1) {
+            buf.append("#        max. level 0 size: " + level0Size + "\n");
+            buf.append("#             level fanout: " + levelFanout + "\n");
+        }
+        buf.append("#  incremental checkpoints: " + incrementalCheckpoints + "\n");
+        buf.append("#        off-heap overlays: " + offHeapOverlays + "\n");
+        buf.append("#          memtable budget: " + memtableBudget + "\n");
+        if (memtableBudget > 0)
+            buf.append("#      memtable hard limit: " + memtableHardLimit + "\n");
         for (int i = 0; i < plugins.size(); i++) {
             buf.append("#               plugin-" + i + ": " + plugins.get(i) + "\n");
         }
@@ -433,7 +753,7 @@ public class BabuDBConfig extends Config {
     
     private static void checkArgs(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize, int mmapLimit) {
+        int maxNumRecordsPerBlock, long maxBlockFileSize, int mmapLimit) {
         
         if (dbDir == null)
             throw new IllegalArgumentException("database directory needs to be specified!");
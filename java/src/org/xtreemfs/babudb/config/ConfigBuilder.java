@@ -94,6 +94,21 @@ public class ConfigBuilder {
         return this;
     }
     
+    /**
+     * Specifies whether lookups are performed directly by the calling threads
+     * instead of being enqueued at the worker threads. Insertions are still
+     * processed by the worker threads.
+     * 
+     * @param directLookups
+     *            specifies whether lookups bypass the worker threads
+     * @return a reference to this object
+     */
+    public ConfigBuilder setDirectLookups(boolean directLookups) {
+        
+        changes.put("babudb.worker.directLookups", directLookups + "");
+        return this;
+    }
+    
     /**
      * Enables or disables compression of database contents.
      * 
@@ -108,6 +123,37 @@ public class ConfigBuilder {
         return this;
     }
     
+    /**
+     * Bounds the blocks of on-disk indices by their size rather than by their
+     * number of records. Entries that exceed the size are written to blocks of
+     * their own.
+     * 
+     * @param size
+     *            the target size of a block in bytes; 0 bounds blocks by the
+     *            number of records
+     * @return a reference to this object
+     */
+    public ConfigBuilder setMaxBlockSize(int size) {
+        
+        changes.put("babudb.maxBlockSize", size + "");
+        return this;
+    }
+    
+    /**
+     * Sets the codec that compresses the blocks of on-disk indices.
+     * Decompressed blocks are kept in the block cache.
+     * 
+     * @param codec
+     *            the name of the codec, i.e. "deflate" or "lz4"; "none"
+     *            disables block compression
+     * @return a reference to this object
+     */
+    public ConfigBuilder setBlockCodec(String codec) {
+        
+        changes.put("babudb.blockCodec", codec);
+        return this;
+    }
+    
     /**
      * Specifies the synchronization mode for log appends.
      * 
@@ -121,6 +167,199 @@ public class ConfigBuilder {
         return this;
     }
     
+    /**
+     * Configures group commits of log entries. All entries of a batch are
+     * written with a single write operation, followed by a single sync.
+     * 
+     * @param maxBatchSize
+     *            the max size of a batch in bytes; 0 disables group commits
+     * @param maxCommitDelay
+     *            the max time in microseconds to wait for further entries if
+     *            a batch is not full
+     * @return a reference to this object
+     */
+    public ConfigBuilder setGroupCommit(int maxBatchSize, int maxCommitDelay) {
+        
+        changes.put("babudb.log.maxBatchSize", maxBatchSize + "");
+        changes.put("babudb.log.maxCommitDelay", maxCommitDelay + "");
+        return this;
+    }
+    
+    /**
+     * Specifies whether the log is synced and listeners of log entries are
+     * notified by separate threads, while the next batch of log entries is
+     * written. This increases the throughput if many log entries are pending
+     * at a time, but may increase the latency of clients that wait for each
+     * of their entries to be synced.
+     * 
+     * @param pipelined
+     *            specifies whether the log is pipelined
+     * @return a reference to this object
+     */
+    public ConfigBuilder setLogPipelined(boolean pipelined) {
+        
+        changes.put("babudb.log.pipelined", pipelined + "");
+        return this;
+    }
+    
+    /**
+     * Sets the max number of bytes of log entries that may be queued at the
+     * disk logger before appending threads are blocked.
+     * 
+     * @param maxQueueSize
+     *            the max number of bytes; 0 for an unbounded queue
+     * @return a reference to this object
+     */
+    public ConfigBuilder setMaxLogQueueSize(int maxQueueSize) {
+        
+        changes.put("babudb.log.maxQueueSize", maxQueueSize + "");
+        return this;
+    }
+    
+    /**
+     * Sets the size of zero-filled segments that are preallocated for log
+     * files, so that syncs of the log do not need to update the file size.
+     * 
+     * @param segmentSize
+     *            the segment size in bytes; 0 disables preallocation
+     * @return a reference to this object
+     */
+    public ConfigBuilder setLogSegmentSize(int segmentSize) {
+        
+        changes.put("babudb.log.segmentSize", segmentSize + "");
+        return this;
+    }
+    
+    /**
+     * Specifies whether obsolete log files are recycled as preallocated
+     * segments for subsequent log files rather than deleted. Only applies if
+     * log segments are preallocated.
+     * 
+     * @param recycle
+     *            specifies whether log segments are recycled
+     * @return a reference to this object
+     */
+    public ConfigBuilder setLogRecycleSegments(boolean recycle) {
+        
+        changes.put("babudb.log.recycleSegments", recycle + "");
+        return this;
+    }
+    
+    /**
+     * Sets the false-positive rate of the Bloom filters that are written for
+     * on-disk indices.
+     * 
+     * @param fpr
+     *            the false-positive rate; 0 disables Bloom filters
+     * @return a reference to this object
+     */
+    public ConfigBuilder setBloomFilterFPR(double fpr) {
+        
+        changes.put("babudb.bloomFilterFPR", fpr + "");
+        return this;
+    }
+    
+    /**
+     * Sets the size of the cache for blocks of on-disk indices that are not
+     * memory-mapped.
+     * 
+     * @param size
+     *            the cache size in bytes; 0 disables the cache
+     * @return a reference to this object
+     */
+    public ConfigBuilder setBlockCacheSize(int size) {
+        
+        changes.put("babudb.blockCacheSize", size + "");
+        return this;
+    }
+    
+    /**
+     * Sets the number of threads that write the indices of all databases in
+     * parallel when a checkpoint is created, and the maximum rate at which
+     * all on-disk indices are written.
+     * 
+     * @param numThreads
+     *            the number of threads; 1 writes indices sequentially
+     * @param writeRate
+     *            the write rate in bytes per second; 0 means unlimited
+     * @return a reference to this object
+     */
+    public ConfigBuilder setCheckpointWriters(int numThreads, long writeRate) {
+        
+        changes.put("babudb.checkpointThreads", numThreads + "");
+        changes.put("babudb.indexWriteRate", writeRate + "");
+        return this;
+    }
+    
+    /**
+     * Enables multi-level on-disk indices.
+     * 
+     * @param numLevels
+     *            the number of on-disk levels of each index
+     * @param level0Size
+     *            the maximum size of level 0 in bytes
+     * @param levelFanout
+     *            the factor by which the maximum size of each subsequent level
+     *            grows
+     * @return a reference to this object
+     */
+    public ConfigBuilder setLevels(int numLevels, int level0Size, int levelFanout) {
+        
+        changes.put("babudb.lsm.numLevels", numLevels + "");
+        changes.put("babudb.lsm.level0Size", level0Size + "");
+        changes.put("babudb.lsm.levelFanout", levelFanout + "");
+        return this;
+    }
+    
+    /**
+     * Enables or disables incremental checkpoints, which only write the
+     * in-memory overlay of each index to disk and merge it with the existing
+     * on-disk index in the background.
+     * 
+     * @param incremental
+     *            specifies whether checkpoints are incremental
+     * @return a reference to this object
+     */
+    public ConfigBuilder setIncrementalCheckpoints(boolean incremental) {
+        
+        changes.put("babudb.lsm.incrementalCheckpoints", incremental + "");
+        return this;
+    }
+    
+    /**
+     * Specifies whether the in-memory overlays of all indices keep their
+     * entries in off-heap arenas, which reduces the size of the Java heap when
+     * large numbers of entries are inserted between checkpoints.
+     * 
+     * @param offHeap
+     *            specifies whether overlays are kept off-heap
+     * @return a reference to this object
+     */
+    public ConfigBuilder setOffHeapOverlays(boolean offHeap) {
+        
+        changes.put("babudb.lsm.offHeapOverlays", offHeap + "");
+        return this;
+    }
+    
+    /**
+     * Sets the maximum total size of the in-memory overlays of all databases.
+     * If exceeded, the databases with the largest overlays are flushed to
+     * disk, and writers are slowed down until the size has dropped again.
+     * Writers are blocked if the size reaches the hard limit.
+     * 
+     * @param budget
+     *            the budget in bytes; 0 disables memory-based flushes
+     * @param hardLimit
+     *            the hard limit in bytes; must be larger than the budget
+     * @return a reference to this object
+     */
+    public ConfigBuilder setMemtableBudget(long budget, long hardLimit) {
+        
+        changes.put("babudb.lsm.memtableBudget", budget + "");
+        changes.put("babudb.lsm.memtableHardLimit", hardLimit + "");
+        return this;
+    }
+    
     /**
      * Builds a BabuDB configuration instance.
      * 
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Bloom filter over the keys of an on-disk index. The filter allows to
+ * determine that a key is not contained in the index without accessing any
+ * of its blocks. <br/>
+ *
+ * Keys are hashed to 64-bit values; the bit positions for a key are derived
+ * from the upper and lower half of its hash value by double hashing.
+ */
+public class BloomFilter {
+    
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    
+    private static final long FNV_PRIME  = 0x100000001b3L;
+    
+    private final long[]      bits;
+    
+    private final long        numBits;
+    
+    private final int         numHashes;
+    
+    /**
+     * Creates a new, empty Bloom filter.
+     *
+     * @param numEntries
+     *            the number of keys that will be added to the filter
+     * @param fpr
+     *            the desired false-positive rate, between 0 and 1
+     */
+    public BloomFilter(long numEntries, double fpr) {
+        
+        assert (fpr > 0 && fpr < 1);
+        
+        numEntries = Math.max(numEntries, 1);
+        
+        // m = -n * ln(p) / ln(2)^2, k = m / n * ln(2)
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-numEntries * Math.log(fpr) / (ln2 * ln2));
+        int numWords = (int) Math.min((m + 63) / 64, Integer.MAX_VALUE / 8 - 1);
+        
+        this.bits = new long[Math.max(numWords, 1)];
+        this.numBits = (long) bits.length * 64;
+        this.numHashes = (int) Math.max(1, Math.min(30, Math.round((double) numBits / numEntries * ln2)));
+    }
+    
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numBits = (long) bits.length * 64;
+        this.numHashes = numHashes;
+    }
+    
+    /**
+     * Adds a key to the filter.
+     *
+     * @param hash
+     *            the hash value of the key, as returned by {@link #hash(Object)}
+     */
+    public void add(long hash) {
+        
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long pos = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (pos >>> 6)] |= 1L << pos;
+        }
+    }
+    
+    /**
+     * Checks whether a key may be contained in the filter.
+     *
+     * @param key
+     *            the key
+     * @return <code>false</code>, if the key is definitely not contained,
+     *         <code>true</code>, otherwise
+     */
+    public boolean mightContain(byte[] key) {
+        
+        long hash = hash(key);
+        
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long pos = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (pos >>> 6)] & (1L << pos)) == 0)
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Calculates the hash value of a key.
+     *
+     * @param key
+     *            the key, either a <code>byte[]</code> or a {@link ByteRange}
+     * @return the hash value
+     */
+    public static long hash(Object key) {
+        
+        long h = FNV_OFFSET;
+        
+        if (key instanceof byte[]) {
+            for (byte b : (byte[]) key)
+                h = (h ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        
+        else {
+            ByteRange range = (ByteRange) key;
+            if (range.getPrefix() != null)
+                for (byte b : range.getPrefix())
+                    h = (h ^ (b & 0xFF)) * FNV_PRIME;
+            ByteBuffer buf = range.getBuf();
+            for (int i = range.getStartOffset(); i < range.getEndOffset(); i++)
+                h = (h ^ (buf.get(i) & 0xFF)) * FNV_PRIME;
+        }
+        
+        // spread the bits across the whole value
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        
+        return h;
+    }
+    
+    /**
+     * Writes the filter to a file.
+     *
+     * @param file
+     *            the file
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void write(String file) throws IOException {
+        
+        ByteBuffer buf = ByteBuffer.allocate(8 + bits.length * 8);
+        buf.putInt(numHashes);
+        buf.putInt(bits.length);
+        buf.asLongBuffer().put(bits);
+        buf.position(0);
+        
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            while (buf.hasRemaining())
+                channel.write(buf);
+        } finally {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Reads a filter from a file.
+     *
+     * @param file
+     *            the file
+     * @return the filter, or <code>null</code> if the file does not exist
+     * @throws IOException
+     *             if an I/O error occurs or the file is corrupted
+     */
+    public static BloomFilter read(String file) throws IOException {
+        
+        if (!new File(file).exists())
+            return null;
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            
+            int numHashes = in.readInt();
+            int numWords = in.readInt();
+            if (numHashes < 1 || numWords < 1 || new File(file).length() != 8 + (long) numWords * 8)
+                throw new IOException("corrupted Bloom filter: " + file);
+            
+            long[] bits = new long[numWords];
+            for (int i = 0; i < numWords; i++)
+                bits[i] = in.readLong();
+            
+            return new BloomFilter(bits, numHashes);
+            
+        } catch (EOFException exc) {
+            throw new IOException("corrupted Bloom filter: " + file);
+        } finally {
+            in.close();
+        }
+    }
+    
+}
@@ -40,7 +40,7 @@ public class ByteRange {
         this.size = endOffset - startOffset;
         this.prefix = null;
         
-        assert (endOffset < buf.limit()) : "buf.limit() == " + buf.limit() + ", endOffset == " + endOffset
+        assert (endOffset <= buf.limit()) : "buf.limit() == " + buf.limit() + ", endOffset == " + endOffset
             + ", startOffset == " + startOffset + ", buf.capacity == " + buf.capacity();
     }
     
@@ -64,25 +64,52 @@ public class ByteRange {
         this.prefix = prefix;
     }
     
+    public byte[] getPrefix() {
+        return prefix;
+    }
+    
     public byte[] toBuffer() {
-        byte[] tmp;
         
-        buf.position(startOffset);
+        int prefixSize = prefix == null ? 0 : prefix.length;
+        byte[] tmp = new byte[prefixSize + size];
         
-        if (prefix == null) {
-            tmp = new byte[size];
-            buf.get(tmp);
-        } else {
-            tmp = new byte[prefix.length + size];
-            System.arraycopy(prefix, 0, tmp, 0, prefix.length);
-            buf.get(tmp, prefix.length, size);
-        }
+        if (prefix != null)
+            System.arraycopy(prefix, 0, tmp, 0, prefixSize);
+        
+        copy(buf, startOffset, size, tmp, prefixSize);
         
         return tmp;
+    }
+    
+    /**
+     * Copies a range of bytes from a buffer to an array without modifying the
+     * position of the buffer, as the buffer may be shared by concurrent
+     * lookups.
+     * 
+     * @param buf
+     *            the source buffer
+     * @param startOffset
+     *            the offset of the first byte of the range in the buffer
+     * @param size
+     *            the size of the range
+     * @param dest
+     *            the destination array
+     * @param destOffset
+     *            the offset in the destination array
+     */
+    public static void copy(ByteBuffer buf, int startOffset, int size, byte[] dest, int destOffset) {
         
-        // for (int i = startOffset; i < startOffset + size; i++)
-        // tmp[i - startOffset] = buf.get(i);
-        // return tmp;
+        // only larger ranges from direct buffers are copied via a view buffer
+        if (buf.hasArray())
+            System.arraycopy(buf.array(), buf.arrayOffset() + startOffset, dest, destOffset, size);
+        else if (size <= 64)
+            for (int i = 0; i < size; i++)
+                dest[destOffset + i] = buf.get(startOffset + i);
+        else {
+            ByteBuffer view = buf.duplicate();
+            view.position(startOffset);
+            view.get(dest, destOffset, size);
+        }
     }
     
     public void setReusableBuf(ReusableBuffer rBuf) {
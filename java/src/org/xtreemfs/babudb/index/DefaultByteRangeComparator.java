@@ -8,6 +8,8 @@
 
 package org.xtreemfs.babudb.index;
 
+import java.nio.ByteBuffer;
+
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
 
 
@@ -37,21 +39,45 @@ public class DefaultByteRangeComparator implements ByteRangeComparator {
     
     @Override
     public int compare(ByteRange rng, byte[] buf) {
+        return compare(rng.getBuf(), rng.getStartOffset(), rng.getEndOffset(), buf);
+    }
+    
+    @Override
+    public int compare(ByteBuffer rng, int startOffset, int endOffset, byte[] buf) {
         
-        int n = rng.getStartOffset() + Math.min(rng.getSize(), buf.length);
-        int j = 0;
-        for (int i = rng.getStartOffset(); i < n; i++, j++) {
-            assert (i < rng.getEndOffset()) : "i == " + i + ", endOffset == " + rng.getEndOffset();
-            byte v1 = rng.getBuf().get(i);
-            byte v2 = buf[j];
-            if (v1 == v2)
-                continue;
-            if (v1 < v2)
-                return -1;
-            return 1;
+        int size = endOffset - startOffset;
+        int n = Math.min(size, buf.length);
+        
+        // compare heap buffers directly on their backing arrays
+        if (rng.hasArray()) {
+            
+            byte[] array = rng.array();
+            int offset = rng.arrayOffset() + startOffset;
+            for (int j = 0; j < n; j++) {
+                byte v1 = array[offset + j];
+                byte v2 = buf[j];
+                if (v1 == v2)
+                    continue;
+                if (v1 < v2)
+                    return -1;
+                return 1;
+            }
+        }
+
+        else {
+            
+            for (int j = 0; j < n; j++) {
+                byte v1 = rng.get(startOffset + j);
+                byte v2 = buf[j];
+                if (v1 == v2)
+                    continue;
+                if (v1 < v2)
+                    return -1;
+                return 1;
+            }
         }
         
-        return rng.getSize() - buf.length;
+        return size - buf.length;
     }
     
     @Override
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xtreemfs.babudb.index.reader.DiskIndex;
+import org.xtreemfs.foundation.logging.Logging;
+
+/**
+ * A sorted run of a multi-level LSM tree. A run is an immutable on-disk index
+ * that resides at a certain level of the tree. Runs at lower levels are newer
+ * than runs at higher levels; within a level, runs with higher IDs are newer.
+ * <br/>
+ *
+ * A checkpoint of a multi-level LSM tree is a directory containing the files
+ * of all runs, where each file name is prefixed with the ID of the run it
+ * belongs to, together with a manifest that lists the IDs and levels of all
+ * runs from the newest to the oldest one.
+ */
+class DiskRun {
+    
+    /**
+     * the name of the manifest file in a checkpoint directory
+     */
+    public static final String  MANIFEST_FILE = "manifest";
+    
+    private static final Method CREATE_LINK;
+    
+    private static final Method TO_PATH;
+    
+    static {
+        
+        // hard links are only supported by the JDK as of Java 7; on older
+        // VMs, files are copied instead
+        Method createLink = null;
+        Method toPath = null;
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> filesClass = Class.forName("java.nio.file.Files");
+            createLink = filesClass.getMethod("createLink", pathClass, pathClass);
+            toPath = File.class.getMethod("toPath");
+        } catch (Exception exc) {
+            createLink = null;
+            toPath = null;
+        }
+        CREATE_LINK = createLink;
+        TO_PATH = toPath;
+    }
+    
+    private final long          id;
+    
+    private final int           level;
+    
+    private final DiskIndex     index;
+    
+    private String              dir;
+    
+    private String              filePrefix;
+    
+    /**
+     * Creates a new run.
+     *
+     * @param id
+     *            the unique ID of the run
+     * @param level
+     *            the level of the run
+     * @param index
+     *            the on-disk index of the run
+     * @param dir
+     *            the directory that currently contains the run's files
+     * @param filePrefix
+     *            the prefix of the run's files in <code>dir</code>
+     */
+    public DiskRun(long id, int level, DiskIndex index, String dir, String filePrefix) {
+        this.id = id;
+        this.level = level;
+        this.index = index;
+        this.dir = dir;
+        this.filePrefix = filePrefix;
+    }
+    
+    public long getId() {
+        return id;
+    }
+    
+    public int getLevel() {
+        return level;
+    }
+    
+    public DiskIndex getIndex() {
+        return index;
+    }
+    
+    public String getDir() {
+        return dir;
+    }
+    
+    /**
+     * Updates the location of the run's files after the run has become part of
+     * a new checkpoint.
+     *
+     * @param dir
+     *            the checkpoint directory
+     */
+    public void relocate(String dir) {
+        this.dir = dir;
+        this.filePrefix = getFilePrefix(id);
+    }
+    
+    /**
+     * Adds the run's files to the given directory. Files are hard-linked if
+     * possible, and copied otherwise.
+     *
+     * @param targetDir
+     *            the target directory
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void linkTo(File targetDir) throws IOException {
+        for (String file : DiskIndex.getIndexFiles(new File(dir), filePrefix))
+            linkFile(new File(dir, file), new File(targetDir, getFilePrefix(id)
+                + file.substring(filePrefix.length())));
+    }
+    
+    /**
+     * Deletes the run's files from the directory in which they currently
+     * reside.
+     */
+    public void delete() {
+        for (String file : DiskIndex.getIndexFiles(new File(dir), filePrefix))
+            new File(dir, file).delete();
+    }
+    
+    /**
+     * Returns the prefix for the files of the run with the given ID.
+     *
+     * @param id
+     *            the run ID
+     * @return the file prefix
+     */
+    public static String getFilePrefix(long id) {
+        return "R" + id + "_";
+    }
+    
+    /**
+     * Writes a manifest to the given checkpoint directory.
+     *
+     * @param dir
+     *            the checkpoint directory
+     * @param runs
+     *            pairs of run IDs and levels, from the newest to the oldest
+     *            run
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static void writeManifest(File dir, List<long[]> runs) throws IOException {
+        
+        File tmp = new File(dir, MANIFEST_FILE + ".tmp");
+        FileWriter out = new FileWriter(tmp);
+        try {
+            for (long[] run : runs)
+                out.write(run[0] + " " + run[1] + "\n");
+        } finally {
+            out.close();
+        }
+        
+        if (!tmp.renameTo(new File(dir, MANIFEST_FILE)))
+            throw new IOException("could not rename '" + tmp + "'");
+    }
+    
+    /**
+     * Reads the manifest from the given checkpoint directory.
+     *
+     * @param dir
+     *            the checkpoint directory
+     * @return pairs of run IDs and levels, from the newest to the oldest run
+     * @throws IOException
+     *             if an I/O error occurs or the manifest is corrupted
+     */
+    public static List<long[]> readManifest(File dir) throws IOException {
+        
+        List<long[]> runs = new ArrayList<long[]>();
+        BufferedReader in = new BufferedReader(new FileReader(new File(dir, MANIFEST_FILE)));
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                
+                if (line.trim().length() == 0)
+                    continue;
+                
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 2)
+                    throw new IOException("corrupted manifest in '" + dir + "': " + line);
+                
+                try {
+                    runs.add(new long[] { Long.parseLong(fields[0]), Integer.parseInt(fields[1]) });
+                } catch (NumberFormatException exc) {
+                    throw new IOException("corrupted manifest in '" + dir + "': " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        
+        return runs;
+    }
+    
+    private static void linkFile(File source, File target) throws IOException {
+        
+        if (CREATE_LINK != null) {
+            try {
+                CREATE_LINK.invoke(null, TO_PATH.invoke(target), TO_PATH.invoke(source));
+                return;
+            } catch (InvocationTargetException exc) {
+                // e.g. if hard links are not supported by the file system
+                Logging.logMessage(Logging.LEVEL_DEBUG, null, "could not link '%s', file will be copied: %s", source,
+                    exc.getCause());
+            } catch (IllegalAccessException exc) {
+                // ignore and copy the file
+            }
+        }
+        
+        FileChannel in = new FileInputStream(source).getChannel();
+        FileChannel out = new FileOutputStream(target).getChannel();
+        try {
+            long size = in.size();
+            for (long pos = 0; pos < size;)
+                pos += in.transferTo(pos, size - pos, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+    
+}
@@ -10,14 +10,22 @@ package org.xtreemfs.babudb.index;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.database.ValueBuffer;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.codec.BlockCodec;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayBufferTree;
 import org.xtreemfs.babudb.index.reader.DiskIndex;
 import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
@@ -26,17 +34,49 @@ import org.xtreemfs.babudb.index.reader.InternalMergeIterator;
 import org.xtreemfs.babudb.index.writer.DiskIndexWriter;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
+import org.xtreemfs.foundation.util.FSUtils;
 import org.xtreemfs.foundation.util.OutputUtils;
 
+/**
+ * An LSM tree consists of an in-memory overlay and a list of immutable on-disk
+ * runs. By default, the tree has a single level with a single run, which is
+ * entirely rewritten with each checkpoint. Multi-level trees only merge the
+ * overlay with the runs at level 0 when a checkpoint is created; whenever the
+ * size of a level exceeds its limit, its runs are merged into the next level
+ * by {@link #compact()}. <br/>
+ * 
+ * With incremental checkpoints, a checkpoint only writes the overlay to a new
+ * run at level 0, and the merge with the existing runs is deferred to
+ * {@link #compact()}, which merges the stacked runs of a level once there are
+ * more of them than the level fanout. <br/>
+ * 
+ * Deleted keys are written to on-disk runs as tombstones that hide older
+ * entries with the same key, until they are merged into the oldest run.
+ * Tombstones are stored as zero-length values; as zero-length values may also
+ * be inserted as regular values, each run explicitly records the keys of its
+ * tombstones.
+ */
 public class LSMTree {
     
     private static long               totalOnDiskSize = 0;
     
     private static final byte[]       NULL_ELEMENT    = new byte[0];
     
+    /**
+     * the approximate memory overhead of an overlay entry in addition to its
+     * key and value
+     */
+    private static final int          ENTRY_OVERHEAD  = 64;
+    
+    private static final AtomicLong   totalOverlaySize = new AtomicLong();
+    
     private MultiOverlayBufferTree    overlay;
     
-    private DiskIndex                 index;
+    /**
+     * the on-disk runs, from the newest to the oldest one; the list is never
+     * modified but replaced as a whole
+     */
+    private volatile List<DiskRun>    runs;
     
     private final ByteRangeComparator comp;
     
@@ -46,12 +86,55 @@ public class LSMTree {
     
     private final int                 maxEntriesPerBlock;
     
-    private final int                 maxBlockFileSize;
+    private final long                maxBlockFileSize;
     
     private final boolean             useMMap;
     
     private final int                 mmapLimitBytes;
     
+    private final double              bloomFilterFPR;
+    
+    private final int                 numLevels;
+    
+    private final long                level0Size;
+    
+    private final int                 levelFanout;
+    
+    private final boolean             incremental;
+    
+    private final File                compactionDir;
+    
+    private final BlockCodec          blockCodec;
+    
+    private final int                 maxBlockSize;
+    
+    private long                      nextRunId;
+    
+    /**
+     * the approximate size of all overlays
+     */
+    private final AtomicLong          overlaySize;
+    
+    /**
+     * the approximate size of all read-only overlays, i.e. of all overlays
+     * that will be discarded when the tree is linked to a new checkpoint
+     */
+    private long                      snapshotOverlaySize;
+    
+    /**
+     * the number of snapshots that are currently being materialized; runs are
+     * not replaced by compactions in the meantime
+     */
+    private int                       numMaterializations;
+    
+    /**
+     * the ID of the run that is currently being written by a compaction, or
+     * -1 if no compaction is in progress
+     */
+    private long                      compactionRunId = -1;
+    
+    private boolean                   destroyed;
+    
     /**
      * Creates a new LSM tree.
      * 
@@ -65,7 +148,56 @@ public class LSMTree {
      *             if an I/O error occurs when accessing the on-disk index file
      */
     public LSMTree(String indexFile, ByteRangeComparator comp, boolean compressed, int maxEntriesPerBlock,
-        int maxBlockFileSize, boolean useMMap, int mmapLimit) throws IOException {
+        long maxBlockFileSize, boolean useMMap, int mmapLimit) throws IOException {
+        this(indexFile, comp, compressed, maxEntriesPerBlock, maxBlockFileSize, useMMap, mmapLimit, 0, 1, 0,
+            0, false, null, false, false, null, 0);
+    }
+    
+    /**
+     * Creates a new multi-level LSM tree.
+     * 
+     * @param indexFile
+     *            the on-disk index file - may be <code>null</code>
+     * @param comp
+     *            a comparator for byte ranges
+     * @param compressed
+     *            Compression of disk-index
+     * @param bloomFilterFPR
+     *            the false-positive rate of the Bloom filters written for
+     *            on-disk runs; 0 disables Bloom filters
+     * @param numLevels
+     *            the number of on-disk levels; if 1, the on-disk index is
+     *            entirely rewritten with each checkpoint
+     * @param level0Size
+     *            the maximum size of level 0 in bytes
+     * @param levelFanout
+     *            the factor by which the maximum size of each subsequent level
+     *            grows
+     * @param incremental
+     *            if <code>true</code>, checkpoints only write the overlay to a
+     *            new run at level 0
+     * @param compactionDir
+     *            the directory for runs that were created by compactions
+     *            after the last checkpoint
+     * @param concurrentOverlay
+     *            if <code>true</code>, lookups may be performed concurrently
+     *            with insertions
+     * @param offHeapOverlay
+     *            if <code>true</code>, the entries of the in-memory overlay are
+     *            kept outside of the Java heap
+     * @param blockCodec
+     *            the codec that compresses the blocks of on-disk runs; if
+     *            <code>null</code>, blocks are not compressed
+     * @param maxBlockSize
+     *            the target size of the blocks of on-disk runs in bytes; if 0,
+     *            blocks are bounded by <code>maxEntriesPerBlock</code>
+     * @throws IOException
+     *             if an I/O error occurs when accessing the on-disk index file
+     */
+    public LSMTree(String indexFile, ByteRangeComparator comp, boolean compressed, int maxEntriesPerBlock,
+        long maxBlockFileSize, boolean useMMap, int mmapLimit, double bloomFilterFPR, int numLevels,
+        long level0Size, int levelFanout, boolean incremental, String compactionDir, boolean concurrentOverlay,
+        boolean offHeapOverlay, BlockCodec blockCodec, int maxBlockSize) throws IOException {
         
         this.comp = comp;
         this.compressed = compressed;
@@ -73,10 +205,35 @@ public class LSMTree {
         this.maxBlockFileSize = maxBlockFileSize;
         this.useMMap = useMMap;
         this.mmapLimitBytes = mmapLimit * 1024 * 1024;
+        this.bloomFilterFPR = bloomFilterFPR;
+        this.numLevels = Math.max(numLevels, 1);
+        this.level0Size = level0Size;
+        this.levelFanout = levelFanout;
+        this.incremental = incremental;
+        this.compactionDir = compactionDir == null ? null : new File(compactionDir);
+        this.blockCodec = blockCodec;
+        this.maxBlockSize = maxBlockSize;
+        this.nextRunId = 1;
+        this.overlaySize = new AtomicLong();
         
-        overlay = new MultiOverlayBufferTree(NULL_ELEMENT, comp);
-        totalOnDiskSize += indexFile == null ? 0 : getTotalDirSize(new File(indexFile));
-        index = indexFile == null ? null : new DiskIndex(indexFile, comp, compressed, useMmap());
+        if ((this.numLevels > 1 || incremental) && this.compactionDir == null)
+            throw new IllegalArgumentException(
+                "multi-level LSM trees and incremental checkpoints require a compaction directory");
+        
+        // runs from compactions that were not completed before the last
+        // shutdown are not part of any checkpoint and can be discarded
+        if (this.compactionDir != null && this.compactionDir.exists())
+            FSUtils.delTree(this.compactionDir);
+        
+        overlay = offHeapOverlay ? MultiOverlayBufferTree.createOffHeap(NULL_ELEMENT, comp)
+            : new MultiOverlayBufferTree(NULL_ELEMENT, comp, concurrentOverlay);
+        runs = Collections.emptyList();
+        if (indexFile != null) {
+            long dirSize = getTotalDirSize(new File(indexFile));
+            totalOnDiskSize += dirSize;
+            runs = openRuns(indexFile, runs);
+            totalOnDiskSize += getSize(runs) - dirSize;
+        }
         lock = new Object();
     }
     
@@ -97,7 +254,7 @@ public class LSMTree {
         if (result != null)
             return result;
         
-        return index == null ? null : index.lookup(key);
+        return lookupRuns(key);
     }
     
     /**
@@ -119,7 +276,124 @@ public class LSMTree {
         if (result != null)
             return result;
         
-        return index == null ? null : index.lookup(key);
+        return lookupRuns(key);
+    }
+    
+    /**
+     * Looks up a batch of keys. The keys are sorted, so that the blocks of
+     * each on-disk run are visited in order and decoded at most once per
+     * batch.
+     * 
+     * @param keys
+     *            the keys to look up
+     * @return an array containing the value associated with each key at the
+     *         key's position, or <code>null</code> if the key is not contained
+     */
+    public byte[][] multiLookup(byte[][] keys) {
+        
+        byte[][] results = new byte[keys.length][];
+        
+        // sort the positions of all keys that are not contained in the
+        // overlay by their keys
+        List<Integer> pending = new ArrayList<Integer>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            byte[] result = overlay.lookup(keys[i]);
+            if (result == null)
+                pending.add(i);
+            else if (result != NULL_ELEMENT)
+                results[i] = result;
+        }
+        
+        final byte[][] k = keys;
+        Collections.sort(pending, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return comp.compare(k[o1], k[o2]);
+            }
+        });
+        
+        byte[][] sortedKeys = new byte[pending.size()][];
+        for (int i = 0; i < sortedKeys.length; i++)
+            sortedKeys[i] = keys[pending.get(i)];
+        
+        // look up the remaining keys in all runs from the newest to the
+        // oldest one; keys that were found are skipped in older runs
+        List<DiskRun> runs = retainRuns();
+        try {
+            
+            for (int i = 0; i < runs.size(); i++) {
+                
+                byte[][] runResults = runs.get(i).getIndex().multiLookup(sortedKeys);
+                boolean remaining = false;
+                for (int j = 0; j < runResults.length; j++) {
+                    
+                    byte[] result = runResults[j];
+                    if (result == null) {
+                        remaining |= sortedKeys[j] != null;
+                        continue;
+                    }
+                    
+                    results[pending.get(j)] = result.length == 0
+                        && runs.get(i).getIndex().isTombstone(sortedKeys[j]) ? null : result;
+                    sortedKeys[j] = null;
+                }
+                
+                if (!remaining)
+                    break;
+            }
+            
+        } finally {
+            releaseRuns(runs);
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Performs a lookup that returns a read-only view on the value. Values
+     * from memory-mapped on-disk runs are not copied; the run is kept open
+     * until the view is freed, even if it is replaced by a checkpoint or
+     * compaction in the meantime.
+     * 
+     * @param key
+     *            the key to look up
+     * @return a view on the value associated with the key, or
+     *         <code>null</code>, if the key is not contained
+     */
+    public ValueBuffer lookupBuffer(byte[] key) {
+        
+        byte[] result = overlay.lookup(key);
+        
+        if (result == NULL_ELEMENT)
+            return null;
+        
+        if (result != null)
+            return ValueBufferImpl.wrap(result);
+        
+        return lookupRunBuffers(key);
+    }
+    
+    /**
+     * Performs a lookup in a given snapshot that returns a read-only view on
+     * the value.
+     * 
+     * @param key
+     *            the key to look up
+     * @param snapId
+     *            the snapshot ID
+     * @return a view on the value associated with the key in the snapshot, or
+     *         <code>null</code>, if the key is not contained
+     */
+    public ValueBuffer lookupBuffer(byte[] key, int snapId) {
+        
+        byte[] result = overlay.lookup(key, snapId);
+        
+        if (result == NULL_ELEMENT)
+            return null;
+        
+        if (result != null)
+            return ValueBufferImpl.wrap(result);
+        
+        return lookupRunBuffers(key);
     }
     
     /**
@@ -204,14 +478,14 @@ public class LSMTree {
         if (prefix != null && prefix.length == 0)
             prefix = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
         list.add(overlay.prefixLookup(prefix, true, ascending));
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            list.add(index.rangeLookup(rng[0], rng[1], ascending));
-        }
+        // on-disk indices expect the lower bound first, regardless of the order
+        byte[][] rng = comp.prefixToRange(prefix, true);
+        List<DiskRun> runs = addRunIterators(list, rng[0], rng[1], ascending);
         
-        return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
+        return new RetainingIterator(new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT,
+            ascending), runs);
     }
     
     /**
@@ -248,14 +522,13 @@ public class LSMTree {
         if (prefix != null && prefix.length == 0)
             prefix = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
         list.add(overlay.prefixLookup(prefix, snapId, true, ascending));
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            list.add(index.rangeLookup(rng[0], rng[1], ascending));
-        }
+        byte[][] rng = comp.prefixToRange(prefix, true);
+        List<DiskRun> runs = addRunIterators(list, rng[0], rng[1], ascending);
         
-        return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
+        return new RetainingIterator(new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT,
+            ascending), runs);
     }
     
     /**
@@ -297,12 +570,12 @@ public class LSMTree {
         if (to.length == 0)
             to = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
         list.add(overlay.rangeLookup(from, to, true, ascending));
-        if (index != null)
-            list.add(index.rangeLookup(from, to, ascending));
+        List<DiskRun> runs = addRunIterators(list, from, to, ascending);
         
-        return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
+        return new RetainingIterator(new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT,
+            ascending), runs);
     }
     
     /**
@@ -348,12 +621,98 @@ public class LSMTree {
         if (to.length == 0)
             to = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
         list.add(overlay.rangeLookup(from, to, snapId, true, ascending));
-        if (index != null)
-            list.add(index.rangeLookup(from, to, ascending));
+        List<DiskRun> runs = addRunIterators(list, from, to, ascending);
+        
+        return new RetainingIterator(new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT,
+            ascending), runs);
+    }
+    
+    /**
+     * Splits a range lookup into independent sub-range lookups that may be
+     * processed in parallel. The range is split at first keys of blocks of the
+     * largest on-disk run, so that each block is read by a single sub-range
+     * only. Concatenating the results of all sub-ranges yields the result of
+     * {@link #rangeLookup(byte[], byte[])}.<br/>
+     * 
+     * All sub-ranges refer to the same state of the tree: the overlay entries
+     * in the range are copied once, and the on-disk runs are retained until
+     * the respective result set is freed. Each result set therefore has to be
+     * freed once it is no longer needed.
+     * 
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively)
+     * @param parallelism
+     *            the maximum number of sub-ranges
+     * @return the result sets of the sub-ranges, in ascending key order
+     */
+    public List<ResultSet<byte[], byte[]>> parallelRangeLookup(byte[] from, byte[] to, int parallelism) {
+        
+        if (from != null && from.length == 0)
+            from = null;
+        
+        if (to != null && to.length == 0)
+            to = null;
+        
+        List<DiskRun> runs = retainRuns();
+        
+        // take a snapshot of the overlay range, including tombstones; as
+        // overlay entries may be updated in place, they have to be copied
+        List<Entry<byte[], byte[]>> overlayEntries = new ArrayList<Entry<byte[], byte[]>>();
+        ResultSet<byte[], byte[]> it = overlay.rangeLookup(from, to, true, true);
+        while (it.hasNext()) {
+            Entry<byte[], byte[]> entry = it.next();
+            overlayEntries.add(new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(entry.getKey(),
+                entry.getValue()));
+        }
+        it.free();
+        
+        // determine the split keys from the block index of the largest run
+        byte[][] splitKeys = new byte[0][];
+        if (parallelism > 1 && runs.size() > 0) {
+            DiskIndex largest = runs.get(0).getIndex();
+            for (DiskRun run : runs)
+                if (run.getIndex().getSize() > largest.getSize())
+                    largest = run.getIndex();
+            splitKeys = largest.getSplitKeys(from, to, parallelism);
+        }
+        
+        List<ResultSet<byte[], byte[]>> result = new ArrayList<ResultSet<byte[], byte[]>>(
+            splitKeys.length + 1);
+        int overlayStart = 0;
+        for (int i = 0; i <= splitKeys.length; i++) {
+            
+            byte[] lo = i == 0 ? from : splitKeys[i - 1];
+            byte[] hi = i == splitKeys.length ? to : splitKeys[i];
+            
+            int overlayEnd = overlayStart;
+            while (overlayEnd < overlayEntries.size()
+                && (hi == null || comp.compare(overlayEntries.get(overlayEnd).getKey(), hi) < 0))
+                overlayEnd++;
+            
+            List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
+            list.add(overlayEntries.subList(overlayStart, overlayEnd).iterator());
+            for (int j = 0; j < runs.size(); j++) {
+                DiskIndex index = runs.get(j).getIndex();
+                ResultSet<byte[], byte[]> runIt = index.rangeLookup(lo, hi, true);
+                list.add(index.hasTombstones() ? new TombstoneIterator(runIt, index) : runIt);
+            }
+            
+            // each sub-range holds its own references to the runs; the
+            // references acquired above are passed on to the first one
+            if (i > 0)
+                for (DiskRun run : runs)
+                    run.getIndex().retain();
+            
+            result.add(new RetainingIterator(new OverlayMergeIterator<byte[], byte[]>(list, comp,
+                NULL_ELEMENT, true), runs));
+            overlayStart = overlayEnd;
+        }
         
-        return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
+        return result;
     }
     
     /**
@@ -367,6 +726,7 @@ public class LSMTree {
     public void insert(byte[] key, byte[] value) {
         synchronized (lock) {
             overlay.insert(key, value);
+            addOverlaySize(key.length + (value == null ? 0 : value.length) + ENTRY_OVERHEAD);
         }
     }
     
@@ -380,6 +740,7 @@ public class LSMTree {
     public void delete(byte[] key) {
         synchronized (lock) {
             overlay.insert(key, null);
+            addOverlaySize(key.length + ENTRY_OVERHEAD);
         }
     }
     
@@ -389,11 +750,36 @@ public class LSMTree {
      * @return the snapshot ID
      */
     public int createSnapshot() {
-        return overlay.newOverlay();
+        synchronized (lock) {
+            snapshotOverlaySize = overlaySize.get();
+            return overlay.newOverlay();
+        }
+    }
+    
+    /**
+     * Returns the approximate amount of memory occupied by the in-memory
+     * overlay of the tree, including all in-memory snapshots.
+     * 
+     * @return the overlay size in bytes
+     */
+    public long getOverlaySize() {
+        return overlaySize.get();
+    }
+    
+    /**
+     * Returns the approximate amount of memory occupied by the in-memory
+     * overlays of all LSM trees.
+     * 
+     * @return the total overlay size in bytes
+     */
+    public static long getTotalOverlaySize() {
+        return totalOverlaySize.get();
     }
     
     /**
-     * Writes an in-memory snapshot to a file on disk.
+     * Writes an in-memory snapshot to a file on disk. If the snapshot does not
+     * contain any changes, the on-disk runs of the tree are linked to the new
+     * file rather than rewritten.
      * 
      * @param targetFile
      *            the file to which to write the snapshot
@@ -404,12 +790,72 @@ public class LSMTree {
      */
     public void materializeSnapshot(String targetFile, int snapId) throws IOException {
         
-        DiskIndexWriter writer = new DiskIndexWriter(targetFile, maxEntriesPerBlock, compressed,
-            maxBlockFileSize);
+        beginMaterialization();
+        List<DiskRun> runs = retainRuns();
+        try {
+            writeSnapshot(targetFile, snapId, runs);
+        } finally {
+            releaseRuns(runs);
+            endMaterialization();
+        }
+    }
+    
+    private void writeSnapshot(String targetFile, int snapId, List<DiskRun> runs) throws IOException {
+        
+        // if the snapshot does not contain any changes, carry the current
+        // runs over to the new checkpoint instead of rewriting them
+        if (!runs.isEmpty() && overlay.isEmpty(snapId)) {
+            
+            File dir = new File(targetFile);
+            if (!dir.exists() && !dir.mkdirs())
+                throw new IOException("could not create directory '" + targetFile + "'");
+            
+            List<long[]> manifest = new ArrayList<long[]>(runs.size());
+            for (DiskRun run : runs) {
+                run.linkTo(dir);
+                manifest.add(new long[] { run.getId(), run.getLevel() });
+            }
+            DiskRun.writeManifest(dir, manifest);
+            
+            return;
+        }
+        
+        if (numLevels == 1 && !incremental) {
+            
+            DiskIndexWriter writer = new DiskIndexWriter(targetFile, "", maxEntriesPerBlock, compressed,
+                maxBlockFileSize, bloomFilterFPR, blockCodec, maxBlockSize);
+            
+            InternalMergeIterator it = internalPrefixLookup(null, snapId, true);
+            writer.writeIndex(it);
+            it.free();
+            
+            return;
+        }
+        
+        // in a multi-level tree, only merge the snapshot with level 0, and
+        // carry over all other runs; incremental checkpoints carry over all
+        // runs and only write the snapshot
+        List<DiskRun> level0 = new ArrayList<DiskRun>();
+        List<DiskRun> retained = new ArrayList<DiskRun>();
+        for (DiskRun run : runs)
+            (!incremental && run.getLevel() == 0 ? level0 : retained).add(run);
+        
+        long runId = newRunId();
+        DiskIndexWriter writer = new DiskIndexWriter(targetFile, DiskRun.getFilePrefix(runId),
+            maxEntriesPerBlock, compressed, maxBlockFileSize, bloomFilterFPR, blockCodec, maxBlockSize);
         
-        InternalMergeIterator it = internalPrefixLookup(null, snapId, true);
-        writer.writeIndex(it);
+        InternalMergeIterator it = mergeRuns(overlay.prefixLookup(null, snapId, true, true), level0,
+            retained.isEmpty());
+        writer.writeIndex(it, NULL_ELEMENT);
         it.free();
+        
+        List<long[]> manifest = new ArrayList<long[]>(retained.size() + 1);
+        manifest.add(new long[] { runId, 0 });
+        for (DiskRun run : retained) {
+            run.linkTo(new File(targetFile));
+            manifest.add(new long[] { run.getId(), run.getLevel() });
+        }
+        DiskRun.writeManifest(new File(targetFile), manifest);
     }
     
     /**
@@ -429,8 +875,19 @@ public class LSMTree {
     public void materializeSnapshot(String targetFile, final int snapId, final int indexId,
         final SnapshotConfig snap) throws IOException {
         
-        DiskIndexWriter writer = new DiskIndexWriter(targetFile, maxEntriesPerBlock, compressed,
-            maxBlockFileSize);
+        beginMaterialization();
+        try {
+            writeSnapshot(targetFile, snapId, indexId, snap);
+        } finally {
+            endMaterialization();
+        }
+    }
+    
+    private void writeSnapshot(String targetFile, final int snapId, final int indexId,
+        final SnapshotConfig snap) throws IOException {
+        
+        DiskIndexWriter writer = new DiskIndexWriter(targetFile, "", maxEntriesPerBlock, compressed,
+            maxBlockFileSize, bloomFilterFPR, blockCodec, maxBlockSize);
         writer.writeIndex(new ResultSet<Object, Object>() {
             
             private ResultSet<Object, Object>[] iterators;
@@ -523,17 +980,199 @@ public class LSMTree {
      *             if an I/O error occurred while reading the snapshot file
      */
     public void linkToSnapshot(String snapshotFile) throws IOException {
-        final DiskIndex oldIndex = index;
+        final List<DiskRun> oldRuns = runs;
         synchronized (lock) {
-            totalOnDiskSize -= index == null ? 0 : index.getSize();
-            index = new DiskIndex(snapshotFile, comp, this.compressed, useMmap());
-            totalOnDiskSize += index.getSize();
-            if (oldIndex != null)
-                oldIndex.destroy();
+            totalOnDiskSize -= getSize(oldRuns);
+            runs = openRuns(snapshotFile, oldRuns);
+            totalOnDiskSize += getSize(runs);
+            for (DiskRun run : oldRuns)
+                if (!runs.contains(run))
+                    run.getIndex().destroy();
             overlay.cleanup();
+            addOverlaySize(-snapshotOverlaySize);
+            snapshotOverlaySize = 0;
+            
+            // all runs from completed compactions are part of the checkpoint
+            // now; only the files of a compaction in progress are retained
+            if (compactionDir != null && compactionDir.exists()) {
+                if (compactionRunId == -1)
+                    FSUtils.delTree(compactionDir);
+                else
+                    for (File file : compactionDir.listFiles())
+                        if (!file.getName().startsWith(DiskRun.getFilePrefix(compactionRunId)))
+                            file.delete();
+            }
         }
     }
     
+    /**
+     * Merges the runs of the lowest on-disk level that exceeds its maximum
+     * size into the next level. If no level is too large, runs that were
+     * stacked by incremental checkpoints are merged: level 0 and the last
+     * level are each merged into a single run once they hold more runs than
+     * the level fanout. Since the last level is unbounded, this ensures that
+     * it is only rewritten after every <code>levelFanout</code> incremental
+     * checkpoints rather than after each one. <br/>
+     * 
+     * The runs are merged without holding the lock of the tree, so that
+     * insertions, lookups and checkpoints may proceed in the meantime. The
+     * merged runs are only replaced by the new run if no snapshot is being
+     * materialized and if they are still part of the tree; if a checkpoint has
+     * replaced them in the meantime, the new run is discarded. Only one
+     * compaction per tree is performed at a time.
+     * <br/>
+     * 
+     * The resulting run does not become part of a checkpoint before the next
+     * checkpoint is created.
+     * 
+     * @return <code>true</code>, if a compaction was performed,
+     *         <code>false</code>, if there was nothing to compact
+     * @throws IOException
+     *             if an I/O error occurs while writing the new run
+     */
+    public boolean compact() throws IOException {
+        
+        if (numLevels == 1 && !incremental)
+            return false;
+        
+        List<DiskRun> runs = retainRuns();
+        try {
+            return compact(runs);
+        } finally {
+            releaseRuns(runs);
+        }
+    }
+    
+    private boolean compact(List<DiskRun> runs) throws IOException {
+        
+        // determine the size and number of runs of each level
+        long[] levelSizes = new long[numLevels];
+        int[] levelRuns = new int[numLevels];
+        for (DiskRun run : runs) {
+            if (run.getLevel() < numLevels) {
+                levelSizes[run.getLevel()] += run.getIndex().getSize();
+                levelRuns[run.getLevel()]++;
+            }
+        }
+        
+        // find the first level that is too large; the last level is unbounded
+        int level = -1;
+        int targetLevel = -1;
+        long maxSize = level0Size;
+        for (int i = 0; i < numLevels - 1; i++) {
+            if (levelSizes[i] > maxSize) {
+                level = i;
+                targetLevel = i + 1;
+                break;
+            }
+            maxSize = maxSize > Long.MAX_VALUE / levelFanout ? Long.MAX_VALUE : maxSize * levelFanout;
+        }
+        
+        // otherwise, merge runs stacked by incremental checkpoints
+        if (level == -1 && numLevels > 1 && levelRuns[0] > levelFanout)
+            level = targetLevel = 0;
+        if (level == -1 && levelRuns[numLevels - 1] > levelFanout)
+            level = targetLevel = numLevels - 1;
+        
+        if (level == -1)
+            return false;
+        
+        List<DiskRun> merged = new ArrayList<DiskRun>();
+        boolean lastLevel = true;
+        for (DiskRun run : runs) {
+            if (run.getLevel() >= level && run.getLevel() <= targetLevel)
+                merged.add(run);
+            else if (run.getLevel() > targetLevel)
+                lastLevel = false;
+        }
+        
+        long runId;
+        synchronized (lock) {
+            if (destroyed || compactionRunId != -1)
+                return false;
+            runId = compactionRunId = newRunId();
+        }
+        
+        Logging.logMessage(Logging.LEVEL_INFO, this, "compacting %d runs from levels %d to %d", merged
+                .size(), level, targetLevel);
+        
+        String filePrefix = DiskRun.getFilePrefix(runId);
+        DiskRun newRun = null;
+        boolean replaced = false;
+        try {
+            
+            DiskIndexWriter writer = new DiskIndexWriter(compactionDir.getAbsolutePath(), filePrefix,
+                maxEntriesPerBlock, compressed, maxBlockFileSize, bloomFilterFPR, blockCodec, maxBlockSize);
+            
+            InternalMergeIterator it = mergeRuns(Collections.<Entry<byte[], byte[]>> emptyList().iterator(),
+                merged, lastLevel);
+            try {
+                writer.writeIndex(it, NULL_ELEMENT);
+            } finally {
+                it.free();
+            }
+            
+            newRun = new DiskRun(runId, targetLevel, new DiskIndex(compactionDir.getAbsolutePath(),
+                filePrefix, comp, compressed, useMmap()), compactionDir.getAbsolutePath(), filePrefix);
+            
+            synchronized (lock) {
+                
+                while (numMaterializations > 0 && !destroyed)
+                    lock.wait();
+                
+                // discard the new run if the merged runs have been replaced
+                // by a checkpoint in the meantime
+                if (destroyed || !this.runs.containsAll(merged))
+                    return false;
+                
+                // replace the merged runs with the new one; runs that have
+                // been added by checkpoints in the meantime are retained
+                List<DiskRun> newRuns = new ArrayList<DiskRun>();
+                for (DiskRun run : this.runs) {
+                    if (!merged.contains(run))
+                        newRuns.add(run);
+                    else if (!newRuns.contains(newRun))
+                        newRuns.add(newRun);
+                }
+                
+                this.runs = newRuns;
+                totalOnDiskSize += newRun.getIndex().getSize() - getSize(merged);
+                compactionRunId = -1;
+                replaced = true;
+            }
+            
+        } catch (InterruptedException exc) {
+            throw new InterruptedIOException("compaction was interrupted");
+        } catch (IOException exc) {
+            synchronized (lock) {
+                if (destroyed)
+                    return false;
+            }
+            throw exc;
+        } finally {
+            
+            if (!replaced) {
+                synchronized (lock) {
+                    compactionRunId = -1;
+                }
+                if (newRun != null)
+                    newRun.getIndex().destroy();
+                for (String file : DiskIndex.getIndexFiles(compactionDir, filePrefix))
+                    new File(compactionDir, file).delete();
+            }
+        }
+        
+        // free the merged runs; runs from earlier compactions can be deleted,
+        // since they are not part of any checkpoint
+        for (DiskRun run : merged) {
+            run.getIndex().destroy();
+            if (new File(run.getDir()).equals(compactionDir.getAbsoluteFile()))
+                run.delete();
+        }
+        
+        return true;
+    }
+    
     /**
      * Checks if files containing index data are memory-mapped.
      * 
@@ -558,14 +1197,35 @@ public class LSMTree {
     public void destroy() throws IOException {
         
         synchronized (lock) {
-            if (index != null) {
-                totalOnDiskSize -= index.getSize();
-                index.destroy();
-            }
-            overlay.cleanup();
+            destroyed = true;
+            lock.notifyAll();
+            totalOnDiskSize -= getSize(runs);
+            for (DiskRun run : runs)
+                run.getIndex().destroy();
+            overlay.destroy();
+            addOverlaySize(-overlaySize.get());
+            snapshotOverlaySize = 0;
+        }
+    }
+    
+    private void beginMaterialization() {
+        synchronized (lock) {
+            numMaterializations++;
+        }
+    }
+    
+    private void endMaterialization() {
+        synchronized (lock) {
+            numMaterializations--;
+            lock.notifyAll();
         }
     }
     
+    private void addOverlaySize(long delta) {
+        overlaySize.addAndGet(delta);
+        totalOverlaySize.addAndGet(delta);
+    }
+    
     private boolean useMmap() {
         Logging.logMessage(Logging.LEVEL_DEBUG, this, "DB size: " + OutputUtils.formatBytes(totalOnDiskSize));
         return useMMap && (mmapLimitBytes < 0 || totalOnDiskSize < mmapLimitBytes);
@@ -595,13 +1255,264 @@ public class LSMTree {
         
         Iterator<Entry<byte[], byte[]>> overlayIterator = overlay.prefixLookup(prefix, snapId, true,
             ascending);
-        InternalDiskIndexIterator diskIndexIterator = null;
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            diskIndexIterator = index.internalRangeLookup(rng[0], rng[1], ascending);
+        final List<DiskRun> runs = retainRuns();
+        byte[][] rng = comp.prefixToRange(prefix, true);
+        InternalDiskIndexIterator[] diskIndexIterators = new InternalDiskIndexIterator[runs.size()];
+        for (int i = 0; i < runs.size(); i++)
+            diskIndexIterators[i] = runs.get(i).getIndex().internalRangeLookup(rng[0], rng[1], ascending);
+        
+        // the runs are released when the iterator is freed
+        return new InternalMergeIterator(overlayIterator, diskIndexIterators, comp, NULL_ELEMENT, true,
+            ascending) {
+            
+            private boolean freed;
+            
+            @Override
+            public synchronized void free() {
+                
+                if (freed)
+                    return;
+                
+                freed = true;
+                super.free();
+                releaseRuns(runs);
+            }
+        };
+    }
+    
+    /**
+     * Creates an iterator that merges an overlay with a subset of the on-disk
+     * runs in ascending key order.
+     * 
+     * @param overlayIterator
+     *            the overlay iterator
+     * @param merged
+     *            the runs to merge, from the newest to the oldest one
+     * @param dropTombstones
+     *            if <code>true</code>, tombstones will be omitted; this is only
+     *            permitted if there are no older runs than the merged ones
+     * @return the iterator
+     */
+    private InternalMergeIterator mergeRuns(Iterator<Entry<byte[], byte[]>> overlayIterator,
+        List<DiskRun> merged, boolean dropTombstones) {
+        
+        InternalDiskIndexIterator[] diskIndexIterators = new InternalDiskIndexIterator[merged.size()];
+        for (int i = 0; i < merged.size(); i++)
+            diskIndexIterators[i] = merged.get(i).getIndex().internalRangeLookup(null, null, true);
+        
+        return new InternalMergeIterator(overlayIterator, diskIndexIterators, comp, NULL_ELEMENT,
+            dropTombstones, true);
+    }
+    
+    /**
+     * Looks up a key in the on-disk runs.
+     * 
+     * @param key
+     *            the key
+     * @return the value from the newest run containing the key, or
+     *         <code>null</code>, if the key is not contained or deleted
+     */
+    private byte[] lookupRuns(byte[] key) {
+        
+        retry: for (;;) {
+            
+            List<DiskRun> runs = this.runs;
+            for (int i = 0; i < runs.size(); i++) {
+                
+                // retain each index while it is searched; if it has already
+                // been freed, the lookup is restarted on the new runs, as in
+                // lookupRunBuffers()
+                DiskIndex index = runs.get(i).getIndex();
+                if (!index.retain()) {
+                    if (this.runs != runs)
+                        continue retry;
+                    return null;
+                }
+                
+                try {
+                    byte[] result = index.lookup(key);
+                    if (result != null)
+                        return result.length == 0 && index.isTombstone(key) ? null : result;
+                } finally {
+                    ValueBufferImpl.release(index);
+                }
+            }
+            
+            return null;
         }
+    }
+    
+    /**
+     * Looks up a key in the on-disk runs and returns a view on the value. The
+     * index of the run containing the value is retained until the view is
+     * freed.
+     * 
+     * @param key
+     *            the key
+     * @return a view on the value from the newest run containing the key, or
+     *         <code>null</code>, if the key is not contained or deleted
+     */
+    private ValueBuffer lookupRunBuffers(byte[] key) {
         
-        return new InternalMergeIterator(overlayIterator, diskIndexIterator, comp, NULL_ELEMENT, ascending);
+        retry: for (;;) {
+            
+            List<DiskRun> runs = this.runs;
+            for (int i = 0; i < runs.size(); i++) {
+                
+                // if the index has already been freed, the runs have either
+                // been replaced concurrently, in which case the lookup is
+                // restarted on the new runs, or the tree has been destroyed
+                DiskIndex index = runs.get(i).getIndex();
+                if (!index.retain()) {
+                    if (this.runs != runs)
+                        continue retry;
+                    return null;
+                }
+                
+                ByteBuffer result = index.lookupBuffer(key);
+                if (result == null) {
+                    ValueBufferImpl.release(index);
+                    continue;
+                }
+                
+                if (result.remaining() == 0 && index.isTombstone(key)) {
+                    ValueBufferImpl.release(index);
+                    return null;
+                }
+                
+                return new ValueBufferImpl(result, index);
+            }
+            
+            return null;
+        }
+    }
+    
+    /**
+     * Adds iterators for a range of all on-disk runs to the given list. The
+     * runs are retained, so that they remain valid until they are released
+     * after the iterators have been freed.
+     * 
+     * @param list
+     *            the list
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively)
+     * @param ascending
+     *            the iteration order
+     * @return the retained runs
+     */
+    private List<DiskRun> addRunIterators(List<Iterator<Entry<byte[], byte[]>>> list, byte[] from,
+        byte[] to, boolean ascending) {
+        
+        List<DiskRun> runs = retainRuns();
+        for (DiskRun run : runs) {
+            DiskIndex index = run.getIndex();
+            ResultSet<byte[], byte[]> it = index.rangeLookup(from, to, ascending);
+            list.add(index.hasTombstones() ? new TombstoneIterator(it, index) : it);
+        }
+        
+        return runs;
+    }
+    
+    /**
+     * Retains the indices of all current on-disk runs, so that they remain
+     * valid if the runs are replaced concurrently.
+     * 
+     * @return the retained runs, or an empty list if the tree has been
+     *         destroyed
+     */
+    private List<DiskRun> retainRuns() {
+        
+        retry: for (;;) {
+            
+            List<DiskRun> runs = this.runs;
+            for (int i = 0; i < runs.size(); i++) {
+                
+                if (!runs.get(i).getIndex().retain()) {
+                    
+                    for (int j = 0; j < i; j++)
+                        ValueBufferImpl.release(runs.get(j).getIndex());
+                    
+                    if (this.runs != runs)
+                        continue retry;
+                    return Collections.emptyList();
+                }
+            }
+            
+            return runs;
+        }
+    }
+    
+    /**
+     * Releases the indices of runs that were retained by {@link #retainRuns()}.
+     * 
+     * @param runs
+     *            the retained runs
+     */
+    private static void releaseRuns(List<DiskRun> runs) {
+        for (DiskRun run : runs)
+            ValueBufferImpl.release(run.getIndex());
+    }
+    
+    /**
+     * Opens the runs of the checkpoint in the given directory. Runs that are
+     * already open are re-used.
+     * 
+     * @param dir
+     *            the checkpoint directory
+     * @param openRuns
+     *            the currently open runs
+     * @return the runs of the checkpoint, from the newest to the oldest one
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    private List<DiskRun> openRuns(String dir, List<DiskRun> openRuns) throws IOException {
+        
+        List<DiskRun> result = new ArrayList<DiskRun>();
+        
+        // a checkpoint w/o manifest contains a single run
+        if (!new File(dir, DiskRun.MANIFEST_FILE).exists()) {
+            result.add(new DiskRun(newRunId(), numLevels - 1, new DiskIndex(dir, comp, compressed, useMmap()),
+                dir, ""));
+            return result;
+        }
+        
+        for (long[] entry : DiskRun.readManifest(new File(dir))) {
+            
+            long id = entry[0];
+            
+            DiskRun run = null;
+            for (DiskRun openRun : openRuns)
+                if (openRun.getId() == id)
+                    run = openRun;
+            
+            if (run != null)
+                run.relocate(dir);
+            else
+                run = new DiskRun(id, (int) entry[1], new DiskIndex(dir, DiskRun.getFilePrefix(id), comp,
+                    compressed, useMmap()), dir, DiskRun.getFilePrefix(id));
+            
+            result.add(run);
+            
+            synchronized (this) {
+                if (id >= nextRunId)
+                    nextRunId = id + 1;
+            }
+        }
+        
+        return result;
+    }
+    
+    private synchronized long newRunId() {
+        return nextRunId++;
+    }
+    
+    private static long getSize(List<DiskRun> runs) {
+        long size = 0;
+        for (DiskRun run : runs)
+            size += run.getIndex().getSize();
+        return size;
     }
     
     private static long getTotalDirSize(File dir) {
@@ -619,4 +1530,106 @@ public class LSMTree {
         return size;
     }
     
+    /**
+     * Result set that releases a list of retained on-disk runs when it is
+     * freed.
+     */
+    private static final class RetainingIterator implements ResultSet<byte[], byte[]> {
+        
+        private final ResultSet<byte[], byte[]> it;
+        
+        private final List<DiskRun>             runs;
+        
+        private boolean                         freed;
+        
+        public RetainingIterator(ResultSet<byte[], byte[]> it, List<DiskRun> runs) {
+            this.it = it;
+            this.runs = runs;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+        
+        @Override
+        public Entry<byte[], byte[]> next() {
+            return it.next();
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public synchronized void free() {
+            
+            if (freed)
+                return;
+            
+            freed = true;
+            it.free();
+            for (DiskRun run : runs)
+                ValueBufferImpl.release(run.getIndex());
+        }
+    }
+    
+    /**
+     * Iterator over an on-disk run that replaces tombstones with the tombstone
+     * value of the overlay trees.
+     */
+    private static final class TombstoneIterator implements ResultSet<byte[], byte[]> {
+        
+        private final ResultSet<byte[], byte[]> it;
+        
+        private final DiskIndex                 index;
+        
+        public TombstoneIterator(ResultSet<byte[], byte[]> it, DiskIndex index) {
+            this.it = it;
+            this.index = index;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+        
+        @Override
+        public Entry<byte[], byte[]> next() {
+            
+            final Entry<byte[], byte[]> entry = it.next();
+            if (entry.getValue().length != 0 || !index.isTombstone(entry.getKey()))
+                return entry;
+            
+            return new Entry<byte[], byte[]>() {
+                
+                @Override
+                public byte[] getKey() {
+                    return entry.getKey();
+                }
+                
+                @Override
+                public byte[] getValue() {
+                    return NULL_ELEMENT;
+                }
+                
+                @Override
+                public byte[] setValue(byte[] value) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void free() {
+            it.free();
+        }
+    }
+    
 }
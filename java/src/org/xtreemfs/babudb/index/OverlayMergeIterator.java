@@ -20,7 +20,10 @@ import org.xtreemfs.babudb.api.database.ResultSet;
  * An iterator that merges a list of overlay trees. If a key occurs in multiple
  * trees, the value associated with the key in the first tree has the highest
  * priority, the one in the second tree the second highest priority, and so on.
- * The iterator will never return more than one value for each key.
+ * The iterator will never return more than one value for each key.<br/>
+ * 
+ * The current elements of all trees are merged by means of a tournament tree,
+ * so that returning an element requires O(log k) comparisons for k trees.
  * 
  * @author stender
  * 
@@ -37,10 +40,20 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
     private Entry<K, V>                 nextElement;
     
     /**
-     * a list of potentially next elements
+     * the current element of each iterator, or <code>null</code> if the
+     * iterator is exhausted
      */
     private Entry<K, V>[]               nextElements;
     
+    /**
+     * a tournament tree over the indices of all iterators: the first element
+     * contains the iterator with the next element, and each inner node
+     * contains the iterator that lost the match at the node; exhausted
+     * iterators lose all matches, and for equal keys, the iterator with the
+     * lower index, i.e. the higher priority, wins
+     */
+    private int[]                       tree;
+    
     /**
      * a list of all iterators to merge
      */
@@ -64,6 +77,21 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
         for (int i = 0; i < nextElements.length; i++)
             nextElements[i] = itList.get(i).hasNext() ? itList.get(i).next() : null;
         
+        // play the initial tournament bottom-up; leaf i is at position k + i
+        int k = nextElements.length;
+        tree = new int[Math.max(k, 1)];
+        int[] winners = new int[2 * k];
+        for (int i = 0; i < k; i++)
+            winners[k + i] = i;
+        for (int pos = k - 1; pos > 0; pos--) {
+            int a = winners[2 * pos];
+            int b = winners[2 * pos + 1];
+            boolean aWins = beats(a, b);
+            winners[pos] = aWins ? a : b;
+            tree[pos] = aWins ? b : a;
+        }
+        tree[0] = k > 1 ? winners[1] : 0;
+        
         nextElement = getNextElement();
     }
     
@@ -101,39 +129,64 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
     
     private Entry<K, V> getNextElement() {
         
-        // find the smallest element in the 'rightmost' tree
         for (;;) {
             
-            int smallest = 0;
-            for (int i = 1; i < nextElements.length; i++) {
-                
-                if (nextElements[i] == null)
-                    continue;
-                
-                // if a smaller element was found, next element is the
-                // smallest
-                if (nextElements[smallest] == null
-                    || (ascending && comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) < 0)
-                    || (!ascending && comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) > 0))
-                    smallest = i;
-                
-                // if the smallest element is equal to the current one, remove
-                // the current one
-                else if (comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) == 0) {
-                    Iterator<Entry<K, V>> it = itList.get(i);
-                    nextElements[i] = it.hasNext() ? it.next() : null;
-                }
-            }
+            int winner = tree[0];
+            if (nextElements.length == 0 || nextElements[winner] == null)
+                return null;
             
-            Entry<K, V> entry = nextElements[smallest];
-            Iterator<Entry<K, V>> it = itList.get(smallest);
-            nextElements[smallest] = it.hasNext() ? it.next() : null;
+            Entry<K, V> entry = nextElements[winner];
+            advance(winner);
             
-            if (entry == null)
-                return null;
+            // skip all elements with the same key in lower-priority iterators;
+            // as keys are unique within each iterator, this is unnecessary if
+            // the same iterator wins again
+            while (tree[0] != winner && nextElements[tree[0]] != null
+                && comp.compare(nextElements[tree[0]].getKey(), entry.getKey()) == 0)
+                advance(tree[0]);
             
+            // tombstones are recognized by identity and do not require any
+            // further comparisons
             if (nullValue == null || entry.getValue() != nullValue)
                 return entry;
         }
     }
+    
+    /**
+     * Moves the winning iterator to its next element and replays its matches
+     * on the path to the root, which requires O(log k) comparisons.
+     */
+    private void advance(int it) {
+        
+        Iterator<Entry<K, V>> iterator = itList.get(it);
+        nextElements[it] = iterator.hasNext() ? iterator.next() : null;
+        
+        int winner = it;
+        for (int pos = (nextElements.length + it) / 2; pos > 0; pos /= 2) {
+            if (beats(tree[pos], winner)) {
+                int loser = winner;
+                winner = tree[pos];
+                tree[pos] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+    
+    /**
+     * Checks whether the current element of iterator <code>a</code> has to be
+     * returned before the one of iterator <code>b</code>.
+     */
+    private boolean beats(int a, int b) {
+        
+        if (nextElements[a] == null)
+            return false;
+        if (nextElements[b] == null)
+            return true;
+        
+        int c = comp.compare(nextElements[a].getKey(), nextElements[b].getKey());
+        if (c != 0)
+            return ascending ? c < 0 : c > 0;
+        
+        return a < b;
+    }
 }
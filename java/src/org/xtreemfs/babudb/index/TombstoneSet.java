@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+
+/**
+ * The keys of all tombstones in an on-disk run. Tombstones are stored as
+ * entries with zero-length values, which hide the entries with the same key in
+ * older runs. As zero-length values are valid values as well, the keys of all
+ * tombstones are recorded separately, so that an entry is only treated as a
+ * tombstone if its key is contained in the set. <br/>
+ *
+ * The keys are kept in memory in ascending order.
+ */
+public class TombstoneSet {
+    
+    private final byte[][]            keys;
+    
+    private final ByteRangeComparator comp;
+    
+    private TombstoneSet(byte[][] keys, ByteRangeComparator comp) {
+        this.keys = keys;
+        this.comp = comp;
+    }
+    
+    /**
+     * Checks whether a key is contained in the set.
+     *
+     * @param key
+     *            the key
+     * @return <code>true</code>, if the key is the key of a tombstone
+     */
+    public boolean contains(byte[] key) {
+        
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int result = comp.compare(keys[mid], key);
+            if (result < 0)
+                low = mid + 1;
+            else if (result > 0)
+                high = mid - 1;
+            else
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Checks whether a key is contained in the set.
+     *
+     * @param key
+     *            the key
+     * @return <code>true</code>, if the key is the key of a tombstone
+     */
+    public boolean contains(ByteRange key) {
+        
+        int low = 0;
+        int high = keys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int result = -comp.compare(key, keys[mid]);
+            if (result < 0)
+                low = mid + 1;
+            else if (result > 0)
+                high = mid - 1;
+            else
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Returns the number of keys in the set.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return keys.length;
+    }
+    
+    /**
+     * Writes a list of tombstone keys to a file.
+     *
+     * @param file
+     *            the file
+     * @param keys
+     *            the keys, in ascending order
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public static void write(String file, List<byte[]> keys) throws IOException {
+        
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(keys.size());
+            for (byte[] key : keys) {
+                out.writeInt(key.length);
+                out.write(key);
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Reads a set of tombstone keys from a file.
+     *
+     * @param file
+     *            the file
+     * @param comp
+     *            the comparator for keys
+     * @return the set, or <code>null</code> if the file does not exist
+     * @throws IOException
+     *             if an I/O error occurs or the file is corrupted
+     */
+    public static TombstoneSet read(String file, ByteRangeComparator comp) throws IOException {
+        
+        if (!new File(file).exists())
+            return null;
+        
+        long length = new File(file).length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            
+            int numKeys = in.readInt();
+            if (numKeys < 0 || numKeys > length / 4)
+                throw new IOException("corrupted tombstone set: " + file);
+            
+            byte[][] keys = new byte[numKeys][];
+            for (int i = 0; i < numKeys; i++) {
+                int keyLength = in.readInt();
+                if (keyLength < 0 || keyLength > length)
+                    throw new IOException("corrupted tombstone set: " + file);
+                keys[i] = new byte[keyLength];
+                in.readFully(keys[i]);
+            }
+            
+            if (in.read() != -1)
+                throw new IOException("corrupted tombstone set: " + file);
+            
+            return new TombstoneSet(keys, comp);
+            
+        } catch (EOFException exc) {
+            throw new IOException("corrupted tombstone set: " + file);
+        } finally {
+            in.close();
+        }
+    }
+    
+}
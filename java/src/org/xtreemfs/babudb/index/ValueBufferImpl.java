@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.xtreemfs.babudb.api.database.ValueBuffer;
+import org.xtreemfs.babudb.index.reader.DiskIndex;
+import org.xtreemfs.foundation.logging.Logging;
+
+/**
+ * A view on a value that either refers to an on-disk index or to a value on
+ * the heap. Views on on-disk indices hold a reference to the index, which is
+ * released when the view is freed.
+ * 
+ * @author stenjan
+ */
+public class ValueBufferImpl implements ValueBuffer {
+    
+    private final ByteBuffer    buffer;
+    
+    private final DiskIndex     index;
+    
+    private final AtomicBoolean freed;
+    
+    /**
+     * Creates a new view.
+     * 
+     * @param buffer
+     *            the read-only buffer containing the value
+     * @param index
+     *            the index the buffer refers to, which must have been
+     *            retained by the caller, or <code>null</code>, if the buffer
+     *            refers to the heap
+     */
+    public ValueBufferImpl(ByteBuffer buffer, DiskIndex index) {
+        this.buffer = buffer;
+        this.index = index;
+        this.freed = new AtomicBoolean();
+    }
+    
+    /**
+     * Creates a view on a value on the heap.
+     * 
+     * @param value
+     *            the value, or <code>null</code>
+     * @return the view, or <code>null</code>, if <code>value</code> is
+     *         <code>null</code>
+     */
+    public static ValueBuffer wrap(byte[] value) {
+        return value == null ? null : new ValueBufferImpl(ByteBuffer.wrap(value).asReadOnlyBuffer(), null);
+    }
+    
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+    
+    @Override
+    public void free() {
+        if (index != null && freed.compareAndSet(false, true))
+            release(index);
+    }
+    
+    /**
+     * Releases a reference to an on-disk index.
+     * 
+     * @param index
+     *            the index
+     */
+    static void release(DiskIndex index) {
+        try {
+            index.release();
+        } catch (IOException exc) {
+            Logging.logError(Logging.LEVEL_ERROR, ValueBufferImpl.class, exc);
+        }
+    }
+    
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.codec;
+
+/**
+ * A codec that compresses serialized blocks of on-disk indices. Each codec has
+ * a unique ID, which is recorded with each block in the block index, so that
+ * blocks can be decompressed without knowing the configuration with which the
+ * index was written. <br/>
+ *
+ * Codecs are stateless and may be used by multiple threads concurrently.
+ */
+public abstract class BlockCodec {
+    
+    /**
+     * the ID of blocks that are stored uncompressed
+     */
+    public static final byte          NONE    = 0;
+    
+    public static final byte          DEFLATE = 1;
+    
+    public static final byte          LZ4     = 2;
+    
+    private static final BlockCodec[] CODECS  = { null, new DeflateCodec(), new LZ4Codec() };
+    
+    /**
+     * Returns the codec with the given ID.
+     *
+     * @param id
+     *            the codec ID
+     * @return the codec, or <code>null</code> if no codec with the given ID
+     *         exists
+     */
+    public static BlockCodec getCodec(byte id) {
+        return id > 0 && id < CODECS.length ? CODECS[id] : null;
+    }
+    
+    /**
+     * Returns the codec with the given name.
+     *
+     * @param name
+     *            the name of the codec
+     * @return the codec, or <code>null</code> if the name is "none"
+     * @throws IllegalArgumentException
+     *             if no codec with the given name exists
+     */
+    public static BlockCodec getCodec(String name) {
+        
+        if ("none".equals(name))
+            return null;
+        
+        for (BlockCodec codec : CODECS)
+            if (codec != null && codec.getName().equals(name))
+                return codec;
+        
+        throw new IllegalArgumentException("unknown block codec: " + name);
+    }
+    
+    /**
+     * Returns the unique ID of the codec.
+     *
+     * @return the ID
+     */
+    public abstract byte getId();
+    
+    /**
+     * Returns the name of the codec, by which it is configured.
+     *
+     * @return the name
+     */
+    public abstract String getName();
+    
+    /**
+     * Compresses a range of bytes.
+     *
+     * @param src
+     *            the array containing the data
+     * @param offset
+     *            the offset of the data
+     * @param length
+     *            the length of the data
+     * @return the compressed data
+     */
+    public abstract byte[] compress(byte[] src, int offset, int length);
+    
+    /**
+     * Decompresses a range of bytes.
+     *
+     * @param src
+     *            the array containing the compressed data
+     * @param offset
+     *            the offset of the compressed data
+     * @param length
+     *            the length of the compressed data
+     * @param dst
+     *            the array to which the data is decompressed; its length has to
+     *            match the length of the uncompressed data
+     * @throws IllegalArgumentException
+     *             if the compressed data is malformed
+     */
+    public abstract void decompress(byte[] src, int offset, int length, byte[] dst);
+    
+}
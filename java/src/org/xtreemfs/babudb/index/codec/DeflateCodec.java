@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.codec;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A codec that compresses blocks with the JDK's deflate implementation. It
+ * achieves high compression ratios at the cost of comparably slow compression
+ * and decompression.
+ */
+public class DeflateCodec extends BlockCodec {
+    
+    public byte getId() {
+        return DEFLATE;
+    }
+    
+    public String getName() {
+        return "deflate";
+    }
+    
+    public byte[] compress(byte[] src, int offset, int length) {
+        
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            
+            byte[] dst = new byte[length / 2 + 64];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == dst.length)
+                    dst = Arrays.copyOf(dst, dst.length * 2);
+                size += deflater.deflate(dst, size, dst.length - size);
+            }
+            
+            return Arrays.copyOf(dst, size);
+            
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    public void decompress(byte[] src, int offset, int length, byte[] dst) {
+        
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src, offset, length);
+            
+            int size = 0;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(dst, size, dst.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary() || size == dst.length))
+                    break;
+                size += n;
+            }
+            
+            if (size != dst.length || !inflater.finished())
+                throw new IllegalArgumentException("unexpected length of deflated block");
+            
+        } catch (DataFormatException exc) {
+            throw new IllegalArgumentException(exc.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+    
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.codec;
+
+import java.util.Arrays;
+
+/**
+ * A fast codec that writes the LZ4 block format. Compression ratios are lower
+ * than with deflate, but decompression is considerably faster, which makes the
+ * codec suitable for blocks on the lookup path. <br/>
+ *
+ * A compressed block is a sequence of tokens; each token holds a number of
+ * literal bytes followed by a back-reference to a match of at least four
+ * bytes in the data that has already been decompressed. The last token only
+ * holds literals.
+ */
+public class LZ4Codec extends BlockCodec {
+    
+    private static final int MIN_MATCH     = 4;
+    
+    /**
+     * the number of bytes at the end of the input that are always encoded as
+     * literals
+     */
+    private static final int LAST_LITERALS = 5;
+    
+    /**
+     * the minimum distance of the beginning of a match to the end of the input
+     */
+    private static final int MF_LIMIT      = 12;
+    
+    private static final int MAX_DISTANCE  = 65535;
+    
+    private static final int HASH_BITS     = 12;
+    
+    public byte getId() {
+        return LZ4;
+    }
+    
+    public String getName() {
+        return "lz4";
+    }
+    
+    public byte[] compress(byte[] src, int offset, int length) {
+        
+        byte[] dst = new byte[length + length / 255 + 16];
+        int dp = 0;
+        
+        int end = offset + length;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        
+        // positions of the last occurrences of 4-byte sequences, plus 1
+        int[] table = new int[1 << HASH_BITS];
+        
+        int sp = offset;
+        int anchor = offset;
+        while (sp < mfLimit) {
+            
+            int seq = readInt(src, sp);
+            int h = hash(seq);
+            int ref = table[h] - 1;
+            table[h] = sp + 1;
+            
+            if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+                sp++;
+                continue;
+            }
+            
+            // extend the match backwards
+            while (sp > anchor && ref > offset && src[sp - 1] == src[ref - 1]) {
+                sp--;
+                ref--;
+            }
+            
+            // extend the match forwards
+            int matchLen = MIN_MATCH;
+            while (sp + matchLen < matchLimit && src[sp + matchLen] == src[ref + matchLen])
+                matchLen++;
+            
+            dp = writeToken(dst, dp, src, anchor, sp - anchor, matchLen);
+            dst[dp++] = (byte) (sp - ref);
+            dst[dp++] = (byte) ((sp - ref) >>> 8);
+            if (matchLen - MIN_MATCH >= 15)
+                dp = writeLength(dst, dp, matchLen - MIN_MATCH - 15);
+            
+            sp += matchLen;
+            anchor = sp;
+        }
+        
+        // write the remaining literals
+        dp = writeToken(dst, dp, src, anchor, end - anchor, 0);
+        
+        return Arrays.copyOf(dst, dp);
+    }
+    
+    public void decompress(byte[] src, int offset, int length, byte[] dst) {
+        
+        int sp = offset;
+        int end = offset + length;
+        int dp = 0;
+        
+        try {
+            while (true) {
+                
+                int token = src[sp++] & 0xFF;
+                
+                // copy the literals
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        litLen += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, sp, dst, dp, litLen);
+                sp += litLen;
+                dp += litLen;
+                
+                if (sp >= end)
+                    break;
+                
+                // copy the match; source and target may overlap
+                int distance = (src[sp++] & 0xFF) | (src[sp++] & 0xFF) << 8;
+                int matchLen = token & 0x0F;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                
+                int ref = dp - distance;
+                if (distance == 0 || ref < 0)
+                    throw new IllegalArgumentException("invalid match offset in LZ4 block");
+                
+                for (int i = 0; i < matchLen; i++)
+                    dst[dp++] = dst[ref++];
+            }
+            
+        } catch (IndexOutOfBoundsException exc) {
+            throw new IllegalArgumentException("malformed LZ4 block");
+        }
+        
+        if (dp != dst.length)
+            throw new IllegalArgumentException("unexpected length of LZ4 block");
+    }
+    
+    private static int writeToken(byte[] dst, int dp, byte[] src, int litOffset, int litLen, int matchLen) {
+        
+        int token = Math.min(litLen, 15) << 4;
+        if (matchLen > 0)
+            token |= Math.min(matchLen - MIN_MATCH, 15);
+        dst[dp++] = (byte) token;
+        
+        if (litLen >= 15)
+            dp = writeLength(dst, dp, litLen - 15);
+        
+        System.arraycopy(src, litOffset, dst, dp, litLen);
+        return dp + litLen;
+    }
+    
+    private static int writeLength(byte[] dst, int dp, int len) {
+        while (len >= 255) {
+            dst[dp++] = (byte) 255;
+            len -= 255;
+        }
+        dst[dp++] = (byte) len;
+        return dp;
+    }
+    
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) | (buf[pos + 1] & 0xFF) << 8 | (buf[pos + 2] & 0xFF) << 16
+            | (buf[pos + 3] & 0xFF) << 24;
+    }
+    
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+    
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.ByteRange;
+
+/**
+ * An overlay tree that keeps its keys and values outside of the Java heap.
+ * Entries are appended to an arena of direct byte buffers; the sort order is
+ * maintained by a paged array of the entries' addresses in the arena. Keys
+ * are compared in place, while keys and values that are returned by lookups
+ * and iterators are copied to the heap. <br/>
+ *
+ * Entries are never removed from the arena; replacing the value of a key
+ * appends a new entry. The arena is released as a whole when the tree is
+ * destroyed, i.e. when its overlay is discarded. Iterators hold a reference to
+ * the tree, which defers the release until they have been exhausted or freed.
+ * Lookups on a destroyed tree do not find any entries. <br/>
+ *
+ * All operations are synchronized. Iterators remain valid if the tree is
+ * modified; they continue with the entry that follows the last returned key.
+ */
+public class ArenaOverlayTree implements OverlayTree<byte[], byte[]> {
+    
+    private static final int          INITIAL_CHUNK_SIZE = 64 * 1024;
+    
+    private static final int          MAX_CHUNK_SIZE     = 4 * 1024 * 1024;
+    
+    private static final int          PAGE_SIZE          = 512;
+    
+    /**
+     * entry layout: key length (int), value length (int, -1 for the null
+     * value), key, value
+     */
+    private static final int          HEADER_SIZE        = 8;
+    
+    private static final Object       UNSAFE;
+    
+    private static final Method       INVOKE_CLEANER;
+    
+    static {
+        
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> cls = Class.forName("sun.misc.Unsafe");
+            Field field = cls.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = cls.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception exc) {
+            // not available (before Java 9), use the buffers' cleaners
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+    
+    private final ByteRangeComparator comp;
+    
+    private final byte[]              nullValue;
+    
+    private final List<ByteBuffer>    chunks;
+    
+    private ByteBuffer                chunk;
+    
+    private int                       chunkPos;
+    
+    /**
+     * sorted pages of entry addresses; the upper 32 bits of an address
+     * contain the index of the chunk, the lower 32 bits contain the offset of
+     * the entry in the chunk
+     */
+    private long[][]                  pages;
+    
+    private int[]                     pageSizes;
+    
+    private int                       numPages;
+    
+    private int                       modCount;
+    
+    /**
+     * the number of references to the tree; the tree holds a single reference
+     * that is released when it is destroyed, and each open iterator holds
+     * another one
+     */
+    private final AtomicInteger       refCount           = new AtomicInteger(1);
+    
+    private final AtomicBoolean       destroyed          = new AtomicBoolean();
+    
+    /**
+     * Creates a new arena-based overlay tree.
+     *
+     * @param comp
+     *            the comparator for keys
+     * @param nullValue
+     *            the value that marks deleted entries; it is returned by
+     *            reference
+     */
+    public ArenaOverlayTree(ByteRangeComparator comp, byte[] nullValue) {
+        this.comp = comp;
+        this.nullValue = nullValue;
+        this.chunks = new ArrayList<ByteBuffer>();
+        this.pages = new long[16][];
+        this.pageSizes = new int[16];
+    }
+    
+    public synchronized byte[] get(byte[] key) {
+        
+        if (numPages == 0)
+            return null;
+        
+        int page = findPage(key);
+        int idx = search(page, key);
+        
+        return idx < 0 ? null : getValue(pages[page][idx]);
+    }
+    
+    public synchronized void put(byte[] key, byte[] value) {
+        
+        long addr = append(key, value);
+        
+        if (numPages == 0) {
+            insertPage(0);
+            insert(0, 0, addr);
+            return;
+        }
+        
+        int page = findPage(key);
+        int idx = search(page, key);
+        
+        // replace the address of an existing entry
+        if (idx >= 0) {
+            pages[page][idx] = addr;
+            return;
+        }
+        
+        idx = -idx - 1;
+        if (pageSizes[page] == PAGE_SIZE) {
+            
+            // if the key is appended to the last page, start a new page, so
+            // that sequential insertions result in full pages
+            if (page == numPages - 1 && idx == PAGE_SIZE) {
+                insertPage(++page);
+                idx = 0;
+            }
+            
+            // otherwise, split the page
+            else {
+                insertPage(page + 1);
+                int half = PAGE_SIZE / 2;
+                System.arraycopy(pages[page], half, pages[page + 1], 0, PAGE_SIZE - half);
+                pageSizes[page + 1] = PAGE_SIZE - half;
+                pageSizes[page] = half;
+                if (idx > half) {
+                    page++;
+                    idx -= half;
+                }
+            }
+        }
+        
+        insert(page, idx, addr);
+    }
+    
+    public Iterator<Entry<byte[], byte[]>> iterator(byte[] from, byte[] to, boolean ascending) {
+        return new RangeIterator(from, to, ascending);
+    }
+    
+    public OverlayTree<byte[], byte[]> newTree() {
+        return new ArenaOverlayTree(comp, nullValue);
+    }
+    
+    public void destroy() {
+        if (destroyed.compareAndSet(false, true))
+            release();
+    }
+    
+    private boolean retain() {
+        
+        for (;;) {
+            int count = refCount.get();
+            if (count == 0)
+                return false;
+            if (refCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+    
+    private void release() {
+        if (refCount.decrementAndGet() == 0)
+            free();
+    }
+    
+    /**
+     * Releases the arena and resets the tree to an empty tree.
+     */
+    private synchronized void free() {
+        
+        for (ByteBuffer buf : chunks)
+            freeChunk(buf);
+        chunks.clear();
+        chunk = null;
+        chunkPos = 0;
+        
+        pages = new long[16][];
+        pageSizes = new int[16];
+        numPages = 0;
+        modCount++;
+    }
+    
+    /**
+     * Releases the memory of a direct buffer right away. If the JVM does not
+     * allow this, the memory is released when the buffer is garbage-collected.
+     */
+    private static void freeChunk(ByteBuffer buf) {
+        
+        try {
+            if (INVOKE_CLEANER != null)
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+            
+            else {
+                Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buf);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            
+        } catch (Exception exc) {
+            // leave the buffer to the garbage collector
+        }
+    }
+    
+    private long append(byte[] key, byte[] value) {
+        
+        int valLen = value == nullValue ? -1 : value.length;
+        int len = HEADER_SIZE + key.length + Math.max(valLen, 0);
+        
+        // allocate a new chunk if necessary; one spare byte is kept at the end
+        // of each chunk, as byte ranges must end before the buffer limit
+        if (chunk == null || chunk.capacity() - chunkPos <= len) {
+            int size = chunk == null ? INITIAL_CHUNK_SIZE : Math.min(chunk.capacity() * 2, MAX_CHUNK_SIZE);
+            chunk = ByteBuffer.allocateDirect(Math.max(size, len + 1));
+            chunks.add(chunk);
+            chunkPos = 0;
+        }
+        
+        long addr = (long) (chunks.size() - 1) << 32 | chunkPos;
+        
+        chunk.position(chunkPos);
+        chunk.putInt(key.length);
+        chunk.putInt(valLen);
+        chunk.put(key);
+        if (valLen > 0)
+            chunk.put(value);
+        chunkPos += len;
+        
+        return addr;
+    }
+    
+    private void insertPage(int page) {
+        
+        if (numPages == pages.length) {
+            long[][] newPages = new long[pages.length * 2][];
+            System.arraycopy(pages, 0, newPages, 0, numPages);
+            pages = newPages;
+            int[] newPageSizes = new int[pageSizes.length * 2];
+            System.arraycopy(pageSizes, 0, newPageSizes, 0, numPages);
+            pageSizes = newPageSizes;
+        }
+        
+        System.arraycopy(pages, page, pages, page + 1, numPages - page);
+        System.arraycopy(pageSizes, page, pageSizes, page + 1, numPages - page);
+        pages[page] = new long[PAGE_SIZE];
+        pageSizes[page] = 0;
+        numPages++;
+    }
+    
+    private void insert(int page, int idx, long addr) {
+        System.arraycopy(pages[page], idx, pages[page], idx + 1, pageSizes[page] - idx);
+        pages[page][idx] = addr;
+        pageSizes[page]++;
+        modCount++;
+    }
+    
+    /**
+     * Returns the last page whose first key is less than or equal to the given
+     * key, or the first page if there is no such page.
+     */
+    private int findPage(byte[] key) {
+        
+        int low = 1;
+        int high = numPages - 1;
+        int page = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare(pages[mid][0], key) <= 0) {
+                page = mid;
+                low = mid + 1;
+            } else
+                high = mid - 1;
+        }
+        
+        return page;
+    }
+    
+    /**
+     * Searches a key in a page. Returns the index of the key if found, or
+     * <code>-(insertion point) - 1</code> otherwise.
+     */
+    private int search(int page, byte[] key) {
+        
+        long[] addrs = pages[page];
+        int low = 0;
+        int high = pageSizes[page] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(addrs[mid], key);
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        
+        return -(low + 1);
+    }
+    
+    private int compare(long addr, byte[] key) {
+        ByteBuffer buf = chunks.get((int) (addr >>> 32));
+        int offset = (int) addr;
+        return comp.compare(new ByteRange(buf, offset + HEADER_SIZE, offset + HEADER_SIZE + buf.getInt(offset)),
+            key);
+    }
+    
+    private byte[] getKey(long addr) {
+        ByteBuffer buf = chunks.get((int) (addr >>> 32));
+        int offset = (int) addr;
+        byte[] key = new byte[buf.getInt(offset)];
+        buf.position(offset + HEADER_SIZE);
+        buf.get(key);
+        return key;
+    }
+    
+    private byte[] getValue(long addr) {
+        
+        ByteBuffer buf = chunks.get((int) (addr >>> 32));
+        int offset = (int) addr;
+        int valLen = buf.getInt(offset + 4);
+        if (valLen == -1)
+            return nullValue;
+        
+        byte[] value = new byte[valLen];
+        buf.position(offset + HEADER_SIZE + buf.getInt(offset));
+        buf.get(value);
+        return value;
+    }
+    
+    private class RangeIterator implements ResultSet<byte[], byte[]> {
+        
+        private final byte[]          to;
+        
+        private final boolean         ascending;
+        
+        private int                   page;
+        
+        private int                   idx;
+        
+        private int                   expectedModCount;
+        
+        private Entry<byte[], byte[]> next;
+        
+        private boolean               retained;
+        
+        public RangeIterator(byte[] from, byte[] to, boolean ascending) {
+            this.to = to;
+            this.ascending = ascending;
+            synchronized (ArenaOverlayTree.this) {
+                retained = retain();
+                if (retained) {
+                    seek(from, true);
+                    next = fetch();
+                }
+                if (next == null)
+                    free();
+            }
+        }
+        
+        public boolean hasNext() {
+            return next != null;
+        }
+        
+        public Entry<byte[], byte[]> next() {
+            
+            if (next == null)
+                throw new NoSuchElementException();
+            
+            Entry<byte[], byte[]> result = next;
+            synchronized (ArenaOverlayTree.this) {
+                // if the tree has been modified, continue after the last key
+                if (expectedModCount != modCount)
+                    seek(result.getKey(), false);
+                next = fetch();
+                if (next == null)
+                    free();
+            }
+            
+            return result;
+        }
+        
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public void free() {
+            synchronized (ArenaOverlayTree.this) {
+                next = null;
+                if (retained) {
+                    retained = false;
+                    release();
+                }
+            }
+        }
+        
+        /**
+         * Positions the iterator at the first entry in iteration order that
+         * follows the given key, or that is equal to it if
+         * <code>inclusive</code> is set.
+         */
+        private void seek(byte[] key, boolean inclusive) {
+            
+            expectedModCount = modCount;
+            
+            if (numPages == 0) {
+                page = -1;
+                return;
+            }
+            
+            if (key == null) {
+                page = ascending ? 0 : numPages - 1;
+                idx = ascending ? 0 : pageSizes[page] - 1;
+                return;
+            }
+            
+            page = findPage(key);
+            int pos = search(page, key);
+            if (ascending)
+                idx = pos >= 0 ? (inclusive ? pos : pos + 1) : -pos - 1;
+            else
+                idx = pos >= 0 ? (inclusive ? pos : pos - 1) : -pos - 2;
+            
+            normalize();
+        }
+        
+        private Entry<byte[], byte[]> fetch() {
+            
+            if (page < 0 || page >= numPages)
+                return null;
+            
+            long addr = pages[page][idx];
+            if (to != null) {
+                int c = compare(addr, to);
+                if (ascending ? c >= 0 : c <= 0) {
+                    page = -1;
+                    return null;
+                }
+            }
+            
+            Entry<byte[], byte[]> entry = new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(getKey(addr),
+                getValue(addr));
+            
+            idx += ascending ? 1 : -1;
+            normalize();
+            
+            return entry;
+        }
+        
+        private void normalize() {
+            if (idx >= pageSizes[page]) {
+                page++;
+                idx = 0;
+            } else if (idx < 0 && --page >= 0)
+                idx = pageSizes[page] - 1;
+        }
+    }
+    
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An overlay tree that is backed by a heap-based sorted map. A concurrent
+ * tree is backed by a skip list, which allows lookups to be performed
+ * concurrently with insertions; otherwise, the tree is backed by a red-black
+ * tree.
+ */
+public class MapOverlayTree<K, V> implements OverlayTree<K, V> {
+    
+    private final NavigableMap<K, V> tree;
+    
+    private final Comparator<K>      comparator;
+    
+    private final boolean            concurrent;
+    
+    public MapOverlayTree(Comparator<K> comparator, boolean concurrent) {
+        this.comparator = comparator;
+        this.concurrent = concurrent;
+        this.tree = concurrent ? new ConcurrentSkipListMap<K, V>(comparator) : new TreeMap<K, V>(comparator);
+    }
+    
+    public V get(K key) {
+        return tree.get(key);
+    }
+    
+    public void put(K key, V value) {
+        tree.put(key, value);
+    }
+    
+    public Iterator<Entry<K, V>> iterator(K from, K to, boolean ascending) {
+        
+        NavigableMap<K, V> map = ascending ? tree : tree.descendingMap();
+        
+        if (from != null && to != null)
+            // both boundaries are provided
+            return map.subMap(from, to).entrySet().iterator();
+        else if (from == null && to == null)
+            // no boundary is provided
+            return map.entrySet().iterator();
+        else if (from != null && to == null)
+            // only 'from' boundary is provided
+            return map.tailMap(from).entrySet().iterator();
+        else
+            // only 'to' boundary is provided
+            return map.headMap(to).entrySet().iterator();
+    }
+    
+    public OverlayTree<K, V> newTree() {
+        return new MapOverlayTree<K, V>(comparator, concurrent);
+    }
+    
+    public void destroy() {
+        // the map is freed by the garbage collector
+    }
+    
+}
@@ -16,7 +16,30 @@ public class MultiOverlayBufferTree extends MultiOverlayTree<byte[], byte[]> {
     private ByteRangeComparator comp;
     
     public MultiOverlayBufferTree(byte[] markerElement, ByteRangeComparator comp) {
-        super(markerElement, comp);
+        this(markerElement, comp, false);
+    }
+    
+    public MultiOverlayBufferTree(byte[] markerElement, ByteRangeComparator comp, boolean concurrent) {
+        super(markerElement, comp, concurrent);
+        this.comp = comp;
+    }
+    
+    /**
+     * Creates a new multi-overlay tree whose overlays keep their entries
+     * off-heap, in arenas of direct buffers. Such trees always allow
+     * concurrent lookups.
+     * 
+     * @param markerElement
+     *            the value that marks deleted entries
+     * @param comp
+     *            the comparator for keys
+     */
+    public static MultiOverlayBufferTree createOffHeap(byte[] markerElement, ByteRangeComparator comp) {
+        return new MultiOverlayBufferTree(markerElement, comp, new ArenaOverlayTree(comp, markerElement));
+    }
+    
+    private MultiOverlayBufferTree(byte[] markerElement, ByteRangeComparator comp, ArenaOverlayTree tree) {
+        super(markerElement, comp, tree);
         this.comp = comp;
     }
     
@@ -15,14 +15,18 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.index.OverlayMergeIterator;
 
 /**
- * A layered in-memory tree structure.
+ * A layered in-memory tree structure. <br/>
+ * 
+ * Each overlay is an {@link OverlayTree}. By default, overlays are red-black
+ * trees, and the tree may only be accessed by a single thread at a time. A
+ * concurrent tree is backed by skip lists; it allows any number of threads to
+ * perform lookups while another thread inserts entries or adds new overlays.
  * 
  * @author stender
  * 
@@ -31,11 +35,11 @@ public class MultiOverlayTree<K, V> {
     
     static class OverlayTreeList<K, V> {
         
-        public TreeMap<K, V>         tree;
+        public final OverlayTree<K, V>        tree;
         
-        public OverlayTreeList<K, V> next;
+        public volatile OverlayTreeList<K, V> next;
         
-        public OverlayTreeList(TreeMap<K, V> tree, OverlayTreeList<K, V> next) {
+        public OverlayTreeList(OverlayTree<K, V> tree, OverlayTreeList<K, V> next) {
             this.tree = tree;
             this.next = next;
         }
@@ -64,7 +68,7 @@ public class MultiOverlayTree<K, V> {
     /**
      * the list of overlay trees
      */
-    private OverlayTreeList<K, V>               treeList;
+    private volatile OverlayTreeList<K, V>      treeList;
     
     /**
      * Creates a new multi-overlay tree. This call is equivalent to
@@ -90,6 +94,43 @@ public class MultiOverlayTree<K, V> {
      *            defined.
      */
     public MultiOverlayTree(V nullValue, Comparator<K> comparator) {
+        this(nullValue, comparator, false);
+    }
+    
+    /**
+     * Creates a new multi-overlay tree.
+     * 
+     * @param nullValue
+     *            A value that will never be inserted in the tree. This value
+     *            will be used to mark entries as deleted.
+     * @param comparator
+     *            The comparator for the keys. If a <code>null</code> comparator
+     *            is provided, the natural ordering of the keys will be used if
+     *            defined.
+     * @param concurrent
+     *            If <code>true</code>, lookups may be performed concurrently
+     *            with a single thread that modifies the tree.
+     */
+    public MultiOverlayTree(V nullValue, Comparator<K> comparator, boolean concurrent) {
+        this(nullValue, comparator, new MapOverlayTree<K, V>(comparator, concurrent));
+    }
+    
+    /**
+     * Creates a new multi-overlay tree with a custom type of overlays.
+     * 
+     * @param nullValue
+     *            A value that will never be inserted in the tree. This value
+     *            will be used to mark entries as deleted.
+     * @param comparator
+     *            The comparator for the keys. If a <code>null</code> comparator
+     *            is provided, the natural ordering of the keys will be used if
+     *            defined.
+     * @param tree
+     *            An empty overlay tree, which becomes the initial overlay.
+     *            Subsequent overlays are created by means of
+     *            {@link OverlayTree#newTree()}.
+     */
+    protected MultiOverlayTree(V nullValue, Comparator<K> comparator, OverlayTree<K, V> tree) {
         
         if (comparator == null) {
             this.comparator = new Comparator<K>() {
@@ -101,7 +142,7 @@ public class MultiOverlayTree<K, V> {
         } else
             this.comparator = comparator;
         
-        treeList = new OverlayTreeList<K, V>(new TreeMap<K, V>(comparator), null);
+        treeList = new OverlayTreeList<K, V>(tree, null);
         overlayMap = Collections.synchronizedMap(new HashMap<Integer, OverlayTreeList<K, V>>());
         
         this.nullValue = nullValue;
@@ -114,7 +155,7 @@ public class MultiOverlayTree<K, V> {
      */
     public int newOverlay() {
         overlayMap.put(overlayId, treeList);
-        treeList = new OverlayTreeList<K, V>(new TreeMap<K, V>(comparator), treeList);
+        treeList = new OverlayTreeList<K, V>(treeList.tree.newTree(), treeList);
         return overlayId++;
     }
     
@@ -123,9 +164,53 @@ public class MultiOverlayTree<K, V> {
      * read-write tree remains.
      */
     public void cleanup() {
+        
+        OverlayTreeList<K, V> list = treeList.next;
         overlayMap.clear();
         treeList.next = null;
         overlayId = 0;
+        
+        for (; list != null; list = list.next)
+            list.tree.destroy();
+    }
+    
+    /**
+     * Destroys all overlay trees, including the current read-write tree. The
+     * tree must not be modified afterwards.
+     */
+    public void destroy() {
+        cleanup();
+        treeList.tree.destroy();
+    }
+    
+    /**
+     * Checks whether a read-only overlay is empty, i.e. whether no key-value
+     * pairs have been inserted or removed since the last cleanup and before
+     * the overlay was made read-only.
+     * 
+     * @param overlayId
+     *            the ID of the overlay
+     * @return <code>true</code>, if the overlay is empty, <code>false</code>
+     *         if it contains entries or the overlay ID is unknown
+     */
+    public boolean isEmpty(int overlayId) {
+        
+        OverlayTreeList<K, V> list = overlayMap.get(overlayId);
+        if (list == null)
+            return false;
+        
+        for (; list != null; list = list.next) {
+            
+            Iterator<Entry<K, V>> it = list.tree.iterator(null, null, true);
+            boolean empty = !it.hasNext();
+            if (it instanceof ResultSet)
+                ((ResultSet<K, V>) it).free();
+            
+            if (!empty)
+                return false;
+        }
+        
+        return true;
     }
     
     /**
@@ -243,33 +328,8 @@ public class MultiOverlayTree<K, V> {
         
         // initialize a final list w/ submap iterators of all overlays
         final List<Iterator<Entry<K, V>>> itList = new ArrayList<Iterator<Entry<K, V>>>();
-        for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next) {
-            if (from != null && to != null) {
-                // both boundaries are provided
-                if (ascending)
-                    itList.add(list.tree.subMap(from, to).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().subMap(from, to).entrySet().iterator());
-            } else if (from == null && to == null) {
-                // no boundary is provided
-                if (ascending)
-                    itList.add(list.tree.entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().entrySet().iterator());
-            } else if (from != null && to == null) {
-                // only 'from' obundary is provided
-                if (ascending)
-                    itList.add(list.tree.tailMap(from).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().tailMap(from).entrySet().iterator());
-            } else {
-                // only 'to' boundary is provided
-                if (ascending)
-                    itList.add(list.tree.headMap(to).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().headMap(to).entrySet().iterator());
-            }
-        }
+        for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next)
+            itList.add(list.tree.iterator(from, to, ascending));
         
         return new OverlayMergeIterator<K, V>(itList, comparator, includeDeletedEntries ? null : nullValue,
             ascending);
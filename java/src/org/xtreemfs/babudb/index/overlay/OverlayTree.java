@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * A single sorted layer of a {@link MultiOverlayTree}.
+ */
+public interface OverlayTree<K, V> {
+    
+    /**
+     * Returns the value associated with the given key.
+     *
+     * @param key
+     *            the key
+     * @return the value, or <code>null</code> if the key is not contained
+     */
+    public V get(K key);
+    
+    /**
+     * Associates a value with a key. Any previous value will be replaced.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value, which must not be <code>null</code>
+     */
+    public void put(K key, V value);
+    
+    /**
+     * Returns an iterator over a range of entries. In ascending order, the
+     * range spans all keys from <code>from</code> (inclusively) to
+     * <code>to</code> (exclusively); in descending order, it spans all keys
+     * from <code>from</code> (inclusively) down to <code>to</code>
+     * (exclusively).
+     *
+     * @param from
+     *            the first key; if <code>null</code>, the range starts at the
+     *            first key in iteration order
+     * @param to
+     *            the key at which the range ends; if <code>null</code>, the
+     *            range ends at the last key in iteration order
+     * @param ascending
+     *            specifies whether entries are returned in ascending order
+     * @return an iterator over the entries in the range
+     */
+    public Iterator<Entry<K, V>> iterator(K from, K to, boolean ascending);
+    
+    /**
+     * Creates a new, empty tree of the same kind.
+     *
+     * @return the new tree
+     */
+    public OverlayTree<K, V> newTree();
+    
+    /**
+     * Destroys the tree. The tree must not be modified afterwards. Any
+     * resources held by the tree may be freed as soon as all iterators on the
+     * tree have been exhausted or freed.
+     */
+    public void destroy();
+    
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide LRU cache for blocks of on-disk indices that are read via
+ * file channels rather than memory-mapped, and for decompressed blocks of
+ * indices that were written with a block codec. Cached blocks are keyed by the
+ * index they belong to, the ID of their block file and their offset in the
+ * block file. <br/>
+ *
+ * Block readers created from cached blocks work on views of the cached
+ * buffers. A block that is evicted from the cache thus remains valid for as
+ * long as it is still referenced by a block reader or iterator.
+ */
+public class BlockCache {
+    
+    public static final String         RUNTIME_STATE_HITS   = "blockCache.hitCount";
+    
+    public static final String         RUNTIME_STATE_MISSES = "blockCache.missCount";
+    
+    public static final String         RUNTIME_STATE_SIZE   = "blockCache.size";
+    
+    private static final BlockCache    instance             = new BlockCache();
+    
+    private static final AtomicLong    nextIndexId          = new AtomicLong();
+    
+    private final Map<Key, ByteBuffer> blocks;
+    
+    private final AtomicLong           hits;
+    
+    private final AtomicLong           misses;
+    
+    private long                       capacity;
+    
+    private long                       size;
+    
+    private BlockCache() {
+        blocks = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+    
+    /**
+     * Returns the process-wide block cache.
+     *
+     * @return the block cache
+     */
+    public static BlockCache getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Returns a new unique ID for an on-disk index, which is used to
+     * distinguish the blocks of different indices in the cache.
+     *
+     * @return the index ID
+     */
+    public static long newIndexId() {
+        return nextIndexId.incrementAndGet();
+    }
+    
+    /**
+     * Sets the maximum total size of all cached blocks. Blocks are evicted if
+     * necessary. A capacity of 0 disables the cache.
+     *
+     * @param capacity
+     *            the capacity in bytes
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+    
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Looks up a block in the cache.
+     *
+     * @param indexId
+     *            the ID of the index
+     * @param fileId
+     *            the ID of the block file
+     * @param offset
+     *            the offset of the block in the block file
+     * @return a view of the cached block, or <code>null</code> if the block
+     *         is not cached
+     */
+    public ByteBuffer get(long indexId, int fileId, long offset) {
+        
+        ByteBuffer block;
+        synchronized (this) {
+            if (capacity <= 0)
+                return null;
+            block = blocks.get(new Key(indexId, fileId, offset));
+        }
+        
+        if (block == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        
+        hits.incrementAndGet();
+        return block.duplicate();
+    }
+    
+    /**
+     * Adds a block to the cache. The block must not be modified afterwards.
+     *
+     * @param indexId
+     *            the ID of the index
+     * @param fileId
+     *            the ID of the block file
+     * @param offset
+     *            the offset of the block in the block file
+     * @param block
+     *            the block
+     */
+    public synchronized void put(long indexId, int fileId, long offset, ByteBuffer block) {
+        
+        if (block.capacity() > capacity)
+            return;
+        
+        ByteBuffer prev = blocks.put(new Key(indexId, fileId, offset), block);
+        if (prev != null)
+            size -= prev.capacity();
+        size += block.capacity();
+        
+        evict();
+    }
+    
+    /**
+     * Removes all blocks of an index from the cache.
+     *
+     * @param indexId
+     *            the ID of the index
+     */
+    public synchronized void invalidate(long indexId) {
+        
+        Iterator<Map.Entry<Key, ByteBuffer>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = it.next();
+            if (entry.getKey().indexId == indexId) {
+                size -= entry.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+    
+    public Object getRuntimeState(String property) {
+        
+        if (RUNTIME_STATE_HITS.equals(property))
+            return hits.get();
+        if (RUNTIME_STATE_MISSES.equals(property))
+            return misses.get();
+        if (RUNTIME_STATE_SIZE.equals(property)) {
+            synchronized (this) {
+                return size;
+            }
+        }
+        
+        return null;
+    }
+    
+    public Map<String, Object> getRuntimeState() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(RUNTIME_STATE_HITS, hits.get());
+        map.put(RUNTIME_STATE_MISSES, misses.get());
+        synchronized (this) {
+            map.put(RUNTIME_STATE_SIZE, size);
+        }
+        return map;
+    }
+    
+    private void evict() {
+        
+        // remove the least recently used blocks
+        Iterator<ByteBuffer> it = blocks.values().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().capacity();
+            it.remove();
+        }
+    }
+    
+    private static final class Key {
+        
+        private final long indexId;
+        
+        private final int  fileId;
+        
+        private final long offset;
+        
+        public Key(long indexId, int fileId, long offset) {
+            this.indexId = indexId;
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            
+            if (!(obj instanceof Key))
+                return false;
+            
+            Key key = (Key) obj;
+            return indexId == key.indexId && fileId == key.fileId && offset == key.offset;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (int) (indexId ^ (indexId >>> 32)) * 31 * 31 + fileId * 31 + (int) (offset ^ (offset >>> 32));
+        }
+    }
+    
+}
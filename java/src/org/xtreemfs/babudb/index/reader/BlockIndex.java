@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.ByteRange;
+
+/**
+ * The block index of an on-disk index, which maps the first key of each block
+ * to the block's location. <br/>
+ *
+ * Block indices of indices written by earlier versions consist of a single
+ * block that is entirely kept in memory. More recent block indices are
+ * partitioned: only a small top-level index that refers to the partitions
+ * remains in memory, whereas partitions are memory-mapped or loaded on demand
+ * and kept in the block cache. If no block cache is configured, loaded
+ * partitions are softly referenced by the block index, so that they are only
+ * discarded when memory runs short. This bounds the memory consumption and the
+ * time needed to open large indices.
+ */
+public class BlockIndex {
+    
+    /**
+     * the single-level block index of an index written by an earlier version,
+     * or the top-level index of a partitioned block index
+     */
+    private final BlockReader         index;
+    
+    /**
+     * the positions of the first entries of all partitions, or
+     * <code>null</code> if the block index is not partitioned
+     */
+    private final int[]               firstEntries;
+    
+    /**
+     * the offsets of all partitions in the partition file
+     */
+    private final long[]              partitionOffsets;
+    
+    private final int                 numEntries;
+    
+    private final ByteRangeComparator comp;
+    
+    private final long                cacheId;
+    
+    private MappedByteBuffer          partitionMap;
+    
+    /**
+     * the readers for all memory-mapped partitions, which are created on
+     * demand and kept, so that lookups do not cause any allocations
+     */
+    private AtomicReferenceArray<BlockReader> partitionReaders;
+    
+    /**
+     * the readers for all partitions that were loaded without a block cache;
+     * they are softly referenced, so that they may be reclaimed if memory
+     * runs short, but are not evicted by concurrent accesses to other
+     * partitions
+     */
+    private AtomicReferenceArray<SoftReference<BlockReader>> loadedPartitions;
+    
+    private FileChannel               partitionChannel;
+    
+    private long                      partitionFileSize;
+    
+    /**
+     * the partition that was accessed last if partitions are kept in the
+     * block cache, which is kept in order to avoid looking it up in the cache
+     * for subsequent accesses to the same partition
+     */
+    private volatile Partition        lastPartition;
+    
+    /**
+     * Opens the block index of an on-disk index.
+     *
+     * @param path
+     *            the path and file prefix of the index files
+     * @param comp
+     *            the comparator for keys
+     * @param mmaped
+     *            indicates whether partitions are memory-mapped
+     * @param cacheId
+     *            the ID under which partitions are kept in the block cache
+     * @throws IOException
+     *             if the block index cannot be read
+     */
+    public BlockIndex(String path, ByteRangeComparator comp, boolean mmaped, long cacheId)
+        throws IOException {
+        
+        this.comp = comp;
+        this.cacheId = cacheId;
+        
+        // read the single-level or top-level block index into a buffer
+        RandomAccessFile blockIndexFile = new RandomAccessFile(path + "blockindex.idx", "r");
+        ByteBuffer buf = ByteBuffer.allocate((int) (blockIndexFile.length()));
+        FileChannel channel = blockIndexFile.getChannel();
+        channel.read(buf);
+        channel.close();
+        
+        index = new DefaultBlockReader(buf, 0, buf.limit(), comp);
+        
+        File partitionFile = new File(path + "blockindex_partitions.idx");
+        if (!partitionFile.exists()) {
+            firstEntries = null;
+            partitionOffsets = null;
+            numEntries = index.getNumEntries();
+            return;
+        }
+        
+        // determine the positions and offsets of all partitions
+        int numPartitions = index.getNumEntries();
+        firstEntries = new int[numPartitions];
+        partitionOffsets = new long[numPartitions];
+        int count = 0;
+        for (int i = 0; i < numPartitions; i++) {
+            ByteRange entry = index.getValues().getEntry(i);
+            partitionOffsets[i] = entry.getBuf().getLong(entry.getStartOffset());
+            firstEntries[i] = entry.getBuf().getInt(entry.getStartOffset() + Long.SIZE / 8);
+            count += entry.getBuf().getInt(entry.getStartOffset() + Long.SIZE / 8 + Integer.SIZE / 8);
+        }
+        numEntries = count;
+        
+        RandomAccessFile file = new RandomAccessFile(partitionFile, "r");
+        partitionChannel = file.getChannel();
+        partitionFileSize = file.length();
+        
+        // map the partition file if possible; its pages are only loaded
+        // when partitions are accessed
+        if (mmaped && partitionFileSize <= Integer.MAX_VALUE) {
+            partitionMap = partitionChannel.map(MapMode.READ_ONLY, 0, partitionFileSize);
+            partitionReaders = new AtomicReferenceArray<BlockReader>(numPartitions);
+            partitionChannel.close();
+            partitionChannel = null;
+        } else
+            loadedPartitions = new AtomicReferenceArray<SoftReference<BlockReader>>(numPartitions);
+    }
+    
+    /**
+     * Returns the number of entries in the block index, i.e. the number of
+     * blocks.
+     *
+     * @return the number of entries
+     */
+    public int getNumEntries() {
+        return numEntries;
+    }
+    
+    /**
+     * Checks whether the block index is partitioned.
+     *
+     * @return <code>true</code>, if the block index is partitioned
+     */
+    public boolean isPartitioned() {
+        return firstEntries != null;
+    }
+    
+    /**
+     * Returns the position of the block that potentially contains the given
+     * key.
+     *
+     * @param key
+     *            the key
+     * @return the position, or -1 if the key is smaller than the first key of
+     *         the index
+     * @throws IOException
+     *             if a partition cannot be read
+     */
+    public int getPosition(byte[] key) throws IOException {
+        
+        int position = SearchUtil.getInclBottomOffset(index.getKeys(), key, comp);
+        if (firstEntries == null || position == -1)
+            return position;
+        
+        // as the partition's first key is smaller than or equal to the key,
+        // the partition contains the position
+        BlockReader partition = getPartition(position);
+        return firstEntries[position] + SearchUtil.getInclBottomOffset(partition.getKeys(), key, comp);
+    }
+    
+    /**
+     * Returns the entry at the given position in the block index.
+     *
+     * @param position
+     *            the position
+     * @return the entry
+     * @throws IOException
+     *             if a partition cannot be read
+     */
+    public ByteRange getEntry(int position) throws IOException {
+        
+        if (firstEntries == null)
+            return index.getValues().getEntry(position);
+        
+        int partition = getPartitionNumber(position);
+        return getPartition(partition).getValues().getEntry(position - firstEntries[partition]);
+    }
+    
+    /**
+     * Returns a copy of the first key of the block at the given position.
+     *
+     * @param position
+     *            the position
+     * @return the first key of the block
+     * @throws IOException
+     *             if a partition cannot be read
+     */
+    public byte[] getKey(int position) throws IOException {
+        
+        if (firstEntries == null)
+            return index.getKeys().copyEntry(position);
+        
+        int partition = getPartitionNumber(position);
+        return getPartition(partition).getKeys().copyEntry(position - firstEntries[partition]);
+    }
+    
+    /**
+     * Reads a long value from the entry at the given position in the block
+     * index. Unlike {@link #getEntry(int)}, this method does not allocate any
+     * objects once the partition containing the entry has been loaded.
+     * 
+     * @param position
+     *            the position
+     * @param offset
+     *            the offset of the value in the entry
+     * @return the value
+     * @throws IOException
+     *             if a partition cannot be read
+     */
+    public long getLong(int position, int offset) throws IOException {
+        FixedLenMiniPage page = getValues(position);
+        return page.buf.getLong(page.getEntryOffset(getLocalPosition(position)) + offset);
+    }
+    
+    /**
+     * Reads an int value from the entry at the given position in the block
+     * index.
+     * 
+     * @param position
+     *            the position
+     * @param offset
+     *            the offset of the value in the entry
+     * @return the value
+     * @throws IOException
+     *             if a partition cannot be read
+     */
+    public int getInt(int position, int offset) throws IOException {
+        FixedLenMiniPage page = getValues(position);
+        return page.buf.getInt(page.getEntryOffset(getLocalPosition(position)) + offset);
+    }
+    
+    /**
+     * Reads a short value from the entry at the given position in the block
+     * index.
+     * 
+     * @param position
+     *            the position
+     * @param offset
+     *            the offset of the value in the entry
+     * @return the value
+     * @throws IOException
+     *             if a partition cannot be read
+     */
+    public short getShort(int position, int offset) throws IOException {
+        FixedLenMiniPage page = getValues(position);
+        return page.buf.getShort(page.getEntryOffset(getLocalPosition(position)) + offset);
+    }
+    
+    /**
+     * Reads a byte from the entry at the given position in the block index.
+     * 
+     * @param position
+     *            the position
+     * @param offset
+     *            the offset of the byte in the entry
+     * @return the byte
+     * @throws IOException
+     *             if a partition cannot be read
+     */
+    public byte getByte(int position, int offset) throws IOException {
+        FixedLenMiniPage page = getValues(position);
+        return page.buf.get(page.getEntryOffset(getLocalPosition(position)) + offset);
+    }
+    
+    /**
+     * Releases the block index.
+     *
+     * @throws IOException
+     *             if the partition file cannot be closed
+     */
+    public void free() throws IOException {
+        
+        index.free();
+        lastPartition = null;
+        
+        if (loadedPartitions != null)
+            for (int i = 0; i < loadedPartitions.length(); i++)
+                loadedPartitions.set(i, null);
+        
+        if (partitionChannel != null)
+            partitionChannel.close();
+    }
+    
+    /**
+     * Returns the page containing the entries of the partition that contains
+     * the given position.
+     */
+    private FixedLenMiniPage getValues(int position) throws IOException {
+        return (FixedLenMiniPage) (firstEntries == null ? index : getPartition(getPartitionNumber(position)))
+                .getValues();
+    }
+    
+    /**
+     * Returns the position of an entry relative to the beginning of its
+     * partition.
+     */
+    private int getLocalPosition(int position) {
+        return firstEntries == null ? position : position - firstEntries[getPartitionNumber(position)];
+    }
+    
+    private int getPartitionNumber(int position) {
+        
+        int partition = Arrays.binarySearch(firstEntries, position);
+        if (partition < 0)
+            partition = -partition - 2;
+        
+        return partition;
+    }
+    
+    private BlockReader getPartition(int partition) throws IOException {
+        
+        if (partitionReaders != null) {
+            BlockReader reader = partitionReaders.get(partition);
+            if (reader != null)
+                return reader;
+        }
+        
+        if (loadedPartitions != null) {
+            SoftReference<BlockReader> ref = loadedPartitions.get(partition);
+            BlockReader reader = ref == null ? null : ref.get();
+            if (reader != null)
+                return reader;
+        }
+        
+        Partition last = lastPartition;
+        if (last != null && last.number == partition)
+            return last.reader;
+        
+        long start = partitionOffsets[partition];
+        long end = partition + 1 < partitionOffsets.length ? partitionOffsets[partition + 1]
+            : partitionFileSize;
+        
+        ByteBuffer buf;
+        boolean cached = false;
+        if (partitionMap != null) {
+            
+            // create a view buffer on the map, which may be accessed
+            // concurrently
+            buf = partitionMap.duplicate();
+            buf.position((int) start);
+            buf.limit((int) end);
+            buf = buf.slice();
+        }
+        
+        else {
+            
+            // check if the partition is cached; if not, read it and add it to
+            // the cache, if caching is enabled; partitions are distinguished
+            // from blocks by a negative file ID
+            BlockCache cache = BlockCache.getInstance();
+            cached = cache.getCapacity() > 0;
+            buf = cached ? cache.get(cacheId, -1, start) : null;
+            if (buf == null) {
+                
+                buf = ByteBuffer.allocate((int) (end - start));
+                while (buf.hasRemaining())
+                    if (partitionChannel.read(buf, start + buf.position()) == -1)
+                        throw new IOException("unexpected end of block index partition file");
+                buf.position(0);
+                
+                if (cached) {
+                    cache.put(cacheId, -1, start, buf);
+                    buf = buf.duplicate();
+                }
+            }
+        }
+        
+        BlockReader reader = new DefaultBlockReader(buf, 0, buf.limit(), comp);
+        if (partitionReaders != null) {
+            partitionReaders.set(partition, reader);
+            return reader;
+        }
+        
+        // without a block cache, keep the partition in memory as long as
+        // possible, as it would otherwise have to be re-read from disk with
+        // the next access to another partition
+        if (!cached) {
+            loadedPartitions.set(partition, new SoftReference<BlockReader>(reader));
+            return reader;
+        }
+        
+        lastPartition = new Partition(partition, reader);
+        
+        return reader;
+    }
+    
+    private static class Partition {
+        
+        final int         number;
+        
+        final BlockReader reader;
+        
+        Partition(int number, BlockReader reader) {
+            this.number = number;
+            this.reader = reader;
+        }
+    }
+    
+}
@@ -55,6 +55,20 @@ public abstract class BlockReader {
     
     public abstract ByteRange lookup(byte[] key);
     
+    /**
+     * Looks up a key and returns a copy of its value. The default
+     * implementation copies the range returned by {@link #lookup(byte[])}.
+     * 
+     * @param key
+     *            the key
+     * @return a copy of the value, or <code>null</code>, if the key is not
+     *         contained in the block
+     */
+    public byte[] lookupValue(byte[] key) {
+        ByteRange val = lookup(key);
+        return val == null ? null : val.toBuffer();
+    }
+    
     public abstract ResultSet<ByteRange, ByteRange> rangeLookup(byte[] from, byte[] to,
         final boolean ascending);
     
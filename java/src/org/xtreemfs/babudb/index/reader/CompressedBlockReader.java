@@ -136,11 +136,10 @@ public class CompressedBlockReader extends BlockReader {
         if (prefix.length == 0)
             return key;
         
-        byte[] prefixKey = new byte[prefix.length];
-        System.arraycopy(key, 0, prefixKey, 0, prefix.length);
-        
-        if (comp.compare(prefix, prefixKey) != 0)
-            return null;
+        // check in place whether the key starts with the prefix
+        for (int i = 0; i < prefix.length; i++)
+            if (prefix[i] != key[i])
+                return null;
         
         byte[] suffixKey = new byte[key.length - prefix.length];
         System.arraycopy(key, prefix.length, suffixKey, 0, key.length - prefix.length);
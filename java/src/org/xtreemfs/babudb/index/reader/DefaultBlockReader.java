@@ -20,7 +20,12 @@ import org.xtreemfs.foundation.buffer.BufferPool;
 
 public class DefaultBlockReader extends BlockReader {
     
-    public static final int KEYS_OFFSET = 4 * Integer.SIZE / 8;
+    public static final int                              KEYS_OFFSET   = 4 * Integer.SIZE / 8;
+    
+    /**
+     * the readers that are reused for lookups by the individual threads
+     */
+    private static final ThreadLocal<DefaultBlockReader> lookupReaders = new ThreadLocal<DefaultBlockReader>();
     
     /**
      * Creates a reader for a buffered block.
@@ -38,28 +43,7 @@ public class DefaultBlockReader extends BlockReader {
         
         super(true);
         
-        this.buffer = buf;
-        this.position = position;
-        this.limit = limit;
-        this.comp = comp;
-        
-        // with limit <= 0 there are no entries in the buffer
-        if (limit > 0) {
-            int keysOffset = position + KEYS_OFFSET;
-            int valsOffset = position + buf.getInt(position);
-            numEntries = buf.getInt(position + 4);
-            int keyEntrySize = buf.getInt(position + 8);
-            int valEntrySize = buf.getInt(position + 12);
-            keys = keyEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, keysOffset, valsOffset, comp)
-                : new FixedLenMiniPage(keyEntrySize, numEntries, buf, keysOffset, valsOffset, comp);
-            values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, valsOffset, limit, comp)
-                : new FixedLenMiniPage(valEntrySize, numEntries, buf, valsOffset, limit, comp);
-        } else {
-            numEntries = 0;
-            keys = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
-            values = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
-        }
-        
+        init(buf, position, limit, comp);
     }
     
     /**
@@ -107,6 +91,35 @@ public class DefaultBlockReader extends BlockReader {
         
     }
     
+    /**
+     * Returns a reader for a buffered block that is owned by the calling
+     * thread. In order to avoid allocations, the same reader is reused with
+     * each invocation by the same thread, so that it must neither be used
+     * after the next invocation nor be passed to other threads.
+     * 
+     * @param buf
+     *            the buffer
+     * @param position
+     *            the position of the block in the buffer
+     * @param limit
+     *            the limit of the block in the buffer
+     * @param comp
+     *            the byte range comparator
+     * @return the reader
+     */
+    public static DefaultBlockReader getLookupReader(ByteBuffer buf, int position, int limit,
+        ByteRangeComparator comp) {
+        
+        DefaultBlockReader reader = lookupReaders.get();
+        if (reader == null) {
+            reader = new DefaultBlockReader(buf, position, limit, comp);
+            lookupReaders.set(reader);
+        } else
+            reader.init(buf, position, limit, comp);
+        
+        return reader;
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -121,6 +134,15 @@ public class DefaultBlockReader extends BlockReader {
         return values.getEntry(index);
     }
     
+    public byte[] lookupValue(byte[] key) {
+        
+        int index = keys.getPosition(key);
+        if (index == -1)
+            return null;
+        
+        return values.copyEntry(index);
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -205,4 +227,55 @@ public class DefaultBlockReader extends BlockReader {
         };
     }
     
+    private void init(ByteBuffer buf, int position, int limit, ByteRangeComparator comp) {
+        
+        this.buffer = buf;
+        this.position = position;
+        this.limit = limit;
+        this.comp = comp;
+        
+        // with limit <= 0 there are no entries in the buffer
+        if (limit > 0) {
+            int keysOffset = position + KEYS_OFFSET;
+            int valsOffset = position + buf.getInt(position);
+            numEntries = buf.getInt(position + 4);
+            int keyEntrySize = buf.getInt(position + 8);
+            int valEntrySize = buf.getInt(position + 12);
+            keys = keyEntrySize == -1 ? initVarLenPage(keys, numEntries, buf, keysOffset, valsOffset, comp)
+                : initFixedLenPage(keys, keyEntrySize, numEntries, buf, keysOffset, valsOffset, comp);
+            values = valEntrySize == -1 ? initVarLenPage(values, numEntries, buf, valsOffset, limit, comp)
+                : initFixedLenPage(values, valEntrySize, numEntries, buf, valsOffset, limit, comp);
+        } else {
+            numEntries = 0;
+            keys = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
+            values = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
+        }
+    }
+    
+    /**
+     * Re-initializes a variable-length page if possible, or creates a new one.
+     */
+    private static MiniPage initVarLenPage(MiniPage page, int numEntries, ByteBuffer buf, int offset,
+        int limit, ByteRangeComparator comp) {
+        
+        if (!(page instanceof VarLenMiniPage))
+            return new VarLenMiniPage(numEntries, buf, offset, limit, comp);
+        
+        ((VarLenMiniPage) page).init(numEntries, buf, offset, limit, comp);
+        return page;
+    }
+    
+    /**
+     * Re-initializes a fixed-length page if possible, or creates a new one.
+     */
+    private static MiniPage initFixedLenPage(MiniPage page, int entrySize, int numEntries, ByteBuffer buf,
+        int offset, int limit, ByteRangeComparator comp) {
+        
+        if (!(page instanceof FixedLenMiniPage))
+            return new FixedLenMiniPage(entrySize, numEntries, buf, offset, limit, comp);
+        
+        ((FixedLenMiniPage) page).init(entrySize, numEntries, buf, offset, limit, comp);
+        return page;
+    }
+    
 }
@@ -7,7 +7,10 @@
  */
 package org.xtreemfs.babudb.index.reader;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -15,34 +18,145 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.BloomFilter;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.TombstoneSet;
+import org.xtreemfs.babudb.index.codec.BlockCodec;
+import org.xtreemfs.babudb.index.writer.DiskIndexWriter;
+import org.xtreemfs.babudb.util.CRC32C;
 import org.xtreemfs.foundation.logging.Logging;
 
 public class DiskIndex {
     
-    private ByteBuffer          blockIndexBuf;
+    /**
+     * the format version of indices without a format file, which have been
+     * written by older versions; their block index entries only contain a
+     * 32-bit block offset and the block file ID
+     */
+    private static final int     LEGACY_FORMAT_VERSION  = 0;
+    
+    /**
+     * the size of block index entries of indices in the legacy format
+     */
+    private static final int     LEGACY_ENTRY_SIZE      = (Integer.SIZE / 8) + (Short.SIZE / 8);
     
-    private BlockReader         blockIndex;
+    /**
+     * the maximum size of a memory-mapped segment of a block file
+     */
+    private static int           maxSegmentSize         = Integer.MAX_VALUE;
     
-    private MappedByteBuffer[]  dbFiles;
+    private BlockIndex           blockIndex;
     
-    private FileChannel[]       dbFileChannels;
+    /**
+     * the memory-mapped segments of each block file; block files that exceed
+     * the maximum segment size are mapped as multiple segments, each of which
+     * starts at the beginning of a block
+     */
+    private MappedByteBuffer[][] dbFiles;
+    
+    /**
+     * the offsets of the memory-mapped segments in each block file
+     */
+    private long[][]             segmentOffsets;
+    
+    private FileChannel[]        dbFileChannels;
     
     private ByteRangeComparator comp;
     
+    private BloomFilter         bloomFilter;
+    
+    /**
+     * the keys of all tombstones in the index, or <code>null</code> if the
+     * index does not contain any tombstones
+     */
+    private final TombstoneSet  tombstones;
+    
     private long                indexSize;
     
     private final boolean       compressed;
     
     private final boolean       mmaped;
     
+    private final long          cacheId;
+    
+    private final String        name;
+    
+    /**
+     * indicates whether the block index contains a checksum for each block
+     */
+    private final boolean       checksummed;
+    
+    /**
+     * indicates whether the block index contains the ID of the codec that
+     * compressed each block
+     */
+    private final boolean       encoded;
+    
+    /**
+     * indicates for each block of a memory-mapped index whether its checksum
+     * has already been verified
+     */
+    private final boolean[]     verified;
+    
+    /**
+     * the size of the block offset in a block index entry
+     */
+    private final int           offsetSize;
+    
+    /**
+     * the offset of the checksum in a block index entry
+     */
+    private final int           checksumOffset;
+    
+    /**
+     * the offset of the codec ID in a block index entry
+     */
+    private final int           codecOffset;
+    
+    /**
+     * the number of references to the index; the index is created with a
+     * single reference that is released when the index is destroyed, and each
+     * buffer view returned by {@link #lookupBuffer(byte[])} holds an
+     * additional reference until it is freed
+     */
+    private final AtomicInteger refCount  = new AtomicInteger(1);
+    
+    private final AtomicBoolean destroyed = new AtomicBoolean();
+    
     public DiskIndex(String path, ByteRangeComparator comp, boolean compressed, boolean mmaped)
         throws IOException {
+        this(path, "", comp, compressed, mmaped);
+    }
+    
+    /**
+     * Opens an on-disk index whose files are named with a given prefix. This
+     * allows multiple indices to share the same directory.
+     * 
+     * @param path
+     *            the directory containing the index files
+     * @param filePrefix
+     *            the prefix of all files belonging to the index
+     * @param comp
+     *            the comparator for keys
+     * @param compressed
+     *            indicates whether the blocks are compressed
+     * @param mmaped
+     *            indicates whether the block files are memory-mapped
+     * @throws IOException
+     *             if the index cannot be read
+     */
+    public DiskIndex(String path, final String filePrefix, ByteRangeComparator comp, boolean compressed,
+        boolean mmaped) throws IOException {
         if (!path.endsWith(System.getProperty("file.separator")))
             path += System.getProperty("file.separator");
         
@@ -52,34 +166,58 @@ public class DiskIndex {
         this.comp = comp;
         this.compressed = compressed;
         this.mmaped = mmaped;
+        this.cacheId = BlockCache.newIndexId();
+        this.name = path + filePrefix;
         Logging.logMessage(Logging.LEVEL_INFO, this, "loading index ...");
         
-        // First, read the block index into a buffer. For performance reasons,
-        // the block index has to remain in memory all the time, so it cannot be
-        // memory-mapped.
+        // the layout of the block index entries depends on the format
+        // version; indices in the legacy format have 32-bit block offsets and
+        // do not contain checksums and codec IDs
+        int formatVersion = readFormatVersion(path + filePrefix + "format.idx");
+        if (formatVersion != LEGACY_FORMAT_VERSION && formatVersion != DiskIndexWriter.FORMAT_VERSION)
+            throw new IOException("unsupported index format version " + formatVersion + ": " + name);
         
-        RandomAccessFile blockIndexFile = new RandomAccessFile(path + "blockindex.idx", "r");
-        blockIndexBuf = ByteBuffer.allocate((int) (blockIndexFile.length()));
-        FileChannel channel = blockIndexFile.getChannel();
-        channel.read(blockIndexBuf);
+        // First, open the block index. Single-level block indices written by
+        // earlier versions are read into memory entirely, whereas only the
+        // top-level index of a partitioned block index is kept in memory.
+        blockIndex = new BlockIndex(path + filePrefix, comp, mmaped, cacheId);
         
-        blockIndex = new DefaultBlockReader(blockIndexBuf, 0, blockIndexBuf.limit(), comp);
-        channel.close();
+        boolean legacy = formatVersion == LEGACY_FORMAT_VERSION;
+        offsetSize = legacy ? Integer.SIZE / 8 : Long.SIZE / 8;
+        checksumOffset = offsetSize + (Short.SIZE / 8);
+        codecOffset = checksumOffset + (Integer.SIZE / 8);
+        checksummed = !legacy;
+        encoded = !legacy;
+        
+        // make sure that the block index matches the format version (note
+        // that ranges of fixed-length entries exclude the last byte)
+        int entrySize = legacy ? LEGACY_ENTRY_SIZE : DiskIndexWriter.BLOCK_INDEX_ENTRY_SIZE;
+        if (blockIndex.getNumEntries() > 0 && getBlockEntry(0).getSize() + 1 != entrySize) {
+            blockIndex.free();
+            throw new IOException("corrupted block index: entry size does not match index format version "
+                + formatVersion + ": " + name);
+        }
+        
+        verified = checksummed && mmaped ? new boolean[blockIndex.getNumEntries()] : null;
+        
+        // load the Bloom filter, if the index has one
+        bloomFilter = BloomFilter.read(path + filePrefix + "bloomfilter.idx");
+        
+        // load the keys of all tombstones, if the index has any
+        tombstones = TombstoneSet.read(path + filePrefix + "tombstones.idx", comp);
         
         // Second, mmap each of the potentially large block list files
         FilenameFilter filter = new FilenameFilter() {
             public boolean accept(File dir, String filename) {
-                return filename.startsWith("blockfile_");
+                return filename.startsWith(filePrefix + "blockfile_");
             }
         };
         String blockFilenames[] = new File(path).list(filter);
         
-        Pattern p = Pattern.compile("blockfile_(\\d+).idx");
+        Pattern p = Pattern.compile(Pattern.quote(filePrefix) + "blockfile_(\\d+).idx");
         
         dbFileChannels = new FileChannel[blockFilenames.length];
-        
-        if (mmaped)
-            dbFiles = new MappedByteBuffer[blockFilenames.length];
+        long[] fileSizes = new long[blockFilenames.length];
         
         for (String blockFilename : blockFilenames) {
             Matcher m = p.matcher(blockFilename);
@@ -87,151 +225,402 @@ public class DiskIndex {
                 int blockIndexId = new Integer(m.group(1)).intValue();
                 RandomAccessFile blockFile = new RandomAccessFile(path + blockFilename, "r");
                 dbFileChannels[blockIndexId] = blockFile.getChannel();
+                fileSizes[blockIndexId] = blockFile.length();
                 indexSize += blockFile.length();
-                
-                // if mmap'ed access is used, map the index files and close the
-                // channels; otherwise, no maps will be created, and channels
-                // will be closed when the index is released
-                if (mmaped) {
-                    dbFiles[blockIndexId] = dbFileChannels[blockIndexId].map(MapMode.READ_ONLY, 0, blockFile
-                            .length());
-                    Logging.logMessage(Logging.LEVEL_INFO, this, "block file index size: "
-                        + blockFile.length());
-                    dbFileChannels[blockIndexId].close();
-                }
-                
             }
         }
         
+        // if mmap'ed access is used, map the index files and close the
+        // channels; otherwise, no maps will be created, and channels will be
+        // closed when the index is released
+        if (mmaped) {
+            mapSegments(fileSizes);
+            for (FileChannel c : dbFileChannels)
+                if (c != null)
+                    c.close();
+        }
+        
     }
     
-    public byte[] lookup(byte[] key) {
-        // returns index position in the second block for "word"
-        int indexPosition = getBlockIndexPosition(key, blockIndex);
+    /**
+     * Sets the maximum size of the segments in which block files are
+     * memory-mapped. Segments are limited to 2 GB by the size of a
+     * <code>ByteBuffer</code>, which is the default; smaller sizes only apply
+     * to indices opened afterwards and are mainly useful for testing.
+     * 
+     * @param size
+     *            the maximum segment size in bytes
+     */
+    public static void setMaxSegmentSize(int size) {
+        maxSegmentSize = size;
+    }
+    
+    /**
+     * Memory-maps all block files. Files that exceed the maximum segment size
+     * are mapped as multiple segments. Each segment starts at the beginning of
+     * a block, so that no block spans two segments. As this requires the
+     * offsets of all blocks, the block index is only scanned if a file exceeds
+     * the maximum segment size.
+     * 
+     * @param fileSizes
+     *            the sizes of all block files
+     * @throws IOException
+     *             if a block file cannot be mapped
+     */
+    private void mapSegments(long[] fileSizes) throws IOException {
         
-        // if the first element is larger than the key searched for, the key is
-        // not contained in the index
-        if (indexPosition == -1)
-            return null;
+        dbFiles = new MappedByteBuffer[fileSizes.length][];
+        segmentOffsets = new long[fileSizes.length][];
+        
+        boolean segmented = false;
+        for (long fileSize : fileSizes)
+            segmented |= fileSize > maxSegmentSize;
         
-        int startBlockOffset = getBlockOffset(indexPosition, blockIndex);
-        int fileId = getBlockFileId(indexPosition, blockIndex);
-        
-        int endBlockOffset;
-        if (indexPosition == blockIndex.getNumEntries() - 1)
-            // the last block in the block index
-            endBlockOffset = -1;
-        else {
-            ByteRange indexPos = getBlockEntry(indexPosition + 1, blockIndex);
-            ByteBuffer indexPosBuf = indexPos.getBuf();
-            endBlockOffset = getBlockIndexOffset(indexPosBuf, indexPos.getStartOffset());
+        int numBlocks = segmented ? blockIndex.getNumEntries() : 0;
+        int block = 0;
+        for (int fileId = 0; fileId < fileSizes.length; fileId++) {
+            
+            List<Long> offsets = new ArrayList<Long>();
+            offsets.add(0L);
+            
+            // blocks are ordered by their files and offsets
+            long segmentStart = 0;
+            for (; block < numBlocks && getBlockFileId(block) == fileId; block++) {
+                
+                long blockStart = getBlockOffset(block);
+                long blockEnd = getBlockEnd(block);
+                if (blockEnd == -1)
+                    blockEnd = fileSizes[fileId];
+                
+                if (blockEnd - blockStart > Integer.MAX_VALUE)
+                    throw new IOException("block " + block + " of index " + name
+                        + " is too large to be memory-mapped");
+                
+                if (blockEnd - segmentStart > maxSegmentSize && blockStart > segmentStart) {
+                    offsets.add(blockStart);
+                    segmentStart = blockStart;
+                }
+            }
             
-            // is this the last block of the current block file?
-            // then the endBlockOffset should be set to the end of the file
-            if (getBlockIndexFileId(indexPosBuf, indexPos.getStartOffset()) > fileId)
-                endBlockOffset = -1;
+            dbFiles[fileId] = new MappedByteBuffer[offsets.size()];
+            segmentOffsets[fileId] = new long[offsets.size()];
+            for (int i = 0; i < offsets.size(); i++) {
+                long start = offsets.get(i);
+                long end = i + 1 < offsets.size() ? offsets.get(i + 1) : fileSizes[fileId];
+                segmentOffsets[fileId][i] = start;
+                dbFiles[fileId][i] = dbFileChannels[fileId].map(MapMode.READ_ONLY, start, end - start);
+            }
             
-            // endBlockOffset = getBlockOffset(indexPosition + 1, blockIndex);
+            Logging.logMessage(Logging.LEVEL_INFO, this, "block file index size: " + fileSizes[fileId] + " ("
+                + offsets.size() + " segment(s))");
         }
+    }
+    
+    public byte[] lookup(byte[] key) {
+        
+        // if the Bloom filter rules out the key, no block needs to be read
+        if (bloomFilter != null && !bloomFilter.mightContain(key))
+            return null;
         
-        // create a view buffer on the target block
         BlockReader targetBlock = null;
         try {
-            targetBlock = mmaped ? getBlock(startBlockOffset, endBlockOffset, dbFiles[fileId]) : getBlock(
-                startBlockOffset, endBlockOffset, dbFileChannels[fileId]);
+            
+            // returns index position in the second block for "word"
+            int indexPosition = getBlockIndexPosition(key);
+            
+            // if the first element is larger than the key searched for, the
+            // key is not contained in the index
+            if (indexPosition == -1)
+                return null;
+            
+            targetBlock = getBlock(indexPosition, true);
         } catch (IOException e) {
             Logging.logError(Logging.LEVEL_ERROR, this, e);
         }
         
         // search for the key in the target block and return the result
-        ByteRange val = targetBlock.lookup(key);
-        byte[] result = val == null ? null : val.toBuffer();
+        byte[] result = targetBlock.lookupValue(key);
         targetBlock.free();
         
         return result;
     }
     
-    public long numKeys() {
-        
-        int numBlocks = blockIndex.getNumEntries();
+    /**
+     * Looks up a batch of keys. The keys have to be sorted in ascending order
+     * and may contain <code>null</code> elements, which are skipped. Blocks
+     * are visited in key order, so that each block is read and decoded at
+     * most once per batch.
+     * 
+     * @param keys
+     *            the sorted keys
+     * @return an array containing the value of each key at the key's
+     *         position, or <code>null</code> if the key is not contained
+     */
+    public byte[][] multiLookup(byte[][] keys) {
         
-        // return 0 if no keys are contained
-        if (numBlocks == 0)
-            return 0;
+        byte[][] results = new byte[keys.length][];
         
-        int lastBlockStartOffset = getBlockOffset(numBlocks - 1, blockIndex);
-        int lastBlockEndOffset = -1;
-        BlockReader lastBlock = null;
+        BlockReader block = null;
+        int blockPosition = -1;
         try {
-            lastBlock = mmaped ? getBlock(lastBlockStartOffset, lastBlockEndOffset, dbFiles[getBlockFileId(
-                numBlocks - 1, blockIndex)]) : getBlock(lastBlockStartOffset, lastBlockEndOffset,
-                dbFileChannels[getBlockFileId(numBlocks - 1, blockIndex)]);
+            
+            for (int i = 0; i < keys.length; i++) {
+                
+                byte[] key = keys[i];
+                if (key == null || (bloomFilter != null && !bloomFilter.mightContain(key)))
+                    continue;
+                
+                int indexPosition = getBlockIndexPosition(key);
+                if (indexPosition == -1)
+                    continue;
+                
+                // only switch to a new block if the key is not contained in
+                // the current one
+                if (indexPosition != blockPosition) {
+                    if (block != null)
+                        block.free();
+                    block = getBlock(indexPosition, true);
+                    blockPosition = indexPosition;
+                }
+                
+                results[i] = block.lookupValue(key);
+            }
+            
         } catch (IOException e) {
             Logging.logError(Logging.LEVEL_ERROR, this, e);
+        } finally {
+            if (block != null)
+                block.free();
         }
-        long lastBlockEntryCount = lastBlock.getNumEntries();
-        lastBlock.free();
-        
-        if (numBlocks == 1)
-            return lastBlockEntryCount;
         
-        int firstBlockStartOffset = 0;
-        int firstBlockEndBlockOffset = getBlockOffset(1, blockIndex);
+        return results;
+    }
+    
+    /**
+     * Performs a lookup that returns a read-only view on the value rather than
+     * a copy. With memory-mapped, uncompressed indices, the view refers to the
+     * mapped block file; otherwise, it may refer to a decoded block or a copy
+     * of the value.<br/>
+     * 
+     * The view remains valid only as long as the index is not freed. Callers
+     * that may access the view after the index has been destroyed have to
+     * {@link #retain()} the index before the lookup.
+     * 
+     * @param key
+     *            the key
+     * @return a read-only view on the value, or <code>null</code>, if the key
+     *         is not contained
+     */
+    public ByteBuffer lookupBuffer(byte[] key) {
         
-        // the 1 block is the last in the current block file
-        if (getBlockFileId(1, blockIndex) > getBlockFileId(0, blockIndex))
-            firstBlockEndBlockOffset = -1;
+        if (bloomFilter != null && !bloomFilter.mightContain(key))
+            return null;
         
-        BlockReader firstBlock = null;
+        BlockReader targetBlock = null;
         try {
-            firstBlock = mmaped ? getBlock(firstBlockStartOffset, firstBlockEndBlockOffset,
-                dbFiles[getBlockFileId(0, blockIndex)]) : getBlock(firstBlockStartOffset,
-                firstBlockEndBlockOffset, dbFileChannels[getBlockFileId(0, blockIndex)]);
+            
+            int indexPosition = getBlockIndexPosition(key);
+            if (indexPosition == -1)
+                return null;
+            
+            targetBlock = getBlock(indexPosition);
         } catch (IOException e) {
             Logging.logError(Logging.LEVEL_ERROR, this, e);
         }
-        long firstBlocksEntryCount = (long) firstBlock.getNumEntries() * (numBlocks - 1);
-        firstBlock.free();
         
-        return firstBlocksEntryCount + lastBlockEntryCount;
+        ByteRange val = targetBlock.lookup(key);
+        ByteBuffer result = null;
+        if (val != null) {
+            
+            // streamed blocks are freed with the reader, and values with a
+            // common block prefix are not contiguous, so that both have to be
+            // copied
+            if (!targetBlock.isBuffered || val.getPrefix() != null)
+                result = ByteBuffer.wrap(val.toBuffer()).asReadOnlyBuffer();
+            
+            else {
+                ByteBuffer view = val.getBuf().duplicate();
+                view.limit(val.getEndOffset());
+                view.position(val.getStartOffset());
+                result = view.slice().asReadOnlyBuffer();
+            }
+        }
+        targetBlock.free();
+        
+        return result;
     }
     
-    public ResultSet<byte[], byte[]> rangeLookup(final byte[] from, final byte[] to,
-        final boolean ascending) {
+    /**
+     * Computes keys that split a key range into sub-ranges of approximately
+     * the same number of blocks. Split keys are first keys of blocks, so that
+     * each block is read by a single sub-range only.
+     * 
+     * @param from
+     *            the first key of the range (inclusively), or
+     *            <code>null</code> for the first key of the index
+     * @param to
+     *            the last key of the range (exclusively), or <code>null</code>
+     *            for no upper bound
+     * @param numSplits
+     *            the maximum number of sub-ranges
+     * @return at most <code>numSplits - 1</code> split keys in ascending
+     *         order, all of which are greater than <code>from</code> and
+     *         smaller than <code>to</code>
+     */
+    public byte[][] getSplitKeys(byte[] from, byte[] to, int numSplits) {
         
-        // return iterator for mmap'ed indices
-        if (mmaped) {
-            final ByteBuffer[] map = new ByteBuffer[dbFiles.length];
-            for (int i = 0; i < dbFiles.length; i++) {
-                dbFiles[i].position(0);
-                map[i] = dbFiles[i].slice();
+        List<byte[]> keys = new ArrayList<byte[]>();
+        try {
+            
+            int numBlocks = getNumBlocks();
+            if (numBlocks == 0)
+                return new byte[0][];
+            
+            int first = from == null ? 0 : Math.max(getBlockIndexPosition(from), 0);
+            int last = to == null ? numBlocks - 1 : getBlockIndexPosition(to);
+            
+            int blocks = last - first + 1;
+            int parts = Math.min(numSplits, blocks);
+            
+            for (int i = 1; i < parts; i++) {
+                
+                byte[] key = blockIndex.getKey(first + (int) ((long) i * blocks / parts));
+                
+                // the first key of the block containing the upper bound may
+                // be equal to the bound
+                if (to != null && comp.compare(key, to) >= 0)
+                    break;
+                
+                keys.add(key);
             }
             
-            return new DiskIndexIterator(this, blockIndex, from, to, ascending, map);
+        } catch (IOException e) {
+            Logging.logError(Logging.LEVEL_ERROR, this, e);
         }
         
-        // return iterator for non-mmap'ed indices
-        else
-            return new DiskIndexIterator(this, blockIndex, from, to, ascending, dbFileChannels);
+        return keys.toArray(new byte[keys.size()][]);
+    }
+    
+    /**
+     * Returns the number of keys in the index. As blocks may be bounded by
+     * their size, the entry counts of all blocks are added up.
+     * 
+     * @return the number of keys
+     */
+    public long numKeys() {
+        
+        int numBlocks = blockIndex.getNumEntries();
+        
+        long count = 0;
+        for (int i = 0; i < numBlocks; i++) {
+            
+            BlockReader block = null;
+            try {
+                block = getBlock(i);
+            } catch (IOException e) {
+                Logging.logError(Logging.LEVEL_ERROR, this, e);
+            }
+            count += block.getNumEntries();
+            block.free();
+        }
+        
+        return count;
+    }
+    
+    public ResultSet<byte[], byte[]> rangeLookup(final byte[] from, final byte[] to,
+        final boolean ascending) {
+        
+        return new DiskIndexIterator(this, from, to, ascending);
     }
     
     public InternalDiskIndexIterator internalRangeLookup(final byte[] from, final byte[] to,
         final boolean ascending) {
         
-        // return iterator for mmap'ed indices
-        if (mmaped) {
-            final ByteBuffer[] map = new ByteBuffer[dbFiles.length];
-            for (int i = 0; i < dbFiles.length; i++) {
-                dbFiles[i].position(0);
-                map[i] = dbFiles[i].slice();
+        return new InternalDiskIndexIterator(this, from, to, ascending);
+    }
+    
+    /**
+     * Returns the names of all files in the given directory that belong to the
+     * index with the given file prefix.
+     * 
+     * @param dir
+     *            the directory
+     * @param filePrefix
+     *            the file prefix of the index
+     * @return the file names
+     */
+    public static String[] getIndexFiles(File dir, String filePrefix) {
+        
+        final Pattern p = Pattern.compile(Pattern.quote(filePrefix)
+            + "(blockindex|blockindex_partitions|blockfile_\\d+|bloomfilter|tombstones|format)\\.idx");
+        String[] files = dir.list(new FilenameFilter() {
+            public boolean accept(File dir, String filename) {
+                return p.matcher(filename).matches();
             }
-            
-            return new InternalDiskIndexIterator(this, blockIndex, from, to, ascending, map);
-        }
+        });
         
-        // return iterator for non-mmap'ed indices
-        else
-            return new InternalDiskIndexIterator(this, blockIndex, from, to, ascending, dbFileChannels);
+        return files == null ? new String[0] : files;
+    }
+    
+    /**
+     * Reads the format version of an index from its format file.
+     * 
+     * @param file
+     *            the format file
+     * @return the format version, or {@link #LEGACY_FORMAT_VERSION} if the
+     *         file does not exist
+     * @throws IOException
+     *             if an I/O error occurs or the file is corrupted
+     */
+    private static int readFormatVersion(String file) throws IOException {
+        
+        if (!new File(file).exists())
+            return LEGACY_FORMAT_VERSION;
+        
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt();
+        } catch (EOFException exc) {
+            throw new IOException("corrupted index format file: " + file);
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Checks whether the index contains tombstones, i.e. entries that hide
+     * the entries with the same key in older indices.
+     * 
+     * @return <code>true</code>, if the index contains tombstones
+     */
+    public boolean hasTombstones() {
+        return tombstones != null;
+    }
+    
+    /**
+     * Checks whether the entry with the given key is a tombstone. Tombstones
+     * have zero-length values, but zero-length values are not necessarily
+     * tombstones, so that this method should only be invoked for entries
+     * with zero-length values.
+     * 
+     * @param key
+     *            the key of the entry
+     * @return <code>true</code>, if the entry is a tombstone
+     */
+    public boolean isTombstone(byte[] key) {
+        return tombstones != null && tombstones.contains(key);
+    }
+    
+    /**
+     * Checks whether the entry with the given key is a tombstone.
+     * 
+     * @param key
+     *            the key of the entry
+     * @return <code>true</code>, if the entry is a tombstone
+     * @see #isTombstone(byte[])
+     */
+    public boolean isTombstone(ByteRange key) {
+        return tombstones != null && tombstones.contains(key);
     }
     
     public ByteRangeComparator getComparator() {
@@ -242,7 +631,50 @@ public class DiskIndex {
         return indexSize;
     }
     
+    /**
+     * Destroys the index. Resources are freed as soon as all buffer views
+     * returned by {@link #lookupBuffer(byte[])} have been released.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs while freeing the index
+     */
     public void destroy() throws IOException {
+        if (destroyed.compareAndSet(false, true))
+            release();
+    }
+    
+    /**
+     * Acquires an additional reference to the index, which prevents the index
+     * from being freed when it is destroyed.
+     * 
+     * @return <code>true</code>, if a reference was acquired,
+     *         <code>false</code>, if the index has already been freed
+     */
+    public boolean retain() {
+        
+        for (;;) {
+            int count = refCount.get();
+            if (count == 0)
+                return false;
+            if (refCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+    
+    /**
+     * Releases a reference to the index. The index is freed when the last
+     * reference has been released.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs while freeing the index
+     */
+    public void release() throws IOException {
+        if (refCount.decrementAndGet() == 0)
+            free();
+    }
+    
+    private void free() throws IOException {
+        BlockCache.getInstance().invalidate(cacheId);
         blockIndex.free();
         for (FileChannel c : dbFileChannels) {
             c.close();
@@ -251,14 +683,72 @@ public class DiskIndex {
     
     public void finalize() throws Throwable {
         try {
-            destroy();
+            // if the index is unreachable, no views refer to it anymore
+            if (refCount.getAndSet(0) > 0)
+                free();
         } catch (IOException exc) {
             Logging.logError(Logging.LEVEL_ERROR, this, exc);
         }
         super.finalize();
     }
     
-    protected BlockReader getBlock(int startBlockOffset, int endBlockOffset, ByteBuffer map) {
+    /**
+     * Returns a reader for a block.
+     * 
+     * @param indexPosition
+     *            the position of the block in the block index
+     * @return the block reader
+     * @throws IOException
+     *             if the block cannot be read
+     */
+    protected BlockReader getBlock(int indexPosition) throws IOException {
+        return getBlock(indexPosition, false);
+    }
+    
+    /**
+     * Returns a reader for a block.
+     * 
+     * @param indexPosition
+     *            the position of the block in the block index
+     * @param reuse
+     *            indicates whether a reader that is reused by the calling
+     *            thread may be returned, which avoids allocations with each
+     *            lookup; such a reader must not be used after the next
+     *            invocation
+     * @return the block reader
+     * @throws IOException
+     *             if the block cannot be read
+     */
+    private BlockReader getBlock(int indexPosition, boolean reuse) throws IOException {
+        
+        long startBlockOffset = getBlockOffset(indexPosition);
+        long endBlockOffset = getBlockEnd(indexPosition);
+        int fileId = getBlockFileId(indexPosition);
+        
+        if (!mmaped)
+            return getBlock(indexPosition, fileId, startBlockOffset, endBlockOffset, dbFileChannels[fileId]);
+        
+        // find the segment containing the block; as readers of compressed
+        // blocks and byte ranges that are written to new indices modify the
+        // position of the underlying buffer, a view buffer has to be created
+        // unless the block is only read by a lookup, which exclusively relies
+        // on absolute reads
+        long[] offsets = segmentOffsets[fileId];
+        int segment = Arrays.binarySearch(offsets, startBlockOffset);
+        if (segment < 0)
+            segment = -segment - 2;
+        
+        ByteBuffer map = dbFiles[fileId][segment];
+        if (!reuse || compressed)
+            map = map.duplicate();
+        
+        long segmentStart = offsets[segment];
+        return getBlock(indexPosition, (int) (startBlockOffset - segmentStart), endBlockOffset == -1 ? -1
+            : (int) (endBlockOffset - segmentStart), map, reuse);
+    }
+    
+    protected BlockReader getBlock(int indexPosition, int startBlockOffset, int endBlockOffset,
+        ByteBuffer map, boolean reuse) throws IOException {
         
         if (startBlockOffset > map.limit())
             return null;
@@ -266,48 +756,226 @@ public class DiskIndex {
         if (endBlockOffset == -1)
             endBlockOffset = map.limit();
         
-        BlockReader targetBlock;
+        // verify the block when it is accessed for the first time; concurrent
+        // accesses may verify it more than once, which is harmless
+        if (verified != null && !verified[indexPosition]) {
+            verify(indexPosition, map, startBlockOffset, endBlockOffset);
+            verified[indexPosition] = true;
+        }
         
-        if (compressed) {
-            targetBlock = new CompressedBlockReader(map, startBlockOffset, endBlockOffset, comp);
-        } else {
-            targetBlock = new DefaultBlockReader(map, startBlockOffset, endBlockOffset, comp);
+        // compressed blocks are decompressed to the heap, and cached if
+        // caching is enabled
+        byte codecId = getBlockCodecId(indexPosition);
+        if (codecId != BlockCodec.NONE) {
+            
+            // cached blocks are keyed by their offsets in the block file
+            int fileId = getBlockFileId(indexPosition);
+            long fileOffset = getBlockOffset(indexPosition);
+            BlockCache cache = BlockCache.getInstance();
+            ByteBuffer block = cache.get(cacheId, fileId, fileOffset);
+            if (block == null) {
+                block = decode(indexPosition, codecId, map, startBlockOffset, endBlockOffset);
+                if (cache.getCapacity() > 0) {
+                    cache.put(cacheId, fileId, fileOffset, block);
+                    block = block.duplicate();
+                }
+            }
+            
+            return createBlockReader(block, 0, block.limit(), reuse);
         }
         
-        return targetBlock;
+        return createBlockReader(map, startBlockOffset, endBlockOffset, reuse);
     }
     
-    protected BlockReader getBlock(int startBlockOffset, int endBlockOffset, FileChannel channel)
-        throws IOException {
+    protected BlockReader getBlock(int indexPosition, int fileId, long startBlockOffset, long endBlockOffset,
+        FileChannel channel) throws IOException {
         
         if (startBlockOffset > channel.size())
             return null;
         
         if (endBlockOffset == -1)
-            endBlockOffset = (int) channel.size();
+            endBlockOffset = channel.size();
+        
+        // check if the block is cached; if not, read it and add it to the
+        // cache, if caching is enabled; blocks are verified and decompressed
+        // once when being loaded into the cache, and each time they are read
+        // if caching is disabled
+        BlockCache cache = BlockCache.getInstance();
+        ByteBuffer block = cache.get(cacheId, fileId, startBlockOffset);
+        if (block == null && (cache.getCapacity() > 0 || checksummed)) {
+            
+            block = ByteBuffer.allocate((int) (endBlockOffset - startBlockOffset));
+            while (block.hasRemaining())
+                if (channel.read(block, startBlockOffset + block.position()) == -1)
+                    throw new IOException("unexpected end of block file");
+            
+            block.position(0);
+            if (checksummed)
+                verify(indexPosition, block, 0, block.limit());
+            
+            byte codecId = getBlockCodecId(indexPosition);
+            if (codecId != BlockCodec.NONE)
+                block = decode(indexPosition, codecId, block, 0, block.limit());
+            
+            if (cache.getCapacity() > 0) {
+                cache.put(cacheId, fileId, startBlockOffset, block);
+                block = block.duplicate();
+            }
+        }
+        
+        // create a reader for the cached block
+        if (block != null)
+            return createBlockReader(block, 0, block.limit(), false);
         
+        // blocks are only streamed if the index has no checksums, i.e. if it
+        // was written before keys were front-coded and offsets had 64 bits
         BlockReader targetBlock;
         
         if (compressed) {
-            targetBlock = new CompressedBlockReader(channel, startBlockOffset, endBlockOffset, comp);
+            targetBlock = new CompressedBlockReader(channel, (int) startBlockOffset, (int) endBlockOffset, comp);
         } else {
-            targetBlock = new DefaultBlockReader(channel, startBlockOffset, endBlockOffset, comp);
+            targetBlock = new DefaultBlockReader(channel, (int) startBlockOffset, (int) endBlockOffset, comp);
         }
         
         return targetBlock;
     }
     
+    /**
+     * Creates a reader for a buffered block. Compressed blocks may either have
+     * front-coded keys or, if written by an earlier version, a single common
+     * prefix. Readers of uncompressed blocks are reused by the calling thread
+     * if <code>reuse</code> is set.
+     */
+    private BlockReader createBlockReader(ByteBuffer buf, int startBlockOffset, int endBlockOffset,
+        boolean reuse) {
+        
+        if (!compressed)
+            return reuse ? DefaultBlockReader.getLookupReader(buf, startBlockOffset, endBlockOffset, comp)
+                : new DefaultBlockReader(buf, startBlockOffset, endBlockOffset, comp);
+        else if (FrontCodedBlockReader.isFrontCoded(buf, startBlockOffset))
+            return new FrontCodedBlockReader(buf, startBlockOffset, endBlockOffset, comp);
+        else
+            return new CompressedBlockReader(buf, startBlockOffset, endBlockOffset, comp);
+    }
+    
+    /**
+     * Verifies the checksum of a block.
+     * 
+     * @param indexPosition
+     *            the position of the block in the block index
+     * @param buf
+     *            the buffer containing the block
+     * @param start
+     *            the offset of the block in the buffer
+     * @param end
+     *            the offset after the end of the block in the buffer
+     * @throws IndexCorruptedException
+     *             if the block does not match its checksum
+     * @throws IOException
+     *             if the block index cannot be read
+     */
+    private void verify(int indexPosition, ByteBuffer buf, int start, int end) throws IOException {
+        
+        int expected = blockIndex.getInt(indexPosition, checksumOffset);
+        
+        CRC32C checksum = new CRC32C();
+        checksum.update(buf, start, end);
+        
+        if ((int) checksum.getValue() != expected)
+            throw new IndexCorruptedException("checksum mismatch in block " + indexPosition + " of index "
+                + name);
+    }
+    
+    /**
+     * Decompresses a block.
+     * 
+     * @param indexPosition
+     *            the position of the block in the block index
+     * @param codecId
+     *            the ID of the codec that compressed the block
+     * @param buf
+     *            the buffer containing the compressed block
+     * @param start
+     *            the offset of the compressed block in the buffer
+     * @param end
+     *            the offset after the end of the compressed block in the buffer
+     * @return a buffer containing the decompressed block
+     * @throws IndexCorruptedException
+     *             if the block cannot be decompressed
+     */
+    private ByteBuffer decode(int indexPosition, byte codecId, ByteBuffer buf, int start, int end) {
+        
+        BlockCodec codec = BlockCodec.getCodec(codecId);
+        if (codec == null)
+            throw new IndexCorruptedException("unknown codec " + codecId + " in block " + indexPosition
+                + " of index " + name);
+        
+        // compressed blocks start with the size of the uncompressed block
+        int size = buf.getInt(start);
+        start += Integer.SIZE / 8;
+        
+        byte[] src;
+        int offset;
+        if (buf.hasArray()) {
+            src = buf.array();
+            offset = buf.arrayOffset() + start;
+        } else {
+            src = new byte[end - start];
+            offset = 0;
+            ByteBuffer tmp = buf.duplicate();
+            tmp.position(start);
+            tmp.get(src);
+        }
+        
+        try {
+            byte[] block = new byte[size];
+            codec.decompress(src, offset, end - start, block);
+            return ByteBuffer.wrap(block);
+        } catch (IllegalArgumentException exc) {
+            throw new IndexCorruptedException("cannot decompress block " + indexPosition + " of index " + name
+                + ": " + exc.getMessage());
+        } catch (NegativeArraySizeException exc) {
+            throw new IndexCorruptedException("invalid size of block " + indexPosition + " of index " + name);
+        }
+    }
+    
+    /**
+     * Returns the ID of the codec that compressed a block.
+     * 
+     * @param indexPosition
+     *            the position of the block in the block index
+     * @return the codec ID
+     * @throws IOException
+     *             if the block index cannot be read
+     */
+    private byte getBlockCodecId(int indexPosition) throws IOException {
+        
+        if (!encoded)
+            return BlockCodec.NONE;
+        
+        return blockIndex.getByte(indexPosition, codecOffset);
+    }
+    
+    /**
+     * Returns the number of blocks of the index.
+     * 
+     * @return the number of blocks
+     */
+    protected int getNumBlocks() {
+        return blockIndex.getNumEntries();
+    }
+    
     /**
      * Returns the index of the block potentially contains the given key.
      * 
      * @param key
      *            the key for which to find the block index
-     * @param index
-     *            the block index
      * @return the block index
+     * @throws IOException
+     *             if the block index cannot be read
      */
-    protected int getBlockIndexPosition(byte[] key, BlockReader index) {
-        return SearchUtil.getInclBottomOffset(index.getKeys(), key, comp);
+    protected int getBlockIndexPosition(byte[] key) throws IOException {
+        return blockIndex.getPosition(key);
     }
     
     /**
@@ -316,13 +984,32 @@ public class DiskIndex {
      * 
      * @param indexPosition
      *            the index position
-     * @param index
-     *            the block index
      * @return the offset
+     * @throws IOException
+     *             if the block index cannot be read
+     */
+    protected long getBlockOffset(int indexPosition) throws IOException {
+        return offsetSize == Long.SIZE / 8 ? blockIndex.getLong(indexPosition, 0) : blockIndex.getInt(
+            indexPosition, 0);
+    }
+    
+    /**
+     * Returns the offset at which the block with the given index position
+     * ends.
+     * 
+     * @param indexPosition
+     *            the index position
+     * @return the offset, or -1 if the block is the last one in its block file
+     * @throws IOException
+     *             if the block index cannot be read
      */
-    protected static int getBlockOffset(int indexPosition, BlockReader index) {
-        ByteRange range = index.getValues().getEntry(indexPosition);
-        return range.getBuf().getInt(range.getStartOffset());
+    protected long getBlockEnd(int indexPosition) throws IOException {
+        
+        if (indexPosition == blockIndex.getNumEntries() - 1
+            || getBlockFileId(indexPosition + 1) != getBlockFileId(indexPosition))
+            return -1;
+        
+        return getBlockOffset(indexPosition + 1);
     }
     
     /**
@@ -330,29 +1017,16 @@ public class DiskIndex {
      * 
      * @param indexPosition
      *            the position in the block index
-     * @param index
-     *            the block index
      * @return the block file id
+     * @throws IOException
+     *             if the block index cannot be read
      */
-    protected static short getBlockFileId(int indexPosition, BlockReader index) {
-        ByteRange range = index.getValues().getEntry(indexPosition);
-        // block file index is after the int indicating the offset in the index
-        // file
-        return range.getBuf().getShort(range.getStartOffset() + (Integer.SIZE / 8));
-    }
-    
-    protected static ByteRange getBlockEntry(int indexPosition, BlockReader index) {
-        ByteRange range = index.getValues().getEntry(indexPosition);
-        // block file index is after the int indicating the offset in the index
-        // file
-        return range;
-    }
-    
-    protected static int getBlockIndexOffset(ByteBuffer buf, int startOffset) {
-        return buf.getInt(startOffset);
+    protected short getBlockFileId(int indexPosition) throws IOException {
+        // block file index is after the offset in the index file
+        return blockIndex.getShort(indexPosition, offsetSize);
     }
     
-    protected static short getBlockIndexFileId(ByteBuffer buf, int startOffset) {
-        return buf.getShort(startOffset + (Integer.SIZE / 8));
+    protected ByteRange getBlockEntry(int indexPosition) throws IOException {
+        return blockIndex.getEntry(indexPosition);
     }
 }
@@ -8,8 +8,6 @@
 
 package org.xtreemfs.babudb.index.reader;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 
@@ -20,45 +18,21 @@ import org.xtreemfs.foundation.buffer.BufferPool;
 public class DiskIndexIterator extends DiskIndexIteratorBase implements ResultSet<byte[], byte[]> {
     
     /**
-     * Disk index iterator for mmap'ed index files.
+     * Creates a new disk index iterator. Blocks are either read from the
+     * memory-mapped block files or streamed, depending on how the index was
+     * opened.
      * 
      * @param index
      *            reference to the index
-     * @param blockIndexReader
-     *            reference to the block index reader
      * @param from
      *            smallest key (inclusively)
      * @param to
      *            largest key (exclusively)
      * @param ascending
      *            defines the iteration order
-     * @param maps
-     *            an array of mmap'ed buffers
      */
-    public DiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps) {
-        super(index, blockIndexReader, from, to, ascending, maps, null);
-    }
-    
-    /**
-     * Disk index iterator for streamed index files.
-     * 
-     * @param index
-     *            reference to the index
-     * @param blockIndexReader
-     *            reference to the block index reader
-     * @param from
-     *            smallest key (inclusively)
-     * @param to
-     *            largest key (exclusively)
-     * @param ascending
-     *            defines the iteration order
-     * @param dbFileChannels
-     *            an array of file channels
-     */
-    public DiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, FileChannel[] dbFileChannels) {
-        super(index, blockIndexReader, from, to, ascending, null, dbFileChannels);
+    public DiskIndexIterator(DiskIndex index, byte[] from, byte[] to, boolean ascending) {
+        super(index, from, to, ascending);
     }
     
     @Override
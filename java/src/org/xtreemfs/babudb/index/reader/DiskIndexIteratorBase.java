@@ -9,9 +9,7 @@
 package org.xtreemfs.babudb.index.reader;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
-import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.Map.Entry;
 
@@ -26,12 +24,6 @@ public abstract class DiskIndexIteratorBase {
     
     private final byte[]                            to;
     
-    private final BlockReader                       blockIndexReader;
-    
-    private final ByteBuffer[]                      maps;
-    
-    private final FileChannel[]                     dbFileChannels;
-    
     private final int                               blockIndexStart;
     
     private final int                               blockIndexEnd;
@@ -44,32 +36,36 @@ public abstract class DiskIndexIteratorBase {
     
     protected Iterator<Entry<ByteRange, ByteRange>> currentBlockIterator;
     
-    protected DiskIndexIteratorBase(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps, FileChannel[] dbFileChannels) {
+    protected DiskIndexIteratorBase(DiskIndex index, byte[] from, byte[] to, boolean ascending) {
         
-        this.maps = maps;
-        this.dbFileChannels = dbFileChannels;
         this.index = index;
         this.from = from;
         this.to = to;
         this.ascending = ascending;
         
-        this.blockIndexReader = blockIndexReader.clone();
-        
-        // determine the first potential block containing entries with keys in
-        // the range
-        int tmp = from == null ? 0 : index.getBlockIndexPosition(from, blockIndexReader);
-        if (tmp < 0)
-            tmp = 0;
-        this.blockIndexStart = tmp;
+        int start = 0;
+        int end = index.getNumBlocks() - 1;
+        try {
+            
+            // determine the first potential block containing entries with
+            // keys in the range
+            int tmp = from == null ? 0 : index.getBlockIndexPosition(from);
+            if (tmp > start)
+                start = tmp;
+            
+            // determine the last potential block containing entries with keys
+            // in the range
+            tmp = to == null ? end : index.getBlockIndexPosition(to);
+            if (tmp < end)
+                end = tmp;
+            
+        } catch (IOException exc) {
+            Logging.logError(Logging.LEVEL_ERROR, this, exc);
+            end = -1;
+        }
         
-        // determine the last potential block containing entries with keys in
-        // the range
-        tmp = to == null ? blockIndexReader.getNumEntries() - 1 : index.getBlockIndexPosition(to,
-            blockIndexReader);
-        if (tmp > blockIndexReader.getNumEntries() - 1)
-            tmp = blockIndexReader.getNumEntries() - 1;
-        this.blockIndexEnd = tmp;
+        this.blockIndexStart = start;
+        this.blockIndexEnd = end;
         
         currentBlockIndex = ascending ? blockIndexStart : blockIndexEnd;
         getNextBlockData();
@@ -129,33 +125,8 @@ public abstract class DiskIndexIteratorBase {
             return;
         }
         
-        int startOffset = DiskIndex.getBlockOffset(currentBlockIndex, blockIndexReader);
-        // when last block or a single block the offset should be the
-        // size of the block
-        
-        int fileId = DiskIndex.getBlockFileId(currentBlockIndex, blockIndexReader);
-        int endOffset;
-        if (currentBlockIndex == blockIndexReader.getNumEntries() - 1)
-            // the last block in the block index
-            endOffset = -1;
-        else {
-            ByteRange indexPos = DiskIndex.getBlockEntry(currentBlockIndex + 1, blockIndexReader);
-            ByteBuffer indexPosBuf = indexPos.getBuf();
-            endOffset = DiskIndex.getBlockIndexOffset(indexPosBuf, indexPos.getStartOffset());
-            
-            // is this the last block of the current block file?
-            // then the endBlockOffset should be set to the end of the
-            // file
-            if (DiskIndex.getBlockIndexFileId(indexPosBuf, indexPos.getStartOffset()) > fileId)
-                endOffset = -1;
-            
-            // endBlockOffset = getBlockOffset(indexPosition + 1,
-            // blockIndex);
-        }
-        
         try {
-            currentBlock = maps != null ? index.getBlock(startOffset, endOffset, maps[fileId]) : index
-                    .getBlock(startOffset, endOffset, dbFileChannels[fileId]);
+            currentBlock = index.getBlock(currentBlockIndex);
         } catch (ClosedByInterruptException exc) {
             Logging.logError(Logging.LEVEL_DEBUG, this, exc);
         } catch (IOException exc) {
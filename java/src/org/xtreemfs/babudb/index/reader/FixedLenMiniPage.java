@@ -18,9 +18,9 @@ import org.xtreemfs.foundation.util.OutputUtils;
 
 public class FixedLenMiniPage extends MiniPage {
     
-    private final int entrySize;
+    private int entrySize;
     
-    private final int limit;
+    private int limit;
     
     public FixedLenMiniPage(int entrySize, int numEntries, ByteBuffer buf, int offset, int limit,
         ByteRangeComparator comp) {
@@ -31,12 +31,43 @@ public class FixedLenMiniPage extends MiniPage {
         this.limit = limit;
     }
     
+    /**
+     * Re-initializes the page for reuse.
+     */
+    void init(int entrySize, int numEntries, ByteBuffer buf, int offset, int limit,
+        ByteRangeComparator comp) {
+        init(numEntries, buf, offset, comp);
+        this.entrySize = entrySize;
+        this.limit = limit;
+    }
+    
     public ByteRange getEntry(int n) {
         assert (offset < buf.limit()) : "offset == " + offset + ", buf.limit == " + buf.limit()
             + ", entrySize == " + entrySize + ", n == " + n;
         return new ByteRange(buf, offset + n * entrySize, offset + (n + 1) * entrySize - 1);
     }
     
+    public int compare(int n, byte[] entry) {
+        return comp.compare(buf, offset + n * entrySize, offset + (n + 1) * entrySize - 1, entry);
+    }
+    
+    public byte[] copyEntry(int n) {
+        byte[] entry = new byte[entrySize];
+        ByteRange.copy(buf, offset + n * entrySize, entrySize, entry, 0);
+        return entry;
+    }
+    
+    /**
+     * Returns the offset of an entry in the underlying buffer.
+     * 
+     * @param n
+     *            the index position
+     * @return the offset
+     */
+    public int getEntryOffset(int n) {
+        return offset + n * entrySize;
+    }
+    
     public String toString() {
         
         buf.position(offset);
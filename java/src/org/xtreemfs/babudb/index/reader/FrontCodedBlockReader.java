@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.ByteRange;
+
+/**
+ * Reader for blocks with front-coded keys, as written by the
+ * <code>FrontCodedBlockWriter</code>. <br/>
+ *
+ * The header of such a block consists of the format magic, the number of
+ * entries, the restart interval, the offsets of the restart list and the value
+ * page, and the length of values (-1 if values have variable lengths). As the
+ * magic is negative and compressed blocks of the former format start with a
+ * positive offset, both formats may be distinguished by means of
+ * {@link #isFrontCoded(ByteBuffer, int)}.
+ */
+public class FrontCodedBlockReader extends BlockReader {
+    
+    public static final int MAGIC       = 0xFC0DED01;
+    
+    public static final int KEYS_OFFSET = 6 * Integer.SIZE / 8;
+    
+    private final int       restartInterval;
+    
+    /**
+     * Creates a reader for a buffered block with front-coded keys.
+     *
+     * @param buf
+     *            the buffer
+     * @param position
+     *            the position of the block in the buffer
+     * @param limit
+     *            the limit of the block in the buffer
+     * @param comp
+     *            the byte range comparator
+     */
+    public FrontCodedBlockReader(ByteBuffer buf, int position, int limit, ByteRangeComparator comp) {
+        
+        super(true);
+        
+        this.buffer = buf;
+        this.position = position;
+        this.limit = limit;
+        this.comp = comp;
+        
+        numEntries = buf.getInt(position + 4);
+        restartInterval = buf.getInt(position + 8);
+        int restartsOffset = position + buf.getInt(position + 12);
+        int valsOffset = position + buf.getInt(position + 16);
+        int valEntrySize = buf.getInt(position + 20);
+        
+        keys = new FrontCodedMiniPage(numEntries, restartInterval, buf, position + KEYS_OFFSET,
+            restartsOffset, comp);
+        values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, valsOffset, limit, comp)
+            : new FixedLenMiniPage(valEntrySize, numEntries, buf, valsOffset, limit, comp);
+    }
+    
+    /**
+     * Checks whether a block has front-coded keys.
+     *
+     * @param buf
+     *            the buffer
+     * @param position
+     *            the position of the block in the buffer
+     * @return <code>true</code>, if the block has front-coded keys
+     */
+    public static boolean isFrontCoded(ByteBuffer buf, int position) {
+        return buf.limit() - position >= KEYS_OFFSET && buf.getInt(position) == MAGIC;
+    }
+    
+    public ByteRange lookup(byte[] key) {
+        
+        int index = keys.getPosition(key);
+        if (index == -1)
+            return null;
+        
+        return values.getEntry(index);
+    }
+    
+    public ResultSet<ByteRange, ByteRange> rangeLookup(byte[] from, byte[] to, final boolean ascending) {
+        
+        final int startIndex;
+        final int endIndex;
+        
+        {
+            startIndex = ascending ? keys.getInclTopPosition(from) : keys.getExclTopPosition(from);
+            assert (startIndex >= -1) : "invalid block start offset: " + startIndex;
+            
+            endIndex = ascending ? keys.getExclBottomPosition(to) : keys.getInclBottomPosition(to);
+            assert (endIndex >= -1) : "invalid block end offset: " + endIndex;
+        }
+        
+        final FrontCodedMiniPage page = (FrontCodedMiniPage) keys;
+        
+        return new ResultSet<ByteRange, ByteRange>() {
+            
+            int      currentIndex = ascending ? startIndex : endIndex;
+            
+            // the keys of the current restart interval, which are decoded at
+            // once to avoid decoding each key from the restart point
+            byte[][] group;
+            
+            int      groupStart   = -1;
+            
+            @Override
+            public boolean hasNext() {
+                return ascending ? currentIndex <= endIndex : currentIndex >= startIndex;
+            }
+            
+            @Override
+            public Entry<ByteRange, ByteRange> next() {
+                
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                
+                if (groupStart == -1 || currentIndex < groupStart
+                    || currentIndex >= groupStart + group.length) {
+                    int restart = currentIndex / restartInterval;
+                    group = page.getRestartGroup(restart);
+                    groupStart = restart * restartInterval;
+                }
+                
+                final byte[] keyBytes = group[currentIndex - groupStart];
+                
+                Entry<ByteRange, ByteRange> entry = new Entry<ByteRange, ByteRange>() {
+                    
+                    final ByteRange key   = new ByteRange(ByteBuffer.wrap(keyBytes), 0, keyBytes.length);
+                    
+                    final ByteRange value = values.getEntry(currentIndex);
+                    
+                    @Override
+                    public ByteRange getValue() {
+                        return value;
+                    }
+                    
+                    @Override
+                    public ByteRange getKey() {
+                        return key;
+                    }
+                    
+                    @Override
+                    public ByteRange setValue(ByteRange value) {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+                
+                if (ascending)
+                    currentIndex++;
+                else
+                    currentIndex--;
+                
+                return entry;
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public void free() {
+            }
+        };
+    }
+    
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.nio.ByteBuffer;
+
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.ByteRange;
+
+/**
+ * A mini page containing front-coded keys. Each key is stored as the length of
+ * the prefix it shares with its predecessor, followed by the length and the
+ * bytes of the remaining suffix; both lengths are encoded as varints. Every
+ * <code>restartInterval</code>-th key is a restart point, which is stored
+ * completely and whose offset is recorded in the restart list at the end of
+ * the page. <br/>
+ *
+ * Keys are searched by means of a binary search across the restart points,
+ * followed by a linear scan across the keys of a single restart interval.
+ */
+public class FrontCodedMiniPage extends MiniPage {
+    
+    private final int restartInterval;
+    
+    private final int restartsOffset;
+    
+    private final int numRestarts;
+    
+    /**
+     * Creates a new front-coded mini page.
+     *
+     * @param numEntries
+     *            the number of keys
+     * @param restartInterval
+     *            the number of keys between two restart points
+     * @param buf
+     *            the buffer containing the page
+     * @param offset
+     *            the offset of the first key
+     * @param restartsOffset
+     *            the offset of the restart list
+     * @param comp
+     *            the byte range comparator
+     */
+    public FrontCodedMiniPage(int numEntries, int restartInterval, ByteBuffer buf, int offset,
+        int restartsOffset, ByteRangeComparator comp) {
+        
+        super(numEntries, buf, offset, comp);
+        
+        this.restartInterval = restartInterval;
+        this.restartsOffset = restartsOffset;
+        this.numRestarts = numEntries == 0 ? 0 : (numEntries - 1) / restartInterval + 1;
+    }
+    
+    public ByteRange getEntry(int n) {
+        
+        Cursor cursor = new Cursor(n / restartInterval);
+        while (cursor.getIndex() < n)
+            cursor.next();
+        
+        return wrap(cursor.next());
+    }
+    
+    /**
+     * Returns all keys between a restart point and the next one.
+     *
+     * @param restart
+     *            the number of the restart point
+     * @return the keys
+     */
+    public byte[][] getRestartGroup(int restart) {
+        
+        int start = restart * restartInterval;
+        byte[][] group = new byte[getRestartEnd(restart) - start][];
+        
+        Cursor cursor = new Cursor(restart);
+        for (int i = 0; i < group.length; i++)
+            group[i] = cursor.next().toBuffer();
+        
+        return group;
+    }
+    
+    public int getRestartInterval() {
+        return restartInterval;
+    }
+    
+    public int getNumRestarts() {
+        return numRestarts;
+    }
+    
+    /**
+     * Returns the key at a restart point. As restart keys are stored
+     * completely, the returned range refers to the underlying buffer.
+     *
+     * @param restart
+     *            the number of the restart point
+     * @return the key
+     */
+    public ByteRange getRestartKey(int restart) {
+        
+        int pos = getRestartKeyPosition(restart);
+        return new ByteRange(buf, pos, pos + getRestartKeyLength(restart));
+    }
+    
+    /**
+     * Compares the key at a restart point in place to the given entry.
+     * 
+     * @param restart
+     *            the number of the restart point
+     * @param entry
+     *            the entry to compare with
+     * @return a negative value, 0 or a positive value if the restart key is
+     *         smaller than, equal to or larger than the given entry
+     */
+    public int compareRestartKey(int restart, byte[] entry) {
+        
+        int pos = getRestartKeyPosition(restart);
+        return comp.compare(buf, pos, pos + getRestartKeyLength(restart), entry);
+    }
+    
+    /**
+     * Returns the index position after the last key that belongs to a restart
+     * point.
+     *
+     * @param restart
+     *            the number of the restart point
+     * @return the index position
+     */
+    public int getRestartEnd(int restart) {
+        return Math.min((restart + 1) * restartInterval, numEntries);
+    }
+    
+    /**
+     * Returns a cursor that sequentially decodes all keys starting at a
+     * restart point.
+     *
+     * @param restart
+     *            the number of the restart point
+     * @return the cursor
+     */
+    public Cursor getCursor(int restart) {
+        return new Cursor(restart);
+    }
+    
+    public int getPosition(byte[] entry) {
+        return SearchUtil.getOffset(this, entry, comp);
+    }
+    
+    public int getExclTopPosition(byte[] entry) {
+        
+        if (entry == null)
+            return 0;
+        
+        return SearchUtil.getTopOffset(this, entry, false, comp);
+    }
+    
+    public int getInclTopPosition(byte[] entry) {
+        
+        if (entry == null)
+            return 0;
+        
+        return SearchUtil.getTopOffset(this, entry, true, comp);
+    }
+    
+    public int getExclBottomPosition(byte[] entry) {
+        
+        if (entry == null)
+            return numEntries - 1;
+        
+        // the last key that is smaller precedes the first larger or equal one
+        return SearchUtil.getTopOffset(this, entry, true, comp) - 1;
+    }
+    
+    public int getInclBottomPosition(byte[] entry) {
+        
+        if (entry == null)
+            return numEntries - 1;
+        
+        // the last smaller or equal key precedes the first larger one
+        return SearchUtil.getTopOffset(this, entry, false, comp) - 1;
+    }
+    
+    private int getRestartPosition(int restart) {
+        return offset + buf.getInt(restartsOffset + restart * Integer.SIZE / 8);
+    }
+    
+    private int getRestartKeyPosition(int restart) {
+        
+        // skip the shared length, which is always 0, and the suffix length
+        int pos = getRestartPosition(restart) + 1;
+        while (buf.get(pos++) < 0)
+            ;
+        
+        return pos;
+    }
+    
+    private int getRestartKeyLength(int restart) {
+        
+        int pos = getRestartPosition(restart) + 1;
+        
+        int len = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get(pos++);
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        
+        return len;
+    }
+    
+    private static ByteRange wrap(ByteRange key) {
+        byte[] bytes = key.toBuffer();
+        return new ByteRange(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+    
+    /**
+     * Sequentially decodes the keys of the page. The range returned by
+     * {@link #next()} refers to an internal buffer that is overwritten with
+     * the next call.
+     */
+    public class Cursor {
+        
+        private byte[]     key;
+        
+        private ByteBuffer keyBuf;
+        
+        private int        pos;
+        
+        private int        index;
+        
+        private Cursor(int restart) {
+            
+            this.key = new byte[64];
+            this.keyBuf = ByteBuffer.wrap(key);
+            
+            this.index = restart * restartInterval;
+            if (index < numEntries)
+                this.pos = getRestartPosition(restart);
+        }
+        
+        /**
+         * Returns the index position of the key that will be returned by the
+         * next call to {@link #next()}.
+         *
+         * @return the index position
+         */
+        public int getIndex() {
+            return index;
+        }
+        
+        public ByteRange next() {
+            return new ByteRange(keyBuf, 0, decodeNext());
+        }
+        
+        /**
+         * Decodes the next key and compares it in place to the given entry.
+         * 
+         * @param entry
+         *            the entry to compare with
+         * @return a negative value, 0 or a positive value if the next key is
+         *         smaller than, equal to or larger than the given entry
+         */
+        public int compareNext(byte[] entry) {
+            return comp.compare(keyBuf, 0, decodeNext(), entry);
+        }
+        
+        private int decodeNext() {
+            
+            int shared = readVarInt();
+            int len = readVarInt();
+            
+            if (shared + len > key.length) {
+                byte[] newKey = new byte[Math.max(key.length * 2, shared + len)];
+                System.arraycopy(key, 0, newKey, 0, shared);
+                key = newKey;
+                keyBuf = ByteBuffer.wrap(key);
+            }
+            
+            for (int i = 0; i < len; i++)
+                key[shared + i] = buf.get(pos++);
+            
+            index++;
+            return shared + len;
+        }
+        
+        private int readVarInt() {
+            
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get(pos++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            
+            return value;
+        }
+        
+    }
+    
+}
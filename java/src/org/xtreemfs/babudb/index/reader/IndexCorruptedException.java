@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+/**
+ * Thrown if a block of an on-disk index does not match its checksum. As blocks
+ * may be loaded lazily by iterators, the exception is unchecked; it is
+ * converted to a <code>BabuDBException</code> by the database operations.
+ */
+public class IndexCorruptedException extends RuntimeException {
+    
+    private static final long serialVersionUID = -4470623406117702351L;
+    
+    public IndexCorruptedException(String message) {
+        super(message);
+    }
+    
+}
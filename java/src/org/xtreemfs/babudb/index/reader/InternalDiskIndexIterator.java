@@ -8,8 +8,6 @@
 
 package org.xtreemfs.babudb.index.reader;
 
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 
@@ -19,46 +17,36 @@ import org.xtreemfs.babudb.index.ByteRange;
 public class InternalDiskIndexIterator extends DiskIndexIteratorBase implements
     ResultSet<ByteRange, ByteRange> {
     
+    private final DiskIndex index;
+    
     /**
-     * Disk index iterator for mmap'ed index files.
+     * Creates a new disk index iterator. Blocks are either read from the
+     * memory-mapped block files or streamed, depending on how the index was
+     * opened.
      * 
      * @param index
      *            reference to the index
-     * @param blockIndexReader
-     *            reference to the block index reader
      * @param from
      *            smallest key (inclusively)
      * @param to
      *            largest key (exclusively)
      * @param ascending
      *            defines the iteration order
-     * @param maps
-     *            an array of mmap'ed buffers
      */
-    public InternalDiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps) {
-        super(index, blockIndexReader, from, to, ascending, maps, null);
+    public InternalDiskIndexIterator(DiskIndex index, byte[] from, byte[] to, boolean ascending) {
+        super(index, from, to, ascending);
+        this.index = index;
     }
     
     /**
-     * Disk index iterator for streamed index files.
+     * Checks whether an entry returned by the iterator is a tombstone.
      * 
-     * @param index
-     *            reference to the index
-     * @param blockIndexReader
-     *            reference to the block index reader
-     * @param from
-     *            smallest key (inclusively)
-     * @param to
-     *            largest key (exclusively)
-     * @param ascending
-     *            defines the iteration order
-     * @param dbFileChannels
-     *            an array of file channels
+     * @param entry
+     *            the entry
+     * @return <code>true</code>, if the entry is a tombstone
      */
-    public InternalDiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, FileChannel[] dbFileChannels) {
-        super(index, blockIndexReader, from, to, ascending, null, dbFileChannels);
+    public boolean isTombstone(Entry<ByteRange, ByteRange> entry) {
+        return entry.getValue().getSize() == 0 && index.isTombstone(entry.getKey());
     }
     
     @Override
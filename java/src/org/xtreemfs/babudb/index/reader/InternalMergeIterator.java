@@ -8,6 +8,7 @@
 
 package org.xtreemfs.babudb.index.reader;
 
+import java.util.AbstractMap;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Map.Entry;
@@ -18,45 +19,82 @@ import org.xtreemfs.babudb.index.ByteRange;
 import org.xtreemfs.foundation.buffer.BufferPool;
 
 /**
- * Merges an iterator for an in-memory overlay with an iterator for an on-disk
- * index. <br/>
+ * Merges an iterator for an in-memory overlay with iterators for one or more
+ * on-disk indices. <br/>
  * 
  * The iterator either returns a byte array or a <code>ByteRange</code> object,
  * depending on whether the current element is part of the overlay trees or the
  * on-disk index. The returned keys and values are direct references to the
- * internally used key-value pairs and should hence not be modified.
+ * internally used key-value pairs and should hence not be modified. <br/>
+ * 
+ * If a key occurs multiple times, the overlay has the highest priority,
+ * followed by the on-disk indices in the order in which they were passed.
+ * On-disk indices may contain tombstones, which hide the entries with the same
+ * key in all indices of lower priority.
  * 
  * @author stenjan
  * 
  */
 public class InternalMergeIterator implements ResultSet<Object, Object> {
     
-    private Iterator<Entry<byte[], byte[]>> overlayIterator;
+    private Iterator<Entry<byte[], byte[]>>   overlayIterator;
+    
+    private InternalDiskIndexIterator[]       diskIndexIterators;
     
-    private InternalDiskIndexIterator       diskIndexIterator;
+    private Entry<byte[], byte[]>             nextOverlayEntry;
     
-    private Entry<byte[], byte[]>           nextOverlayEntry;
+    private Entry<ByteRange, ByteRange>[]     nextDiskIndexEntries;
     
-    private Entry<ByteRange, ByteRange>     nextDiskIndexEntry;
+    private Entry<Object, Object>             nextEntry;
     
-    private Entry<Object, Object>           nextEntry;
+    private ByteRangeComparator               comp;
     
-    private ByteRangeComparator             comp;
+    private byte[]                            nullValue;
     
-    private byte[]                          nullValue;
+    private boolean                           dropTombstones;
     
-    private boolean                         ascending;
+    private boolean                           ascending;
     
     public InternalMergeIterator(Iterator<Entry<byte[], byte[]>> overlayIterator,
         InternalDiskIndexIterator diskIndexIterator, ByteRangeComparator comp, byte[] nullValue,
         boolean ascending) {
+        this(overlayIterator, diskIndexIterator == null ? new InternalDiskIndexIterator[0]
+            : new InternalDiskIndexIterator[] { diskIndexIterator }, comp, nullValue, nullValue != null,
+            ascending);
+    }
+    
+    /**
+     * Creates a new iterator that merges an overlay with multiple on-disk
+     * indices.
+     * 
+     * @param overlayIterator
+     *            the overlay iterator
+     * @param diskIndexIterators
+     *            the on-disk index iterators, in descending order of priority
+     * @param comp
+     *            the comparator
+     * @param nullValue
+     *            the tombstone value of the overlay
+     * @param dropTombstones
+     *            if <code>true</code>, tombstones will be omitted; otherwise,
+     *            tombstones from the overlay and the on-disk indices will be
+     *            returned with <code>nullValue</code> as their value
+     * @param ascending
+     *            the iteration order
+     */
+    @SuppressWarnings("unchecked")
+    public InternalMergeIterator(Iterator<Entry<byte[], byte[]>> overlayIterator,
+        InternalDiskIndexIterator[] diskIndexIterators, ByteRangeComparator comp, byte[] nullValue,
+        boolean dropTombstones, boolean ascending) {
         
         assert (overlayIterator != null);
         
         this.overlayIterator = overlayIterator;
-        this.diskIndexIterator = diskIndexIterator;
+        this.diskIndexIterators = diskIndexIterators;
+        this.nextDiskIndexEntries = new Entry[diskIndexIterators.length];
         this.comp = comp;
         this.nullValue = nullValue;
+        this.dropTombstones = dropTombstones;
         this.ascending = ascending;
         
         nextElement();
@@ -85,100 +123,122 @@ public class InternalMergeIterator implements ResultSet<Object, Object> {
     }
     
     public void free() {
-        if (diskIndexIterator != null)
-            diskIndexIterator.free();
+        for (InternalDiskIndexIterator it : diskIndexIterators)
+            it.free();
+        if (overlayIterator instanceof ResultSet)
+            ((ResultSet<byte[], byte[]>) overlayIterator).free();
     }
     
     private void nextElement() {
         
-        // find the smallest element in the 'rightmost' tree
         for (;;) {
             
             // find the next element in the overlay
             if (nextOverlayEntry == null && overlayIterator.hasNext())
                 nextOverlayEntry = overlayIterator.next();
             
-            // find the next element in the disk index
-            if (nextDiskIndexEntry == null && diskIndexIterator != null && diskIndexIterator.hasNext())
-                nextDiskIndexEntry = diskIndexIterator.next();
+            // find the next elements in the disk indices
+            for (int i = 0; i < diskIndexIterators.length; i++)
+                if (nextDiskIndexEntries[i] == null && diskIndexIterators[i].hasNext())
+                    nextDiskIndexEntries[i] = diskIndexIterators[i].next();
             
-            // if the next overlay key is equal to the next disk index key,
-            // shift disk index element
-            if (nextOverlayEntry != null && nextDiskIndexEntry != null
-                && comp.compare(nextDiskIndexEntry.getKey(), nextOverlayEntry.getKey()) == 0) {
+            // choose the element with the smallest or largest key, depending
+            // on the iteration order; in case of equal keys, the element with
+            // the highest priority is chosen
+            int next = nextOverlayEntry != null ? -1 : -2;
+            byte[] nextKey = nextOverlayEntry != null ? nextOverlayEntry.getKey() : null;
+            for (int i = 0; i < nextDiskIndexEntries.length; i++) {
                 
-                // free the buffer if necessary
-                if(nextDiskIndexEntry.getValue().getReusableBuf() != null)
-                    BufferPool.free(nextDiskIndexEntry.getValue().getReusableBuf());
+                if (nextDiskIndexEntries[i] == null)
+                    continue;
                 
-                if (diskIndexIterator.hasNext())
-                    nextDiskIndexEntry = diskIndexIterator.next();
-                else
-                    nextDiskIndexEntry = null;
+                if (next == -2) {
+                    next = i;
+                    continue;
+                }
+                
+                if (nextKey == null)
+                    nextKey = nextDiskIndexEntries[next].getKey().toBuffer();
+                
+                int result = comp.compare(nextDiskIndexEntries[i].getKey(), nextKey);
+                if (ascending ? result < 0 : result > 0) {
+                    next = i;
+                    nextKey = null;
+                }
             }
             
             // if no more element exists, set 'next' to 'empty' and return
-            if (nextDiskIndexEntry == null && nextOverlayEntry == null) {
+            if (next == -2) {
                 nextEntry = null;
                 return;
             }
             
-            // otherwise, choose the element with the smallest or largest key,
-            // depending on the iteration order
-            if (ascending) {
+            // skip all elements with the same key from disk indices with a
+            // lower priority
+            for (int i = next + 1; i < nextDiskIndexEntries.length; i++) {
                 
-                if (nextDiskIndexEntry == null) {
-                    nextEntry = InternalBufferUtil.cast(nextOverlayEntry);
-                    nextOverlayEntry = null;
-                }
-
-                else if (nextOverlayEntry == null) {
-                    nextEntry = InternalBufferUtil.cast(nextDiskIndexEntry);
-                    nextDiskIndexEntry = null;
-                }
-
-                else if (comp.compare(nextDiskIndexEntry.getKey(), nextOverlayEntry.getKey()) < 0) {
-                    nextEntry = InternalBufferUtil.cast(nextDiskIndexEntry);
-                    nextDiskIndexEntry = null;
-                }
-
-                else {
-                    nextEntry = InternalBufferUtil.cast(nextOverlayEntry);
-                    nextOverlayEntry = null;
+                if (nextDiskIndexEntries[i] == null)
+                    continue;
+                
+                if (nextKey == null)
+                    nextKey = nextDiskIndexEntries[next].getKey().toBuffer();
+                
+                if (comp.compare(nextDiskIndexEntries[i].getKey(), nextKey) == 0) {
+                    free(nextDiskIndexEntries[i]);
+                    nextDiskIndexEntries[i] = null;
                 }
+            }
+            
+            if (next == -1) {
+                
+                nextEntry = InternalBufferUtil.cast(nextOverlayEntry);
+                nextOverlayEntry = null;
+                
+                // if tombstones are retained or the next entry's value is not
+                // a tombstone value, return; otherwise, restart
+                if (!dropTombstones || nextEntry.getValue() != nullValue)
+                    return;
                 
             } else {
                 
-                if (nextDiskIndexEntry == null) {
-                    nextEntry = InternalBufferUtil.cast(nextOverlayEntry);
-                    nextOverlayEntry = null;
-                }
-
-                else if (nextOverlayEntry == null) {
-                    nextEntry = InternalBufferUtil.cast(nextDiskIndexEntry);
-                    nextDiskIndexEntry = null;
-                }
-
-                else if (comp.compare(nextDiskIndexEntry.getKey(), nextOverlayEntry.getKey()) > 0) {
-                    nextEntry = InternalBufferUtil.cast(nextDiskIndexEntry);
-                    nextDiskIndexEntry = null;
+                Entry<ByteRange, ByteRange> entry = nextDiskIndexEntries[next];
+                nextDiskIndexEntries[next] = null;
+                
+                if (nullValue == null || !diskIndexIterators[next].isTombstone(entry)) {
+                    nextEntry = InternalBufferUtil.cast(entry);
+                    return;
                 }
-
-                else {
-                    InternalBufferUtil.cast(nextOverlayEntry);
-                    nextOverlayEntry = null;
+                
+                if (!dropTombstones) {
+                    nextEntry = tombstone(entry);
+                    return;
                 }
                 
+                free(entry);
             }
-            
-            assert (nextEntry != null);
-            
-            // if no tombstone value was defined or the next entry's value is
-            // not a tombstone value, return; otherwise, restart
-            if (nullValue == null || nextEntry.getValue() != nullValue)
-                return;
         }
         
     }
     
+    /**
+     * Replaces the value of an on-disk tombstone with the tombstone value of
+     * the overlay. The buffer of the value is attached to the key, so that it
+     * is freed with the key.
+     */
+    private Entry<Object, Object> tombstone(Entry<ByteRange, ByteRange> entry) {
+        
+        ByteRange key = entry.getKey();
+        if (entry.getValue().getReusableBuf() != null)
+            key.setReusableBuf(entry.getValue().getReusableBuf());
+        
+        return new AbstractMap.SimpleImmutableEntry<Object, Object>(key, nullValue);
+    }
+    
+    private static void free(Entry<ByteRange, ByteRange> entry) {
+        
+        // free the buffer if necessary
+        if (entry.getValue().getReusableBuf() != null)
+            BufferPool.free(entry.getValue().getReusableBuf());
+    }
+    
 }
@@ -19,11 +19,28 @@ public abstract class MiniPage {
     
     protected ByteBuffer                buf;
     
-    protected final int                 offset;
+    protected int                       offset;
     
-    protected final ByteRangeComparator comp;
+    protected ByteRangeComparator       comp;
     
     public MiniPage(int numEntries, ByteBuffer buf, int offset, ByteRangeComparator comp) {
+        init(numEntries, buf, offset, comp);
+    }
+    
+    /**
+     * (Re-)initializes the page. Pages are re-initialized when block readers
+     * are reused, so as to avoid allocations with each lookup.
+     * 
+     * @param numEntries
+     *            the number of entries
+     * @param buf
+     *            the buffer containing the page
+     * @param offset
+     *            the offset of the page in the buffer
+     * @param comp
+     *            the byte range comparator
+     */
+    protected void init(int numEntries, ByteBuffer buf, int offset, ByteRangeComparator comp) {
         
         // ensure that offs > limit
         assert (offset <= buf.limit()) : "invalid mini page offset: offset == " + offset
@@ -57,6 +74,36 @@ public abstract class MiniPage {
      */
     public abstract ByteRange getEntry(int n);
     
+    /**
+     * Compares the entry at a given index position to the given entry. The
+     * default implementation compares a range returned by
+     * {@link #getEntry(int)}; subclasses compare the entry in place, so that
+     * searching a page does not cause any allocations.
+     * 
+     * @param n
+     *            the index position
+     * @param entry
+     *            the entry to compare with
+     * @return a negative value, 0 or a positive value if the entry at the
+     *         index position is smaller than, equal to or larger than the
+     *         given entry
+     */
+    public int compare(int n, byte[] entry) {
+        return comp.compare(getEntry(n), entry);
+    }
+    
+    /**
+     * Returns a copy of the entry at a given index position. Subclasses copy
+     * the entry directly from the underlying buffer.
+     * 
+     * @param n
+     *            the index position
+     * @return a copy of the entry
+     */
+    public byte[] copyEntry(int n) {
+        return getEntry(n).toBuffer();
+    }
+    
     /**
      * Returns the position of an entry in the page. If the entry is not
      * contained, -1 is returned.
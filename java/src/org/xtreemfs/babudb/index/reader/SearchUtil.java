@@ -9,7 +9,6 @@
 package org.xtreemfs.babudb.index.reader;
 
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
-import org.xtreemfs.babudb.index.ByteRange;
 
 public class SearchUtil {
     
@@ -27,9 +26,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -55,9 +52,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -83,9 +78,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -111,9 +104,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -139,9 +130,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -152,4 +141,81 @@ public class SearchUtil {
         
         return -1;
     }
+    
+    /**
+     * Returns the position of the first key in a front-coded page that is
+     * larger than (or equal to, if <code>inclusive</code> is set) the given
+     * entry. If no such key exists, the number of keys is returned.
+     */
+    public static int getTopOffset(FrontCodedMiniPage page, byte[] entry, boolean inclusive,
+        ByteRangeComparator comp) {
+        
+        int restart = getRestart(page, entry, inclusive, comp);
+        if (restart == -1)
+            return 0;
+        
+        // linear scan across the keys of the restart interval
+        int end = page.getRestartEnd(restart);
+        FrontCodedMiniPage.Cursor cursor = page.getCursor(restart);
+        while (cursor.getIndex() < end) {
+            
+            int index = cursor.getIndex();
+            int cmp = cursor.compareNext(entry);
+            if (cmp > 0 || (cmp == 0 && inclusive))
+                return index;
+        }
+        
+        return end;
+    }
+    
+    /**
+     * Returns the position of a key in a front-coded page, or -1 if the key is
+     * not contained.
+     */
+    public static int getOffset(FrontCodedMiniPage page, byte[] entry, ByteRangeComparator comp) {
+        
+        int restart = getRestart(page, entry, false, comp);
+        if (restart == -1)
+            return -1;
+        
+        // linear scan across the keys of the restart interval
+        int end = page.getRestartEnd(restart);
+        FrontCodedMiniPage.Cursor cursor = page.getCursor(restart);
+        while (cursor.getIndex() < end) {
+            
+            int index = cursor.getIndex();
+            int cmp = cursor.compareNext(entry);
+            if (cmp == 0)
+                return index;
+            if (cmp > 0)
+                break;
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Binary-searches the restart points of a front-coded page for the last
+     * one with a key that is smaller than (or equal to, if
+     * <code>inclusive</code> is not set) the given entry; -1 is returned if
+     * all restart keys are larger.
+     */
+    private static int getRestart(FrontCodedMiniPage page, byte[] entry, boolean inclusive,
+        ByteRangeComparator comp) {
+        
+        int low = 0;
+        int high = page.getNumRestarts() - 1;
+        
+        while (low <= high) {
+            
+            int mid = (low + high) >>> 1;
+            int cmp = page.compareRestartKey(mid, entry);
+            if (cmp < 0 || (cmp == 0 && !inclusive))
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        
+        return high;
+    }
 }
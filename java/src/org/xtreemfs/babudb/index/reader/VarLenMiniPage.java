@@ -18,7 +18,7 @@ import org.xtreemfs.foundation.util.OutputUtils;
 
 public class VarLenMiniPage extends MiniPage {
     
-    private final int offsetListStart;
+    private int offsetListStart;
     
     public VarLenMiniPage(int numEntries, ByteBuffer buf, int offset, int limit,
         ByteRangeComparator comp) {
@@ -29,20 +29,43 @@ public class VarLenMiniPage extends MiniPage {
         offsetListStart = limit - numEntries * Integer.SIZE / 8;
     }
     
+    /**
+     * Re-initializes the page for reuse.
+     */
+    void init(int numEntries, ByteBuffer buf, int offset, int limit, ByteRangeComparator comp) {
+        init(numEntries, buf, offset, comp);
+        offsetListStart = limit - numEntries * Integer.SIZE / 8;
+    }
+    
     public ByteRange getEntry(int n) {
         
-        int offsetStart = offset;
-        if (n > 0)
-            offsetStart += buf.getInt(offsetListStart + (n - 1) * Integer.SIZE / 8);
+        int offsetStart = getEntryStart(n);
+        int offsetEnd = getEntryEnd(n);
         
-        int offsetEnd = offset;
-        offsetEnd += buf.getInt(offsetListStart + n * Integer.SIZE / 8);
-        
-        assert (offsetEnd > offsetStart);
+        assert (offsetEnd >= offsetStart);
         
         return new ByteRange(buf, offsetStart, offsetEnd);
     }
     
+    public int compare(int n, byte[] entry) {
+        return comp.compare(buf, getEntryStart(n), getEntryEnd(n), entry);
+    }
+    
+    public byte[] copyEntry(int n) {
+        int offsetStart = getEntryStart(n);
+        byte[] entry = new byte[getEntryEnd(n) - offsetStart];
+        ByteRange.copy(buf, offsetStart, entry.length, entry, 0);
+        return entry;
+    }
+    
+    private int getEntryStart(int n) {
+        return n == 0 ? offset : offset + buf.getInt(offsetListStart + (n - 1) * Integer.SIZE / 8);
+    }
+    
+    private int getEntryEnd(int n) {
+        return offset + buf.getInt(offsetListStart + n * Integer.SIZE / 8);
+    }
+    
     public String toString() {
         
         buf.position(offset);
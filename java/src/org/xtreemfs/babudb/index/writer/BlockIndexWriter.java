@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.writer;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Writes a partitioned block index. The entries of the block index are
+ * grouped in partitions of a fixed number of entries, each of which is
+ * written to the partition file as soon as it is complete. When the block
+ * index is closed, a top-level index is written that maps the first key of
+ * each partition to the partition's offset, the position of its first entry in
+ * the block index and its number of entries. <br/>
+ *
+ * Partitions and the top-level index are written as regular blocks, so that
+ * the former have the same format as the single-level block index written by
+ * earlier versions.
+ */
+public class BlockIndexWriter {
+    
+    /**
+     * the default number of block index entries per partition
+     */
+    public static final int    DEFAULT_PARTITION_SIZE = 1024;
+    
+    /**
+     * the size of an entry in the top-level index: the offset of the partition
+     * (long), the position of its first entry in the block index (int) and its
+     * number of entries (int)
+     */
+    public static final int    PARTITION_ENTRY_SIZE   = (Long.SIZE / 8) + 2 * (Integer.SIZE / 8);
+    
+    private final String       path;
+    
+    private final int          partitionSize;
+    
+    private FileOutputStream   out;
+    
+    private BlockWriter        topIndex;
+    
+    private BlockWriter        partition;
+    
+    private byte[]             partitionKey;
+    
+    private int                partitionEntries;
+    
+    private long               partitionOffset;
+    
+    private int                numEntries;
+    
+    /**
+     * Creates a new writer for a partitioned block index.
+     *
+     * @param path
+     *            the path and file prefix of the block index files
+     * @param partitionSize
+     *            the maximum number of entries per partition
+     * @throws IOException
+     *             if the partition file cannot be created
+     */
+    public BlockIndexWriter(String path, int partitionSize) throws IOException {
+        
+        this.path = path;
+        this.partitionSize = partitionSize;
+        
+        out = new FileOutputStream(path + "blockindex_partitions.idx", false);
+        topIndex = new DefaultBlockWriter(true, false);
+    }
+    
+    /**
+     * Adds an entry to the block index. Entries have to be added in ascending
+     * order of their keys.
+     *
+     * @param blockKey
+     *            the first key of the block
+     * @param entry
+     *            the block index entry
+     * @throws IOException
+     *             if a completed partition cannot be written
+     */
+    public void add(byte[] blockKey, byte[] entry) throws IOException {
+        
+        if (partition == null) {
+            partition = new DefaultBlockWriter(true, false);
+            partitionKey = blockKey;
+        }
+        
+        partition.add(blockKey, entry);
+        partitionEntries++;
+        
+        if (partitionEntries == partitionSize)
+            writePartition();
+    }
+    
+    /**
+     * Writes the last partition and the top-level index.
+     *
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void close() throws IOException {
+        
+        if (partition != null)
+            writePartition();
+        out.close();
+        
+        out = new FileOutputStream(path + "blockindex.idx", false);
+        write(topIndex.serialize());
+        out.close();
+    }
+    
+    private void writePartition() throws IOException {
+        
+        ByteBuffer entry = ByteBuffer.wrap(new byte[PARTITION_ENTRY_SIZE]);
+        entry.putLong(partitionOffset);
+        entry.putInt(numEntries);
+        entry.putInt(partitionEntries);
+        topIndex.add(partitionKey, entry.array());
+        
+        partitionOffset += write(partition.serialize());
+        numEntries += partitionEntries;
+        
+        partition = null;
+        partitionKey = null;
+        partitionEntries = 0;
+    }
+    
+    private int write(SerializedBlock block) throws IOException {
+        
+        int bytesWritten = 0;
+        Iterator<Object> it = block.iterator();
+        while (it.hasNext()) {
+            byte[] bytes = (byte[]) it.next();
+            out.write(bytes);
+            bytesWritten += bytes.length;
+        }
+        
+        assert (bytesWritten == block.size());
+        WriteRateLimiter.getInstance().written(bytesWritten);
+        
+        return bytesWritten;
+    }
+    
+}
@@ -96,7 +96,7 @@ public class DefaultBlockWriter implements BlockWriter {
         return keys.get(0);
     }
     
-    private static SerializedPage serializeVarLenPage(List<Object> list) {
+    static SerializedPage serializeVarLenPage(List<Object> list) {
         
         List<Object> offsetList = new LinkedList<Object>();
         
@@ -114,7 +114,7 @@ public class DefaultBlockWriter implements BlockWriter {
         return new SerializedPage(size, list, offsetList);
     }
     
-    private static SerializedPage serializeFixedLenPage(List<Object> list) {
+    static SerializedPage serializeFixedLenPage(List<Object> list) {
         
         int size = 0;
         for (Object buf : list)
@@ -8,16 +8,24 @@
 
 package org.xtreemfs.babudb.index.writer;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.index.BloomFilter;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.TombstoneSet;
+import org.xtreemfs.babudb.index.codec.BlockCodec;
 import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
+import org.xtreemfs.babudb.util.CRC32C;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 
@@ -28,23 +36,71 @@ import org.xtreemfs.foundation.buffer.ReusableBuffer;
  * 
  * The index has two parts, a sorted list of blocks containing key/value-pairs
  * and a block index. The block index is a sparse index pointing to the sorted
- * blocks.
+ * blocks; it is partitioned, so that readers only need to keep its small
+ * top-level index in memory. Optionally, a Bloom filter over all keys is
+ * written in addition.
  * 
  * @author stender
  * @author hoegqvist
  */
 public class DiskIndexWriter {
     
+    /**
+     * the size of an entry in the block index: the offset of the block (long),
+     * the id of the block file (short), the CRC-32C checksum of the block as
+     * stored on disk (int) and the ID of the codec that compressed the block
+     * (byte); indices written by older versions have 32-bit offsets and lack
+     * the checksum and codec ID
+     */
+    public static final int BLOCK_INDEX_ENTRY_SIZE = 15;
+    
+    /**
+     * the version of the index format written by this class, which is stored
+     * in a separate format file; indices written by older versions do not have
+     * a format file
+     */
+    public static final int FORMAT_VERSION         = 1;
+    
+    private final CRC32C    checksum = new CRC32C();
+    
+    private BlockCodec      codec;
+    
     private String  path;
     
+    private String  filePrefix;
+    
     private int     maxBlockEntries;
     
+    private int     maxBlockSize;
+    
     private boolean compressed;
     
-    private int     maxFileSize;
+    private long    maxFileSize;
     
     private short   blockFileId;
     
+    private double  bloomFilterFPR;
+    
+    private long[]  keyHashes;
+    
+    private int     numKeys;
+    
+    /**
+     * the value that marks tombstones in the entries to write, or
+     * <code>null</code> if the entries do not contain any tombstones
+     */
+    private Object        tombstone;
+    
+    /**
+     * the keys of all tombstones written so far
+     */
+    private List<byte[]>  tombstoneKeys;
+    
+    /**
+     * an entry that has been read ahead but did not fit into the last block
+     */
+    private Entry<Object, Object> pendingEntry;
+    
     /**
      * Creates a new DiskIndexWriter
      * 
@@ -56,33 +112,154 @@ public class DiskIndexWriter {
      * @param compressed
      *            Indicates if the blocks should be compressed.
      * @param maxFileSize
-     *            The max size of a file storing blocks in bytes. On a 32-bit
-     *            system this should not be larger than 2GB.
+     *            The max size of a file storing blocks in bytes. Files larger
+     *            than 2GB are memory-mapped in multiple segments.
      * @throws IOException
      */
-    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, int maxFileSize)
+    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, long maxFileSize)
         throws IOException {
+        this(path, "", maxBlockEntries, compressed, maxFileSize);
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter that names all files of the index with a
+     * given prefix. With a non-empty prefix, the index may be written to an
+     * existing directory that contains other indices.
+     * 
+     * @param path
+     *            The path to the directory where the index will be written. The
+     *            directory is created if it does not yet exist.
+     * @param filePrefix
+     *            The prefix for all files of the index.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes. Files larger
+     *            than 2GB are memory-mapped in multiple segments.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, String filePrefix, int maxBlockEntries, boolean compressed,
+        long maxFileSize) throws IOException {
+        this(path, filePrefix, maxBlockEntries, compressed, maxFileSize, 0);
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter that names all files of the index with a
+     * given prefix and writes a Bloom filter over all keys of the index.
+     * 
+     * @param path
+     *            The path to the directory where the index will be written. The
+     *            directory is created if it does not yet exist.
+     * @param filePrefix
+     *            The prefix for all files of the index.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes. Files larger
+     *            than 2GB are memory-mapped in multiple segments.
+     * @param bloomFilterFPR
+     *            The false-positive rate of the Bloom filter. If 0, no Bloom
+     *            filter will be written.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, String filePrefix, int maxBlockEntries, boolean compressed,
+        long maxFileSize, double bloomFilterFPR) throws IOException {
+        this(path, filePrefix, maxBlockEntries, compressed, maxFileSize, bloomFilterFPR, null);
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter that names all files of the index with a
+     * given prefix, writes a Bloom filter over all keys of the index and
+     * compresses all blocks with a given codec.
+     * 
+     * @param path
+     *            The path to the directory where the index will be written. The
+     *            directory is created if it does not yet exist.
+     * @param filePrefix
+     *            The prefix for all files of the index.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes. Files larger
+     *            than 2GB are memory-mapped in multiple segments.
+     * @param bloomFilterFPR
+     *            The false-positive rate of the Bloom filter. If 0, no Bloom
+     *            filter will be written.
+     * @param codec
+     *            The codec that compresses serialized blocks. If
+     *            <code>null</code>, blocks will be written uncompressed. Blocks
+     *            that the codec cannot shrink are written uncompressed as well.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, String filePrefix, int maxBlockEntries, boolean compressed,
+        long maxFileSize, double bloomFilterFPR, BlockCodec codec) throws IOException {
+        this(path, filePrefix, maxBlockEntries, compressed, maxFileSize, bloomFilterFPR, codec, 0);
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter that bounds blocks by their size in bytes
+     * rather than by their number of entries.
+     * 
+     * @param path
+     *            The path to the directory where the index will be written. The
+     *            directory is created if it does not yet exist.
+     * @param filePrefix
+     *            The prefix for all files of the index.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block. Ignored if
+     *            <code>maxBlockSize</code> is set.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes. Files larger
+     *            than 2GB are memory-mapped in multiple segments.
+     * @param bloomFilterFPR
+     *            The false-positive rate of the Bloom filter. If 0, no Bloom
+     *            filter will be written.
+     * @param codec
+     *            The codec that compresses serialized blocks. If
+     *            <code>null</code>, blocks will be written uncompressed.
+     * @param maxBlockSize
+     *            The target size of a single block in bytes, before
+     *            compression. A block is completed as soon as the next entry
+     *            would exceed it; entries that are larger than the target size
+     *            are written to blocks of their own. If 0, blocks are bounded
+     *            by <code>maxBlockEntries</code>.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, String filePrefix, int maxBlockEntries, boolean compressed,
+        long maxFileSize, double bloomFilterFPR, BlockCodec codec, int maxBlockSize) throws IOException {
         
         if (!path.endsWith(System.getProperty("file.separator")))
             path += System.getProperty("file.separator");
         
-        // check that the file-size will be accepted by MMap
-        assert (maxFileSize <= Integer.MAX_VALUE);
-        
         File diDir = new File(path);
         
-        if (diDir.exists())
+        if (filePrefix.length() == 0 ? diDir.exists() : new File(path + filePrefix + "blockindex.idx").exists())
             throw new IOException("index already exists");
         
         // make sure that the path is a directory and that it exists
-        if (!diDir.mkdirs())
+        if (!diDir.exists() && !diDir.mkdirs())
             throw new IOException("could not create directory '" + path + "'");
         
         this.compressed = compressed;
         
         this.path = path;
+        this.filePrefix = filePrefix;
         this.maxBlockEntries = maxBlockEntries;
+        this.maxBlockSize = maxBlockSize;
         this.maxFileSize = maxFileSize;
+        this.bloomFilterFPR = bloomFilterFPR;
+        this.codec = codec;
+        
+        if (bloomFilterFPR > 0)
+            keyHashes = new long[1024];
     }
     
     /**
@@ -93,80 +270,148 @@ public class DiskIndexWriter {
      * @param iterator
      * @throws IOException
      */
-    private void writeIndex(String path, BlockWriter blockIndex, Iterator<Entry<Object, Object>> iterator)
-        throws IOException {
+    private void writeIndex(String path, BlockIndexWriter blockIndex,
+        Iterator<Entry<Object, Object>> iterator) throws IOException {
         
         FileOutputStream out = new FileOutputStream(path);
         
         BlockWriter block;
         
         if (compressed)
-            block = new CompressedBlockWriter(true, true);
+            block = new FrontCodedBlockWriter(true);
         else
             block = new DefaultBlockWriter(true, true);
         
         int entryCount = 0;
-        int blockOffset = 0;
+        int blockSize = 0;
+        long blockOffset = 0;
         boolean newBlockFile = false;
         
         // write each block to disk
         // note that blocks can become slightly larger than the maxFileSize
         // depending on the size of the last block
-        while (iterator.hasNext() && !newBlockFile) {
+        while ((pendingEntry != null || iterator.hasNext()) && !newBlockFile) {
             
             // add the next key-value pair to the current block
-            Entry<Object, Object> next = iterator.next();
+            Entry<Object, Object> next = pendingEntry != null ? pendingEntry : iterator.next();
+            pendingEntry = null;
             block.add(next.getKey(), next.getValue());
             
+            // remember the key if the entry is a tombstone
+            if (tombstone != null && next.getValue() == tombstone)
+                tombstoneKeys.add(InternalBufferUtil.toBuffer(next.getKey()));
+            
+            // remember the key's hash value for the Bloom filter
+            if (keyHashes != null) {
+                if (numKeys == keyHashes.length)
+                    keyHashes = Arrays.copyOf(keyHashes, numKeys * 2);
+                keyHashes[numKeys++] = BloomFilter.hash(next.getKey());
+            }
+            
             entryCount++;
             
+            // check whether the block is complete; if blocks are bounded by
+            // size, read ahead the next entry to check whether it still fits
+            boolean blockComplete;
+            if (maxBlockSize > 0) {
+                
+                blockSize += entrySize(next);
+                blockComplete = blockSize >= maxBlockSize || !iterator.hasNext();
+                if (!blockComplete) {
+                    pendingEntry = iterator.next();
+                    blockComplete = blockSize + entrySize(pendingEntry) > maxBlockSize;
+                }
+            }
+
+            else
+                blockComplete = entryCount % maxBlockEntries == 0 || !iterator.hasNext();
+            
             // if the block size limit has been reached, or there are no more
             // key-value pairs, serialize the block and write it to disk
-            if (entryCount % maxBlockEntries == 0 || !iterator.hasNext()) {
+            if (blockComplete) {
                 
-                // serialize the offset of the block into a new buffer
-                ReusableBuffer buf = ReusableBuffer.wrap(new byte[(Integer.SIZE / 8) + (Short.SIZE / 8)]);
-                buf.putInt(blockOffset);
-                buf.putShort(blockFileId);
+                byte[] blockKey = InternalBufferUtil.toBuffer(block.getBlockKey());
+                long startOffset = blockOffset;
                 
-                // add the key-offset mapping to the block index
-                blockIndex.add(InternalBufferUtil.toBuffer(block.getBlockKey()), buf.array());
-                
-                // serialize the block and calculate the next block offset
+                // serialize the block
                 SerializedBlock serializedBlock = block.serialize();
-                blockOffset += serializedBlock.size();
                 
-                // write the block
-                int writtenBytes = 0;
-                Iterator<Object> it = serializedBlock.iterator();
-                while (it.hasNext()) {
+                // write the block and compute its checksum
+                checksum.reset();
+                byte codecId = BlockCodec.NONE;
+                
+                if (codec != null) {
                     
-                    // for robustness: check if the file descriptor is still valid,
-                    // re-open the file if necessary
-                    if(!out.getFD().valid()) {
+                    // for robustness: check if the file descriptor is still
+                    // valid, re-open the file if necessary
+                    if (!out.getFD().valid()) {
                         out.close();
                         out = new FileOutputStream(path, true);
                     }
                     
-                    Object nextBuffer = it.next();
+                    // compress the block; if this does not save any space,
+                    // write the uncompressed block instead
+                    byte[] data = toArray(serializedBlock);
+                    byte[] compressedData = codec.compress(data, 0, data.length);
+                    if (compressedData.length + (Integer.SIZE / 8) < data.length) {
+                        ByteBuffer encoded = ByteBuffer.allocate(compressedData.length + (Integer.SIZE / 8));
+                        encoded.putInt(data.length);
+                        encoded.put(compressedData);
+                        data = encoded.array();
+                        codecId = codec.getId();
+                    }
                     
-                    // check if the entry is the last from the buffer; if so, free it
-                    if(nextBuffer instanceof ByteRange) {
-                        ByteRange rng = (ByteRange) nextBuffer;
-                        if(rng.getReusableBuf() != null)
-                            BufferPool.free(rng.getReusableBuf());
+                    blockOffset += writeBuffer(out, data, checksum);
+                }
+
+                else {
+                    
+                    int writtenBytes = 0;
+                    Iterator<Object> it = serializedBlock.iterator();
+                    while (it.hasNext()) {
+                        
+                        // for robustness: check if the file descriptor is still valid,
+                        // re-open the file if necessary
+                        if(!out.getFD().valid()) {
+                            out.close();
+                            out = new FileOutputStream(path, true);
+                        }
+                        
+                        Object nextBuffer = it.next();
+                        
+                        // check if the entry is the last from the buffer; if so, free it
+                        if(nextBuffer instanceof ByteRange) {
+                            ByteRange rng = (ByteRange) nextBuffer;
+                            if(rng.getReusableBuf() != null)
+                                BufferPool.free(rng.getReusableBuf());
+                        }
+                        
+                        writtenBytes += writeBuffer(out, nextBuffer, checksum);
                     }
+                    assert (writtenBytes == serializedBlock.size());
                     
-                    writtenBytes += writeBuffer(out, nextBuffer);
+                    blockOffset += writtenBytes;
                 }
-                assert (writtenBytes == serializedBlock.size());
+                
+                // serialize the offset, checksum and codec of the block into a
+                // new buffer
+                ReusableBuffer buf = ReusableBuffer.wrap(new byte[BLOCK_INDEX_ENTRY_SIZE]);
+                buf.putLong(startOffset);
+                buf.putShort(blockFileId);
+                buf.putInt((int) checksum.getValue());
+                buf.put(codecId);
+                
+                // add the key-offset mapping to the block index
+                blockIndex.add(blockKey, buf.array());
+                
+                blockSize = 0;
                 
                 if (blockOffset >= maxFileSize) {
                     newBlockFile = true;
                 } else {
-                    if (iterator.hasNext())
+                    if (pendingEntry != null || iterator.hasNext())
                         if (compressed)
-                            block = new CompressedBlockWriter(true, true);
+                            block = new FrontCodedBlockWriter(true);
                         else
                             block = new DefaultBlockWriter(true, true);
                 }
@@ -188,12 +433,39 @@ public class DiskIndexWriter {
      *             if an I/O error occurs
      */
     public void writeIndex(ResultSet<Object, Object> iterator) throws IOException {
+        writeIndex(iterator, null);
+    }
+    
+    /**
+     * Creates an on-disk representation of an index from an iterator of
+     * key-value pairs that may contain tombstones. Tombstones are written as
+     * entries with zero-length values, and their keys are recorded in a
+     * separate file, so that they can be distinguished from regular entries
+     * with zero-length values.
+     * 
+     * @param iterator
+     *            an iterator w/ key-value pairs, keys must be in ascending
+     *            order
+     * @param tombstone
+     *            the zero-length value that marks tombstones, which is
+     *            recognized by identity; if <code>null</code>, all entries are
+     *            written as regular entries
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void writeIndex(ResultSet<Object, Object> iterator, Object tombstone) throws IOException {
+        
+        assert (tombstone == null || InternalBufferUtil.size(tombstone) == 0);
         
-        BlockWriter blockIndex = new DefaultBlockWriter(true, false);
+        this.tombstone = tombstone;
+        this.tombstoneKeys = new ArrayList<byte[]>();
+        
+        BlockIndexWriter blockIndex = new BlockIndexWriter(path + filePrefix,
+            BlockIndexWriter.DEFAULT_PARTITION_SIZE);
         
         // write all index files
-        while (iterator.hasNext()) {
-            String indexPath = path + "blockfile_" + new Short(blockFileId).toString() + ".idx";
+        while (pendingEntry != null || iterator.hasNext()) {
+            String indexPath = path + filePrefix + "blockfile_" + new Short(blockFileId).toString() + ".idx";
             writeIndex(indexPath, blockIndex, iterator);
             
             blockFileId++;
@@ -201,27 +473,93 @@ public class DiskIndexWriter {
         
         iterator.free();
         
-        // write the block index
-        new File(path + "blockindex.idx").createNewFile();
-        FileOutputStream out = new FileOutputStream(path + "blockindex.idx", false);
+        // write the last partition and the top-level index of the block
+        // index
+        blockIndex.close();
+        
+        // write the Bloom filter
+        if (keyHashes != null) {
+            BloomFilter filter = new BloomFilter(numKeys, bloomFilterFPR);
+            for (int i = 0; i < numKeys; i++)
+                filter.add(keyHashes[i]);
+            filter.write(path + filePrefix + "bloomfilter.idx");
+            keyHashes = null;
+        }
         
-        SerializedBlock serializedBuf = blockIndex.serialize();
+        // write the keys of all tombstones
+        if (!tombstoneKeys.isEmpty())
+            TombstoneSet.write(path + filePrefix + "tombstones.idx", tombstoneKeys);
+        tombstoneKeys = null;
         
-        int bytesWritten = 0;
-        Iterator<Object> it = serializedBuf.iterator();
-        while (it.hasNext())
-            bytesWritten += writeBuffer(out, it.next());
+        // write the format version
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(path + filePrefix + "format.idx"));
+        try {
+            out.writeInt(FORMAT_VERSION);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Copies all buffers of a serialized block to a single array, and frees
+     * the underlying reusable buffers.
+     * 
+     * @param block
+     *            the serialized block
+     * @return the array
+     */
+    private static byte[] toArray(SerializedBlock block) {
+        
+        byte[] data = new byte[block.size()];
+        int pos = 0;
+        
+        Iterator<Object> it = block.iterator();
+        while (it.hasNext()) {
+            
+            Object next = it.next();
+            if (next instanceof byte[]) {
+                byte[] bytes = (byte[]) next;
+                System.arraycopy(bytes, 0, data, pos, bytes.length);
+                pos += bytes.length;
+            }
+
+            else {
+                ByteRange range = (ByteRange) next;
+                ByteBuffer buf = range.getBuf().duplicate();
+                buf.position(range.getStartOffset());
+                buf.get(data, pos, range.getSize());
+                pos += range.getSize();
                 
-        assert (bytesWritten == serializedBuf.size());
+                if (range.getReusableBuf() != null)
+                    BufferPool.free(range.getReusableBuf());
+            }
+        }
         
-        out.close();
+        assert (pos == data.length);
+        return data;
+    }
+    
+    /**
+     * Estimates the number of bytes that an entry occupies in a serialized
+     * block, i.e. its key and value plus their offsets.
+     * 
+     * @param entry
+     *            the entry
+     * @return the number of bytes
+     */
+    private static int entrySize(Entry<Object, Object> entry) {
+        return InternalBufferUtil.size(entry.getKey()) + InternalBufferUtil.size(entry.getValue()) + 2
+            * Integer.SIZE / 8;
     }
     
-    private int writeBuffer(FileOutputStream out, Object buf) throws IOException {
+    private int writeBuffer(FileOutputStream out, Object buf, CRC32C checksum) throws IOException {
         
         if (buf instanceof byte[]) {
             byte[] bytes = (byte[]) buf;
             out.write(bytes);
+            if (checksum != null)
+                checksum.update(bytes, 0, bytes.length);
+            WriteRateLimiter.getInstance().written(bytes.length);
             return bytes.length;
         }
 
@@ -234,7 +572,11 @@ public class DiskIndexWriter {
             range.getBuf().position(range.getStartOffset());
             ByteBuffer slice = range.getBuf().slice();
             slice.limit(range.getSize());
-            return out.getChannel().write(slice);
+            if (checksum != null)
+                checksum.update(slice, 0, slice.limit());
+            int written = out.getChannel().write(slice);
+            WriteRateLimiter.getInstance().written(written);
+            return written;
         }
         
     }
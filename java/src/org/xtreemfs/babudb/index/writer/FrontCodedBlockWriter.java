@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.writer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.xtreemfs.babudb.index.reader.FrontCodedBlockReader;
+import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
+
+/**
+ * Writes blocks with front-coded keys. Each key is delta-encoded against its
+ * predecessor, except for every <code>restartInterval</code>-th key, which is
+ * stored completely, so that lookups only need to decode the keys of a single
+ * restart interval. As keys in a block are sorted, adjacent keys tend to share
+ * long prefixes, which makes blocks considerably smaller than blocks with a
+ * single common prefix.
+ */
+public class FrontCodedBlockWriter implements BlockWriter {
+    
+    public static final int DEFAULT_RESTART_INTERVAL = 16;
+    
+    private List<Object>    keys;
+    
+    private List<Object>    values;
+    
+    private boolean         varLenVals;
+    
+    private int             restartInterval;
+    
+    private boolean         serialized;
+    
+    public FrontCodedBlockWriter(boolean varLenVals) {
+        this(varLenVals, DEFAULT_RESTART_INTERVAL);
+    }
+    
+    public FrontCodedBlockWriter(boolean varLenVals, int restartInterval) {
+        
+        keys = new LinkedList<Object>();
+        values = new LinkedList<Object>();
+        
+        this.varLenVals = varLenVals;
+        this.restartInterval = restartInterval;
+    }
+    
+    public void add(Object key, Object value) {
+        
+        if (serialized)
+            throw new UnsupportedOperationException("already serialized");
+        
+        keys.add(key);
+        values.add(value);
+    }
+    
+    public SerializedBlock serialize() {
+        
+        if (serialized)
+            throw new UnsupportedOperationException("already serialized");
+        
+        serialized = true;
+        
+        int entries = keys.size();
+        int[] restarts = new int[entries == 0 ? 0 : (entries - 1) / restartInterval + 1];
+        
+        // front-code the keys
+        byte[] keyPage = new byte[256];
+        int size = 0;
+        byte[] prev = null;
+        int i = 0;
+        for (Object key : keys) {
+            
+            byte[] bytes = InternalBufferUtil.toBuffer(key);
+            
+            int shared = 0;
+            if (i % restartInterval == 0)
+                restarts[i / restartInterval] = size;
+            else {
+                int max = Math.min(prev.length, bytes.length);
+                while (shared < max && prev[shared] == bytes[shared])
+                    shared++;
+            }
+            
+            int len = bytes.length - shared;
+            if (size + len + 10 > keyPage.length)
+                keyPage = Arrays.copyOf(keyPage, Math.max(keyPage.length * 2, size + len + 10));
+            
+            size = writeVarInt(keyPage, size, shared);
+            size = writeVarInt(keyPage, size, len);
+            System.arraycopy(bytes, shared, keyPage, size, len);
+            size += len;
+            
+            prev = bytes;
+            i++;
+        }
+        
+        ByteBuffer restartList = ByteBuffer.wrap(new byte[restarts.length * Integer.SIZE / 8]);
+        for (int restart : restarts)
+            restartList.putInt(restart);
+        
+        SerializedPage valPage = varLenVals ? DefaultBlockWriter.serializeVarLenPage(values)
+            : DefaultBlockWriter.serializeFixedLenPage(values);
+        
+        int restartsOffset = FrontCodedBlockReader.KEYS_OFFSET + size;
+        int valsOffset = restartsOffset + restartList.limit();
+        
+        // header: [magic, #entries, restart interval, offset of restart list,
+        // offset of value page, value size]
+        ByteBuffer tmp = ByteBuffer.wrap(new byte[FrontCodedBlockReader.KEYS_OFFSET]);
+        tmp.putInt(FrontCodedBlockReader.MAGIC);
+        tmp.putInt(entries);
+        tmp.putInt(restartInterval);
+        tmp.putInt(restartsOffset);
+        tmp.putInt(valsOffset);
+        tmp.putInt(varLenVals ? -1 : entries == 0 ? 0 : (valPage.size / entries));
+        
+        List<Object> header = new ArrayList<Object>(3);
+        header.add(tmp.array());
+        header.add(Arrays.copyOf(keyPage, size));
+        header.add(restartList.array());
+        
+        SerializedBlock result = new SerializedBlock();
+        result.addBuffers(valsOffset, header);
+        result.addBuffers(valPage.size, valPage.entries);
+        
+        return result;
+    }
+    
+    public Object getBlockKey() {
+        return keys.get(0);
+    }
+    
+    private static int writeVarInt(byte[] buf, int pos, int value) {
+        
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        
+        return pos;
+    }
+    
+}
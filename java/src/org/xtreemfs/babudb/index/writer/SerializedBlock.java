@@ -28,6 +28,11 @@ public class SerializedBlock {
         multiList = new LinkedList<List<Object>>();
     }
     
+    public void addBuffers(int size, List<Object> buffers) {
+        multiList.add(buffers);
+        this.size += size;
+    }
+    
     public void addBuffers(int size, List<Object>... bufferList) {
         for (List<Object> l : bufferList)
             multiList.add(l);
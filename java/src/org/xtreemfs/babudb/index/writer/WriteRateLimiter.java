@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.index.writer;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A process-wide limit for the rate at which on-disk indices are written.
+ * Writers of on-disk indices report each chunk of data they write and are
+ * delayed as far as necessary to keep the total rate of all writers below the
+ * limit. This allows checkpoints and compactions to be performed in parallel
+ * without saturating the disk.
+ */
+public class WriteRateLimiter {
+    
+    private static final WriteRateLimiter instance = new WriteRateLimiter();
+    
+    /**
+     * the maximum write rate in bytes per second, or 0 if unlimited
+     */
+    private long                          rate;
+    
+    /**
+     * the point in time (in nanoseconds) at which all data that has been
+     * written so far will have been written at the maximum rate
+     */
+    private long                          nextFree;
+    
+    private WriteRateLimiter() {
+    }
+    
+    /**
+     * Returns the process-wide write rate limiter.
+     *
+     * @return the write rate limiter
+     */
+    public static WriteRateLimiter getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Sets the maximum total rate at which on-disk indices are written.
+     *
+     * @param rate
+     *            the rate in bytes per second; 0 disables the limit
+     */
+    public synchronized void setRate(long rate) {
+        this.rate = rate;
+        this.nextFree = System.nanoTime();
+    }
+    
+    public synchronized long getRate() {
+        return rate;
+    }
+    
+    /**
+     * Accounts for a chunk of data that has been written, and delays the
+     * invoking thread if the maximum write rate has been exceeded.
+     *
+     * @param bytes
+     *            the number of bytes that have been written
+     * @throws InterruptedIOException
+     *             if the thread was interrupted while being delayed
+     */
+    public void written(long bytes) throws InterruptedIOException {
+        
+        long delay;
+        synchronized (this) {
+            
+            if (rate <= 0)
+                return;
+            
+            long now = System.nanoTime();
+            if (nextFree < now)
+                nextFree = now;
+            nextFree += bytes * 1000000000L / rate;
+            delay = nextFree - now;
+        }
+        
+        try {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        } catch (InterruptedException exc) {
+            throw new InterruptedIOException("index write was interrupted");
+        }
+    }
+    
+}
@@ -14,7 +14,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
 import org.xtreemfs.babudb.lsmdb.LSN;
@@ -51,7 +50,7 @@ public class DiskLogFile {
         fis = new FileInputStream(file);
         channel = fis.getChannel();
         myInt = ByteBuffer.allocate(Integer.SIZE / 8);
-        csumAlgo = new CRC32();
+        csumAlgo = LogEntry.createChecksum();
         
         next = getNext();
     }
@@ -93,12 +92,22 @@ public class DiskLogFile {
             offset = channel.position() - Integer.SIZE / 8;
             channel.position(offset);
             
+            // a zero size marks the zero-filled tail of a preallocated log
+            // file, i.e. the end of the log
+            if (entrySize == 0)
+                return null;
+            
             if (entrySize < 0)
                 throw new LogEntryException("log entry with negative size detected: " + entrySize);
             
             item = BufferPool.allocate(entrySize);
             channel.read(item.getBuffer());
             item.flip();
+            
+            // entries of an unsupported format version are rejected when
+            // they are deserialized and truncated like corrupted entries
+            LogEntry.checkIntegrity(item);
+            
             LogEntry e = LogEntry.deserialize(item, csumAlgo);
             csumAlgo.reset();
             return e;
@@ -10,19 +10,28 @@ package org.xtreemfs.babudb.log;
 
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
@@ -33,7 +42,35 @@ import org.xtreemfs.foundation.buffer.ReusableBuffer;
 import org.xtreemfs.foundation.logging.Logging;
 
 /**
- * Writes entries to the on disc operations log and syncs after blocks of MAX_ENTRIES_PER_BLOCK.
+ * Writes entries to the on disc operations log and syncs after each batch of
+ * entries. With group commits, all entries of a batch are serialized into a
+ * single buffer, which is written with a single write operation; batches are
+ * bounded by their size in bytes, and the logger may wait for a configurable
+ * delay in order to collect further entries for a batch. Otherwise, each entry
+ * is written separately, and the log is synced after blocks of
+ * MAX_ENTRIES_PER_BLOCK. <br/>
+ * 
+ * If the logger is pipelined, batches are synced by a separate sync stage:
+ * while the log is being synced, the logger thread keeps writing subsequent
+ * batches, which are synced together with a single sync as soon as the
+ * previous sync has finished. Listeners are then notified by a separate
+ * completion stage, so that neither syncs nor listener callbacks delay the
+ * writing of subsequent batches. In any case, listeners are notified in the
+ * order of the entries' LSNs. <br/>
+ * 
+ * Entries are appended to a lock-free queue, so that concurrent appenders do
+ * not contend for a lock. If the size of all queued entries exceeds a
+ * configurable number of bytes, appenders are parked until the logger has
+ * taken entries from the queue. <br/>
+ * 
+ * Log files may be preallocated as zero-filled segments of a fixed size, so
+ * that writes do not change the file size and syncs do not need to update
+ * file metadata. Readers recognize the zero-filled tail of a log file as the
+ * end of the log. Segments are zero-filled ahead of time by a background
+ * thread, so that a log file switch only has to rename a prepared segment;
+ * if none is available, the new log file is zero-filled synchronously. Log
+ * files that have become obsolete after a checkpoint may be
+ * recycled as segments for subsequent log files.
  * @author bjko
  * @author flangner
  */
@@ -69,6 +106,39 @@ public class DiskLogger extends LifeCycleThread {
      * Max number of LogEntries to write before sync.
      */
     public static final int            MAX_ENTRIES_PER_BLOCK             = 250;
+    
+    /**
+     * Default max number of bytes to write with a single group commit; group
+     * commits are disabled by default.
+     */
+    public static final int            DEFAULT_MAX_BATCH_SIZE            = 0;
+    
+    /**
+     * Default max number of bytes of queued entries before appenders are
+     * blocked.
+     */
+    public static final int            DEFAULT_MAX_QUEUE_SIZE            = 16 * 1024 * 1024;
+
+    /**
+     * Suffix of zero-filled segments that are kept for subsequent log files.
+     */
+    public static final String         RECYCLED_SEGMENT_SUFFIX           = ".recycled";
+    
+    /**
+     * Suffix of segments that are zero-filled in the background before they
+     * are kept as recycled segments.
+     */
+    private static final String        OBSOLETE_SEGMENT_SUFFIX           = ".obsolete";
+    
+    /**
+     * Max number of recycled segments to keep.
+     */
+    private static final int           MAX_RECYCLED_SEGMENTS             = 4;
+    
+    /**
+     * Size of the buffer used to zero-fill log segments.
+     */
+    private static final int           ZERO_FILL_BUFFER_SIZE             = 64 * 1024;
 
     private static final String        RUNTIME_STATE_PROCESSEDLOGENTRIES = "diskLogger.processedLogEntryCount";
 
@@ -90,7 +160,27 @@ public class DiskLogger extends LifeCycleThread {
     /**
      * The LogEntries to be written to disk.
      */
-    private final LinkedList<LogEntry>  entries = new LinkedList<LogEntry>();
+    private final LogEntryQueue         entries = new LogEntryQueue();
+    
+    /**
+     * number of bytes of all serialized entries in the queue
+     */
+    private final AtomicLong            queuedBytes = new AtomicLong();
+    
+    /**
+     * appenders that are parked until queue space becomes available
+     */
+    private final ConcurrentLinkedQueue<Thread> blockedAppenders = new ConcurrentLinkedQueue<Thread>();
+    
+    /**
+     * number of appenders that are adding an entry to the queue
+     */
+    private final AtomicInteger         activeAppenders = new AtomicInteger();
+    
+    /**
+     * indicates whether the logger thread is parked until entries are appended
+     */
+    private volatile boolean            parked;
 
     /**
      * If set to true the thread will shutdown.
@@ -127,9 +217,91 @@ public class DiskLogger extends LifeCycleThread {
 
     private final Integer               pseudoSyncWait;
     
-    private final CRC32                 csumAlgo = new CRC32();
+    private final Checksum              csumAlgo = LogEntry.createChecksum();
         
-    private final int                   maxQ;
+    /**
+     * max number of bytes of all serialized entries in the queue, or 0 if the
+     * queue is unbounded
+     */
+    private final int                   maxQueueSize;
+    
+    /**
+     * max number of bytes of a batch of entries that is written with a single
+     * write operation before the log is synced, or 0 if entries are written
+     * separately
+     */
+    private final int                   maxBatchSize;
+    
+    /**
+     * max time in nanoseconds to wait for further entries if a batch is not
+     * full
+     */
+    private final long                  maxCommitDelay;
+    
+    /**
+     * buffer for serialized batches, which is kept for subsequent batches
+     */
+    private ByteBuffer                  batchBuffer;
+    
+    /**
+     * written batches that have not been taken by the sync stage yet
+     */
+    private final List<List<LogEntry>>  writtenBatches = new ArrayList<List<LogEntry>>();
+    
+    /**
+     * the channel the written batches have been written to
+     */
+    private FileChannel                 writtenChannel;
+    
+    /**
+     * number of batches that have been written but not yet synced
+     */
+    private final AtomicInteger         unsyncedBatches = new AtomicInteger();
+    
+    /**
+     * indicates whether batches are synced and listeners are notified by
+     * separate stages
+     */
+    private final boolean               pipelined;
+    
+    /**
+     * syncs written batches to disk, if the logger is pipelined
+     */
+    private ExecutorService             syncStage;
+    
+    /**
+     * notifies the listeners of synced or failed entries, if the logger is
+     * pipelined
+     */
+    private ExecutorService             completionStage;
+    
+    /**
+     * size in bytes of preallocated log segments, or 0 if log files are not
+     * preallocated
+     */
+    private final int                   segmentSize;
+    
+    /**
+     * indicates whether obsolete log files are recycled as preallocated
+     * segments
+     */
+    private final boolean               recycleSegments;
+    
+    /**
+     * zero-fills segments for subsequent log files in the background, or
+     * <code>null</code> if log files are not preallocated
+     */
+    private final ExecutorService       allocator;
+    
+    /**
+     * number of bytes that have been written to the current log file
+     */
+    private volatile long               logFileSize;
+    
+    /**
+     * number of bytes that have been preallocated for the current log file
+     */
+    private long                        allocatedSize;
     
     private AtomicInteger              _processedLogEntries  = new AtomicInteger();
     
@@ -140,13 +312,88 @@ public class DiskLogger extends LifeCycleThread {
      * @param initLSN
      * @param syncMode
      * @param pseudoSyncWait
-     * @param maxQ
+     * @param maxQueueSize max number of bytes of queued entries before appenders are blocked; 
+     *                     0 for an unbounded queue
+     * 
+     * @throws java.io.FileNotFoundException If that file cannot be created.
+     * @throws java.io.IOException If that file cannot be created.
+     */
+    public DiskLogger(String logfileDir, LSN initLSN, SyncMode syncMode, int pseudoSyncWait, 
+            int maxQueueSize) throws IOException {
+        this(logfileDir, initLSN, syncMode, pseudoSyncWait, maxQueueSize, DEFAULT_MAX_BATCH_SIZE, 0);
+    }
+    
+    /**
+     * Creates a new instance of DiskLogger
+     * @param logfile Name and path of file to use for append log.
+     * @param initLSN
+     * @param syncMode
+     * @param pseudoSyncWait
+     * @param maxQueueSize max number of bytes of queued entries before appenders are blocked; 
+     *                     0 for an unbounded queue
+     * @param maxBatchSize max number of bytes to write with a single group commit; 0 disables 
+     *                     group commits
+     * @param maxCommitDelay max time in microseconds to wait for further entries before a batch 
+     *                       that is not full is committed
+     * 
+     * @throws java.io.FileNotFoundException If that file cannot be created.
+     * @throws java.io.IOException If that file cannot be created.
+     */
+    public DiskLogger(String logfileDir, LSN initLSN, SyncMode syncMode, int pseudoSyncWait, 
+            int maxQueueSize, int maxBatchSize, int maxCommitDelay) throws IOException {
+        this(logfileDir, initLSN, syncMode, pseudoSyncWait, maxQueueSize, maxBatchSize, maxCommitDelay, 
+                false);
+    }
+    
+    /**
+     * Creates a new instance of DiskLogger
+     * @param logfile Name and path of file to use for append log.
+     * @param initLSN
+     * @param syncMode
+     * @param pseudoSyncWait
+     * @param maxQueueSize max number of bytes of queued entries before appenders are blocked; 
+     *                     0 for an unbounded queue
+     * @param maxBatchSize max number of bytes to write with a single group commit; 0 disables 
+     *                     group commits
+     * @param maxCommitDelay max time in microseconds to wait for further entries before a batch 
+     *                       that is not full is committed
+     * @param pipelined if true, batches are synced and listeners are notified by separate 
+     *                  threads, while the next batch is written
+     * 
+     * @throws java.io.FileNotFoundException If that file cannot be created.
+     * @throws java.io.IOException If that file cannot be created.
+     */
+    public DiskLogger(String logfileDir, LSN initLSN, SyncMode syncMode, int pseudoSyncWait, 
+            int maxQueueSize, int maxBatchSize, int maxCommitDelay, boolean pipelined) 
+            throws IOException {
+        this(logfileDir, initLSN, syncMode, pseudoSyncWait, maxQueueSize, maxBatchSize, maxCommitDelay, 
+                pipelined, 0, false);
+    }
+    
+    /**
+     * Creates a new instance of DiskLogger
+     * @param logfile Name and path of file to use for append log.
+     * @param initLSN
+     * @param syncMode
+     * @param pseudoSyncWait
+     * @param maxQueueSize max number of bytes of queued entries before appenders are blocked; 
+     *                     0 for an unbounded queue
+     * @param maxBatchSize max number of bytes to write with a single group commit; 0 disables 
+     *                     group commits
+     * @param maxCommitDelay max time in microseconds to wait for further entries before a batch 
+     *                       that is not full is committed
+     * @param pipelined if true, batches are synced and listeners are notified by separate 
+     *                  threads, while the next batch is written
+     * @param segmentSize size in bytes of zero-filled segments that are preallocated for log 
+     *                    files; 0 disables preallocation
+     * @param recycleSegments if true, obsolete log files are recycled as preallocated segments
      * 
      * @throws java.io.FileNotFoundException If that file cannot be created.
      * @throws java.io.IOException If that file cannot be created.
      */
     public DiskLogger(String logfileDir, LSN initLSN, SyncMode syncMode, int pseudoSyncWait, 
-            int maxQ) throws IOException {
+            int maxQueueSize, int maxBatchSize, int maxCommitDelay, boolean pipelined, 
+            int segmentSize, boolean recycleSegments) throws IOException {
 
         super("DiskLogger");
         
@@ -166,7 +413,21 @@ public class DiskLogger extends LifeCycleThread {
         
         this.pseudoSyncWait = pseudoSyncWait;
         this.syncMode = syncMode;
-        this.maxQ = maxQ;
+        this.maxQueueSize = maxQueueSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxCommitDelay = TimeUnit.MICROSECONDS.toNanos(maxCommitDelay);
+        this.pipelined = pipelined;
+        this.segmentSize = segmentSize;
+        this.recycleSegments = recycleSegments;
+        this.allocator = segmentSize > 0 ? Executors.newSingleThreadExecutor(
+                new StageThreadFactory("DiskLoggerAllocator")) : null;
+        
+        // complete the recycling of segments that has been interrupted
+        if (allocator != null) {
+            for (File segment : listSegments(OBSOLETE_SEGMENT_SUFFIX)) {
+                fillSegment(segment);
+            }
+        }
         
         loadLogFile(initLSN);
     }
@@ -177,16 +438,21 @@ public class DiskLogger extends LifeCycleThread {
      * @throws IOException
      */
     public void dropLogFile() throws IOException {
+        
+        // make sure that all written batches have been synced
+        awaitPendingBatches();
+        
+        boolean empty = channel.position() == 0L;
         channel.close();
         fos.close(); 
         
-        // delete invalid (because empty) database log on switch
-        if (currentLogFileName != null) {
+        // delete invalid (because empty) database log on switch; an empty
+        // preallocated log file is still zero-filled and can be recycled
+        // right away
+        if (currentLogFileName != null && empty) {
             File f = new File(currentLogFileName);
-            if (f.length() == 0L) {
-                boolean suc = f.delete();
-                assert (suc) : "An empty database log file could not have been deleted properly.";
-            }
+            boolean suc = (segmentSize > 0 && recycleSegments && recycle(f)) || f.delete();
+            assert (suc) : "An empty database log file could not have been deleted properly.";
         }
         
         channel = null;
@@ -212,35 +478,96 @@ public class DiskLogger extends LifeCycleThread {
         loadLogFile();
     }
 
+    /**
+     * @return the number of bytes that have been written to the current log
+     *         file, which may be less than the size of a preallocated file
+     */
     public long getLogFileSize() {
-        return new File(currentLogFileName).length();
+        return logFileSize;
+    }
+    
+    /**
+     * Removes an obsolete log file. If log segments are recycled, the file is
+     * renamed and zero-filled in the background, so as to be kept as a
+     * segment for a subsequent log file, unless enough recycled segments are
+     * available already. Otherwise, the file is deleted.
+     * 
+     * @param logFile
+     *            the obsolete log file
+     * @return true, if the file has been removed
+     */
+    public boolean removeLogFile(File logFile) {
+        
+        if (segmentSize > 0 && recycleSegments && listSegments(RECYCLED_SEGMENT_SUFFIX).length 
+                + listSegments(OBSOLETE_SEGMENT_SUFFIX).length < MAX_RECYCLED_SEGMENTS) {
+            
+            File segment = new File(logFile.getPath() + OBSOLETE_SEGMENT_SUFFIX);
+            if (logFile.renameTo(segment)) {
+                fillSegment(segment);
+                return true;
+            }
+        }
+        
+        return logFile.delete();
+    }
+    
+    /**
+     * Waits until all segments that have been scheduled for zero-filling are
+     * available as recycled segments.
+     * 
+     * @throws InterruptedException
+     */
+    void waitForSegments() throws InterruptedException {
+        
+        if (allocator == null) {
+            return;
+        }
+        
+        try {
+            allocator.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException ex) {
+            throw new AssertionError(ex);
+        }
     }
 
     /**
-     * Appends an entry to the write queue. Is maxQ is set an reached this method blocks until
-     * queue space becomes available. The entry will be freed by the logger.
+     * Appends an entry to the write queue. If the max queue size is set and reached, this method 
+     * blocks until queue space becomes available. The entry will be freed by the logger.
      * 
      * @param entry to write.
      * @throws InterruptedException if the entry could not be appended. 
      */
-    public synchronized void append(LogEntry entry) throws InterruptedException, 
-            IllegalStateException {
+    public void append(LogEntry entry) throws InterruptedException, IllegalStateException {
         
         assert (entry != null);
         
+        int size = entry.getSerializedSize();
+        
         // wait for queue space to become available
-        if (!quit && maxQ > 0 && entries.size() >= maxQ) {
-            wait();
+        if (maxQueueSize > 0) {
+            reserveQueueSpace(size);
         }
         
-        if (!quit) {
-            assert (maxQ == 0 || entries.size() < maxQ);
+        // the logger thread waits for active appenders before it takes the
+        // remaining entries from the queue on shutdown
+        activeAppenders.incrementAndGet();
+        try {
+            if (quit) {
+                releaseQueueSpace(size);
+                throw new InterruptedException("Appending the LogEntry to the DiskLogger's " +
+                        "queue was interrupted, due DiskLogger shutdown.");
+            }
             
             entries.add(entry);
-            notifyAll();
-        } else {
-            throw new InterruptedException("Appending the LogEntry to the DiskLogger's " +
-            		"queue was interrupted, due DiskLogger shutdown.");
+        } finally {
+            activeAppenders.decrementAndGet();
+        }
+        
+        if (parked) {
+            LockSupport.unpark(this);
         }
     }
 
@@ -288,6 +615,11 @@ public class DiskLogger extends LifeCycleThread {
         
         assert (quit);
         
+        if (pipelined) {
+            syncStage = Executors.newSingleThreadExecutor(new StageThreadFactory("DiskLoggerSync"));
+            completionStage = Executors.newSingleThreadExecutor(new StageThreadFactory("DiskLoggerCompletion"));
+        }
+        
         quit = false;
         super.start();
     }
@@ -306,28 +638,31 @@ public class DiskLogger extends LifeCycleThread {
             try {
                 
                 // wait for an entry
-                synchronized (this) {
+                while (!quit && entries.isEmpty()) {
+                    park(Long.MAX_VALUE);
+                }
 
-                    if (!quit && entries.isEmpty()) {
-                        wait();
-                    }
+                if (quit) {
+                    break;
+                    
+                // get some entries from the queue
+                } else if (maxBatchSize > 0) {
+                    
+                    fillBatch(tmpE);
+                    
+                } else {
+                    
+                    LogEntry tmp = null;
+                    int size = 0;
+                    while (tmpE.size() < MAX_ENTRIES_PER_BLOCK - 1 && 
+                          (tmp = entries.poll()) != null) {
 
-                    if (quit) {
-                        break;
-                        
-                    // get some entries from the queue
-                    } else {
-                        
-                        LogEntry tmp = null;
-                        while (tmpE.size() < MAX_ENTRIES_PER_BLOCK - 1 && 
-                              (tmp = entries.poll()) != null) {
-
-                            tmpE.add(tmp);
-                        }
-                        notifyAll();
-                        lock();
+                        tmpE.add(tmp);
+                        size += tmp.getSerializedSize();
                     }
+                    releaseQueueSpace(size);
                 }
+                lock();
                 
                 processLogEntries(tmpE);
                 
@@ -361,7 +696,8 @@ public class DiskLogger extends LifeCycleThread {
             if (graceful) {
                 try {
                     lock();
-                    processLogEntries(entries);
+                    drainQueue(tmpE);
+                    processLogEntries(tmpE);
                 } finally {
                     if (hasLock())
                         unlock();
@@ -390,12 +726,17 @@ public class DiskLogger extends LifeCycleThread {
      * @param graceful - flag to determine, if shutdown should process gracefully, or not.
      * @throws InterruptedException 
      */
-    public synchronized void shutdown(boolean graceful) throws InterruptedException {
+    public void shutdown(boolean graceful) throws InterruptedException {
                 
         lock();
         this.graceful = graceful;
         quit = true;
-        notifyAll();
+        
+        // wake up the logger thread and all blocked appenders
+        LockSupport.unpark(this);
+        for (Thread appender : blockedAppenders) {
+            LockSupport.unpark(appender);
+        }
         
         // stop pseudoSyncWait, if shutdown is ungraceful
         if (!graceful && pseudoSyncWait > 0) {
@@ -455,52 +796,364 @@ public class DiskLogger extends LifeCycleThread {
      */
     private void cleanUp() throws IOException {    
         
+        // reject further entries, also if the logger has crashed
+        quit = true;
+        for (Thread appender : blockedAppenders) {
+            LockSupport.unpark(appender);
+        }
+        
         try {
+            awaitPendingBatches();
             fdes.sync();
         } finally {
             try {
                 fos.close();
             } finally {
-            
-                synchronized (this) {
-                    assert (graceful || entries.size() == 0);
-                    
-                    // clear pending requests, if available
-                    for (LogEntry le : entries) {
-                        le.free();
-                        le.getListener().failed(new BabuDBException(
-                                ErrorCode.INTERRUPTED, "DiskLogger was shut down, before the " +
-                                "entry could be written to the log-file"));
+                
+                // abort the zero-filling of segments; interrupted segments
+                // are completed when the logger is restarted
+                if (allocator != null) {
+                    allocator.shutdownNow();
+                }
+                
+                // wait for all listeners of processed entries to be notified
+                if (pipelined) {
+                    syncStage.shutdown();
+                    completionStage.shutdown();
+                    try {
+                        completionStage.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     }
                 }
+            
+                // clear pending requests, if available
+                List<LogEntry> pending = new ArrayList<LogEntry>();
+                drainQueue(pending);
+                for (LogEntry le : pending) {
+                    le.free();
+                    le.getListener().failed(new BabuDBException(
+                            ErrorCode.INTERRUPTED, "DiskLogger was shut down, before the " +
+                            "entry could be written to the log-file"));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Moves entries from the queue to a batch until the batch has reached the
+     * max batch size. If the batch is not full, further entries are awaited
+     * for up to the max commit delay.
+     * 
+     * @param batch
+     * @throws InterruptedException 
+     */
+    private void fillBatch(List<LogEntry> batch) throws InterruptedException {
+        
+        int batchSize = 0;
+        long deadline = System.nanoTime() + maxCommitDelay;
+        for (;;) {
+            
+            LogEntry entry = null;
+            int size = 0;
+            while (batchSize < maxBatchSize && (entry = entries.peek()) != null) {
+                
+                // an entry that exceeds the max batch size on its own forms a 
+                // batch of its own
+                int entrySize = entry.getSerializedSize();
+                if (batchSize > 0 && batchSize + entrySize > maxBatchSize) {
+                    break;
+                }
+                
+                batch.add(entries.poll());
+                batchSize += entrySize;
+                size += entrySize;
+            }
+            
+            // make room for blocked appenders
+            releaseQueueSpace(size);
+            
+            long delay = deadline - System.nanoTime();
+            if (quit || batchSize >= maxBatchSize || delay <= 0 || entry != null) {
+                return;
+            }
+            
+            park(delay);
+        }
+    }
+    
+    /**
+     * Parks the logger thread until an entry has been appended, the logger has
+     * been shut down or the given time has elapsed.
+     * 
+     * @param nanos max time to wait
+     * @throws InterruptedException if the logger thread has been interrupted
+     */
+    private void park(long nanos) throws InterruptedException {
+        
+        // appenders unpark the logger thread if they see the flag after 
+        // appending an entry; hence, the queue has to be checked again after 
+        // setting the flag
+        parked = true;
+        try {
+            if (!quit && entries.isEmpty()) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        } finally {
+            parked = false;
+        }
+        
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+    
+    /**
+     * Reserves queue space for an entry, and parks the calling thread until
+     * enough space is available. An entry that exceeds the max queue size on
+     * its own may be appended to an empty queue.
+     * 
+     * @param size the size of the entry
+     * @throws InterruptedException if the logger has been shut down, or the 
+     *                              calling thread has been interrupted
+     */
+    private void reserveQueueSpace(int size) throws InterruptedException {
+        
+        for (;;) {
+            
+            long queued = queuedBytes.get();
+            if (queued == 0 || queued + size <= maxQueueSize) {
+                if (queuedBytes.compareAndSet(queued, queued + size)) {
+                    return;
+                }
+                continue;
+            }
+            
+            if (quit) {
+                throw new InterruptedException("Appending the LogEntry to the DiskLogger's " +
+                        "queue was interrupted, due DiskLogger shutdown.");
+            }
+            
+            // the logger thread unparks all blocked appenders after taking 
+            // entries from the queue; hence, the available space has to be 
+            // checked again after registering
+            Thread current = Thread.currentThread();
+            blockedAppenders.add(current);
+            try {
+                queued = queuedBytes.get();
+                if (!quit && queued != 0 && queued + size > maxQueueSize) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                blockedAppenders.remove(current);
             }
+            
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+    
+    /**
+     * Releases the queue space of entries that have been taken from the queue
+     * and unparks all blocked appenders.
+     * 
+     * @param size the size of the entries
+     */
+    private void releaseQueueSpace(int size) {
+        
+        if (maxQueueSize == 0 || size == 0) {
+            return;
+        }
+        
+        queuedBytes.addAndGet(-size);
+        for (Thread appender : blockedAppenders) {
+            LockSupport.unpark(appender);
         }
     }
     
     /**
-     * Writes a list of log entries to the disk log.
+     * Takes all remaining entries from the queue after the logger has been 
+     * shut down. Waits until all active appenders have either added their 
+     * entries to the queue or failed.
+     * 
+     * @param list the list to which the entries are added
+     */
+    private void drainQueue(List<LogEntry> list) {
+        
+        assert (quit);
+        
+        while (activeAppenders.get() > 0) {
+            Thread.yield();
+        }
+        
+        LogEntry entry = null;
+        int size = 0;
+        while ((entry = entries.poll()) != null) {
+            list.add(entry);
+            size += entry.getSerializedSize();
+        }
+        releaseQueueSpace(size);
+    }
+    
+    /**
+     * Writes a list of log entries to the disk log and syncs them, or hands
+     * them over to the sync stage if the logger is pipelined.
      * 
      * @param entries
      * @throws IOException 
-     * @throws InterruptedException 
      */
-    private final void processLogEntries(List<LogEntry> entries) throws IOException, InterruptedException {
+    private final void processLogEntries(List<LogEntry> entries) throws IOException {
 
         assert(hasLock());
         
-        for (LogEntry le : entries) {
-            assert (le != null) : "Entry must not be null";
-            int viewID = currentViewId.get();
-            long seqNo = nextLogSequenceNo.getAndIncrement();
-
-            if (le.getLSN() != null &&
-               (le.getLSN().getSequenceNo() != seqNo || le.getLSN().getViewId() != viewID)) { 
+        if (maxBatchSize > 0) {
+            writeBatch(entries);
+        } else {
+            writeEntries(entries);
+        }
+        
+        // hand the batch over to the sync stage
+        unsyncedBatches.incrementAndGet();
+        synchronized (writtenBatches) {
+            writtenBatches.add(new ArrayList<LogEntry>(entries));
+            writtenChannel = channel;
+        }
+        entries.clear();
+        
+        if (!pipelined) {
+            syncBatches();
+            return;
+        }
+        
+        syncStage.execute(new Runnable() {
+            public void run() {
+                syncBatches();
+            }
+        });
+    }
+    
+    /**
+     * Syncs all batches that have been written since the last sync with a
+     * single sync, and notifies the listeners of their entries. Executed by
+     * the sync stage if the logger is pipelined.
+     */
+    private void syncBatches() {
+        
+        final List<LogEntry> batch = new ArrayList<LogEntry>();
+        int numBatches;
+        FileChannel batchChannel;
+        synchronized (writtenBatches) {
+            
+            // the batches may have been synced along with previous ones
+            if (writtenBatches.isEmpty()) {
+                return;
+            }
+            
+            for (List<LogEntry> b : writtenBatches) {
+                batch.addAll(b);
+            }
+            numBatches = writtenBatches.size();
+            writtenBatches.clear();
+            batchChannel = writtenChannel;
+        }
+        
+        try {
+            
+            try {
+                if (syncMode == SyncMode.FSYNC) {
+                    batchChannel.force(true);
+                } else if (syncMode == SyncMode.FDATASYNC) {
+                    batchChannel.force(false);
+                }
+            } catch (final IOException ex) {
                 
-                throw new IOException("LogEntry (" + le.getPayloadType() + ") had unexpected LSN: " + le.getLSN() + 
-                        "\n" + viewID + ":" + seqNo + " was expected instead.");
+                Logging.logError(Logging.LEVEL_ERROR, this, ex);
+                
+                complete(new Runnable() {
+                    public void run() {
+                        for (LogEntry le : batch) {
+                            le.free();
+                            le.getListener().failed(ex);
+                        }
+                    }
+                });
+                return;
             }
             
-            le.assignId(viewID, seqNo);
+            if (pseudoSyncWait > 0) {
+                synchronized (pseudoSyncWait) {
+                    try {
+                        pseudoSyncWait.wait(pseudoSyncWait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            
+            complete(new Runnable() {
+                public void run() {
+                    for (LogEntry le : batch) {
+                        le.free();
+                        le.getListener().synced(le.getLSN());
+                    }
+                }
+            });
+            
+        } finally {
+            synchronized (unsyncedBatches) {
+                unsyncedBatches.addAndGet(-numBatches);
+                unsyncedBatches.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Notifies listeners, by means of the completion stage if the logger is
+     * pipelined.
+     * 
+     * @param notification
+     */
+    private void complete(Runnable notification) {
+        if (pipelined) {
+            completionStage.execute(notification);
+        } else {
+            notification.run();
+        }
+    }
+    
+    /**
+     * Waits until all written batches have been synced. Listeners may not
+     * have been notified yet.
+     */
+    private void awaitPendingBatches() {
+        
+        boolean interrupted = false;
+        synchronized (unsyncedBatches) {
+            while (unsyncedBatches.get() > 0) {
+                try {
+                    unsyncedBatches.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Writes each entry of a list with a separate write operation.
+     * 
+     * @param entries
+     * @throws IOException
+     */
+    private void writeEntries(List<LogEntry> entries) throws IOException {
+        
+        for (LogEntry le : entries) {
+            assignLSN(le);
             
             ReusableBuffer buffer = null;
             try {
@@ -508,12 +1161,14 @@ public class DiskLogger extends LifeCycleThread {
                     
                 Logging.logMessage(Logging.LEVEL_DEBUG, this, 
                         "Writing entry LSN(%d:%d) with %d bytes payload [%s] to log. " +
-                        "[serialized %d bytes]", viewID, seqNo, 
+                        "[serialized %d bytes]", le.getViewId(), le.getLogSequenceNo(), 
                         le.getPayload().remaining(), new String(le.getPayload().array()), 
                         buffer.remaining());
                 
                 // write the LogEntry to the local disk
+                ensureAllocated(channel.position() + buffer.remaining());
                 channel.write(buffer.getBuffer());
+                logFileSize = channel.position();
                 
             } finally {
                 csumAlgo.reset();
@@ -522,23 +1177,82 @@ public class DiskLogger extends LifeCycleThread {
             
             _processedLogEntries.incrementAndGet();
         }
+    }
+    
+    /**
+     * Serializes a list of entries into a single buffer and writes the buffer 
+     * with a single write operation.
+     * 
+     * @param entries
+     * @throws IOException
+     */
+    private void writeBatch(List<LogEntry> entries) throws IOException {
         
-        if (syncMode == SyncMode.FSYNC) {
-            channel.force(true);
-        } else if (this.syncMode == SyncMode.FDATASYNC) {
-            channel.force(false);
+        int size = 0;
+        for (LogEntry le : entries) {
+            size += le.getSerializedSize();
         }
-        for (LogEntry le : entries) { 
-            le.free();
-            le.getListener().synced(le.getLSN()); 
-        }  
-        entries.clear();
-
-        if (pseudoSyncWait > 0) {
-            synchronized (pseudoSyncWait) {
-                pseudoSyncWait.wait(pseudoSyncWait);
+        
+        // grow the buffer up to the max batch size; larger buffers are only 
+        // needed for single large entries and are not kept
+        ByteBuffer buffer = batchBuffer;
+        if (buffer == null || buffer.capacity() < size) {
+            int capacity = Math.max(size, Math.min(maxBatchSize, buffer == null ? size : 
+                2 * buffer.capacity()));
+            buffer = ByteBuffer.allocate(capacity);
+            if (capacity <= maxBatchSize) {
+                batchBuffer = buffer;
+            }
+        }
+        
+        buffer.clear();
+        for (LogEntry le : entries) {
+            assignLSN(le);
+            
+            try {
+                le.serialize(buffer, csumAlgo);
+            } finally {
+                csumAlgo.reset();
+            }
+            
+            if (Logging.isDebug()) {
+                Logging.logMessage(Logging.LEVEL_DEBUG, this, 
+                        "Writing entry LSN(%d:%d) with %d bytes payload to log.", le.getViewId(), 
+                        le.getLogSequenceNo(), le.getPayload().remaining());
             }
         }
+        buffer.flip();
+        
+        // write the batch to the local disk
+        ensureAllocated(channel.position() + buffer.remaining());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        logFileSize = channel.position();
+        
+        _processedLogEntries.addAndGet(entries.size());
+    }
+    
+    /**
+     * Assigns the next LSN to an entry.
+     * 
+     * @param le
+     * @throws IOException if the entry already has a different LSN
+     */
+    private void assignLSN(LogEntry le) throws IOException {
+        
+        assert (le != null) : "Entry must not be null";
+        int viewID = currentViewId.get();
+        long seqNo = nextLogSequenceNo.getAndIncrement();
+
+        if (le.getLSN() != null &&
+           (le.getLSN().getSequenceNo() != seqNo || le.getLSN().getViewId() != viewID)) { 
+            
+            throw new IOException("LogEntry (" + le.getPayloadType() + ") had unexpected LSN: " + le.getLSN() + 
+                    "\n" + viewID + ":" + seqNo + " was expected instead.");
+        }
+        
+        le.assignId(viewID, seqNo);
     }
     
     /**
@@ -592,9 +1306,211 @@ public class DiskLogger extends LifeCycleThread {
             case SYNC_WRITE : {openMode = "rwd"; break;}
             case SYNC_WRITE_METADATA : {openMode = "rws"; break;}
         }
+        
+        // reuse a zero-filled segment, if available; otherwise, the file is
+        // zero-filled up to the segment size, and a segment for the next log
+        // file is prepared in the background, unless one is available already
+        boolean recycled = segmentSize > 0 && !lf.exists() && reuseRecycledSegment(lf);
+        
         fos = new RandomAccessFile(lf, openMode);
-        fos.setLength(0);
+        if (recycled) {
+            allocatedSize = fos.length();
+        } else {
+            fos.setLength(0);
+            allocatedSize = 0;
+        }
         channel = fos.getChannel();
         fdes = fos.getFD();
+        logFileSize = 0;
+        
+        ensureAllocated(segmentSize);
+        if (segmentSize > 0 && (recycleSegments || listSegments(RECYCLED_SEGMENT_SUFFIX).length == 0)) {
+            prepareSegment();
+        }
+    }
+    
+    /**
+     * Extends the current log file by segments, if log files are preallocated
+     * and the given offset lies behind the preallocated part of the file. The
+     * extension is zero-filled in chunks rather than only setting the file
+     * length, which would create a sparse file whose blocks would have to be
+     * allocated, and whose metadata would have to be synced, with each
+     * subsequent write.
+     * 
+     * @param end
+     *            the offset up to which the file must be allocated
+     * @throws IOException
+     */
+    private void ensureAllocated(long end) throws IOException {
+        
+        if (segmentSize == 0 || end <= allocatedSize) {
+            return;
+        }
+        
+        long size = allocatedSize;
+        while (size < end) {
+            size += segmentSize;
+        }
+        zeroFill(channel, allocatedSize, size);
+        allocatedSize = size;
+    }
+    
+    /**
+     * Schedules the preparation of a zero-filled segment for a subsequent log
+     * file, unless a segment is available or being prepared already.
+     */
+    private void prepareSegment() {
+        
+        try {
+            allocator.execute(new Runnable() {
+                public void run() {
+                    
+                    if (listSegments(RECYCLED_SEGMENT_SUFFIX).length > 0) {
+                        return;
+                    }
+                    
+                    zeroFillSegment(new File(logfileDir + "segment." + System.currentTimeMillis() 
+                            + OBSOLETE_SEGMENT_SUFFIX));
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // the logger has been shut down
+        }
+    }
+    
+    /**
+     * Schedules the zero-filling of an obsolete segment.
+     * 
+     * @param segment
+     */
+    private void fillSegment(final File segment) {
+        
+        try {
+            allocator.execute(new Runnable() {
+                public void run() {
+                    zeroFillSegment(segment);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            segment.delete();
+        }
+    }
+    
+    /**
+     * Zero-fills an obsolete segment and keeps it as a recycled segment. All
+     * entries are overwritten, so that they cannot be mistaken for entries of
+     * the subsequent log file. The segment is deleted if it cannot be
+     * zero-filled.
+     * 
+     * @param segment
+     */
+    private void zeroFillSegment(File segment) {
+        
+        try {
+            RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+            try {
+                raf.setLength(Math.min(raf.length(), segmentSize));
+                zeroFill(raf.getChannel(), 0, segmentSize);
+                raf.getChannel().force(true);
+            } finally {
+                raf.close();
+            }
+            
+            String name = segment.getPath();
+            if (segment.renameTo(new File(name.substring(0, name.length() - OBSOLETE_SEGMENT_SUFFIX.length()) 
+                    + RECYCLED_SEGMENT_SUFFIX))) {
+                return;
+            }
+        } catch (IOException ex) {
+            Logging.logMessage(Logging.LEVEL_WARN, this, "could not zero-fill log segment %s: %s", 
+                    segment.getAbsolutePath(), ex.getMessage());
+        }
+        
+        segment.delete();
+    }
+    
+    /**
+     * Renames a recycled segment to the given log file, if a recycled segment
+     * is available.
+     * 
+     * @param logFile
+     * @return true, if a recycled segment has been renamed to the log file
+     */
+    private boolean reuseRecycledSegment(File logFile) {
+        
+        for (File segment : listSegments(RECYCLED_SEGMENT_SUFFIX)) {
+            if (segment.renameTo(logFile)) {
+                Logging.logMessage(Logging.LEVEL_DEBUG, this, "reusing recycled log segment %s as %s", 
+                        segment.getName(), logFile.getName());
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @param suffix
+     * @return all segments with the given suffix in the log file directory
+     */
+    private File[] listSegments(final String suffix) {
+        
+        File[] segments = new File(logfileDir).listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        
+        return segments == null ? new File[0] : segments;
+    }
+    
+    /**
+     * Keeps a zero-filled log file as a recycled segment.
+     * 
+     * @param logFile
+     * @return true, if the log file has been renamed
+     */
+    private static boolean recycle(File logFile) {
+        return logFile.renameTo(new File(logFile.getPath() + RECYCLED_SEGMENT_SUFFIX));
+    }
+    
+    /**
+     * Writes zeros to a range of a file.
+     * 
+     * @param channel
+     * @param from
+     *            the offset of the first byte to write
+     * @param to
+     *            the offset behind the last byte to write
+     * @throws IOException
+     */
+    private static void zeroFill(FileChannel channel, long from, long to) throws IOException {
+        
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(ZERO_FILL_BUFFER_SIZE, Math.max(to - from, 0)));
+        for (long pos = from; pos < to;) {
+            zeros.clear();
+            if (to - pos < zeros.capacity()) {
+                zeros.limit((int) (to - pos));
+            }
+            pos += channel.write(zeros, pos);
+        }
+    }
+    
+    /**
+     * Creates the daemon threads of the pipeline stages.
+     */
+    private static class StageThreadFactory implements ThreadFactory {
+        
+        private final String name;
+        
+        StageThreadFactory(String name) {
+            this.name = name;
+        }
+        
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
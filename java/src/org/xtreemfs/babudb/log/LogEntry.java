@@ -8,15 +8,28 @@
 
 package org.xtreemfs.babudb.log;
 
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
 import org.xtreemfs.babudb.lsmdb.LSN;
 import org.xtreemfs.babudb.lsmdb.LSMDBRequest;
+import org.xtreemfs.babudb.util.CRC32C;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 import org.xtreemfs.foundation.logging.Logging;
 
 /**
+ * An entry of the database operations log. Entries are serialized in the
+ * current format, which starts with the entry's length and checksum, followed
+ * by a byte that holds the format version and a byte of flags. The flags
+ * indicate whether the checksum is a CRC32C or a CRC32 checksum; see
+ * {@link #createChecksum()}. <br/>
+ * 
+ * Entries of the legacy format, which has neither a version nor flags and is
+ * checksummed with CRC32, are still deserialized. The legacy format starts
+ * with the positive view ID where the current format has the version byte,
+ * whose most significant bit is always set.
  * 
  * @author bjko
  */
@@ -26,8 +39,45 @@ public class LogEntry {
      * length of the entry's header (excluding the length field itself)
      */
     protected static final int  headerLength        = Integer.SIZE / 8 * 4 + 
+                                                  Long.SIZE / 8 + Byte.SIZE / 8 * 3;
+    
+    /**
+     * length of the header of an entry in the legacy format
+     */
+    protected static final int  legacyHeaderLength  = Integer.SIZE / 8 * 4 + 
                                                   Long.SIZE / 8 + Byte.SIZE / 8;
     
+    /**
+     * format version of entries without a version byte, checksummed with CRC32
+     */
+    public static final int     FORMAT_VERSION_LEGACY = 0;
+    
+    /**
+     * format version of entries with a version and a flags byte
+     */
+    public static final int     FORMAT_VERSION      = 1;
+    
+    /**
+     * offset of the version byte in a serialized entry
+     */
+    private static final int    FORMAT_OFFSET       = Integer.SIZE / 8 * 2;
+    
+    /**
+     * bit that distinguishes the version byte from the first byte of the view
+     * ID in legacy entries
+     */
+    private static final int    FORMAT_MARKER       = 0x80;
+    
+    /**
+     * flag that indicates an entry checksummed with CRC32C rather than CRC32
+     */
+    public static final byte    FLAG_CRC32C         = 0x01;
+    
+    /**
+     * flags that are understood by this implementation
+     */
+    private static final byte   SUPPORTED_FLAGS     = FLAG_CRC32C;
+    
     public static final boolean USE_CHECKSUMS       = true;
     
     public static final byte    PAYLOAD_TYPE_INSERT = 0;
@@ -62,6 +112,11 @@ public class LogEntry {
     
     protected byte              payloadType;
     
+    /**
+     * flags that indicate how the entry is checksummed and encoded
+     */
+    protected byte              flags;
+    
     private LogEntry() {
     }
         
@@ -78,6 +133,26 @@ public class LogEntry {
         this.logSequenceNo = logSequenceNo;
     }
     
+    /**
+     * Creates the checksum with which entries are serialized: a CRC32C
+     * checksum, if the JVM provides an implementation, which is hardware
+     * accelerated on most platforms; otherwise, a CRC32 checksum, which is
+     * faster to compute than a CRC32C checksum without JVM support.
+     * 
+     * @return the checksum
+     */
+    public static Checksum createChecksum() {
+        return CRC32C.isProvidedByJVM() ? new CRC32C() : new CRC32();
+    }
+    
+    /**
+     * Serializes the entry in the current format to a new buffer.
+     * 
+     * @param csumAlgo
+     *            a {@link CRC32C} or {@link CRC32} checksum, which has to be
+     *            reset by the caller
+     * @return the buffer
+     */
     public ReusableBuffer serialize(Checksum csumAlgo) {
         assert (viewId > 0);
         assert (logSequenceNo > 0);
@@ -86,6 +161,8 @@ public class LogEntry {
         ReusableBuffer buf = BufferPool.allocate(bufSize);
         buf.putInt(bufSize);
         buf.putInt(checksum);
+        buf.put((byte) (FORMAT_MARKER | FORMAT_VERSION));
+        buf.put(serializedFlags(csumAlgo));
         buf.putInt(viewId);
         buf.putLong(logSequenceNo);
         buf.put(payloadType);
@@ -112,6 +189,58 @@ public class LogEntry {
         return buf;
     }
     
+    /**
+     * Serializes the entry in the current format to the given buffer, starting
+     * at the buffer's current position. This allows a batch of entries to be
+     * serialized into a single buffer and written with a single write
+     * operation.
+     * 
+     * @param buf
+     *            an array-backed buffer with at least
+     *            {@link #getSerializedSize()} remaining bytes
+     * @param csumAlgo
+     *            a {@link CRC32C} or {@link CRC32} checksum, which has to be
+     *            reset by the caller
+     */
+    public void serialize(ByteBuffer buf, Checksum csumAlgo) {
+        assert (viewId > 0);
+        assert (logSequenceNo > 0);
+        
+        final int startPos = buf.position();
+        final int bufSize = getSerializedSize();
+        buf.putInt(bufSize);
+        buf.putInt(0);
+        buf.put((byte) (FORMAT_MARKER | FORMAT_VERSION));
+        buf.put(serializedFlags(csumAlgo));
+        buf.putInt(viewId);
+        buf.putLong(logSequenceNo);
+        buf.put(payloadType);
+        buf.put(payload.getBuffer().duplicate());
+        buf.putInt(bufSize);
+        
+        if (USE_CHECKSUMS) {
+            csumAlgo.update(buf.array(), buf.arrayOffset() + startPos, bufSize);
+            buf.putInt(startPos + Integer.SIZE / 8, (int) csumAlgo.getValue());
+        }
+    }
+    
+    /**
+     * Returns the flags of the entry for serialization with the given
+     * checksum.
+     */
+    private byte serializedFlags(Checksum csumAlgo) {
+        return (byte) (csumAlgo instanceof CRC32C ? flags | FLAG_CRC32C : flags & ~FLAG_CRC32C);
+    }
+    
+    /**
+     * Returns the number of bytes of the serialized entry.
+     * 
+     * @return the size of the serialized entry
+     */
+    public int getSerializedSize() {
+        return headerLength + payload.remaining();
+    }
+    
     public void setListener(SyncListener listener) {
         this.listener = listener;
     }
@@ -132,6 +261,10 @@ public class LogEntry {
         return this.logSequenceNo;
     }
     
+    public byte getFlags() {
+        return this.flags;
+    }
+    
     public LSN getLSN() {
         if (this.viewId == -1 && this.logSequenceNo == -1L) return null;
         else return new LSN(this.viewId, this.logSequenceNo);
@@ -168,19 +301,99 @@ public class LogEntry {
         
     }
     
+    /**
+     * Returns the format version of a serialized entry.
+     * 
+     * @param data
+     *            the serialized entry, starting at the buffer's position
+     * @return the format version
+     * @throws LogEntryException
+     *             if the entry is too short to contain a header
+     */
+    public static int getFormatVersion(ReusableBuffer data) throws LogEntryException {
+        
+        if (data.remaining() < FORMAT_OFFSET + 1)
+            throw new LogEntryException("Empty data. Cannot read log entry.");
+        
+        int format = data.get(data.position() + FORMAT_OFFSET) & 0xFF;
+        return (format & FORMAT_MARKER) == 0 ? FORMAT_VERSION_LEGACY : format & ~FORMAT_MARKER;
+    }
+    
+    /**
+     * Checks whether a serialized entry has a format version and flags that
+     * are understood by this implementation.
+     * 
+     * @param data
+     *            the serialized entry, starting at the buffer's position
+     * @return true, if the entry can be deserialized
+     * @throws LogEntryException
+     *             if the entry is too short to contain a header
+     */
+    public static boolean isSupportedFormat(ReusableBuffer data) throws LogEntryException {
+        
+        int version = getFormatVersion(data);
+        if (version == FORMAT_VERSION_LEGACY)
+            return true;
+        if (version != FORMAT_VERSION || data.remaining() < FORMAT_OFFSET + 2)
+            return false;
+        
+        return (data.get(data.position() + FORMAT_OFFSET + 1) & ~SUPPORTED_FLAGS) == 0;
+    }
+    
+    /**
+     * Deserializes an entry of the current or the legacy format.
+     * 
+     * @param data
+     *            the serialized entry, starting at the buffer's position
+     * @param csumAlgo
+     *            a checksum created with {@link #createChecksum()}, which has to
+     *            be reset by the caller; a separate checksum is used for entries
+     *            that have been checksummed with a different algorithm
+     * @return the entry
+     * @throws LogEntryException
+     *             if the entry is incomplete, corrupted or of an unsupported
+     *             format
+     */
     public static LogEntry deserialize(ReusableBuffer data, Checksum csumAlgo) 
         throws LogEntryException {
         checkIntegrity(data);
         
+        if (!isSupportedFormat(data))
+            throw new LogEntryException("Unsupported log entry format version " + getFormatVersion(data)
+                + ".");
+        
+        final boolean legacy = getFormatVersion(data) == FORMAT_VERSION_LEGACY;
+        
+        // entries of the legacy format are checksummed with CRC32
+        final Checksum entryCsumAlgo;
+        if (!legacy && (data.get(data.position() + FORMAT_OFFSET + 1) & FLAG_CRC32C) != 0)
+            entryCsumAlgo = csumAlgo instanceof CRC32C ? csumAlgo : new CRC32C();
+        else
+            entryCsumAlgo = csumAlgo instanceof CRC32 ? csumAlgo : new CRC32();
+        
         final int startPos = data.position();
         final int bufSize = data.getInt();
         
         LogEntry e = new LogEntry();
         e.checksum = data.getInt();
+        
+        final int entryHeaderLength;
+        if (legacy) {
+            entryHeaderLength = legacyHeaderLength;
+        } else {
+            entryHeaderLength = headerLength;
+            data.get();
+            e.flags = (byte) (data.get() & ~FLAG_CRC32C);
+        }
+        
+        if (bufSize < entryHeaderLength)
+            throw new LogEntryException("Invalid Frame. The length of the log entry is smaller than its "
+                + "header; length=" + bufSize);
+        
         e.viewId = data.getInt();
         e.logSequenceNo = data.getLong();
         e.payloadType = data.get();
-        final int payloadSize = bufSize - headerLength;
+        final int payloadSize = bufSize - entryHeaderLength;
         int payloadPosition = data.position();
         ReusableBuffer payload = data.createViewBuffer();
         payload.range(payloadPosition, payloadSize);
@@ -192,8 +405,8 @@ public class LogEntry {
             data.putInt(0);
             data.position(startPos);
             
-            csumAlgo.update(data.array(), startPos, bufSize);
-            int csum = (int) csumAlgo.getValue();
+            entryCsumAlgo.update(data.array(), startPos, bufSize);
+            int csum = (int) entryCsumAlgo.getValue();
             
             // write back the checksum to the buffer
             data.position(startPos + Integer.SIZE / 8);
@@ -237,6 +450,7 @@ public class LogEntry {
         result.assignId(viewId, logSequenceNo);
         result.attachment = attachment;
         result.checksum = checksum;
+        result.flags = flags;
         return result;
     }
     
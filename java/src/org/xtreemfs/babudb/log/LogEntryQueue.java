@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Felix Langner, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.log;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free queue for log entries with multiple producers and a single
+ * consumer. Producers append entries with a single atomic exchange of the
+ * queue's tail and never block each other; the consumer removes entries
+ * without any atomic operations. <br/>
+ *
+ * An entry becomes visible to the consumer once the producer has linked it
+ * to its predecessor. Until then, the queue may appear empty or end before
+ * the entry, even though {@link #add(LogEntry)} has been invoked; the entry is
+ * visible as soon as {@link #add(LogEntry)} has returned. <br/>
+ *
+ * {@link #poll()}, {@link #peek()} and {@link #isEmpty()} must only be invoked
+ * by the consumer thread.
+ *
+ * @author stenjan
+ */
+class LogEntryQueue {
+
+    /**
+     * the node of the entry that was returned last by the consumer, or an
+     * empty node if no entry has been returned yet
+     */
+    private Node                      head;
+
+    /**
+     * the node of the entry that was added last
+     */
+    private final AtomicReference<Node> tail;
+
+    LogEntryQueue() {
+        head = new Node(null);
+        tail = new AtomicReference<Node>(head);
+    }
+
+    /**
+     * Appends an entry to the queue. May be invoked by any thread.
+     *
+     * @param entry
+     *            the entry
+     */
+    void add(LogEntry entry) {
+
+        assert (entry != null);
+
+        Node node = new Node(entry);
+        Node prev = tail.getAndSet(node);
+        prev.next = node;
+    }
+
+    /**
+     * Removes the first entry from the queue.
+     *
+     * @return the first entry, or <code>null</code> if the queue is empty
+     */
+    LogEntry poll() {
+
+        Node next = head.next;
+        if (next == null)
+            return null;
+
+        LogEntry entry = next.entry;
+        next.entry = null;
+        head = next;
+
+        return entry;
+    }
+
+    /**
+     * Returns the first entry of the queue without removing it.
+     *
+     * @return the first entry, or <code>null</code> if the queue is empty
+     */
+    LogEntry peek() {
+        Node next = head.next;
+        return next == null ? null : next.entry;
+    }
+
+    /**
+     * Checks whether the queue is empty.
+     *
+     * @return <code>true</code>, if the queue is empty
+     */
+    boolean isEmpty() {
+        return head.next == null;
+    }
+
+    private static final class Node {
+
+        LogEntry      entry;
+
+        volatile Node next;
+
+        Node(LogEntry entry) {
+            this.entry = entry;
+        }
+    }
+}
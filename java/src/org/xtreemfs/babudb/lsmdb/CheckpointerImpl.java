@@ -12,12 +12,20 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -30,6 +38,7 @@ import org.xtreemfs.babudb.api.dev.DatabaseInternal;
 import org.xtreemfs.babudb.api.dev.SnapshotManagerInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
+import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.babudb.log.DiskLogger;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
@@ -37,7 +46,9 @@ import org.xtreemfs.foundation.util.OutputUtils;
 
 /**
  * This thread regularly checks the size of the database operations log and
- * initiates a checkpoint of all databases if necessary.
+ * initiates a checkpoint of all databases if necessary. In addition, it
+ * flushes the databases with the largest in-memory overlays to disk if the
+ * total overlay size exceeds the memtable budget.
  * 
  * @author bjko
  */
@@ -63,6 +74,15 @@ public class CheckpointerImpl extends CheckpointerInternal {
     private static final String                RUNTIME_STATE_CPCOUNT        = "checkpointer.cpCount";
     private static final String                RUNTIME_STATE_LASTCP         = "checkpointer.lastCpTimestampMillis";
     private static final String                RUNTIME_STATE_LASTCPDURATION = "checkpointer.lastCpDurationMillis";
+    private static final String                RUNTIME_STATE_COMPACTIONS    = "checkpointer.compactionCount";
+    private static final String                RUNTIME_STATE_FLUSHES        = "checkpointer.flushCount";
+    private static final String                RUNTIME_STATE_MEMTABLESIZE   = "checkpointer.memtableSize";
+    
+    /**
+     * the maximum time in milliseconds a writer is delayed if the memtable
+     * budget is exceeded
+     */
+    private static final int                   MAX_THROTTLE_DELAY           = 10;
     
     private volatile boolean                   quit;
     
@@ -78,6 +98,47 @@ public class CheckpointerImpl extends CheckpointerInternal {
      */
     private long                               maxLogLength;
     
+    /**
+     * Maximum total size of all in-memory overlays in bytes, or 0 if
+     * memory-based flushes are disabled.
+     */
+    private long                               memtableBudget;
+    
+    /**
+     * Total size of all in-memory overlays in bytes at which writers are
+     * blocked.
+     */
+    private long                               memtableHardLimit;
+    
+    /**
+     * indicates whether a writer has requested a flush of the largest
+     * databases
+     */
+    private final AtomicBoolean                flushRequested               = new AtomicBoolean(false);
+    
+    /**
+     * lock on which blocked writers wait for flushes to complete
+     */
+    private final Object                       budgetLock                   = new Object();
+    
+    /**
+     * the thread pool that writes index snapshots in parallel, or
+     * <code>null</code> if snapshots are written by the checkpointer thread
+     */
+    private ExecutorService                    writerPool;
+    
+    /**
+     * the thread that compacts on-disk levels in the background, so that
+     * compactions neither delay checkpoints nor block database modifications
+     */
+    private ExecutorService                    compactionThread;
+    
+    /**
+     * indicates whether a compaction run has been scheduled but not started
+     * yet
+     */
+    private final AtomicBoolean                compactionScheduled          = new AtomicBoolean(false);
+    
     private final BabuDBInternal               dbs;
     
     /**
@@ -86,6 +147,13 @@ public class CheckpointerImpl extends CheckpointerInternal {
      */
     private final List<MaterializationRequest> requests                     = new LinkedList<MaterializationRequest>();
     
+    /**
+     * lock on which the checkpointer thread waits for checkpoint and flush
+     * requests; it is never held while a checkpoint or flush is in progress,
+     * so that requests do not block the requesting threads
+     */
+    private final Object                       triggerLock                  = new Object();
+    
     /**
      * indicates whether the next checkpoint has been triggered manually or
      * automatically
@@ -109,6 +177,10 @@ public class CheckpointerImpl extends CheckpointerInternal {
     
     private AtomicLong                         _lastCheckpointDuration      = new AtomicLong();
     
+    private AtomicInteger                      _compactionCount             = new AtomicInteger();
+    
+    private AtomicInteger                      _flushCount                  = new AtomicInteger();
+    
     /**
      * Creates a new database checkpointer
      * 
@@ -126,6 +198,30 @@ public class CheckpointerImpl extends CheckpointerInternal {
         this.logger = logger;
         this.checkInterval = 1000L * checkInterval;
         this.maxLogLength = maxLogLength;
+        this.memtableBudget = dbs.getConfig().getMemtableBudget();
+        this.memtableHardLimit = dbs.getConfig().getMemtableHardLimit();
+        
+        if (writerPool == null && dbs.getConfig().getCheckpointThreads() > 1)
+            writerPool = Executors.newFixedThreadPool(dbs.getConfig().getCheckpointThreads(), new ThreadFactory() {
+                
+                private int count;
+                
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ChkptrWrtThr-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        
+        if (compactionThread == null)
+            compactionThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ChkptrCmpThr");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         
         if (!suspended.compareAndSet(true, false) && !quit) {
             start();
@@ -152,8 +248,8 @@ public class CheckpointerImpl extends CheckpointerInternal {
         
         synchronized (suspended) {
             if (!suspended.compareAndSet(false, true)) {
-                synchronized (this) {
-                    notify();
+                synchronized (triggerLock) {
+                    triggerLock.notify();
                 }
                 suspended.wait();
             }
@@ -174,10 +270,10 @@ public class CheckpointerImpl extends CheckpointerInternal {
         
         // notify the checkpointing thread to immediately process all requests
         // in the processing queue
-        synchronized (this) {
+        synchronized (triggerLock) {
             incrementViewId = incViewId;
             forceCheckpoint = true;
-            notify();
+            triggerLock.notify();
         }
         
         // wait for the checkpoint to complete
@@ -257,7 +353,8 @@ public class CheckpointerImpl extends CheckpointerInternal {
     private void createCheckpoint() throws BabuDBException, InterruptedException {
         Logging.logMessage(Logging.LEVEL_INFO, this, "initiating database checkpoint...");
         
-        Collection<DatabaseInternal> databases = dbs.getDatabaseManager().getDatabaseList();
+        List<DatabaseInternal> databases = new ArrayList<DatabaseInternal>(dbs.getDatabaseManager()
+                .getDatabaseList());
         
         try {
             int[][] snapIds = new int[databases.size()][];
@@ -269,17 +366,30 @@ public class CheckpointerImpl extends CheckpointerInternal {
                 for (DatabaseInternal db : databases) {
                     snapIds[i++] = db.proceedCreateSnapshot();
                 }
-                lastWrittenLSN = logger.switchLogFile(incrementViewId);
-                incrementViewId = false;
+                boolean incViewId;
+                synchronized (triggerLock) {
+                    incViewId = incrementViewId;
+                    incrementViewId = false;
+                }
+                lastWrittenLSN = logger.switchLogFile(incViewId);
             } finally {
                 if (logger.hasLock())
                     logger.unlock();
             }
             
-            i = 0;
-            for (DatabaseInternal db : databases) {
-                db.proceedWriteSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo(), snapIds[i++]);
-                db.proceedCleanupSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo());
+            if (writerPool == null) {
+                i = 0;
+                for (DatabaseInternal db : databases) {
+                    db.proceedWriteSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo(),
+                            snapIds[i++]);
+                    db.proceedCleanupSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo());
+                }
+            } else {
+                // write all indices in parallel, and link the databases to
+                // the new snapshots afterwards
+                writeSnapshots(databases, snapIds, lastWrittenLSN);
+                for (DatabaseInternal db : databases)
+                    db.proceedCleanupSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo());
             }
             
             // delete all logfile with LSN <= lastWrittenLSN
@@ -303,7 +413,7 @@ public class CheckpointerImpl extends CheckpointerInternal {
                     if (logLSN.compareTo(lastWrittenLSN) <= 0) {
                         Logging.logMessage(Logging.LEVEL_DEBUG, this, "deleting old db log file: " + log);
                         f = new File(dbs.getConfig().getDbLogDir() + log);
-                        if (!f.delete())
+                        if (!logger.removeLogFile(f))
                             Logging.logMessage(Logging.LEVEL_WARN, this, "could not delete log file: %s",
                                     f.getAbsolutePath());
                     }
@@ -315,6 +425,194 @@ public class CheckpointerImpl extends CheckpointerInternal {
         Logging.logMessage(Logging.LEVEL_INFO, this, "checkpoint complete");
     }
     
+    /**
+     * Flushes the in-memory overlays of the databases with the largest
+     * overlays to disk, until the total overlay size has dropped to half of
+     * the memtable budget. Other than a checkpoint, a flush does not switch
+     * or delete any log files: the on-disk LSN of a flushed database is the
+     * LSN of the latest log entry, and the log is still replayed from the
+     * smallest on-disk LSN of all databases on recovery.
+     * 
+     * @throws BabuDBException
+     *             if a database could not be flushed
+     * @throws InterruptedException
+     */
+    private void flushDatabases() throws BabuDBException, InterruptedException {
+        
+        List<DatabaseInternal> databases = new ArrayList<DatabaseInternal>(dbs.getDatabaseManager()
+                .getDatabaseList());
+        
+        final Map<DatabaseInternal, Long> sizes = new HashMap<DatabaseInternal, Long>();
+        for (DatabaseInternal db : databases)
+            sizes.put(db, db.getLSMDB().getOverlaySize());
+        
+        // flush the largest databases first
+        Collections.sort(databases, new Comparator<DatabaseInternal>() {
+            public int compare(DatabaseInternal o1, DatabaseInternal o2) {
+                return sizes.get(o2).compareTo(sizes.get(o1));
+            }
+        });
+        
+        for (DatabaseInternal db : databases) {
+            
+            if (quit || LSMTree.getTotalOverlaySize() <= memtableBudget / 2)
+                break;
+            
+            if (sizes.get(db) == 0)
+                break;
+            
+            int[] snapIds;
+            LSN lsn;
+            try {
+                logger.lock();
+                lsn = logger.getLatestLSN();
+                
+                // if no entries have been logged since the last on-disk
+                // snapshot of the database, the overlay contains no logged
+                // entries that could be flushed
+                if (lsn.compareTo(db.getLSMDB().getOndiskLSN()) <= 0)
+                    continue;
+                
+                snapIds = db.proceedCreateSnapshot();
+            } finally {
+                if (logger.hasLock())
+                    logger.unlock();
+            }
+            
+            if (Logging.isInfo())
+                Logging.logMessage(Logging.LEVEL_INFO, this, "flushing database '%s' (%s) at LSN %s", db
+                        .getName(), OutputUtils.formatBytes(sizes.get(db)), lsn);
+            
+            if (writerPool == null)
+                db.proceedWriteSnapshot(lsn.getViewId(), lsn.getSequenceNo(), snapIds);
+            else
+                writeSnapshots(Collections.singletonList(db), new int[][] { snapIds }, lsn);
+            db.proceedCleanupSnapshot(lsn.getViewId(), lsn.getSequenceNo());
+            
+            _flushCount.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Writes the snapshots of all indices of the given databases in parallel,
+     * by means of the writer pool. The method returns when all snapshots have
+     * been written.
+     * 
+     * @param databases
+     *            the databases
+     * @param snapIds
+     *            the snapshot IDs of the indices of each database
+     * @param lsn
+     *            the LSN of the snapshots
+     * @throws BabuDBException
+     *             if a snapshot could not be written
+     * @throws InterruptedException
+     */
+    private void writeSnapshots(List<DatabaseInternal> databases, int[][] snapIds, final LSN lsn)
+        throws BabuDBException, InterruptedException {
+        
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < databases.size(); i++) {
+            
+            final LSMDatabase lsmDB = databases.get(i).getLSMDB();
+            for (int index = 0; index < snapIds[i].length; index++) {
+                
+                final int indexId = index;
+                final int snapId = snapIds[i][index];
+                futures.add(writerPool.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        lsmDB.writeSnapshot(indexId, lsn.getViewId(), lsn.getSequenceNo(), snapId);
+                        return null;
+                    }
+                }));
+            }
+        }
+        
+        // wait for all snapshots, even if some of them have failed, so that no
+        // snapshot is still being written when the databases are linked to
+        // the new snapshots
+        Throwable error = null;
+        try {
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException exc) {
+                    if (error == null)
+                        error = exc.getCause();
+                }
+            }
+        } catch (InterruptedException exc) {
+            for (Future<Object> future : futures)
+                future.cancel(true);
+            throw exc;
+        }
+        
+        if (error != null)
+            throw new BabuDBException(ErrorCode.IO_ERROR, "cannot write snapshot: " + error, error);
+    }
+    
+    /**
+     * Schedules a compaction run on the compaction thread, unless a run has
+     * already been scheduled.
+     */
+    private void scheduleCompaction() {
+        
+        if (!compactionScheduled.compareAndSet(false, true))
+            return;
+        
+        compactionThread.execute(new Runnable() {
+            public void run() {
+                
+                compactionScheduled.set(false);
+                try {
+                    compactDatabases();
+                } catch (Throwable ex) {
+                    if (quit) {
+                        Logging.logMessage(Logging.LEVEL_DEBUG, this, "COMPACTION WAS ABORTED!");
+                    } else {
+                        Logging.logMessage(Logging.LEVEL_ERROR, this, "DATABASE COMPACTION FAILURE!");
+                        Logging.logMessage(Logging.LEVEL_ERROR, this, OutputUtils.stackTraceToString(ex));
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Merges on-disk levels of multi-level indices that exceed their maximum
+     * sizes into the next levels. This is done by the compaction thread in
+     * between checkpoints, so that checkpoints only need to write the lowest
+     * level. Each index performs one compaction step at a time, and the
+     * database modification lock is not held, so that checkpoints and
+     * database modifications may proceed concurrently.
+     * 
+     * @throws BabuDBException
+     *             if a compaction failed
+     */
+    private void compactDatabases() throws BabuDBException {
+        
+        boolean compacted = true;
+        while (compacted) {
+            
+            compacted = false;
+            for (DatabaseInternal db : dbs.getDatabaseManager().getDatabaseList()) {
+                
+                if (quit || suspended.get())
+                    return;
+                
+                try {
+                    if (db.getLSMDB().compact()) {
+                        _compactionCount.incrementAndGet();
+                        compacted = true;
+                    }
+                } catch (IOException exc) {
+                    throw new BabuDBException(ErrorCode.IO_ERROR, "cannot compact database '"
+                        + db.getName() + "'", exc);
+                }
+            }
+        }
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -350,6 +648,45 @@ public class CheckpointerImpl extends CheckpointerInternal {
         }
     }
     
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.CheckpointerInternal#throttleWriter()
+     */
+    @Override
+    public void throttleWriter() throws InterruptedException {
+        
+        if (memtableBudget <= 0 || Thread.currentThread() == this)
+            return;
+        
+        long size = LSMTree.getTotalOverlaySize();
+        if (size <= memtableBudget)
+            return;
+        
+        // request a flush; only the first writer exceeding the budget needs
+        // to wake up the checkpointer
+        if (flushRequested.compareAndSet(false, true)) {
+            synchronized (triggerLock) {
+                triggerLock.notify();
+            }
+        }
+        
+        // slow down the writer in proportion to the amount by which the
+        // budget is exceeded
+        if (size < memtableHardLimit) {
+            Thread.sleep(MAX_THROTTLE_DELAY * (size - memtableBudget) / (memtableHardLimit - memtableBudget));
+            return;
+        }
+        
+        // block the writer until databases have been flushed, unless
+        // checkpointing is not possible at the moment
+        synchronized (budgetLock) {
+            while (LSMTree.getTotalOverlaySize() >= memtableHardLimit && !quit && !suspended.get()
+                && isAlive())
+                budgetLock.wait(100);
+        }
+    }
+    
     @Override
     public synchronized void shutdown() {
         quit = true;
@@ -363,9 +700,9 @@ public class CheckpointerImpl extends CheckpointerInternal {
         notifyStarted();
         while (!quit) {
             try {
-                synchronized (this) {
-                    if (!forceCheckpoint) {
-                        wait(checkInterval);
+                synchronized (triggerLock) {
+                    if (!forceCheckpoint && !flushRequested.get()) {
+                        triggerLock.wait(checkInterval);
                     }
                     manualCheckpoint = forceCheckpoint;
                     forceCheckpoint = false;
@@ -396,16 +733,27 @@ public class CheckpointerImpl extends CheckpointerInternal {
                     }
                     
                     synchronized (dbs.getDatabaseManager().getDBModificationLock()) {
-                        synchronized (this) {
-                            long start = System.currentTimeMillis();
-                            materializeSnapshots();
-                            createCheckpoint();
-                            
-                            // update statistics
-                            _checkpointCount.incrementAndGet();
-                            _lastCheckpoint.set(System.currentTimeMillis());
-                            _lastCheckpointDuration.set(System.currentTimeMillis() - start);
-                        }
+                        long start = System.currentTimeMillis();
+                        materializeSnapshots();
+                        createCheckpoint();
+                        
+                        // update statistics
+                        _checkpointCount.incrementAndGet();
+                        _lastCheckpoint.set(System.currentTimeMillis());
+                        _lastCheckpointDuration.set(System.currentTimeMillis() - start);
+                    }
+                }
+                
+                // flush the largest databases if the memtable budget has
+                // been exceeded
+                flushRequested.set(false);
+                if (memtableBudget > 0 && LSMTree.getTotalOverlaySize() > memtableBudget) {
+                    
+                    Logging.logMessage(Logging.LEVEL_INFO, this, "in-memory overlays have exceeded memtable "
+                            + "budget of " + memtableBudget + " (" + LSMTree.getTotalOverlaySize() + ")");
+                    
+                    synchronized (dbs.getDatabaseManager().getDBModificationLock()) {
+                        flushDatabases();
                     }
                 }
             } catch (InterruptedException ex) {
@@ -426,9 +774,23 @@ public class CheckpointerImpl extends CheckpointerInternal {
                     checkpointComplete.set(true);
                     checkpointComplete.notify();
                 }
+                
+                // wake up any writers that are blocked by the memtable budget
+                synchronized (budgetLock) {
+                    budgetLock.notifyAll();
+                }
             }
+            
+            // compactions are performed by the compaction thread after the
+            // checkpoint has been completed, so as to not delay it
+            if (!quit)
+                scheduleCompaction();
         }
         
+        if (writerPool != null)
+            writerPool.shutdownNow();
+        compactionThread.shutdownNow();
+        
         Logging.logMessage(Logging.LEVEL_DEBUG, this, "checkpointer shut down " + "successfully");
         notifyStopped();
     }
@@ -457,6 +819,12 @@ public class CheckpointerImpl extends CheckpointerInternal {
             return _lastCheckpoint.get();
         if (RUNTIME_STATE_LASTCPDURATION.equals(property))
             return _lastCheckpointDuration.get();
+        if (RUNTIME_STATE_COMPACTIONS.equals(property))
+            return _compactionCount.get();
+        if (RUNTIME_STATE_FLUSHES.equals(property))
+            return _flushCount.get();
+        if (RUNTIME_STATE_MEMTABLESIZE.equals(property))
+            return LSMTree.getTotalOverlaySize();
         
         return null;
     }
@@ -467,6 +835,9 @@ public class CheckpointerImpl extends CheckpointerInternal {
         map.put(RUNTIME_STATE_CPCOUNT, _checkpointCount.get());
         map.put(RUNTIME_STATE_LASTCP, _lastCheckpoint.get());
         map.put(RUNTIME_STATE_LASTCPDURATION, _lastCheckpointDuration.get());
+        map.put(RUNTIME_STATE_COMPACTIONS, _compactionCount.get());
+        map.put(RUNTIME_STATE_FLUSHES, _flushCount.get());
+        map.put(RUNTIME_STATE_MEMTABLESIZE, LSMTree.getTotalOverlaySize());
         return map;
     }
     
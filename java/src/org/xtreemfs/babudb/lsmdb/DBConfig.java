@@ -102,19 +102,11 @@ public class DBConfig {
                         db = dbman.getDatabase(dbId);
                         db.setLSMDB(new LSMDatabase(dbName, dbId, dbs.getConfig().getBaseDir() 
                                 + dbName + File.separatorChar, numIndex, true, comps, 
-                                dbs.getConfig().getCompression(), 
-                                dbs.getConfig().getMaxNumRecordsPerBlock(), 
-                                dbs.getConfig().getMaxBlockFileSize(), 
-                                dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                                dbs.getConfig()));
                     } catch (BabuDBException e) {
                         db = new DatabaseImpl(dbs, new LSMDatabase(dbName, dbId, 
                                 dbs.getConfig().getBaseDir() + dbName + File.separatorChar, 
-                                numIndex, true, comps, dbs.getConfig().getCompression(), 
-                                dbs.getConfig().getMaxNumRecordsPerBlock(), 
-                                dbs.getConfig().getMaxBlockFileSize(), 
-                                dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                                numIndex, true, comps, dbs.getConfig()));
                         
                         dbman.putDatabase(db);
                     }
@@ -195,10 +187,7 @@ public class DBConfig {
                     if (!conversionRequired) {
                         DatabaseInternal db = new DatabaseImpl(this.dbs, 
                                 new LSMDatabase(dbName, dbId, this.dbs.getConfig().getBaseDir()
-                            + dbName + File.separatorChar, numIndex, true, comps, dbs.getConfig()
-                                .getCompression(), this.dbs.getConfig().getMaxNumRecordsPerBlock(), 
-                                dbs.getConfig().getMaxBlockFileSize(), dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                            + dbName + File.separatorChar, numIndex, true, comps, dbs.getConfig()));
                         dbman.putDatabase(db);
                         Logging.logMessage(Logging.LEVEL_DEBUG, this, "loaded DB " + dbName
                             + "(" + dbId + ") successfully.");
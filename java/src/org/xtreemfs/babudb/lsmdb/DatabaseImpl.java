@@ -10,17 +10,20 @@ package org.xtreemfs.babudb.lsmdb;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.List;
 
 import org.xtreemfs.babudb.BabuDBRequestResultImpl;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
 import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.database.UserDefinedLookup;
+import org.xtreemfs.babudb.api.database.ValueBuffer;
 import org.xtreemfs.babudb.api.dev.BabuDBInternal;
 import org.xtreemfs.babudb.api.dev.DatabaseInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.reader.IndexCorruptedException;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
@@ -103,6 +106,17 @@ public class DatabaseImpl implements DatabaseInternal {
         InsertRecordGroup ins = irg.getRecord();
         int dbId = ins.getDatabaseId();
         
+        // slow down the insertion if the memtable budget has been exceeded
+        try {
+            dbs.getCheckpointer().throttleWriter();
+        } catch (InterruptedException ex) {
+            BabuDBRequestResultImpl<Object> result = 
+                new BabuDBRequestResultImpl<Object>(context, dbs.getResponseManager());
+            result.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
+                    "operation was interrupted", ex));
+            return result;
+        }
+        
         LSMDBWorker w = dbs.getWorker(dbId);
         if (w != null) {
             if (Logging.isDebug()) {
@@ -169,7 +183,7 @@ public class DatabaseImpl implements DatabaseInternal {
         
         BabuDBRequestResultImpl<byte[]> result = 
             new BabuDBRequestResultImpl<byte[]>(context, dbs.getResponseManager());
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
+        LSMDBWorker w = getLookupWorker();
         if (w != null) {
             if (Logging.isDebug()) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, this, "lookup request" 
@@ -190,6 +204,95 @@ public class DatabaseImpl implements DatabaseInternal {
         return result;
     }
     
+    /* (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#multiLookup(int, 
+     * byte[][], java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<byte[][]> multiLookup(final int indexId, 
+            final byte[][] keys, Object context) {
+        
+        BabuDBRequestResultImpl<byte[][]> result = 
+            new BabuDBRequestResultImpl<byte[][]>(context, 
+                    dbs.getResponseManager());
+        
+        executeLookup(new UserDefinedLookup() {
+            public Object execute(LSMLookupInterface database) 
+                    throws BabuDBException {
+                return database.multiLookup(indexId, keys);
+            }
+        }, result);
+        
+        return result;
+    }
+    
+    /* (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#lookupBuffer(int, 
+     * byte[], java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<ValueBuffer> lookupBuffer(final int indexId, 
+            final byte[] key, Object context) {
+        
+        BabuDBRequestResultImpl<ValueBuffer> result = 
+            new BabuDBRequestResultImpl<ValueBuffer>(context, 
+                    dbs.getResponseManager());
+        
+        executeLookup(new UserDefinedLookup() {
+            public Object execute(LSMLookupInterface database) 
+                    throws BabuDBException {
+                return database.lookupBuffer(indexId, key);
+            }
+        }, result);
+        
+        return result;
+    }
+    
+    /**
+     * Executes a lookup with a typed result like a user-defined lookup, so as
+     * to ensure that it is processed by the same worker as all other requests
+     * on the database.
+     * 
+     * @param udl
+     *            the lookup, which has to return an instance of <code>T</code>
+     * @param result
+     *            the result listener
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void executeLookup(UserDefinedLookup udl, 
+            BabuDBRequestResultImpl<T> result) {
+        
+        LSMDBWorker w = getLookupWorker();
+        if (w != null) {
+            try {
+                w.addRequest(new LSMDBRequest<T>(lsmDB, result, udl));
+            } catch (InterruptedException ex) {
+                result.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
+                        "operation was interrupted", ex));
+            }
+        } else {
+            try {
+                result.finished((T) udl.execute(new LSMLookupInterface(lsmDB)));
+            } catch (BabuDBException e) {
+                result.failed(e);
+            } catch (IndexCorruptedException exc) {
+                result.failed(corrupted(exc));
+            }
+        }
+    }
+    
+    /**
+     * Returns the worker thread responsible for lookups in the database.
+     * 
+     * @return the worker thread, or <code>null</code> if lookups are to be
+     *         performed by the calling thread
+     */
+    private LSMDBWorker getLookupWorker() {
+        return dbs.getConfig().getDirectLookups() ? null : dbs.getWorker(lsmDB.getDatabaseId());
+    }
+    
     /**
      * Looks up a key in the database, without using a worker thread.
      * 
@@ -204,8 +307,16 @@ public class DatabaseImpl implements DatabaseInternal {
         if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0)) {
             listener.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
                     "index does not exist"));
-        } else
-            listener.finished(lsmDB.getIndex(indexId).lookup(key));
+        } else {
+            byte[] value;
+            try {
+                value = lsmDB.getIndex(indexId).lookup(key);
+            } catch (IndexCorruptedException exc) {
+                listener.failed(corrupted(exc));
+                return;
+            }
+            listener.finished(value);
+        }
     }
     
     /* (non-Javadoc)
@@ -244,7 +355,7 @@ public class DatabaseImpl implements DatabaseInternal {
         
         // if there are worker threads, delegate the prefix lookup to the
         // responsible worker thread
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
+        LSMDBWorker w = getLookupWorker();
         if (w != null) {
             if (Logging.isDebug() && w != null) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, this, "lookup request" 
@@ -267,9 +378,16 @@ public class DatabaseImpl implements DatabaseInternal {
             if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
                 result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
                         "index does not exist"));
-            else
-                result.finished(lsmDB.getIndex(indexId).prefixLookup(key, 
-                        ascending));
+            else {
+                ResultSet<byte[], byte[]> it;
+                try {
+                    it = lsmDB.getIndex(indexId).prefixLookup(key, ascending);
+                } catch (IndexCorruptedException exc) {
+                    result.failed(corrupted(exc));
+                    return result;
+                }
+                result.finished(it);
+            }
         }
         
         return result;
@@ -316,7 +434,7 @@ public class DatabaseImpl implements DatabaseInternal {
         
         // if there are worker threads, delegate the range lookup to the
         // responsible worker thread
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
+        LSMDBWorker w = getLookupWorker();
         if (w != null) {
             if (Logging.isDebug() && w != null) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, this, "lookup request" 
@@ -339,14 +457,45 @@ public class DatabaseImpl implements DatabaseInternal {
             if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
                 result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
                         "index does not exist"));
-            else
-                result.finished(lsmDB.getIndex(indexId).rangeLookup(from, to, 
-                        ascending));
+            else {
+                ResultSet<byte[], byte[]> it;
+                try {
+                    it = lsmDB.getIndex(indexId).rangeLookup(from, to, ascending);
+                } catch (IndexCorruptedException exc) {
+                    result.failed(corrupted(exc));
+                    return result;
+                }
+                result.finished(it);
+            }
         }
         
         return result;
     }
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#parallelRangeLookup(int, 
+     *          byte[], byte[], int, java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<List<ResultSet<byte[], byte[]>>> 
+            parallelRangeLookup(final int indexId, final byte[] from, 
+                    final byte[] to, final int parallelism, Object context) {
+        
+        BabuDBRequestResultImpl<List<ResultSet<byte[], byte[]>>> result = 
+            new BabuDBRequestResultImpl<List<ResultSet<byte[], byte[]>>>(
+                    context, dbs.getResponseManager());
+        
+        executeLookup(new UserDefinedLookup() {
+            public Object execute(LSMLookupInterface database) 
+                    throws BabuDBException {
+                return database.parallelRangeLookup(indexId, from, to, 
+                        parallelism);
+            }
+        }, result);
+        
+        return result;
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -361,7 +510,7 @@ public class DatabaseImpl implements DatabaseInternal {
         final BabuDBRequestResultImpl<Object> result = 
             new BabuDBRequestResultImpl<Object>(context, dbs.getResponseManager());
         
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
+        LSMDBWorker w = getLookupWorker();
         if (w != null) {
             if (Logging.isNotice()) {
                 Logging.logMessage(Logging.LEVEL_NOTICE, this, "udl request is" 
@@ -395,9 +544,23 @@ public class DatabaseImpl implements DatabaseInternal {
             listener.finished(result);
         } catch (BabuDBException e) {
             listener.failed(e);
+        } catch (IndexCorruptedException exc) {
+            listener.failed(corrupted(exc));
         }
     }
     
+    /**
+     * Translates the corruption of an on-disk index into a database error.
+     * 
+     * @param exc
+     *            the exception that indicates the corruption
+     * @return the database error
+     */
+    private BabuDBException corrupted(IndexCorruptedException exc) {
+        Logging.logError(Logging.LEVEL_ERROR, this, exc);
+        return new BabuDBException(ErrorCode.IO_ERROR, exc.getMessage(), exc);
+    }
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.dev.DatabaseInternal#directLookup(int, int, byte[])
      */
@@ -409,7 +572,11 @@ public class DatabaseImpl implements DatabaseInternal {
             throw new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
                     "index does not exist");
         }
-        return lsmDB.getIndex(indexId).lookup(key, snapId);
+        try {
+            return lsmDB.getIndex(indexId).lookup(key, snapId);
+        } catch (IndexCorruptedException exc) {
+            throw corrupted(exc);
+        }
     }
     
     /* (non-Javadoc)
@@ -424,7 +591,11 @@ public class DatabaseImpl implements DatabaseInternal {
             throw new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
                     "index does not exist");
         }
-        return lsmDB.getIndex(indexId).prefixLookup(key, snapId, ascending);
+        try {
+            return lsmDB.getIndex(indexId).prefixLookup(key, snapId, ascending);
+        } catch (IndexCorruptedException exc) {
+            throw corrupted(exc);
+        }
     }
 
     /* (non-Javadoc)
@@ -440,7 +611,11 @@ public class DatabaseImpl implements DatabaseInternal {
             throw new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
                     "index does not exist");
         }
-        return lsmDB.getIndex(indexId).rangeLookup(from, to, snapId, ascending);
+        try {
+            return lsmDB.getIndex(indexId).rangeLookup(from, to, snapId, ascending);
+        } catch (IndexCorruptedException exc) {
+            throw corrupted(exc);
+        }
     }
     
     /* (non-Javadoc)
@@ -347,9 +347,7 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                         final int dbId = nextDbId++;
                         db = new DatabaseImpl(dbs, new LSMDatabase(operation.getDatabaseName(), dbId, dbs.getConfig()
                                 .getBaseDir() + operation.getDatabaseName() + File.separatorChar, numIndices, false,
-                                com, dbs.getConfig().getCompression(), dbs.getConfig().getMaxNumRecordsPerBlock(), dbs
-                                        .getConfig().getMaxBlockFileSize(), dbs.getConfig().getDisableMMap(), dbs
-                                        .getConfig().getMMapLimit()));
+                                com, dbs.getConfig()));
                         dbsById.put(dbId, db);
                         dbsByName.put(operation.getDatabaseName(), db);
                         dbs.getDBConfigFile().save();
@@ -462,9 +460,7 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                 // create new DB and load from snapshot
                 DatabaseInternal newDB = new DatabaseImpl(dbs, new LSMDatabase(destDB, dbId, dbs.getConfig()
                         .getBaseDir() + destDB + File.separatorChar, sDB.getLSMDB().getIndexCount(), true, sDB
-                        .getComparators(), dbs.getConfig().getCompression(),
-                        dbs.getConfig().getMaxNumRecordsPerBlock(), dbs.getConfig().getMaxBlockFileSize(), dbs
-                                .getConfig().getDisableMMap(), dbs.getConfig().getMMapLimit()));
+                        .getComparators(), dbs.getConfig()));
                 
                 // insert real database
                 synchronized (dbModificationLock) {
@@ -693,6 +689,14 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
      */
     @Override
     public void executeTransaction(Transaction txn) throws BabuDBException {
+        
+        // slow down the transaction if the memtable budget has been exceeded
+        try {
+            dbs.getCheckpointer().throttleWriter();
+        } catch (InterruptedException ie) {
+            throw new BabuDBException(ErrorCode.INTERRUPTED, ie.getMessage(), ie);
+        }
+        
         executeTransaction((TransactionInternal) txn);
     }
     
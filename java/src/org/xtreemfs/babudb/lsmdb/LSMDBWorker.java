@@ -19,6 +19,7 @@ import org.xtreemfs.babudb.api.database.UserDefinedLookup;
 import org.xtreemfs.babudb.api.dev.BabuDBInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
+import org.xtreemfs.babudb.index.reader.IndexCorruptedException;
 import org.xtreemfs.foundation.LifeCycleThread;
 import org.xtreemfs.foundation.logging.Logging;
 
@@ -158,29 +159,34 @@ public class LSMDBWorker extends LifeCycleThread {
     
     @SuppressWarnings("unchecked")
     private void processRequest(LSMDBRequest<?> r) {
-        switch (r.getOperation()) {
-        case INSERT:
-            doInsert(r);
-            break;
-        case LOOKUP:
-            doLookup((LSMDBRequest<byte[]>) r);
-            break;
-        case PREFIX_LOOKUP:
-            doPrefixLookup((LSMDBRequest<Iterator<Entry<byte[], byte[]>>>) r);
-            break;
-        case RANGE_LOOKUP:
-            doRangeLookup((LSMDBRequest<Iterator<Entry<byte[], byte[]>>>) r);
-            break;
-        case USER_DEFINED_LOOKUP:
-            doUserLookup((LSMDBRequest<Object>) r);
-            break;
-        case LOCK:
-            doLock((LSMDBRequest<Object>) r);
-            break;
-        default:
-            Logging.logMessage(Logging.LEVEL_ERROR, this,
-                "UNKNOWN OPERATION REQUESTED! PROGRAMMATIC ERROR!!!! PANIC!");
-            System.exit(1);
+        try {
+            switch (r.getOperation()) {
+            case INSERT:
+                doInsert(r);
+                break;
+            case LOOKUP:
+                doLookup((LSMDBRequest<byte[]>) r);
+                break;
+            case PREFIX_LOOKUP:
+                doPrefixLookup((LSMDBRequest<Iterator<Entry<byte[], byte[]>>>) r);
+                break;
+            case RANGE_LOOKUP:
+                doRangeLookup((LSMDBRequest<Iterator<Entry<byte[], byte[]>>>) r);
+                break;
+            case USER_DEFINED_LOOKUP:
+                doUserLookup((LSMDBRequest<Object>) r);
+                break;
+            case LOCK:
+                doLock((LSMDBRequest<Object>) r);
+                break;
+            default:
+                Logging.logMessage(Logging.LEVEL_ERROR, this,
+                    "UNKNOWN OPERATION REQUESTED! PROGRAMMATIC ERROR!!!! PANIC!");
+                System.exit(1);
+            }
+        } catch (IndexCorruptedException exc) {
+            Logging.logError(Logging.LEVEL_ERROR, this, exc);
+            r.getListener().failed(new BabuDBException(ErrorCode.IO_ERROR, exc.getMessage(), exc));
         }
     }
     
@@ -20,7 +20,9 @@ import java.util.regex.Pattern;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.config.BabuDBConfig;
 import org.xtreemfs.babudb.index.LSMTree;
+import org.xtreemfs.babudb.index.codec.BlockCodec;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.util.FSUtils;
@@ -86,7 +88,7 @@ public class LSMDatabase {
     /**
      * the maximum size of an on-disk index file
      */
-    private final int                   maxBlockFileSize;
+    private final long                  maxBlockFileSize;
     
     /**
      * disables memory-mapping of block files
@@ -99,6 +101,87 @@ public class LSMDatabase {
      */
     private final int                   mmapLimit;
     
+    /**
+     * the false-positive rate of the Bloom filters of on-disk indices
+     */
+    private final double                bloomFilterFPR;
+    
+    /**
+     * the number of on-disk levels of each index
+     */
+    private final int                   numLevels;
+    
+    /**
+     * the maximum size of level 0 of each index
+     */
+    private final long                  level0Size;
+    
+    /**
+     * the factor by which the maximum size of each subsequent level grows
+     */
+    private final int                   levelFanout;
+    
+    /**
+     * specifies whether checkpoints only write the overlay of each index
+     */
+    private final boolean               incrementalCheckpoints;
+    
+    /**
+     * specifies whether lookups may be performed concurrently with insertions
+     */
+    private final boolean               concurrentLookups;
+    
+    /**
+     * specifies whether the overlays of all indices are kept off-heap
+     */
+    private final boolean               offHeapOverlays;
+    
+    /**
+     * the codec that compresses the blocks of on-disk indices, or
+     * <code>null</code> if blocks are not compressed
+     */
+    private final BlockCodec            blockCodec;
+    
+    /**
+     * the target size of blocks of on-disk indices in bytes, or 0 if blocks
+     * are bounded by their number of entries
+     */
+    private final int                   maxBlockSize;
+    
+    /**
+     * Creates a new database and loads data from disk if requested. All
+     * index-related settings are taken from the given configuration. If no
+     * worker threads are used or lookups bypass the worker threads, lookups
+     * may be performed concurrently with insertions.
+     * 
+     * @param databaseName
+     *            the name of the database
+     * @param databaseId
+     *            the numeric database ID
+     * @param databaseDir
+     *            the directory in which the DB stores the checkpoints
+     * @param numIndices
+     *            number of indices (cannot be changed)
+     * @param readFromDisk
+     *            true if data should be read from disk
+     * @param comparators
+     *            an array containing the comparators of all indices
+     * @param config
+     *            the BabuDB configuration
+     * @throws BabuDBException
+     *             if on-disk data cannot be read or DB directory cannot be
+     *             created
+     */
+    public LSMDatabase(String databaseName, int databaseId, String databaseDir, int numIndices,
+        boolean readFromDisk, ByteRangeComparator[] comparators, BabuDBConfig config) throws BabuDBException {
+        this(databaseName, databaseId, databaseDir, numIndices, readFromDisk, comparators, config
+                .getCompression(), config.getMaxNumRecordsPerBlock(), config.getMaxBlockFileSize(), config
+                .getDisableMMap(), config.getMMapLimit(), config.getBloomFilterFPR(), config.getNumLevels(),
+            config.getLevel0Size(), config.getLevelFanout(), config.getIncrementalCheckpoints(),
+            config.getNumThreads() == 0 || config.getDirectLookups(), config.getOffHeapOverlays(), BlockCodec
+                    .getCodec(config.getBlockCodec()), config.getMaxBlockSize());
+    }
+    
     /**
      * Creates a new database and loads data from disk if requested.
      * 
@@ -131,7 +214,73 @@ public class LSMDatabase {
      */
     public LSMDatabase(String databaseName, int databaseId, String databaseDir, int numIndices,
         boolean readFromDisk, ByteRangeComparator[] comparators, boolean compression, int maxEntriesPerBlock,
-        int maxBlockFileSize, boolean disableMMap, int mmapLimit) throws BabuDBException {
+        long maxBlockFileSize, boolean disableMMap, int mmapLimit) throws BabuDBException {
+        this(databaseName, databaseId, databaseDir, numIndices, readFromDisk, comparators, compression,
+            maxEntriesPerBlock, maxBlockFileSize, disableMMap, mmapLimit, 0, 1, 0, 0, false, false, false, null,
+            0);
+    }
+    
+    /**
+     * Creates a new database with multi-level indices and loads data from disk
+     * if requested.
+     * 
+     * @param databaseName
+     *            the name of the database
+     * @param databaseId
+     *            the numeric database ID
+     * @param databaseDir
+     *            the directory in which the DB stores the checkpoints
+     * @param numIndices
+     *            number of indices (cannot be changed)
+     * @param readFromDisk
+     *            true if data should be read from disk
+     * @param comparators
+     *            an array containing the comparators of all indices
+     * @param compression
+     *            specified if compression is enabled
+     * @param maxEntriesPerBlock
+     *            the maximum entry count for each database block
+     * @param maxBlockFileSize
+     *            the maximum file size for each block file
+     * @param disableMMap
+     *            specified whether memory-mapping of block files is disabled
+     * @param mmapLimit
+     *            defines the maximum size of all databases in MB after which
+     *            block files will no longer be memory-mapped
+     * @param bloomFilterFPR
+     *            the false-positive rate of the Bloom filters of on-disk
+     *            indices; 0 disables Bloom filters
+     * @param numLevels
+     *            the number of on-disk levels of each index
+     * @param level0Size
+     *            the maximum size of level 0 of each index in bytes
+     * @param levelFanout
+     *            the factor by which the maximum size of each subsequent level
+     *            grows
+     * @param incrementalCheckpoints
+     *            specifies whether checkpoints only write the in-memory
+     *            overlay of each index to a new on-disk run
+     * @param concurrentLookups
+     *            specifies whether lookups may be performed by arbitrary
+     *            threads concurrently with insertions
+     * @param offHeapOverlays
+     *            specifies whether the in-memory overlays of all indices keep
+     *            their entries outside of the Java heap
+     * @param blockCodec
+     *            the codec that compresses the blocks of on-disk indices; if
+     *            <code>null</code>, blocks are not compressed
+     * @param maxBlockSize
+     *            the target size of blocks of on-disk indices in bytes; if 0,
+     *            blocks are bounded by <code>maxEntriesPerBlock</code>
+     * @throws BabuDBException
+     *             if on-disk data cannot be read or DB directory cannot be
+     *             created
+     */
+    public LSMDatabase(String databaseName, int databaseId, String databaseDir, int numIndices,
+        boolean readFromDisk, ByteRangeComparator[] comparators, boolean compression, int maxEntriesPerBlock,
+        long maxBlockFileSize, boolean disableMMap, int mmapLimit, double bloomFilterFPR, int numLevels,
+        long level0Size, int levelFanout, boolean incrementalCheckpoints, boolean concurrentLookups,
+        boolean offHeapOverlays, BlockCodec blockCodec, int maxBlockSize) throws BabuDBException {
         
         this.numIndices = numIndices;
         this.databaseId = databaseId;
@@ -148,6 +297,15 @@ public class LSMDatabase {
         this.maxBlockFileSize = maxBlockFileSize;
         this.disableMMap = disableMMap;
         this.mmapLimit = mmapLimit;
+        this.bloomFilterFPR = bloomFilterFPR;
+        this.numLevels = numLevels;
+        this.level0Size = level0Size;
+        this.levelFanout = levelFanout;
+        this.incrementalCheckpoints = incrementalCheckpoints;
+        this.concurrentLookups = concurrentLookups;
+        this.offHeapOverlays = offHeapOverlays;
+        this.blockCodec = blockCodec;
+        this.maxBlockSize = maxBlockSize;
         
         if (readFromDisk) {
             loadFromDisk(numIndices);
@@ -155,8 +313,7 @@ public class LSMDatabase {
             try {
                 for (int i = 0; i < numIndices; i++) {
                     assert (comparators[i] != null);
-                    trees.add(new LSMTree(null, comparators[i], this.compression, maxEntriesPerBlock,
-                        maxBlockFileSize, !disableMMap, mmapLimit));
+                    trees.add(createTree(i, null));
                 }
                 ondiskLSN = NO_DB_LSN;
             } catch (IOException ex) {
@@ -229,17 +386,15 @@ public class LSMDatabase {
                         + " from latest snapshot:" + databaseDir + File.separator + "IX" + index + "V"
                         + maxView + "SEQ" + maxSeq);
                     assert (comparators[index] != null);
-                    trees.set(index, new LSMTree(databaseDir + File.separator
-                        + getSnapshotFilename(index, maxView, maxSeq), comparators[index], this.compression,
-                        this.maxEntriesPerBlock, this.maxBlockFileSize, !this.disableMMap, this.mmapLimit));
+                    trees.set(index, createTree(index, databaseDir + File.separator
+                        + getSnapshotFilename(index, maxView, maxSeq)));
                     ondiskLSN = new LSN(maxView, maxSeq);
                 } else {
                     ondiskLSN = NO_DB_LSN;
                     Logging.logMessage(Logging.LEVEL_DEBUG, this, "no snapshot for database "
                         + this.databaseName);
                     assert (comparators[index] != null);
-                    trees.set(index, new LSMTree(null, comparators[index], this.compression,
-                        this.maxEntriesPerBlock, this.maxBlockFileSize, !this.disableMMap, this.mmapLimit));
+                    trees.set(index, createTree(index, null));
                 }
             } catch (IOException ex) {
                 Logging.logError(Logging.LEVEL_ERROR, this, ex);
@@ -248,6 +403,24 @@ public class LSMDatabase {
         }
     }
     
+    /**
+     * Creates the LSMTree for an index.
+     * 
+     * @param index
+     *            the index ID
+     * @param indexFile
+     *            the checkpoint to load - may be <code>null</code>
+     * @return the LSMTree
+     * @throws IOException
+     *             if the checkpoint cannot be read
+     */
+    private LSMTree createTree(int index, String indexFile) throws IOException {
+        return new LSMTree(indexFile, comparators[index], compression, maxEntriesPerBlock, maxBlockFileSize,
+            !disableMMap, mmapLimit, bloomFilterFPR, numLevels, level0Size, levelFanout, incrementalCheckpoints,
+            databaseDir + File.separator + ".compaction" + index, concurrentLookups,
+            offHeapOverlays, blockCodec, maxBlockSize);
+    }
+    
     /**
      * Returns the LSMTree for indexId
      * 
@@ -279,6 +452,19 @@ public class LSMDatabase {
         return ondiskLSN;
     }
     
+    /**
+     * Returns the approximate amount of memory occupied by the in-memory
+     * overlays of all indices.
+     * 
+     * @return the overlay size in bytes
+     */
+    public long getOverlaySize() {
+        long size = 0;
+        for (LSMTree tree : trees)
+            size += tree.getOverlaySize();
+        return size;
+    }
+    
     /**
      * Creates a snapshot of all indices.
      * 
@@ -322,40 +508,59 @@ public class LSMDatabase {
     public void writeSnapshot(int viewId, long sequenceNo, int[] snapIds) throws IOException {
         
         Logging.logMessage(Logging.LEVEL_INFO, this, "writing snapshot, database = " + databaseName + "...");
-        for (int index = 0; index < trees.size(); index++) {
-            
-            final LSMTree tree = trees.get(index);
-            
-            if (Logging.isInfo())
-                Logging.logMessage(Logging.LEVEL_INFO, this, "snapshotting index " + index + "(dbName = "
-                    + databaseName + ")...");
-            
-            File tmpDir = new File(databaseDir, ".currentSnapshot");
-            File targetDir = new File(databaseDir, getSnapshotFilename(index, viewId, sequenceNo));
-            
-            if (targetDir.exists()) {
-                Logging.logMessage(Logging.LEVEL_DEBUG, this, "skipping index'" + index
-                    + ", as a valid checkpoint (" + targetDir + ") exists already");
-                continue;
-            }
-            
-            // clean up incomplete old checkpoints if necessary
-            if (tmpDir.exists())
-                FSUtils.delTree(tmpDir);
-            
-            tree.materializeSnapshot(tmpDir.getAbsolutePath(), snapIds[index]);
-            
-            if (!tmpDir.renameTo(targetDir))
-                throw new IOException("could not rename '" + tmpDir + "' to " + targetDir);
-            
-            if (Logging.isInfo())
-                Logging.logMessage(Logging.LEVEL_INFO, this, "... done (index = " + index + ", dbName = "
-                    + databaseName + ")");
-        }
+        for (int index = 0; index < trees.size(); index++)
+            writeSnapshot(index, viewId, sequenceNo, snapIds[index]);
         if (Logging.isInfo())
             Logging.logMessage(Logging.LEVEL_INFO, this, "snapshot written, database = " + databaseName);
     }
     
+    /**
+     * Writes the snapshot of a single index to disk. Snapshots of different
+     * indices may be written concurrently; they only become visible when the
+     * database is linked to them via <code>cleanupSnapshot</code>.
+     * 
+     * @param index
+     *            the index
+     * @param viewId
+     *            current viewId (i.e. of the last write)
+     * @param sequenceNo
+     *            current sequenceNo (i.e. of the last write)
+     * @param snapId
+     *            the snapshot Id of the index (obtained via createSnapshot)
+     * @throws java.io.IOException
+     *             if the snapshot cannot be written to disk
+     */
+    public void writeSnapshot(int index, int viewId, long sequenceNo, int snapId) throws IOException {
+        
+        final LSMTree tree = trees.get(index);
+        
+        if (Logging.isInfo())
+            Logging.logMessage(Logging.LEVEL_INFO, this, "snapshotting index " + index + "(dbName = "
+                + databaseName + ")...");
+        
+        File tmpDir = new File(databaseDir, ".currentSnapshot" + index);
+        File targetDir = new File(databaseDir, getSnapshotFilename(index, viewId, sequenceNo));
+        
+        if (targetDir.exists()) {
+            Logging.logMessage(Logging.LEVEL_DEBUG, this, "skipping index'" + index
+                + ", as a valid checkpoint (" + targetDir + ") exists already");
+            return;
+        }
+        
+        // clean up incomplete old checkpoints if necessary
+        if (tmpDir.exists())
+            FSUtils.delTree(tmpDir);
+        
+        tree.materializeSnapshot(tmpDir.getAbsolutePath(), snapId);
+        
+        if (!tmpDir.renameTo(targetDir))
+            throw new IOException("could not rename '" + tmpDir + "' to " + targetDir);
+        
+        if (Logging.isInfo())
+            Logging.logMessage(Logging.LEVEL_INFO, this, "... done (index = " + index + ", dbName = "
+                + databaseName + ")");
+    }
+    
     public void writeSnapshot(String directory, int[] snapIds, int viewId, long sequenceNumber)
         throws IOException {
         
@@ -449,6 +654,24 @@ public class LSMDatabase {
         }
     }
     
+    /**
+     * Performs a compaction step on each index with an on-disk level that
+     * exceeds its maximum size or with runs from incremental checkpoints that
+     * still need to be merged.
+     * 
+     * @return <code>true</code>, if at least one index was compacted
+     * @throws IOException
+     *             if an I/O error occurs during the compaction
+     */
+    public boolean compact() throws IOException {
+        
+        boolean compacted = false;
+        for (LSMTree tree : trees)
+            compacted |= tree.compact();
+        
+        return compacted;
+    }
+    
     /**
      * Get the database's name.
      * 
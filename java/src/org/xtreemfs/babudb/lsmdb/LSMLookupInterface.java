@@ -6,8 +6,11 @@
 package org.xtreemfs.babudb.lsmdb;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.database.ValueBuffer;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.index.LSMTree;
 
@@ -37,6 +40,35 @@ public class LSMLookupInterface {
         return tree.lookup(key,snapId);
     }
     
+    public byte[][] multiLookup(int indexId, byte[][] keys) throws BabuDBException {
+        LSMTree tree = database.getIndex(indexId);
+        if (tree == null)
+            throw new BabuDBException(BabuDBException.ErrorCode.NO_SUCH_INDEX, "index " + indexId + " does not exist");
+        return tree.multiLookup(keys);
+    }
+    
+    public ValueBuffer lookupBuffer(int indexId, byte[] key) throws BabuDBException {
+        LSMTree tree = database.getIndex(indexId);
+        if (tree == null)
+            throw new BabuDBException(BabuDBException.ErrorCode.NO_SUCH_INDEX, "index " + indexId + " does not exist");
+        return tree.lookupBuffer(key);
+    }
+    
+    public ValueBuffer lookupBuffer(int indexId, byte[] key, int snapId) throws BabuDBException {
+        LSMTree tree = database.getIndex(indexId);
+        if (tree == null)
+            throw new BabuDBException(BabuDBException.ErrorCode.NO_SUCH_INDEX, "index " + indexId + " does not exist");
+        return tree.lookupBuffer(key, snapId);
+    }
+    
+    public List<ResultSet<byte[], byte[]>> parallelRangeLookup(int indexId, byte[] from, byte[] to,
+        int parallelism) throws BabuDBException {
+        LSMTree tree = database.getIndex(indexId);
+        if (tree == null)
+            throw new BabuDBException(BabuDBException.ErrorCode.NO_SUCH_INDEX, "index " + indexId + " does not exist");
+        return tree.parallelRangeLookup(from, to, parallelism);
+    }
+    
     public Iterator<Entry<byte[],byte[]>> prefixLookup(int indexId, byte[] startKey) throws BabuDBException {
         LSMTree tree = database.getIndex(indexId);
         if (tree == null)
@@ -138,8 +138,8 @@ public class DataGenerator {
 		};
 	}
 	
-	public static final ResultSet randomIterator(final ArrayList<byte[]> lookupHits, final int size, final int hitrate, final int minStrLen, final int maxStrLen, final char minChar, final char maxChar) {
-		return new ResultSet() {
+	public static final ResultSet<Object, Object> randomIterator(final ArrayList<byte[]> lookupHits, final int size, final int hitrate, final int minStrLen, final int maxStrLen, final char minChar, final char maxChar) {
+		return new ResultSet<Object, Object>() {
 	        final Random generator = new Random();
             private int    count = 0;
             
@@ -151,7 +151,7 @@ public class DataGenerator {
             }
             
             @Override
-            public Entry<byte[], byte[]> next() {
+            public Entry<Object, Object> next() {
                 
                 count++;
                 next = createNextString(next, minStrLen, maxStrLen, minChar, maxChar);
@@ -159,22 +159,22 @@ public class DataGenerator {
                 if(generator.nextInt() % hitrate == 0)
                 	lookupHits.add(next.getBytes());
                 
-                return new Entry<byte[], byte[]>() {
+                return new Entry<Object, Object>() {
                     
                     final byte[] nextBytes = next.getBytes();
                     
                     @Override
-                    public byte[] getKey() {
+                    public Object getKey() {
                         return nextBytes;
                     }
                     
                     @Override
-                    public byte[] getValue() {
+                    public Object getValue() {
                         return nextBytes;
                     }
                     
                     @Override
-                    public byte[] setValue(byte[] value) {
+                    public Object setValue(Object value) {
                         throw new UnsupportedOperationException();
                     }
                     
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.reader.DiskIndex;
+import org.xtreemfs.babudb.index.writer.DiskIndexWriter;
+import org.xtreemfs.babudb.sandbox.CLIParser.CliOption;
+import org.xtreemfs.foundation.logging.Logging;
+import org.xtreemfs.foundation.util.FSUtils;
+
+/**
+ * Measures the number of bytes allocated by point lookups on a disk index.
+ * Apart from the copy of the value that is returned, a lookup is not supposed
+ * to allocate any memory; the excess allocation per lookup is therefore
+ * expected to be 0 once the JIT compiler has warmed up.
+ *
+ * @author stenjan
+ */
+public class DiskIndexAllocationTest {
+
+    // the size of an array header, assuming compressed oops
+    private static final int ARRAY_HEADER_SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, CLIParser.CliOption> options = new HashMap<String, CliOption>();
+        options.put("blocksize", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 16));
+        options.put("keylength", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 8));
+        options.put("rounds", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 10));
+        options.put("debug", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, Logging.LEVEL_EMERG));
+        options.put("nommap", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.SWITCH, false));
+
+        List<String> arguments = new ArrayList<String>(1);
+        CLIParser.parseCLI(args, options, arguments);
+
+        if (arguments.size() != 3) {
+            System.out.println("usage: java " + DiskIndexAllocationTest.class.getCanonicalName()
+                + " [options] <db_dir> <num_entries> <num_lookups>");
+            System.exit(1);
+        }
+
+        Logging.start(options.get("debug").numValue.intValue());
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            System.out.println("measuring allocated memory is not supported by this JVM");
+            System.exit(1);
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final String path = arguments.get(0);
+        final int size = Integer.parseInt(arguments.get(1));
+        final int lookups = Integer.parseInt(arguments.get(2));
+        final int entriesPerBlock = options.get("blocksize").numValue.intValue();
+        final int maxStrLen = options.get("keylength").numValue.intValue();
+        final int rounds = options.get("rounds").numValue.intValue();
+        final boolean mmap = !options.get("nommap").switchValue.booleanValue();
+
+        // write an index w/ random keys, all of which are looked up later on
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>(size);
+        FSUtils.delTree(new File(path));
+        DiskIndexWriter writer = new DiskIndexWriter(path, entriesPerBlock, false, Integer.MAX_VALUE);
+        writer.writeIndex(DataGenerator.randomIterator(keys, size, 1, 1, maxStrLen, (char) 48, (char) 122));
+        Collections.shuffle(keys);
+
+        DiskIndex diskIndex = new DiskIndex(path, DefaultByteRangeComparator.getInstance(), false, mmap);
+        long threadId = Thread.currentThread().getId();
+
+        // the first rounds warm up the JIT compiler
+        for (int r = 0; r < rounds; r++) {
+
+            long valueBytes = 0;
+            int hits = 0;
+
+            long allocStart = threadBean.getThreadAllocatedBytes(threadId);
+            long t0 = System.nanoTime();
+
+            for (int i = 0; i < lookups; i++) {
+                byte[] value = diskIndex.lookup(keys.get(i % keys.size()));
+                if (value != null) {
+                    valueBytes += (ARRAY_HEADER_SIZE + value.length + 7) & ~7;
+                    hits++;
+                }
+            }
+
+            long time = System.nanoTime() - t0;
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocStart;
+
+            System.out.println("round " + r + ": " + hits + " hits, "
+                + (int) Math.ceil(lookups / (time / 1e9)) + " lookups/s, "
+                + (double) allocated / lookups + " bytes/lookup allocated, "
+                + (double) (allocated - valueBytes) / lookups + " bytes/lookup excl. values");
+        }
+
+        diskIndex.destroy();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.xtreemfs.babudb.log.DiskLogger;
+import org.xtreemfs.babudb.log.LogEntry;
+import org.xtreemfs.babudb.log.SyncListener;
+import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
+import org.xtreemfs.babudb.lsmdb.LSN;
+import org.xtreemfs.babudb.sandbox.CLIParser.CliOption;
+import org.xtreemfs.foundation.buffer.ReusableBuffer;
+import org.xtreemfs.foundation.logging.Logging;
+import org.xtreemfs.foundation.util.FSUtils;
+
+/**
+ * Measures the throughput of concurrent appends to the disk logger for a
+ * growing number of appending threads. Threads append entries without waiting
+ * for them to be synced, so that the throughput is determined by the
+ * contention among appenders and the logger thread rather than by the disk.
+ *
+ * @author stenjan
+ */
+public class DiskLoggerAppendPerformanceTest {
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, CLIParser.CliOption> options = new HashMap<String, CliOption>();
+        options.put("maxthreads", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 64));
+        options.put("payload", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 64));
+        options.put("queuesize", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 0));
+        options.put("rounds", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 3));
+
+        List<String> arguments = new ArrayList<String>(2);
+        CLIParser.parseCLI(args, options, arguments);
+
+        if (arguments.size() != 2) {
+            System.out.println("usage: java " + DiskLoggerAppendPerformanceTest.class.getCanonicalName()
+                + " [options] <log_dir> <num_entries>");
+            System.exit(1);
+        }
+
+        Logging.start(Logging.LEVEL_EMERG);
+
+        final String path = arguments.get(0);
+        final int numEntries = Integer.parseInt(arguments.get(1));
+        final int maxThreads = options.get("maxthreads").numValue.intValue();
+        final int payloadSize = options.get("payload").numValue.intValue();
+        final int queueSize = options.get("queuesize").numValue.intValue();
+        final int rounds = options.get("rounds").numValue.intValue();
+
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+
+            // the first rounds warm up the JIT compiler; the best round is
+            // reported
+            long bestAppendTime = Long.MAX_VALUE;
+            long bestTotalTime = Long.MAX_VALUE;
+            for (int r = 0; r < rounds; r++) {
+                long[] times = run(path, numThreads, numEntries / numThreads, payloadSize, queueSize);
+                bestAppendTime = Math.min(bestAppendTime, times[0]);
+                bestTotalTime = Math.min(bestTotalTime, times[1]);
+            }
+
+            int total = numEntries / numThreads * numThreads;
+            System.out.println(numThreads + " threads: " + (int) Math.ceil(total / (bestAppendTime / 1e9))
+                + " appends/s, " + (int) Math.ceil(total / (bestTotalTime / 1e9)) + " entries/s written");
+        }
+    }
+
+    /**
+     * Appends entries with the given number of threads and returns the time
+     * in nanoseconds until all entries have been appended and until all
+     * entries have been written.
+     */
+    private static long[] run(String path, int numThreads, final int numEntries, int payloadSize,
+        int queueSize) throws Exception {
+
+        FSUtils.delTree(new File(path));
+        final DiskLogger logger = new DiskLogger(path, new LSN(1, 1L), SyncMode.ASYNC, 0, queueSize);
+        logger.start();
+        logger.waitForStartup();
+
+        final byte[] payload = new byte[payloadSize];
+        final CountDownLatch written = new CountDownLatch(numThreads * numEntries);
+        final SyncListener listener = new SyncListener() {
+
+            public void synced(LSN lsn) {
+                written.countDown();
+            }
+
+            public void failed(Exception ex) {
+                Logging.logError(Logging.LEVEL_ERROR, this, ex);
+                written.countDown();
+            }
+        };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < numEntries; j++)
+                            logger.append(new LogEntry(ReusableBuffer.wrap(payload), listener,
+                                LogEntry.PAYLOAD_TYPE_INSERT));
+                    } catch (InterruptedException exc) {
+                        Logging.logError(Logging.LEVEL_ERROR, this, exc);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        long appendTime = System.nanoTime() - t0;
+        written.await();
+        long totalTime = System.nanoTime() - t0;
+
+        logger.shutdown();
+        logger.waitForShutdown();
+
+        return new long[] { appendTime, totalTime };
+    }
+}
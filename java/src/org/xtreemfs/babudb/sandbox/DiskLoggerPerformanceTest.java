@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import org.xtreemfs.babudb.log.DiskLogger;
+import org.xtreemfs.babudb.log.LogEntry;
+import org.xtreemfs.babudb.log.SyncListener;
+import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
+import org.xtreemfs.babudb.lsmdb.LSN;
+import org.xtreemfs.babudb.sandbox.CLIParser.CliOption;
+import org.xtreemfs.foundation.buffer.ReusableBuffer;
+import org.xtreemfs.foundation.logging.Logging;
+import org.xtreemfs.foundation.util.FSUtils;
+
+/**
+ * Measures throughput and commit latency of the disk logger for all sync
+ * modes, with and without group commits. Each thread appends entries and
+ * waits until they have been synced; by default, each thread appends one entry
+ * at a time and waits until it has been synced before appending the next one,
+ * like a client that commits a sequence of small transactions. The work done
+ * by listeners and the latency of syncs on slow devices may be simulated.
+ *
+ * @author stenjan
+ */
+public class DiskLoggerPerformanceTest {
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, CLIParser.CliOption> options = new HashMap<String, CliOption>();
+        options.put("threads", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 8));
+        options.put("payload", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 64));
+        options.put("batchsize", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 1024 * 1024));
+        options.put("delay", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 0));
+        options.put("syncwait", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 0));
+        options.put("callback", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 0));
+        options.put("window", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 1));
+        options.put("pipelined", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.SWITCH, false));
+        options.put("segmentsize", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 0));
+        options.put("debug", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, Logging.LEVEL_EMERG));
+
+        List<String> arguments = new ArrayList<String>(2);
+        CLIParser.parseCLI(args, options, arguments);
+
+        if (arguments.size() != 2) {
+            System.out.println("usage: java " + DiskLoggerPerformanceTest.class.getCanonicalName()
+                + " [options] <log_dir> <num_entries_per_thread>");
+            System.exit(1);
+        }
+
+        Logging.start(options.get("debug").numValue.intValue());
+
+        final String path = arguments.get(0);
+        final int numEntries = Integer.parseInt(arguments.get(1));
+        final int numThreads = options.get("threads").numValue.intValue();
+        final int payloadSize = options.get("payload").numValue.intValue();
+        final int batchSize = options.get("batchsize").numValue.intValue();
+        final int delay = options.get("delay").numValue.intValue();
+        final int syncWait = options.get("syncwait").numValue.intValue();
+        final long callbackTime = options.get("callback").numValue.longValue() * 1000;
+        final int window = options.get("window").numValue.intValue();
+        final boolean pipelined = options.get("pipelined").switchValue;
+        final int segmentSize = options.get("segmentsize").numValue.intValue();
+
+        for (SyncMode syncMode : SyncMode.values()) {
+            for (int maxBatchSize : new int[] { 0, batchSize }) {
+
+                FSUtils.delTree(new File(path));
+                final DiskLogger logger = new DiskLogger(path, new LSN(1, 1L), syncMode, syncWait, 0, maxBatchSize,
+                    maxBatchSize == 0 ? 0 : delay, pipelined, segmentSize, false);
+                logger.start();
+                logger.waitForStartup();
+
+                final long[][] latencies = new long[numThreads][numEntries];
+                final byte[] payload = new byte[payloadSize];
+
+                Thread[] threads = new Thread[numThreads];
+                for (int i = 0; i < numThreads; i++) {
+                    final long[] threadLatencies = latencies[i];
+                    threads[i] = new Thread() {
+                        public void run() {
+                            
+                            // limits the number of entries that have not been
+                            // synced yet
+                            final Semaphore outstanding = new Semaphore(window);
+                            try {
+                                for (int j = 0; j < numEntries; j++) {
+
+                                    outstanding.acquire();
+                                    final int entry = j;
+                                    final long t0 = System.nanoTime();
+                                    logger.append(new LogEntry(ReusableBuffer.wrap(payload), new SyncListener() {
+
+                                        public void synced(LSN lsn) {
+                                            
+                                            // simulate the work done by the listener
+                                            long t = System.nanoTime();
+                                            while (System.nanoTime() - t < callbackTime)
+                                                ;
+                                            threadLatencies[entry] = System.nanoTime() - t0;
+                                            outstanding.release();
+                                        }
+
+                                        public void failed(Exception ex) {
+                                            Logging.logError(Logging.LEVEL_ERROR, this, ex);
+                                            outstanding.release();
+                                        }
+                                    }, LogEntry.PAYLOAD_TYPE_INSERT));
+                                }
+                                outstanding.acquire(window);
+                            } catch (InterruptedException exc) {
+                                Logging.logError(Logging.LEVEL_ERROR, this, exc);
+                            }
+                        }
+                    };
+                }
+
+                long t0 = System.nanoTime();
+                for (Thread thread : threads)
+                    thread.start();
+                for (Thread thread : threads)
+                    thread.join();
+                long time = System.nanoTime() - t0;
+
+                logger.shutdown();
+                logger.waitForShutdown();
+
+                long[] all = new long[numThreads * numEntries];
+                long sum = 0;
+                for (int i = 0; i < numThreads; i++) {
+                    System.arraycopy(latencies[i], 0, all, i * numEntries, numEntries);
+                    for (long latency : latencies[i])
+                        sum += latency;
+                }
+                Arrays.sort(all);
+
+                System.out.println(syncMode + (maxBatchSize == 0 ? ", separate writes: " : ", group commit: ")
+                    + (int) Math.ceil(all.length / (time / 1e9)) + " entries/s, latency avg "
+                    + sum / all.length / 1000 + " us, p50 " + all[all.length / 2] / 1000 + " us, p99 "
+                    + all[(int) (all.length * 0.99)] / 1000 + " us");
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.OverlayMergeIterator;
+import org.xtreemfs.babudb.sandbox.CLIParser.CliOption;
+
+/**
+ * Compares the {@link OverlayMergeIterator}, which is based on a tournament
+ * tree, with a merge that linearly scans the current elements of all
+ * iterators, for a growing number of merged iterators. The total number of entries is the same for each
+ * number of iterators; a fraction of the keys occurs in multiple iterators,
+ * and some of the entries are tombstones.
+ *
+ * @author stenjan
+ */
+public class OverlayMergeIteratorPerformanceTest {
+
+    private static final byte[] NULL_ELEMENT = new byte[0];
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, CLIParser.CliOption> options = new HashMap<String, CliOption>();
+        options.put("maxk", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 64));
+        options.put("rounds", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 5));
+        options.put("keyspace", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 1000000));
+
+        List<String> arguments = new ArrayList<String>(1);
+        CLIParser.parseCLI(args, options, arguments);
+
+        if (arguments.size() != 1) {
+            System.out.println("usage: java " + OverlayMergeIteratorPerformanceTest.class.getCanonicalName()
+                + " [options] <num_entries>");
+            System.exit(1);
+        }
+
+        final int size = Integer.parseInt(arguments.get(0));
+        final int maxK = options.get("maxk").numValue.intValue();
+        final int rounds = options.get("rounds").numValue.intValue();
+        final int keySpace = options.get("keyspace").numValue.intValue();
+
+        final CountingComparator comp = new CountingComparator();
+        Random rnd = new Random(1);
+
+        for (int k = 2; k <= maxK; k *= 2) {
+
+            // distribute the entries across k sorted lists
+            List<List<Entry<byte[], byte[]>>> lists = new ArrayList<List<Entry<byte[], byte[]>>>(k);
+            for (int i = 0; i < k; i++) {
+                TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+                for (int j = 0; j < size / k; j++) {
+                    byte[] key = toBytes(rnd.nextInt(keySpace));
+                    map.put(key, rnd.nextInt(10) == 0 ? NULL_ELEMENT : key);
+                }
+                lists.add(new ArrayList<Entry<byte[], byte[]>>(map.entrySet()));
+            }
+
+            // the first rounds warm up the JIT compiler
+            long[] treeResult = null;
+            long[] linearResult = null;
+            for (int r = 0; r < rounds; r++) {
+                treeResult = merge(lists, comp, true);
+                linearResult = merge(lists, comp, false);
+            }
+
+            if (treeResult[0] != linearResult[0])
+                throw new IllegalStateException("results differ: " + treeResult[0] + " vs. " + linearResult[0]);
+
+            System.out.println("k=" + k + ", " + treeResult[0] + " entries: tournament tree "
+                + (double) treeResult[1] / treeResult[0] + " comparisons/entry, "
+                + (int) Math.ceil(treeResult[0] / (treeResult[2] / 1e9)) + " entries/s; linear "
+                + (double) linearResult[1] / linearResult[0] + " comparisons/entry, "
+                + (int) Math.ceil(linearResult[0] / (linearResult[2] / 1e9)) + " entries/s");
+        }
+    }
+
+    /**
+     * Merges the given lists and returns the number of merged entries, the
+     * number of comparisons and the time in nanoseconds.
+     */
+    private static long[] merge(List<List<Entry<byte[], byte[]>>> lists, CountingComparator comp,
+        boolean tree) {
+
+        List<Iterator<Entry<byte[], byte[]>>> itList = new ArrayList<Iterator<Entry<byte[], byte[]>>>(
+            lists.size());
+        for (List<Entry<byte[], byte[]>> list : lists)
+            itList.add(list.iterator());
+
+        comp.count = 0;
+        long t0 = System.nanoTime();
+
+        Iterator<Entry<byte[], byte[]>> it = tree ? new OverlayMergeIterator<byte[], byte[]>(itList, comp,
+            NULL_ELEMENT, true) : new LinearMergeIterator(itList, comp, NULL_ELEMENT);
+
+        long count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+
+        return new long[] { count, comp.count, System.nanoTime() - t0 };
+    }
+
+    private static byte[] toBytes(int n) {
+        return new byte[] { (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n };
+    }
+
+    private static class CountingComparator implements Comparator<byte[]> {
+
+        private final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+
+        private long count;
+
+        public int compare(byte[] o1, byte[] o2) {
+            count++;
+            return comp.compare(o1, o2);
+        }
+    }
+
+    /**
+     * An ascending merge that scans the current elements of all iterators in
+     * order to find the next element, as a baseline.
+     */
+    private static class LinearMergeIterator implements Iterator<Entry<byte[], byte[]>> {
+
+        private final List<Iterator<Entry<byte[], byte[]>>> itList;
+
+        private final Comparator<byte[]> comp;
+
+        private final byte[] nullValue;
+
+        private final Entry<byte[], byte[]>[] nextElements;
+
+        private Entry<byte[], byte[]> nextElement;
+
+        @SuppressWarnings("unchecked")
+        public LinearMergeIterator(List<Iterator<Entry<byte[], byte[]>>> itList, Comparator<byte[]> comp,
+            byte[] nullValue) {
+
+            this.itList = itList;
+            this.comp = comp;
+            this.nullValue = nullValue;
+
+            nextElements = new Entry[itList.size()];
+            for (int i = 0; i < nextElements.length; i++)
+                nextElements[i] = itList.get(i).hasNext() ? itList.get(i).next() : null;
+
+            nextElement = getNextElement();
+        }
+
+        public boolean hasNext() {
+            return nextElement != null;
+        }
+
+        public Entry<byte[], byte[]> next() {
+
+            if (nextElement == null)
+                throw new NoSuchElementException();
+
+            Entry<byte[], byte[]> element = nextElement;
+            nextElement = getNextElement();
+            return element;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Entry<byte[], byte[]> getNextElement() {
+
+            for (;;) {
+
+                int smallest = 0;
+                for (int i = 1; i < nextElements.length; i++) {
+
+                    if (nextElements[i] == null)
+                        continue;
+
+                    if (nextElements[smallest] == null
+                        || comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) < 0)
+                        smallest = i;
+
+                    else if (comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) == 0) {
+                        Iterator<Entry<byte[], byte[]>> it = itList.get(i);
+                        nextElements[i] = it.hasNext() ? it.next() : null;
+                    }
+                }
+
+                Entry<byte[], byte[]> entry = nextElements[smallest];
+                Iterator<Entry<byte[], byte[]>> it = itList.get(smallest);
+                nextElements[smallest] = it.hasNext() ? it.next() : null;
+
+                if (entry == null)
+                    return null;
+
+                if (entry.getValue() != nullValue)
+                    return entry;
+            }
+        }
+    }
+}
@@ -7,13 +7,18 @@
  */
 package org.xtreemfs.babudb.snapshots;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.xtreemfs.babudb.BabuDBRequestResultImpl;
 import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.database.DatabaseRO;
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.database.UserDefinedLookup;
+import org.xtreemfs.babudb.api.database.ValueBuffer;
 import org.xtreemfs.babudb.api.dev.BabuDBInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
+import org.xtreemfs.babudb.index.ValueBufferImpl;
 
 public class Snapshot implements DatabaseRO {
         
@@ -62,6 +67,44 @@ public class Snapshot implements DatabaseRO {
         return result;
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#multiLookup(int, byte[][], java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<byte[][]> multiLookup(int indexId, byte[][] keys, Object context) {
+        
+        BabuDBRequestResultImpl<byte[][]> result = 
+            new BabuDBRequestResultImpl<byte[][]>(context, dbs.getResponseManager());
+        try {
+            byte[][] r = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++)
+                r[i] = view.directLookup(indexId, keys[i]);
+            result.finished(r);
+        } catch (BabuDBException e) {
+            result.failed(e);
+        }
+        
+        return result;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#lookupBuffer(int, byte[], java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<ValueBuffer> lookupBuffer(int indexId, byte[] key, Object context) {
+        
+        // snapshot views return copies of values, which are simply wrapped
+        BabuDBRequestResultImpl<ValueBuffer> result = 
+            new BabuDBRequestResultImpl<ValueBuffer>(context, dbs.getResponseManager());
+        try {
+            result.finished(ValueBufferImpl.wrap(view.directLookup(indexId, key)));
+        } catch (BabuDBException e) {
+            result.failed(e);
+        }
+        
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.lsmdb.DatabaseRO#prefixLookup(int, byte[], java.lang.Object)
      */
@@ -120,6 +163,27 @@ public class Snapshot implements DatabaseRO {
         return result;
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#parallelRangeLookup(int, byte[], byte[], int, java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<List<ResultSet<byte[], byte[]>>> parallelRangeLookup(int indexId,
+        byte[] from, byte[] to, int parallelism, Object context) {
+        
+        // snapshot views do not expose the block structure of their runs, so
+        // that the range is not split
+        BabuDBRequestResultImpl<List<ResultSet<byte[], byte[]>>> result = 
+            new BabuDBRequestResultImpl<List<ResultSet<byte[], byte[]>>>(context, 
+                    dbs.getResponseManager());
+        try {
+            result.finished(Collections.singletonList(view.directRangeLookup(indexId, from, to, true)));
+        } catch (BabuDBException e) {
+            result.failed(e);
+        }
+        
+        return result;
+    }
+    
     @Override
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> reverseRangeLookup(int indexId, byte[] from,
         byte[] to, Object context) {
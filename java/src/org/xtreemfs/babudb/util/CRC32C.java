@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ *
+ * Licensed under the BSD License, see LICENSE file for details.
+ *
+ */
+
+package org.xtreemfs.babudb.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * A CRC-32C (Castagnoli) checksum. If the JVM provides
+ * <code>java.util.zip.CRC32C</code> (Java 9 and later), which is computed
+ * with hardware support on most platforms, all computations are delegated to
+ * it; otherwise, a table-driven implementation is used that computes the same
+ * values.
+ */
+public class CRC32C implements Checksum {
+    
+    private static final Constructor<?> JDK_CONSTRUCTOR;
+    
+    private static final Method         JDK_UPDATE_BUFFER;
+    
+    private static final int[]          TABLE = new int[256];
+    
+    static {
+        
+        // reversed Castagnoli polynomial
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            TABLE[i] = crc;
+        }
+        
+        Constructor<?> constructor = null;
+        Method update = null;
+        try {
+            Class<?> cls = Class.forName("java.util.zip.CRC32C");
+            constructor = cls.getConstructor();
+            update = cls.getMethod("update", ByteBuffer.class);
+        } catch (Exception exc) {
+            // not available, use the table-driven implementation
+            constructor = null;
+            update = null;
+        }
+        JDK_CONSTRUCTOR = constructor;
+        JDK_UPDATE_BUFFER = update;
+    }
+    
+    private final Checksum jdkChecksum;
+    
+    private int            crc;
+    
+    public CRC32C() {
+        
+        Checksum checksum = null;
+        if (JDK_CONSTRUCTOR != null)
+            try {
+                checksum = (Checksum) JDK_CONSTRUCTOR.newInstance();
+            } catch (Exception exc) {
+                checksum = null;
+            }
+        
+        this.jdkChecksum = checksum;
+        reset();
+    }
+    
+    /**
+     * Checks whether the computations are delegated to the JVM's
+     * implementation, rather than to the table-driven implementation, which is
+     * considerably slower than <code>java.util.zip.CRC32</code>.
+     *
+     * @return true, if the JVM provides an implementation
+     */
+    public static boolean isProvidedByJVM() {
+        return JDK_CONSTRUCTOR != null;
+    }
+    
+    public void update(int b) {
+        if (jdkChecksum != null)
+            jdkChecksum.update(b);
+        else
+            crc = TABLE[(crc ^ b) & 0xFF] ^ (crc >>> 8);
+    }
+    
+    public void update(byte[] b, int off, int len) {
+        
+        if (jdkChecksum != null) {
+            jdkChecksum.update(b, off, len);
+            return;
+        }
+        
+        int c = crc;
+        for (int i = off; i < off + len; i++)
+            c = TABLE[(c ^ b[i]) & 0xFF] ^ (c >>> 8);
+        crc = c;
+    }
+    
+    /**
+     * Updates the checksum with a range of bytes from a buffer. The position
+     * and limit of the buffer remain unchanged.
+     *
+     * @param buf
+     *            the buffer
+     * @param start
+     *            the offset of the first byte
+     * @param end
+     *            the offset after the last byte
+     */
+    public void update(ByteBuffer buf, int start, int end) {
+        
+        if (buf.hasArray()) {
+            update(buf.array(), buf.arrayOffset() + start, end - start);
+            return;
+        }
+        
+        if (JDK_UPDATE_BUFFER != null && jdkChecksum != null) {
+            ByteBuffer range = buf.duplicate();
+            range.limit(end);
+            range.position(start);
+            try {
+                JDK_UPDATE_BUFFER.invoke(jdkChecksum, range);
+                return;
+            } catch (Exception exc) {
+                throw new IllegalStateException(exc);
+            }
+        }
+        
+        for (int i = start; i < end; i++)
+            update(buf.get(i));
+    }
+    
+    public long getValue() {
+        return jdkChecksum != null ? jdkChecksum.getValue() : ~crc & 0xFFFFFFFFL;
+    }
+    
+    public void reset() {
+        if (jdkChecksum != null)
+            jdkChecksum.reset();
+        crc = 0xFFFFFFFF;
+    }
+    
+}
@@ -11,6 +11,8 @@ package org.xtreemfs.babudb;
 import java.io.File;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 import junit.textui.TestRunner;
@@ -25,8 +27,11 @@ import org.xtreemfs.babudb.api.StaticInitialization;
 import org.xtreemfs.babudb.api.database.Database;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
 import org.xtreemfs.babudb.api.database.UserDefinedLookup;
+import org.xtreemfs.babudb.api.database.ValueBuffer;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.config.BabuDBConfig;
+import org.xtreemfs.babudb.config.ConfigBuilder;
+import org.xtreemfs.babudb.index.writer.WriteRateLimiter;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
 import org.xtreemfs.babudb.lsmdb.LSMLookupInterface;
 import org.xtreemfs.foundation.buffer.BufferPool;
@@ -327,6 +332,39 @@ public class BabuDBTest extends TestCase {
         
     }
     
+    @Test
+    public void testMultiLookup() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new BabuDBConfig(baseDir, baseDir, 1, 0, 0,
+            SyncMode.SYNC_WRITE, 0, 0, COMPRESSION, maxNumRecs, maxBlockFileSize, !MMAP, -1, LOG_LEVEL));
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        DatabaseInsertGroup ir = db.createInsertGroup();
+        for (int i = 0; i < 10; i++)
+            ir.addInsert(0, ("Key" + i).getBytes(), ("Value" + i).getBytes());
+        db.insert(ir, null).get();
+        database.getCheckpointer().checkpoint();
+        
+        db.singleInsert(0, "Key3".getBytes(), "Value3a".getBytes(), null).get();
+        
+        byte[][] keys = { "Key7".getBytes(), "Key3".getBytes(), "Key10".getBytes(), "Key0".getBytes() };
+        byte[][] result = db.multiLookup(0, keys, null).get();
+        assertEquals(4, result.length);
+        assertEquals("Value7", new String(result[0]));
+        assertEquals("Value3a", new String(result[1]));
+        assertNull(result[2]);
+        assertEquals("Value0", new String(result[3]));
+        
+        ValueBuffer buf = db.lookupBuffer(0, "Key5".getBytes(), null).get();
+        byte[] value = new byte[buf.getBuffer().remaining()];
+        buf.getBuffer().get(value);
+        buf.free();
+        assertEquals("Value5", new String(value));
+        assertNull(db.lookupBuffer(0, "Key10".getBytes(), null).get());
+        
+        database.shutdown();
+    }
+    
     @Test
     public void testDirectAccess() throws Exception {
         
@@ -562,8 +600,145 @@ public class BabuDBTest extends TestCase {
         database.shutdown();
     }
     
+    @Test
+    public void testMemtableBudget() throws Exception {
+        
+        final int numKeys = 5000;
+        
+        BabuDBConfig cfg = new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(SyncMode.ASYNC)
+                .setMemtableBudget(64 * 1024, 256 * 1024).build();
+        
+        // insert more data than fits in the memtable budget
+        database = BabuDBFactory.createBabuDB(cfg);
+        Database db = database.getDatabaseManager().createDatabase("test", 2);
+        for (int i = 0; i < numKeys; i++) {
+            DatabaseInsertGroup ig = db.createInsertGroup();
+            ig.addInsert(0, ("key" + i).getBytes(), new byte[100]);
+            ig.addInsert(1, ("key" + i).getBytes(), ("value" + i).getBytes());
+            db.insert(ig, null).get();
+        }
+        
+        // the largest databases should have been flushed
+        assertTrue((Integer) database.getRuntimeState("checkpointer.flushCount") > 0);
+        
+        for (int i = 0; i < numKeys; i++) {
+            assertEquals(100, db.lookup(0, ("key" + i).getBytes(), null).get().length);
+            assertEquals("value" + i, new String(db.lookup(1, ("key" + i).getBytes(), null).get()));
+        }
+        
+        // restart the database and replay the log on top of the flushed
+        // databases
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(cfg);
+        db = database.getDatabaseManager().getDatabase("test");
+        
+        for (int i = 0; i < numKeys; i++) {
+            assertEquals(100, db.lookup(0, ("key" + i).getBytes(), null).get().length);
+            assertEquals("value" + i, new String(db.lookup(1, ("key" + i).getBytes(), null).get()));
+        }
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testThrottledWriterDuringFlush() throws Exception {
+        
+        // limit the index write rate, so that flushes take several seconds
+        BabuDBConfig cfg = new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(SyncMode.ASYNC)
+                .setMemtableBudget(64 * 1024, 64 * 1024 * 1024).setCheckpointWriters(1, 4 * 1024).build();
+        
+        database = BabuDBFactory.createBabuDB(cfg);
+        final Database db = database.getDatabaseManager().createDatabase("test", 1);
+        Thread checkpointer = (Thread) database.getCheckpointer();
+        
+        try {
+            
+            // exceed the memtable budget until a flush has been started
+            for (int i = 0; !isFlushing(checkpointer); i++) {
+                assertTrue(i < 100000);
+                DatabaseInsertGroup ig = db.createInsertGroup();
+                ig.addInsert(0, ("key" + i).getBytes(), new byte[1024]);
+                db.insert(ig, null).get();
+            }
+            
+            // a writer that exceeds the budget while the flush is in progress
+            // must only be delayed, rather than blocked until the flush is
+            // complete
+            final CountDownLatch inserted = new CountDownLatch(1);
+            Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        DatabaseInsertGroup ig = db.createInsertGroup();
+                        ig.addInsert(0, "writer".getBytes(), new byte[1024]);
+                        db.insert(ig, null).get();
+                        inserted.countDown();
+                    } catch (Exception exc) {
+                        exc.printStackTrace();
+                    }
+                }
+            };
+            writer.start();
+            
+            assertTrue(inserted.await(5, TimeUnit.SECONDS));
+            assertTrue(isFlushing(checkpointer));
+            
+        } finally {
+            WriteRateLimiter.getInstance().setRate(0);
+        }
+        
+        while (isFlushing(checkpointer))
+            Thread.sleep(100);
+        
+        assertEquals(1024, db.lookup(0, "writer".getBytes(), null).get().length);
+        database.shutdown();
+    }
+    
+    @Test
+    public void testParallelCheckpoint() throws Exception {
+        
+        final int numDBs = 3;
+        final int numIndices = 4;
+        final int numKeys = 500;
+        
+        BabuDBConfig cfg = new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(SyncMode.ASYNC)
+                .setCheckpointWriters(4, 0).build();
+        
+        database = BabuDBFactory.createBabuDB(cfg);
+        for (int i = 0; i < numDBs; i++) {
+            Database db = database.getDatabaseManager().createDatabase("test" + i, numIndices);
+            for (int j = 0; j < numKeys; j++) {
+                DatabaseInsertGroup ig = db.createInsertGroup();
+                for (int k = 0; k < numIndices; k++)
+                    ig.addInsert(k, ("key" + j).getBytes(), ("value" + i + "." + k + "." + j).getBytes());
+                db.insert(ig, null).get();
+            }
+        }
+        
+        // write all indices of all databases in parallel
+        database.getCheckpointer().checkpoint();
+        database.shutdown();
+        
+        database = BabuDBFactory.createBabuDB(cfg);
+        for (int i = 0; i < numDBs; i++) {
+            Database db = database.getDatabaseManager().getDatabase("test" + i);
+            for (int j = 0; j < numKeys; j++)
+                for (int k = 0; k < numIndices; k++)
+                    assertEquals("value" + i + "." + k + "." + j, new String(db.lookup(k,
+                        ("key" + j).getBytes(), null).get()));
+        }
+        
+        database.shutdown();
+    }
+    
     public static void main(String[] args) {
         TestRunner.run(BabuDBTest.class);
     }
     
-}
\ No newline at end of file
+    private static boolean isFlushing(Thread checkpointer) {
+        for (StackTraceElement element : checkpointer.getStackTrace())
+            if ("flushDatabases".equals(element.getMethodName()))
+                return true;
+        return false;
+    }
+    
+}
@@ -10,8 +10,13 @@ package org.xtreemfs.babudb.index;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -22,8 +27,17 @@ import junit.textui.TestRunner;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.codec.BlockCodec;
+import org.xtreemfs.babudb.index.codec.DeflateCodec;
+import org.xtreemfs.babudb.index.codec.LZ4Codec;
+import org.xtreemfs.babudb.index.reader.BlockCache;
+import org.xtreemfs.babudb.index.reader.BlockIndex;
+import org.xtreemfs.babudb.index.reader.DefaultBlockReader;
 import org.xtreemfs.babudb.index.reader.DiskIndex;
+import org.xtreemfs.babudb.index.reader.IndexCorruptedException;
+import org.xtreemfs.babudb.index.writer.BlockIndexWriter;
 import org.xtreemfs.babudb.index.writer.DiskIndexWriter;
+import org.xtreemfs.babudb.util.CRC32C;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.util.FSUtils;
 
@@ -501,6 +515,613 @@ public class DiskIndexTest extends TestCase {
         
     }
     
+    public void testBloomFilter() throws Exception {
+        
+        // initialize a map w/ random strings
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES; i++)
+            map.put(createRandomString(1, 15).getBytes(), createRandomString(1, 15).getBytes());
+        
+        // delete old index file
+        FSUtils.delTree(new File(PATH1));
+        
+        // write the map to a disk index w/ Bloom filter
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, "", MAX_BLOCK_ENTRIES, COMPRESSED,
+            MAX_BLOCK_FILE_SIZE, 0.01);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        assertTrue(new File(PATH1, "bloomfilter.idx").exists());
+        
+        // all keys have to be found
+        DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED,
+            MMAPED);
+        for (Entry<byte[], byte[]> entry : map.entrySet())
+            assertEquals(new String(entry.getValue()), new String(diskIndex.lookup(entry.getKey())));
+        
+        // the false-positive rate of the filter has to be close to the
+        // configured one
+        BloomFilter filter = BloomFilter.read(PATH1 + "/bloomfilter.idx");
+        int numLookups = 0;
+        int falsePositives = 0;
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            byte[] key = ("#" + i).getBytes();
+            if (map.containsKey(key))
+                continue;
+            assertNull(diskIndex.lookup(key));
+            if (filter.mightContain(key))
+                falsePositives++;
+            numLookups++;
+        }
+        assertTrue(falsePositives < numLookups * 0.02);
+        
+        diskIndex.destroy();
+    }
+    
+    public void testBlockCache() throws Exception {
+        
+        // initialize a map w/ random strings
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES; i++)
+            map.put(createRandomString(1, 15).getBytes(), createRandomString(1, 15).getBytes());
+        
+        // delete old index file
+        FSUtils.delTree(new File(PATH1));
+        
+        // write the map to a disk index
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        BlockCache cache = BlockCache.getInstance();
+        cache.setCapacity(64 * 1024 * 1024);
+        try {
+            
+            DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED,
+                false);
+            
+            // look up all elements twice; the second time, all blocks have to
+            // be cached
+            for (int i = 0; i < 2; i++) {
+                
+                long hits = (Long) cache.getRuntimeState(BlockCache.RUNTIME_STATE_HITS);
+                long misses = (Long) cache.getRuntimeState(BlockCache.RUNTIME_STATE_MISSES);
+                
+                for (Entry<byte[], byte[]> entry : map.entrySet())
+                    assertEquals(new String(entry.getValue()), new String(diskIndex.lookup(entry.getKey())));
+                
+                if (i == 0)
+                    assertTrue((Long) cache.getRuntimeState(BlockCache.RUNTIME_STATE_MISSES) > misses);
+                else
+                    assertEquals(misses, cache.getRuntimeState(BlockCache.RUNTIME_STATE_MISSES));
+                assertTrue((Long) cache.getRuntimeState(BlockCache.RUNTIME_STATE_HITS) > hits);
+            }
+            
+            // iterate over all entries, which are in the cache
+            Iterator<Entry<byte[], byte[]>> mapIt = map.entrySet().iterator();
+            Iterator<Entry<byte[], byte[]>> indexIt = diskIndex.rangeLookup(null, null, true);
+            while (indexIt.hasNext() || mapIt.hasNext()) {
+                Entry<byte[], byte[]> next = indexIt.next();
+                Entry<byte[], byte[]> next2 = mapIt.next();
+                assertEquals(new String(next2.getKey()), new String(next.getKey()));
+                assertEquals(new String(next2.getValue()), new String(next.getValue()));
+            }
+            
+            // destroying the index removes its blocks from the cache
+            diskIndex.destroy();
+            assertEquals(0L, cache.getRuntimeState(BlockCache.RUNTIME_STATE_SIZE));
+            
+        } finally {
+            cache.setCapacity(0);
+        }
+    }
+    
+    public void testChecksums() throws Exception {
+        
+        assertEquals(0xE3069283L, checksum("123456789".getBytes()));
+        
+        // write an index w/ several blocks
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < 100; i++)
+            map.put(String.format("key%03d", i).getBytes(), String.format("val%03d", i).getBytes());
+        
+        FSUtils.delTree(new File(PATH1));
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        // corrupt a key in the first block
+        RandomAccessFile file = new RandomAccessFile(PATH1 + "/blockfile_0.idx", "rw");
+        file.seek(DefaultBlockReader.KEYS_OFFSET + 4);
+        int b = file.read();
+        file.seek(DefaultBlockReader.KEYS_OFFSET + 4);
+        file.write(b ^ 0xFF);
+        file.close();
+        
+        for (boolean mmaped : new boolean[] { false, true }) {
+            
+            DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED,
+                mmaped);
+            
+            // blocks that are intact can be read
+            assertEquals("val050", new String(diskIndex.lookup("key050".getBytes())));
+            
+            // the corrupted block is detected on each access
+            for (int i = 0; i < 2; i++)
+                try {
+                    diskIndex.lookup("key005".getBytes());
+                    fail();
+                } catch (IndexCorruptedException exc) {
+                    // expected
+                }
+            
+            try {
+                Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(null, null, true);
+                while (it.hasNext())
+                    it.next();
+                fail();
+            } catch (IndexCorruptedException exc) {
+                // expected
+            }
+            
+            diskIndex.destroy();
+        }
+    }
+    
+    public void testFormatVersion() throws Exception {
+        
+        // write an index w/ several blocks
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < 100; i++)
+            map.put(String.format("key%03d", i).getBytes(), String.format("val%03d", i).getBytes());
+        
+        FSUtils.delTree(new File(PATH1));
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        // the format version is written along with the index
+        RandomAccessFile file = new RandomAccessFile(PATH1 + "/format.idx", "rw");
+        assertEquals(DiskIndexWriter.FORMAT_VERSION, file.readInt());
+        assertEquals(4, file.length());
+        assertTrue(Arrays.asList(DiskIndex.getIndexFiles(new File(PATH1), "")).contains("format.idx"));
+        
+        DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED, false);
+        assertEquals("val050", new String(diskIndex.lookup("key050".getBytes())));
+        diskIndex.destroy();
+        
+        // an index of an unknown format version must be rejected
+        file.seek(0);
+        file.writeInt(DiskIndexWriter.FORMAT_VERSION + 1);
+        file.close();
+        
+        for (boolean mmaped : new boolean[] { false, true })
+            try {
+                new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED, mmaped);
+                fail("an index of an unknown format version should not be accepted");
+            } catch (IOException exc) {
+                // expected
+            }
+        
+        // an index without a format file is read in the legacy format, which
+        // does not match the block index
+        assertTrue(new File(PATH1, "format.idx").delete());
+        try {
+            new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED, false);
+            fail("a block index that does not match the format version should not be accepted");
+        } catch (IOException exc) {
+            // expected
+        }
+    }
+    
+    public void testBlockCodecs() throws Exception {
+        
+        // check that codecs restore arbitrary data
+        Random rnd = new Random(1);
+        for (BlockCodec codec : new BlockCodec[] { new LZ4Codec(), new DeflateCodec() })
+            for (int len : new int[] { 0, 1, 11, 12, 13, 100, 4096, 70000 }) {
+                
+                byte[] data = new byte[len];
+                for (int i = 0; i < len; i++)
+                    data[i] = (byte) (i % 3 == 0 ? rnd.nextInt() : i / 1000);
+                
+                byte[] compressed = codec.compress(data, 0, data.length);
+                byte[] restored = new byte[len];
+                codec.decompress(compressed, 0, compressed.length, restored);
+                assertTrue(Arrays.equals(data, restored));
+            }
+        
+        // write indices w/ well-compressible values
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < 5000; i++)
+            map.put(String.format("key%05d", i).getBytes(), ("{\"id\": " + i
+                + ", \"owner\": \"root\", \"mode\": 420, \"replicas\": []}").getBytes());
+        
+        long uncompressedSize = 0;
+        for (String codec : new String[] { "none", "lz4", "deflate" }) {
+            
+            FSUtils.delTree(new File(PATH1));
+            DiskIndexWriter index = new DiskIndexWriter(PATH1, "", MAX_BLOCK_ENTRIES, COMPRESSED,
+                MAX_BLOCK_FILE_SIZE, 0, BlockCodec.getCodec(codec));
+            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+            
+            for (int cacheSize : new int[] { 0, 64 * 1024 * 1024 })
+                for (boolean mmaped : new boolean[] { false, true }) {
+                    
+                    BlockCache.getInstance().setCapacity(cacheSize);
+                    try {
+                        
+                        DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(),
+                            COMPRESSED, mmaped);
+                        
+                        if (codec.equals("none"))
+                            uncompressedSize = diskIndex.getSize();
+                        else
+                            assertTrue(diskIndex.getSize() * 2 < uncompressedSize);
+                        
+                        // look up all entries twice, so that cached blocks are
+                        // read as well
+                        for (int i = 0; i < 2; i++)
+                            for (Entry<byte[], byte[]> entry : map.entrySet())
+                                assertEquals(new String(entry.getValue()), new String(diskIndex.lookup(entry
+                                        .getKey())));
+                        assertNull(diskIndex.lookup("key1234x".getBytes()));
+                        
+                        Iterator<Entry<byte[], byte[]>> mapIt = map.entrySet().iterator();
+                        Iterator<Entry<byte[], byte[]>> indexIt = diskIndex.rangeLookup(null, null, true);
+                        while (indexIt.hasNext() || mapIt.hasNext()) {
+                            Entry<byte[], byte[]> next = indexIt.next();
+                            Entry<byte[], byte[]> next2 = mapIt.next();
+                            assertEquals(new String(next2.getKey()), new String(next.getKey()));
+                            assertEquals(new String(next2.getValue()), new String(next.getValue()));
+                        }
+                        
+                        assertEquals(map.size(), diskIndex.numKeys());
+                        diskIndex.destroy();
+                        
+                    } finally {
+                        BlockCache.getInstance().setCapacity(0);
+                    }
+                }
+        }
+    }
+    
+    public void testFrontCodedKeys() throws Exception {
+        
+        // create keys that consist of a parent ID and a file name, so that
+        // adjacent keys share long prefixes
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int parent = 0; parent < 4; parent++)
+            for (int i = 0; i < 1000; i += parent + 1)
+                map.put(String.format("%016d/dir/file_%05d.dat", parent * 7919, i).getBytes(), String.valueOf(
+                    i).getBytes());
+        
+        long uncompressedSize = 0;
+        List<List<String>> descendingResults = new ArrayList<List<String>>();
+        for (boolean compressed : new boolean[] { false, true }) {
+            
+            FSUtils.delTree(new File(PATH1));
+            DiskIndexWriter index = new DiskIndexWriter(PATH1, "", 256, compressed, MAX_BLOCK_FILE_SIZE);
+            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+            
+            for (boolean mmaped : new boolean[] { false, true }) {
+                
+                DiskIndex diskIndex = new DiskIndex(PATH1, COMP, compressed, mmaped);
+                
+                if (!compressed)
+                    uncompressedSize = diskIndex.getSize();
+                else
+                    assertTrue(diskIndex.getSize() * 2 < uncompressedSize);
+                
+                for (Entry<byte[], byte[]> entry : map.entrySet())
+                    assertEquals(new String(entry.getValue()), new String(diskIndex.lookup(entry.getKey())));
+                assertNull(diskIndex.lookup(String.format("%016d/dir/file_%05d.dat", 7919, 1).getBytes()));
+                assertNull(diskIndex.lookup("0".getBytes()));
+                assertNull(diskIndex.lookup("9".getBytes()));
+                
+                // check range lookups with bounds that are not contained in
+                // the index and do not share the prefix of the blocks
+                byte[][][] ranges = {
+                    { null, null },
+                    { "0000000000007919/dir/file_00500".getBytes(),
+                        "0000000000015838/dir/file_00011".getBytes() },
+                    { "0000000000000000/dir/file_00017.dat".getBytes(),
+                        "0000000000000000/dir/file_00042.dat".getBytes() },
+                    { "0".getBytes(), "0000000000000000/dir/file_00003.dat".getBytes() },
+                    { "0000000000023757/dir/file_00990".getBytes(), "1".getBytes() },
+                    { "0000000000007919/e".getBytes(), "0000000000015837".getBytes() } };
+                
+                int i = 0;
+                for (byte[][] range : ranges) {
+                    
+                    SortedMap<byte[], byte[]> subMap = range[0] == null ? map : map
+                            .subMap(range[0], range[1]);
+                    
+                    Iterator<Entry<byte[], byte[]>> indexIt = diskIndex.rangeLookup(range[0], range[1], true);
+                    for (byte[] key : subMap.keySet())
+                        assertEquals(new String(key), new String(indexIt.next().getKey()));
+                    assertFalse(indexIt.hasNext());
+                    
+                    // compare descending lookups to those on the uncompressed
+                    // index
+                    List<String> keys = new ArrayList<String>();
+                    indexIt = diskIndex.rangeLookup(range[0], range[1], false);
+                    while (indexIt.hasNext())
+                        keys.add(new String(indexIt.next().getKey()));
+                    
+                    if (!compressed && !mmaped)
+                        descendingResults.add(keys);
+                    else
+                        assertEquals(descendingResults.get(i), keys);
+                    i++;
+                }
+                
+                diskIndex.destroy();
+            }
+        }
+    }
+    
+    public void testMaxBlockSize() throws Exception {
+        
+        final int maxBlockSize = 4096;
+        
+        // create entries w/ small values and some very large ones
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < 3000; i++) {
+            byte[] value = new byte[i % 500 == 7 ? 100000 + i : i % 40];
+            Arrays.fill(value, (byte) i);
+            map.put(String.format("key%05d", i).getBytes(), value);
+        }
+        
+        for (boolean compressed : new boolean[] { false, true }) {
+            
+            FSUtils.delTree(new File(PATH1));
+            DiskIndexWriter index = new DiskIndexWriter(PATH1, "", MAX_BLOCK_ENTRIES, compressed,
+                1024 * 1024, 0, null, maxBlockSize);
+            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+            
+            // determine the sizes of all blocks from the block index, which
+            // consists of a single partition; blocks may only exceed the
+            // maximum size if they contain a single entry
+            RandomAccessFile file = new RandomAccessFile(PATH1 + "/blockindex_partitions.idx", "r");
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            file.close();
+            
+            DefaultBlockReader blockIndex = new DefaultBlockReader(ByteBuffer.wrap(bytes), 0,
+                bytes.length, COMP);
+            int numBlocks = blockIndex.getNumEntries();
+            
+            // the maximum number of entries per block is ignored
+            assertTrue(numBlocks < map.size() / MAX_BLOCK_ENTRIES);
+            
+            for (int i = 0; i < numBlocks; i++) {
+                
+                ByteBuffer entry = ByteBuffer.wrap(blockIndex.getValues().getEntry(i)
+                        .toBuffer());
+                long offset = entry.getLong(0);
+                short fileId = entry.getShort(8);
+                
+                long end = new File(PATH1 + "/blockfile_" + fileId + ".idx").length();
+                if (i + 1 < numBlocks) {
+                    ByteBuffer nextEntry = ByteBuffer.wrap(blockIndex.getValues()
+                            .getEntry(i + 1).toBuffer());
+                    if (nextEntry.getShort(8) == fileId)
+                        end = nextEntry.getLong(0);
+                }
+                
+                if (end - offset > maxBlockSize + 64) {
+                    byte[] blockKey = blockIndex.getKeys().getEntry(i).toBuffer();
+                    assertTrue(map.get(blockKey).length > maxBlockSize);
+                    if (i + 1 < numBlocks)
+                        assertEquals(new String(map.higherKey(blockKey)), new String(blockIndex.getKeys()
+                                .getEntry(i + 1).toBuffer()));
+                }
+            }
+            
+            // check that all entries can be retrieved
+            DiskIndex diskIndex = new DiskIndex(PATH1, COMP, compressed, MMAPED);
+            for (Entry<byte[], byte[]> entry : map.entrySet())
+                assertTrue(Arrays.equals(entry.getValue(), diskIndex.lookup(entry.getKey())));
+            
+            Iterator<Entry<byte[], byte[]>> mapIt = map.entrySet().iterator();
+            Iterator<Entry<byte[], byte[]>> indexIt = diskIndex.rangeLookup(null, null, true);
+            while (indexIt.hasNext() || mapIt.hasNext()) {
+                Entry<byte[], byte[]> next = indexIt.next();
+                Entry<byte[], byte[]> next2 = mapIt.next();
+                assertEquals(new String(next2.getKey()), new String(next.getKey()));
+                assertTrue(Arrays.equals(next2.getValue(), next.getValue()));
+            }
+            
+            assertEquals(map.size(), diskIndex.numKeys());
+            diskIndex.destroy();
+        }
+    }
+    
+    public void testSegmentedMaps() throws Exception {
+        
+        // initialize a map w/ random strings
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES; i++)
+            map.put(createRandomString(1, 15).getBytes(), createRandomString(1, 15).getBytes());
+        
+        // map block files in segments that contain a few blocks each
+        DiskIndex.setMaxSegmentSize(4096);
+        BlockCache cache = BlockCache.getInstance();
+        try {
+            
+            for (boolean compressed : new boolean[] { false, true }) {
+                
+                FSUtils.delTree(new File(PATH1));
+                DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, compressed,
+                    MAX_BLOCK_FILE_SIZE);
+                index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+                
+                // check lookups w/ and w/o block cache
+                for (int capacity : new int[] { 0, 64 * 1024 * 1024 }) {
+                    
+                    cache.setCapacity(capacity);
+                    DiskIndex diskIndex = new DiskIndex(PATH1, COMP, compressed, true);
+                    
+                    for (Entry<byte[], byte[]> entry : map.entrySet())
+                        assertEquals(new String(entry.getValue()), new String(diskIndex.lookup(entry
+                                .getKey())));
+                    
+                    Iterator<Entry<byte[], byte[]>> mapIt = map.entrySet().iterator();
+                    Iterator<Entry<byte[], byte[]>> indexIt = diskIndex.rangeLookup(null, null, true);
+                    while (indexIt.hasNext() || mapIt.hasNext()) {
+                        Entry<byte[], byte[]> next = indexIt.next();
+                        Entry<byte[], byte[]> next2 = mapIt.next();
+                        assertEquals(new String(next2.getKey()), new String(next.getKey()));
+                        assertEquals(new String(next2.getValue()), new String(next.getValue()));
+                    }
+                    
+                    assertEquals(map.size(), diskIndex.numKeys());
+                    diskIndex.destroy();
+                }
+            }
+            
+        } finally {
+            DiskIndex.setMaxSegmentSize(Integer.MAX_VALUE);
+            cache.setCapacity(0);
+        }
+    }
+    
+    public void testPartitionedBlockIndex() throws Exception {
+        
+        // initialize a map w/ enough entries for multiple partitions
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES; i++)
+            map.put(String.format("key%06d", i).getBytes(), createRandomString(1, 15).getBytes());
+        
+        FSUtils.delTree(new File(PATH1));
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        // the block index spans multiple partitions
+        BlockIndex blockIndex = new BlockIndex(PATH1 + "/", COMP, false, BlockCache.newIndexId());
+        assertTrue(blockIndex.isPartitioned());
+        assertTrue(blockIndex.getNumEntries() > 2 * BlockIndexWriter.DEFAULT_PARTITION_SIZE);
+        blockIndex.free();
+        
+        // only the top-level index is kept in memory
+        assertTrue(new File(PATH1, "blockindex.idx").length() * 100 < new File(PATH1,
+            "blockindex_partitions.idx").length());
+        
+        BlockCache cache = BlockCache.getInstance();
+        try {
+            
+            // check lookups w/ and w/o mmap, and w/ and w/o caching of
+            // partitions
+            for (boolean mmaped : new boolean[] { false, true })
+                for (int capacity : new int[] { 0, 64 * 1024 * 1024 }) {
+                    
+                    cache.setCapacity(capacity);
+                    DiskIndex diskIndex = new DiskIndex(PATH1, COMP, COMPRESSED, mmaped);
+                    
+                    for (Entry<byte[], byte[]> entry : map.entrySet())
+                        assertEquals(new String(entry.getValue()), new String(diskIndex.lookup(entry
+                                .getKey())));
+                    
+                    // check range lookups w/ boundaries in different
+                    // partitions
+                    List<byte[]> keys = new ArrayList<byte[]>(map.keySet());
+                    for (int i = 0; i < 20; i++) {
+                        
+                        byte[] from = keys.get(rnd.nextInt(keys.size()));
+                        byte[] to = keys.get(rnd.nextInt(keys.size()));
+                        if (COMP.compare(from, to) > 0) {
+                            byte[] tmp = from;
+                            from = to;
+                            to = tmp;
+                        }
+                        
+                        // descending ranges exclude the lower and include the
+                        // upper bound
+                        for (boolean ascending : new boolean[] { true, false }) {
+                            
+                            Iterator<byte[]> mapIt = ascending ? map.subMap(from, to).keySet().iterator()
+                                : map.subMap(from, false, to, true).descendingKeySet().iterator();
+                            Iterator<Entry<byte[], byte[]>> indexIt = diskIndex.rangeLookup(from, to,
+                                ascending);
+                            while (indexIt.hasNext() || mapIt.hasNext())
+                                assertEquals(new String(mapIt.next()), new String(indexIt.next().getKey()));
+                        }
+                    }
+                    
+                    // keys smaller than the first key are not found
+                    assertNull(diskIndex.lookup(new byte[0]));
+                    
+                    assertEquals(map.size(), diskIndex.numKeys());
+                    diskIndex.destroy();
+                }
+            
+        } finally {
+            cache.setCapacity(0);
+        }
+    }
+    
+    public void testConcurrentLookups() throws Exception {
+        
+        final TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES; i += 2)
+            map.put(String.format("key%06d", i).getBytes(), String.format("val%06d", i).getBytes());
+        
+        FSUtils.delTree(new File(PATH1));
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        // lookups reuse a block reader per thread; check that concurrent
+        // lookups and range lookups on the same mapped blocks do not
+        // interfere w/ each other
+        for (boolean mmaped : new boolean[] { false, true }) {
+            
+            final DiskIndex diskIndex = new DiskIndex(PATH1, COMP, COMPRESSED, mmaped);
+            final Throwable[] error = new Throwable[1];
+            
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int offset = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int i = offset; i < NUM_ENTRIES; i++) {
+                                
+                                byte[] key = String.format("key%06d", i).getBytes();
+                                byte[] value = diskIndex.lookup(key);
+                                if (i % 2 == 0)
+                                    assertEquals(String.format("val%06d", i), new String(value));
+                                else
+                                    assertNull(value);
+                                
+                                if (i % 1000 == 0) {
+                                    byte[] to = String.format("key%06d", i + 100).getBytes();
+                                    Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(key, to,
+                                        true);
+                                    for (Entry<byte[], byte[]> entry : map.subMap(key, to).entrySet())
+                                        assertEquals(new String(entry.getValue()), new String(it.next()
+                                                .getValue()));
+                                    assertFalse(it.hasNext());
+                                }
+                            }
+                        } catch (Throwable exc) {
+                            error[0] = exc;
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            
+            for (Thread thread : threads)
+                thread.join();
+            
+            diskIndex.destroy();
+            if (error[0] != null)
+                throw new Exception(error[0]);
+        }
+    }
+    
+    private static long checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+    
     private static String createRandomString(int minLength, int maxLength) {
         
         char[] chars = new char[(int) (rnd.nextDouble() * (maxLength + 1)) + minLength];
@@ -9,13 +9,17 @@
 package org.xtreemfs.babudb.index;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import junit.framework.TestCase;
 import junit.textui.TestRunner;
 
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.database.ValueBuffer;
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
 import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.babudb.snapshots.DefaultSnapshotConfig;
@@ -36,6 +40,8 @@ public class LSMTreeTest extends TestCase {
     
     private static final String SNAP_FILE4 = "/tmp/snap4.bin";
     
+    private static final String COMPACTION_DIR = "/tmp/compaction";
+    
     static {
         //ReusableBuffer.enableAutoFree(true);
         //BufferPool.enableStacktraceRecording(false);
@@ -50,6 +56,7 @@ public class LSMTreeTest extends TestCase {
         FSUtils.delTree(new File(SNAP_FILE2));
         FSUtils.delTree(new File(SNAP_FILE3));
         FSUtils.delTree(new File(SNAP_FILE4));
+        FSUtils.delTree(new File(COMPACTION_DIR));
     }
     
     public void tearDown() throws Exception {
@@ -57,6 +64,7 @@ public class LSMTreeTest extends TestCase {
         FSUtils.delTree(new File(SNAP_FILE2));
         FSUtils.delTree(new File(SNAP_FILE3));
         FSUtils.delTree(new File(SNAP_FILE4));
+        FSUtils.delTree(new File(COMPACTION_DIR));
     }
     
     public void testSnapshots() throws Exception {
@@ -482,6 +490,584 @@ public class LSMTreeTest extends TestCase {
         assertEquals(4, i);
     }
     
+    public void testMultiLevelCompaction() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        final String[] snapFiles = { SNAP_FILE, SNAP_FILE2, SNAP_FILE3, SNAP_FILE4 };
+        
+        // three levels; level 0 holds at most 256 bytes, level 1 at most 1KB
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1, 0.01, 3, 256, 4,
+            false, COMPACTION_DIR, false, false, null, 0);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        
+        int compactions = 0;
+        for (int round = 0; round < 12; round++) {
+            
+            // insert new keys, overwrite and delete some existing ones
+            for (int i = 0; i < 20; i++) {
+                byte[] key = ("key" + ((round * 13 + i * 7) % 100)).getBytes();
+                if (i % 5 == 4) {
+                    tree.delete(key);
+                    map.remove(key);
+                } else {
+                    byte[] val = ("val" + round + "." + i).getBytes();
+                    tree.insert(key, val);
+                    map.put(key, val);
+                }
+            }
+            
+            // create a checkpoint and delete the previous one
+            String snapFile = snapFiles[round % snapFiles.length];
+            FSUtils.delTree(new File(snapFile));
+            tree.materializeSnapshot(snapFile, tree.createSnapshot());
+            tree.linkToSnapshot(snapFile);
+            FSUtils.delTree(new File(snapFiles[(round + snapFiles.length - 1) % snapFiles.length]));
+            
+            assertContents(map, tree);
+            
+            while (tree.compact()) {
+                compactions++;
+                assertContents(map, tree);
+            }
+        }
+        
+        assertTrue(compactions > 0);
+        
+        // reload the tree from the last checkpoint
+        tree.destroy();
+        tree = new LSMTree(snapFiles[11 % snapFiles.length], comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP,
+            -1, 0.01, 3, 256, 4, false, COMPACTION_DIR, false, false, null, 0);
+        assertContents(map, tree);
+        tree.destroy();
+    }
+    
+    public void testIncrementalCheckpoints() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1, 0.01, 1, 256, 4,
+            true, COMPACTION_DIR, false, false, null, 0);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        
+        int numRuns = 0;
+        for (int round = 0; round < 6; round++) {
+            
+            for (int i = 0; i < 20; i++) {
+                byte[] key = ("key" + ((round * 13 + i * 7) % 100)).getBytes();
+                if (i % 5 == 4) {
+                    tree.delete(key);
+                    map.remove(key);
+                } else {
+                    byte[] val = ("val" + round + "." + i).getBytes();
+                    tree.insert(key, val);
+                    map.put(key, val);
+                }
+            }
+            
+            // the checkpoint only contains the new run plus the ones from
+            // previous checkpoints
+            String snapFile = round % 2 == 0 ? SNAP_FILE : SNAP_FILE2;
+            FSUtils.delTree(new File(snapFile));
+            tree.materializeSnapshot(snapFile, tree.createSnapshot());
+            tree.linkToSnapshot(snapFile);
+            FSUtils.delTree(new File(round % 2 == 0 ? SNAP_FILE2 : SNAP_FILE));
+            int numFiles = 0;
+            for (String file : new File(snapFile).list())
+                if (file.endsWith("blockindex.idx"))
+                    numFiles++;
+            assertEquals(++numRuns, numFiles);
+            assertContents(map, tree);
+            
+            // the runs are merged in the background once there are more of
+            // them than the level fanout
+            assertEquals(numRuns > 4, tree.compact());
+            if (numRuns > 4)
+                numRuns = 1;
+            assertFalse(tree.compact());
+            assertContents(map, tree);
+        }
+        
+        tree.destroy();
+    }
+    
+    public void testIncrementalCheckpointSize() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 0, 1, 256, 4,
+            true, COMPACTION_DIR, false, false, null, 0);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        
+        for (int i = 0; i < 10000; i++) {
+            byte[] key = ("key" + i).getBytes();
+            byte[] val = ("value" + i).getBytes();
+            tree.insert(key, val);
+            map.put(key, val);
+        }
+        
+        tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE);
+        long totalSize = getRunSize(new File(SNAP_FILE));
+        
+        // an incremental checkpoint with a single change only writes a small
+        // run, and does not cause the existing run to be rewritten until
+        // there are more runs than the level fanout
+        for (int round = 0; round < 3; round++) {
+            
+            byte[] key = ("key" + round * 1000).getBytes();
+            byte[] val = ("changed" + round).getBytes();
+            tree.insert(key, val);
+            map.put(key, val);
+            
+            String snapFile = round % 2 == 0 ? SNAP_FILE2 : SNAP_FILE;
+            FSUtils.delTree(new File(snapFile));
+            tree.materializeSnapshot(snapFile, tree.createSnapshot());
+            tree.linkToSnapshot(snapFile);
+            FSUtils.delTree(new File(round % 2 == 0 ? SNAP_FILE : SNAP_FILE2));
+            
+            long written = getRunSize(new File(snapFile));
+            assertTrue("incremental checkpoint wrote " + written + " of " + totalSize + " bytes",
+                written * 100 < totalSize);
+            
+            assertFalse(tree.compact());
+            assertEquals(0, getTotalSize(new File(COMPACTION_DIR)));
+            assertContents(map, tree);
+        }
+        
+        tree.destroy();
+    }
+    
+    public void testUnchangedCheckpoints() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        
+        for (int i = 0; i < 50; i++) {
+            byte[] key = ("key" + i).getBytes();
+            tree.insert(key, key);
+            map.put(key, key);
+        }
+        
+        tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE);
+        
+        // a checkpoint w/o changes links the existing index
+        tree.materializeSnapshot(SNAP_FILE2, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE2);
+        FSUtils.delTree(new File(SNAP_FILE));
+        assertTrue(new File(SNAP_FILE2, "manifest").exists());
+        assertContents(map, tree);
+        
+        LSMTree tree2 = new LSMTree(SNAP_FILE2, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1);
+        assertContents(map, tree2);
+        tree2.destroy();
+        
+        // a checkpoint with changes rewrites the index
+        byte[] key = "key50".getBytes();
+        tree.insert(key, key);
+        map.put(key, key);
+        tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE);
+        FSUtils.delTree(new File(SNAP_FILE2));
+        assertFalse(new File(SNAP_FILE, "manifest").exists());
+        assertContents(map, tree);
+        
+        tree.destroy();
+    }
+    
+    public void testMultiLookups() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1, 0.01, 1, 256, 4,
+            true, COMPACTION_DIR, false, false, null, 0);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        
+        // distribute the entries across several runs and the overlay, and
+        // delete some of them in newer runs
+        for (int i = 0; i < 200; i++) {
+            
+            byte[] key = ("key" + (i * 7919 % 200)).getBytes();
+            tree.insert(key, ("val" + i).getBytes());
+            map.put(key, ("val" + i).getBytes());
+            
+            if (i % 3 == 0) {
+                byte[] deleted = ("key" + (i * 31 % 200)).getBytes();
+                tree.delete(deleted);
+                map.remove(deleted);
+            }
+            
+            if (i % 50 == 49) {
+                String snapFile = i % 100 == 49 ? SNAP_FILE : SNAP_FILE2;
+                FSUtils.delTree(new File(snapFile));
+                tree.materializeSnapshot(snapFile, tree.createSnapshot());
+                tree.linkToSnapshot(snapFile);
+            }
+        }
+        
+        // look up keys in random order, including missing and duplicate keys
+        byte[][] keys = new byte[250][];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = ("key" + (i * 104729 % 230)).getBytes();
+        
+        byte[][] values = tree.multiLookup(keys);
+        assertEquals(keys.length, values.length);
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(map.get(keys[i]), values[i]);
+        
+        assertEquals(0, tree.multiLookup(new byte[0][]).length);
+        
+        tree.destroy();
+    }
+    
+    public void testParallelRangeLookups() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1, 0.01, 1, 256, 4,
+            true, COMPACTION_DIR, false, false, null, 0);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        
+        // distribute the entries across several runs and the overlay, and
+        // delete some of them in newer runs
+        for (int i = 0; i < 300; i++) {
+            
+            byte[] key = ("key" + (i * 7919 % 300)).getBytes();
+            tree.insert(key, ("val" + i).getBytes());
+            map.put(key, ("val" + i).getBytes());
+            
+            if (i % 3 == 0) {
+                byte[] deleted = ("key" + (i * 31 % 300)).getBytes();
+                tree.delete(deleted);
+                map.remove(deleted);
+            }
+            
+            if (i % 100 == 99) {
+                String snapFile = i % 200 == 99 ? SNAP_FILE : SNAP_FILE2;
+                FSUtils.delTree(new File(snapFile));
+                tree.materializeSnapshot(snapFile, tree.createSnapshot());
+                tree.linkToSnapshot(snapFile);
+            }
+        }
+        for (int i = 300; i < 320; i++) {
+            tree.insert(("key" + i).getBytes(), ("val" + i).getBytes());
+            map.put(("key" + i).getBytes(), ("val" + i).getBytes());
+        }
+        
+        String[][] ranges = { { "", "" }, { "key1", "key2" }, { "key05", "key5" }, { "key2", "" },
+            { "a", "b" }, { "key3", "key3" } };
+        for (String[] range : ranges) {
+            
+            byte[] from = range[0].getBytes();
+            byte[] to = range[1].getBytes();
+            
+            for (int parallelism : new int[] { 1, 2, 5, 100 }) {
+                
+                List<ResultSet<byte[], byte[]>> splits = tree.parallelRangeLookup(from, to, parallelism);
+                assertTrue(splits.size() >= 1);
+                assertTrue(splits.size() <= parallelism);
+                
+                Iterator<Entry<byte[], byte[]>> expected = (from.length == 0 ? to.length == 0 ? map
+                    : map.headMap(to) : to.length == 0 ? map.tailMap(from) : map.subMap(from, to)).entrySet()
+                        .iterator();
+                
+                for (ResultSet<byte[], byte[]> split : splits) {
+                    while (split.hasNext()) {
+                        Entry<byte[], byte[]> entry = split.next();
+                        Entry<byte[], byte[]> exp = expected.next();
+                        assertEquals(new String(exp.getKey()), new String(entry.getKey()));
+                        assertEquals(new String(exp.getValue()), new String(entry.getValue()));
+                    }
+                    split.free();
+                }
+                assertFalse(expected.hasNext());
+            }
+        }
+        
+        // sub-ranges are not affected by subsequent modifications and
+        // checkpoints
+        TreeMap<byte[], byte[]> oldMap = new TreeMap<byte[], byte[]>(map);
+        List<ResultSet<byte[], byte[]>> splits = tree.parallelRangeLookup(new byte[0], new byte[0], 4);
+        assertTrue(splits.size() > 1);
+        
+        for (int i = 0; i < 320; i += 2)
+            tree.delete(("key" + i).getBytes());
+        FSUtils.delTree(new File(SNAP_FILE3));
+        tree.materializeSnapshot(SNAP_FILE3, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE3);
+        
+        Iterator<Entry<byte[], byte[]>> expected = oldMap.entrySet().iterator();
+        for (ResultSet<byte[], byte[]> split : splits) {
+            while (split.hasNext())
+                assertEquals(new String(expected.next().getKey()), new String(split.next().getKey()));
+            split.free();
+        }
+        assertFalse(expected.hasNext());
+        
+        tree.destroy();
+    }
+    
+    public void testBufferLookups() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 4, 1024 * 1024 * 512, true, -1);
+        for (int i = 0; i < 50; i++) {
+            byte[] key = ("key" + i).getBytes();
+            tree.insert(key, ("val" + i).getBytes());
+        }
+        
+        // look up values from the overlay
+        ValueBuffer buf = tree.lookupBuffer("key7".getBytes());
+        assertEquals("val7".getBytes(), toArray(buf));
+        buf.free();
+        assertNull(tree.lookupBuffer("key50".getBytes()));
+        
+        tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE);
+        
+        // look up a value from the on-disk index, and replace the index while
+        // the view is still held
+        buf = tree.lookupBuffer("key13".getBytes());
+        assertTrue(buf.getBuffer().isReadOnly());
+        
+        tree.delete("key13".getBytes());
+        assertNull(tree.lookupBuffer("key13".getBytes()));
+        tree.materializeSnapshot(SNAP_FILE2, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE2);
+        
+        assertEquals("val13".getBytes(), toArray(buf));
+        buf.free();
+        buf.free();
+        
+        assertNull(tree.lookupBuffer("key13".getBytes()));
+        buf = tree.lookupBuffer("key42".getBytes());
+        assertEquals("val42".getBytes(), toArray(buf));
+        buf.free();
+        
+        tree.destroy();
+    }
+    
+    public void testEmptyValues() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1, 0.01, 1, 256, 4,
+            true, COMPACTION_DIR, false, false, null, 0);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        
+        // the first run contains an empty value and regular values
+        for (int i = 1; i <= 3; i++) {
+            byte[] key = ("key" + i).getBytes();
+            byte[] val = i == 1 ? new byte[0] : ("val" + i).getBytes();
+            tree.insert(key, val);
+            map.put(key, val);
+        }
+        tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE);
+        
+        // the second run contains a tombstone, a new empty value and an empty
+        // value that overwrites a regular value
+        tree.delete("key2".getBytes());
+        map.remove("key2".getBytes());
+        for (int i = 3; i <= 4; i++) {
+            tree.insert(("key" + i).getBytes(), new byte[0]);
+            map.put(("key" + i).getBytes(), new byte[0]);
+        }
+        tree.materializeSnapshot(SNAP_FILE2, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE2);
+        FSUtils.delTree(new File(SNAP_FILE));
+        
+        // empty values are neither mistaken for tombstones in newer runs nor
+        // in the oldest one
+        for (int i = 1; i <= 4; i++) {
+            byte[] key = ("key" + i).getBytes();
+            if (i == 2) {
+                assertNull(tree.lookup(key));
+                assertNull(tree.lookupBuffer(key));
+            } else {
+                assertEquals(0, tree.lookup(key).length);
+                ValueBuffer buf = tree.lookupBuffer(key);
+                assertEquals(0, buf.getBuffer().remaining());
+                buf.free();
+            }
+        }
+        
+        byte[][] keys = { "key1".getBytes(), "key2".getBytes(), "key3".getBytes(), "key4".getBytes() };
+        byte[][] values = tree.multiLookup(keys);
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(map.get(keys[i]), values[i]);
+        
+        assertContents(map, tree);
+        
+        // reload the tree from the checkpoint
+        tree.destroy();
+        tree = new LSMTree(SNAP_FILE2, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1, 0.01, 1, 256, 4,
+            true, COMPACTION_DIR, false, false, null, 0);
+        assertContents(map, tree);
+        
+        // merge all runs, which drops the tombstone but retains the empty
+        // values
+        for (int i = 0; i < 4; i++) {
+            String snapFile = i % 2 == 0 ? SNAP_FILE : SNAP_FILE2;
+            FSUtils.delTree(new File(snapFile));
+            tree.insert(("key" + (10 + i)).getBytes(), ("val" + i).getBytes());
+            map.put(("key" + (10 + i)).getBytes(), ("val" + i).getBytes());
+            tree.materializeSnapshot(snapFile, tree.createSnapshot());
+            tree.linkToSnapshot(snapFile);
+        }
+        assertTrue(tree.compact());
+        assertContents(map, tree);
+        
+        tree.destroy();
+    }
+    
+    public void testLookupsDuringCompaction() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        final LSMTree tree = new LSMTree(null, comp, COMPRESSION, 4, 1024 * 1024 * 512, MMAP, -1, 0.01, 1,
+            256, 2, true, COMPACTION_DIR, false, false, null, 0);
+        
+        // each key always has the same value, so that the readers can verify
+        // all results while runs are written, merged and destroyed
+        final byte[][] keys = new byte[100][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ("key" + i).getBytes();
+            tree.insert(keys[i], ("val" + i).getBytes());
+        }
+        tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE);
+        
+        final Throwable[] error = new Throwable[1];
+        final boolean[] done = new boolean[1];
+        
+        Thread[] threads = new Thread[3];
+        for (int t = 0; t < threads.length; t++) {
+            final int mode = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        while (!done[0]) {
+                            
+                            if (mode == 0) {
+                                for (int i = 0; i < keys.length; i++)
+                                    assertEquals(("val" + i).getBytes(), tree.lookup(keys[i]));
+                            }
+                            
+                            else if (mode == 1) {
+                                byte[][] values = tree.multiLookup(keys);
+                                for (int i = 0; i < keys.length; i++)
+                                    assertEquals(("val" + i).getBytes(), values[i]);
+                            }
+                            
+                            else {
+                                ResultSet<byte[], byte[]> it = tree.prefixLookup("key".getBytes());
+                                int count = 0;
+                                while (it.hasNext()) {
+                                    Entry<byte[], byte[]> entry = it.next();
+                                    assertEquals(("val" + new String(entry.getKey()).substring(3))
+                                            .getBytes(), entry.getValue());
+                                    count++;
+                                    Thread.yield();
+                                }
+                                it.free();
+                                assertEquals(keys.length, count);
+                            }
+                        }
+                    } catch (Throwable exc) {
+                        error[0] = exc;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        
+        // create checkpoints that overwrite some keys, and merge the runs as
+        // soon as there are more of them than the level fanout
+        int compactions = 0;
+        for (int round = 0; round < 30 && error[0] == null; round++) {
+            
+            for (int i = round % 7; i < keys.length; i += 7)
+                tree.insert(keys[i], ("val" + i).getBytes());
+            
+            String snapFile = round % 2 == 0 ? SNAP_FILE2 : SNAP_FILE;
+            FSUtils.delTree(new File(snapFile));
+            tree.materializeSnapshot(snapFile, tree.createSnapshot());
+            tree.linkToSnapshot(snapFile);
+            FSUtils.delTree(new File(round % 2 == 0 ? SNAP_FILE : SNAP_FILE2));
+            
+            while (tree.compact())
+                compactions++;
+        }
+        
+        done[0] = true;
+        for (Thread thread : threads)
+            thread.join();
+        
+        tree.destroy();
+        if (error[0] != null)
+            throw new Exception(error[0]);
+        assertTrue(compactions > 0);
+    }
+    
+    private static byte[] toArray(ValueBuffer buf) {
+        byte[] bytes = new byte[buf.getBuffer().remaining()];
+        buf.getBuffer().duplicate().get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Returns the size of the files of the newest run in the given checkpoint
+     * directory.
+     */
+    private static long getRunSize(File dir) throws IOException {
+        
+        long runId = DiskRun.readManifest(dir).get(0)[0];
+        
+        long size = 0;
+        for (File file : dir.listFiles())
+            if (file.getName().startsWith(DiskRun.getFilePrefix(runId)))
+                size += file.length();
+        
+        return size;
+    }
+    
+    private static long getTotalSize(File dir) {
+        
+        if (!dir.exists())
+            return 0;
+        
+        long size = 0;
+        for (File file : dir.listFiles())
+            size += file.length();
+        
+        return size;
+    }
+    
+    private void assertContents(TreeMap<byte[], byte[]> map, LSMTree tree) {
+        
+        for (int i = 0; i < 100; i++) {
+            byte[] key = ("key" + i).getBytes();
+            assertEquals(map.get(key), tree.lookup(key));
+        }
+        
+        Iterator<Entry<byte[], byte[]>> it = tree.prefixLookup("key".getBytes());
+        for (Entry<byte[], byte[]> entry : map.entrySet()) {
+            Entry<byte[], byte[]> next = it.next();
+            assertEquals(entry.getKey(), next.getKey());
+            assertEquals(entry.getValue(), next.getValue());
+        }
+        assertFalse(it.hasNext());
+        
+        it = tree.prefixLookup("key".getBytes(), false);
+        for (Entry<byte[], byte[]> entry : map.descendingMap().entrySet())
+            assertEquals(entry.getKey(), it.next().getKey());
+        assertFalse(it.hasNext());
+    }
+    
     private void assertEquals(byte[] expected, byte[] result) {
         
         if (expected == null && result == null)
@@ -12,11 +12,14 @@ import java.util.Iterator;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 import junit.textui.TestRunner;
 
+import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.overlay.ArenaOverlayTree;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayBufferTree;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayStringTree;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayTree;
@@ -131,6 +134,51 @@ public class MultiOverlayTreeTest extends TestCase {
         assertFalse(itExpected.hasNext());
     }
     
+    public void testManyOverlays() {
+        
+        // distribute insertions and deletions across 50 overlays, so that
+        // many of them have to be merged by range lookups
+        
+        MultiOverlayTree<String, String> tree = new MultiOverlayTree<String, String>("\0");
+        TreeMap<String, String> map = new TreeMap<String, String>();
+        
+        for (int i = 0; i < 50; i++) {
+            
+            for (int j = 0; j < 40; j++) {
+                String key = Integer.toHexString((i * 31 + j * 17) % 300 + 0x100);
+                if ((i + j) % 7 == 0) {
+                    tree.insert(key, null);
+                    map.remove(key);
+                } else {
+                    tree.insert(key, i + "." + j);
+                    map.put(key, i + "." + j);
+                }
+            }
+            
+            tree.newOverlay();
+        }
+        
+        Iterator<Entry<String, String>> it = tree.rangeLookup(null, null, false, true);
+        Iterator<Entry<String, String>> itExpected = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<String, String> expected = itExpected.next();
+            Entry<String, String> entry = it.next();
+            assertEquals(expected.getKey(), entry.getKey());
+            assertEquals(expected.getValue(), entry.getValue());
+        }
+        assertFalse(itExpected.hasNext());
+        
+        it = tree.rangeLookup("1ff", "120", false, false);
+        itExpected = map.descendingMap().subMap("1ff", "120").entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<String, String> expected = itExpected.next();
+            Entry<String, String> entry = it.next();
+            assertEquals(expected.getKey(), entry.getKey());
+            assertEquals(expected.getValue(), entry.getValue());
+        }
+        assertFalse(itExpected.hasNext());
+    }
+    
     public void testDescendingRangeLookups() {
         
         // randomly insert 200 elements in a map
@@ -377,6 +425,191 @@ public class MultiOverlayTreeTest extends TestCase {
         assertFalse(itExpected.hasNext());
     }
     
+    public void testConcurrentLookups() throws Exception {
+        
+        final int numElements = 20000;
+        final int numReaders = 4;
+        
+        final MultiOverlayTree<String, String> tree = new MultiOverlayTree<String, String>("\0", null, true);
+        final AtomicInteger count = new AtomicInteger();
+        final Throwable[] error = new Throwable[1];
+        
+        // concurrently look up all keys that have been inserted so far
+        Thread[] readers = new Thread[numReaders];
+        for (int i = 0; i < numReaders; i++) {
+            readers[i] = new Thread() {
+                public void run() {
+                    try {
+                        while (count.get() < numElements) {
+                            
+                            int n = count.get();
+                            if (n == 0)
+                                continue;
+                            
+                            String key = getKey((int) (Math.random() * n));
+                            assertEquals(key, tree.lookup(key));
+                            
+                            ResultSet<String, String> it = tree.rangeLookup(getKey(n / 2), null, false,
+                                n % 2 == 0);
+                            int numEntries = 0;
+                            String last = null;
+                            while (it.hasNext()) {
+                                Entry<String, String> next = it.next();
+                                assertEquals(next.getKey(), next.getValue());
+                                assertTrue(last == null
+                                    || (n % 2 == 0 ? last.compareTo(next.getKey()) < 0 : last
+                                            .compareTo(next.getKey()) > 0));
+                                last = next.getKey();
+                                numEntries++;
+                            }
+                            it.free();
+                            assertTrue(numEntries >= n - n / 2);
+                        }
+                    } catch (Throwable exc) {
+                        synchronized (error) {
+                            error[0] = exc;
+                        }
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        
+        // insert all keys, and add a new overlay from time to time
+        for (int i = 0; i < numElements; i++) {
+            tree.insert(getKey(i), getKey(i));
+            count.incrementAndGet();
+            if (i % 1000 == 999)
+                tree.newOverlay();
+        }
+        
+        for (Thread reader : readers)
+            reader.join();
+        
+        synchronized (error) {
+            if (error[0] != null)
+                throw new Exception(error[0]);
+        }
+        
+        for (int i = 0; i < numElements; i++)
+            assertEquals(getKey(i), tree.lookup(getKey(i)));
+    }
+    
+    public void testOffHeapOverlayBufferTree() {
+        
+        final int numElements = 5000;
+        final byte[] nullValue = new byte[0];
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        MultiOverlayBufferTree tree = MultiOverlayBufferTree.createOffHeap(nullValue, comp);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        
+        // insert, replace and delete random keys in three overlays
+        TreeMap<byte[], byte[]> snapMap = null;
+        int snapId = -1;
+        for (int round = 0; round < 3; round++) {
+            
+            for (int i = 0; i < numElements; i++) {
+                byte[] key = Integer.toHexString((int) (Math.random() * numElements * 2)).getBytes();
+                if (Math.random() < 0.2) {
+                    tree.insert(key, null);
+                    map.remove(key);
+                } else {
+                    byte[] val = Integer.toHexString((int) (Math.random() * Integer.MAX_VALUE)).getBytes();
+                    tree.insert(key, val);
+                    map.put(key, val);
+                }
+            }
+            
+            if (round == 1) {
+                snapMap = new TreeMap<byte[], byte[]>(map);
+                snapId = tree.newOverlay();
+            }
+        }
+        
+        // compare lookups
+        for (int i = 0; i < numElements * 2; i++) {
+            byte[] key = Integer.toHexString(i).getBytes();
+            byte[] val = tree.lookup(key);
+            assertEquals(map.get(key), val == nullValue ? null : val);
+            val = tree.lookup(key, snapId);
+            assertEquals(snapMap.get(key), val == nullValue ? null : val);
+        }
+        
+        // compare range and prefix lookups in both directions
+        byte[] from = "4".getBytes();
+        byte[] to = "a".getBytes();
+        assertIterators(map.subMap(from, to).entrySet().iterator(), tree.rangeLookup(from, to, false, true));
+        assertIterators(map.descendingMap().subMap(to, from).entrySet().iterator(), tree.rangeLookup(to,
+            from, false, false));
+        assertIterators(map.entrySet().iterator(), tree.rangeLookup(null, null, false, true));
+        assertIterators(snapMap.descendingMap().entrySet().iterator(), tree.rangeLookup(null, null, snapId,
+            false, false));
+        assertIterators(map.subMap("7".getBytes(), "8".getBytes()).entrySet().iterator(), tree.prefixLookup(
+            "7".getBytes(), false, true));
+        
+        // modify the tree while iterating over it
+        Iterator<Entry<byte[], byte[]>> it = tree.rangeLookup(null, null, false, true);
+        byte[] last = null;
+        int count = 0;
+        while (it.hasNext()) {
+            byte[] key = it.next().getKey();
+            assertTrue(last == null || comp.compare(last, key) < 0);
+            last = key;
+            if (count++ % 10 == 0)
+                tree.insert(("0" + new String(key)).getBytes(), key);
+        }
+    }
+    
+    public void testOffHeapOverlayCleanup() {
+        
+        final int numElements = 1000;
+        final byte[] nullValue = new byte[0];
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        ArenaOverlayTree tree = new ArenaOverlayTree(comp, nullValue);
+        for (int i = 0; i < numElements; i++)
+            tree.put(getKey(i).getBytes(), getKey(i).getBytes());
+        
+        // open iterators keep the arena alive after the tree was destroyed
+        Iterator<Entry<byte[], byte[]>> it = tree.iterator(null, null, true);
+        ResultSet<byte[], byte[]> unused = (ResultSet<byte[], byte[]>) tree.iterator(null, null, false);
+        tree.destroy();
+        
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(getKey(count).getBytes(), it.next().getValue());
+            count++;
+        }
+        assertEquals(numElements, count);
+        assertEquals(getKey(0).getBytes(), tree.get(getKey(0).getBytes()));
+        
+        // once the last iterator has been freed, the arena is released
+        unused.free();
+        assertNull(tree.get(getKey(0).getBytes()));
+        assertFalse(tree.iterator(null, null, true).hasNext());
+        
+        // discarded overlays of a multi-overlay tree are destroyed, while the
+        // current overlay remains usable
+        MultiOverlayBufferTree multiTree = MultiOverlayBufferTree.createOffHeap(nullValue, comp);
+        multiTree.insert(getKey(0).getBytes(), getKey(0).getBytes());
+        int snapId = multiTree.newOverlay();
+        multiTree.insert(getKey(1).getBytes(), getKey(1).getBytes());
+        
+        ResultSet<byte[], byte[]> snapIt = multiTree.rangeLookup(null, null, snapId, false, true);
+        multiTree.cleanup();
+        assertTrue(snapIt.hasNext());
+        assertEquals(getKey(0).getBytes(), snapIt.next().getKey());
+        assertFalse(snapIt.hasNext());
+        snapIt.free();
+        
+        assertNull(multiTree.lookup(getKey(0).getBytes()));
+        assertEquals(getKey(1).getBytes(), multiTree.lookup(getKey(1).getBytes()));
+        
+        multiTree.destroy();
+        assertNull(multiTree.lookup(getKey(1).getBytes()));
+    }
+    
     public static void main(String[] args) {
         TestRunner.run(MultiOverlayTreeTest.class);
     }
@@ -392,6 +625,22 @@ public class MultiOverlayTreeTest extends TestCase {
         assertEquals(e, v);
     }
     
+    private void assertIterators(Iterator<Entry<byte[], byte[]>> expected, Iterator<Entry<byte[], byte[]>> it) {
+        
+        while (expected.hasNext()) {
+            assertTrue(it.hasNext());
+            Entry<byte[], byte[]> entry = expected.next();
+            Entry<byte[], byte[]> next = it.next();
+            assertEquals(entry.getKey(), next.getKey());
+            assertEquals(entry.getValue(), next.getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+    
+    private static String getKey(int i) {
+        return String.format("%06d", i);
+    }
+    
     protected void assertEquals(byte[] expected, byte[] val) {
         
         if (expected == null && val == null)
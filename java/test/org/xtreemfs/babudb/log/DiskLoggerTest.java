@@ -11,8 +11,15 @@ package org.xtreemfs.babudb.log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 import junit.framework.TestCase;
 import junit.textui.TestRunner;
@@ -25,6 +32,8 @@ import org.junit.Test;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
 import org.xtreemfs.babudb.lsmdb.LSMDatabase;
 import org.xtreemfs.babudb.lsmdb.LSN;
+import org.xtreemfs.babudb.util.CRC32C;
+import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.util.FSUtils;
@@ -479,6 +488,506 @@ public class DiskLoggerTest extends TestCase {
         }
     }
     
+    @Test
+    public void testGroupCommit() throws Exception {
+        
+        // test small batches that are collected with a commit delay, and
+        // separately written entries, without and with pipelining, and with
+        // a small bounded queue
+        for (int[] cfg : new int[][] { { 200, 2000, 0, 0 }, { 0, 0, 0, 0 }, { 200, 2000, 1, 0 },
+            { 0, 0, 1, 0 }, { 200, 0, 0, 100 } }) {
+            
+            l.shutdown();
+            l.waitForShutdown();
+            FSUtils.delTree(new File(testdir));
+            
+            l = new DiskLogger(testdir, new LSN(1, 1L), SyncMode.FDATASYNC, 0, cfg[3], cfg[0], cfg[1],
+                cfg[2] == 1);
+            l.start();
+            l.waitForStartup();
+            
+            final int numThreads = 4;
+            final int numEntries = 250;
+            final AtomicInteger count = new AtomicInteger(0);
+            
+            final SyncListener sl = new SyncListener() {
+                
+                public void synced(LSN lsn) {
+                    synchronized (count) {
+                        count.incrementAndGet();
+                        count.notifyAll();
+                    }
+                }
+                
+                public void failed(Exception ex) {
+                    fail("this should not happen");
+                }
+            };
+            
+            Thread[] threads = new Thread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                final int t = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < numEntries; j++) {
+                                String pl = "Entry " + t + "." + j;
+                                l.append(new LogEntry(ReusableBuffer.wrap(pl.getBytes()), sl,
+                                    LogEntry.PAYLOAD_TYPE_INSERT));
+                            }
+                        } catch (InterruptedException exc) {
+                            fail(exc.toString());
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            
+            synchronized (count) {
+                while (count.get() < numThreads * numEntries)
+                    count.wait(5);
+            }
+            
+            try {
+                l.lock();
+                l.switchLogFile(false);
+            } finally {
+                l.unlock();
+            }
+            
+            // all entries have to be contained in LSN order, and the entries
+            // of each thread have to be contained in the order of appends
+            int[] next = new int[numThreads];
+            DiskLogFile f = new DiskLogFile(testdir + "1.1.dbl");
+            for (int i = 1; i <= numThreads * numEntries; i++) {
+                assertTrue(f.hasNext());
+                LogEntry tmp = f.next();
+                assertEquals(i, tmp.getLogSequenceNo());
+                String[] parts = new String(tmp.getPayload().array()).substring(6).split("\\.");
+                int t = Integer.parseInt(parts[0]);
+                assertEquals(next[t]++, Integer.parseInt(parts[1]));
+                tmp.free();
+            }
+            assertFalse(f.hasNext());
+            f.close();
+        }
+    }
+    
+    @Test
+    public void testPipelinedNotification() throws Exception {
+        
+        l.shutdown();
+        l.waitForShutdown();
+        FSUtils.delTree(new File(testdir));
+        
+        l = new DiskLogger(testdir, new LSN(1, 1L), SyncMode.FSYNC, 0, 0, DiskLogger.DEFAULT_MAX_BATCH_SIZE, 0,
+            true);
+        l.start();
+        l.waitForStartup();
+        
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final List<Long> synced = new ArrayList<Long>();
+        
+        SyncListener sl = new SyncListener() {
+            
+            public void synced(LSN lsn) {
+                
+                // block the completion stage at the first entry
+                if (lsn.getSequenceNo() == 1) {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException exc) {
+                        fail(exc.toString());
+                    }
+                }
+                
+                synchronized (synced) {
+                    synced.add(lsn.getSequenceNo());
+                    synced.notifyAll();
+                }
+            }
+            
+            public void failed(Exception ex) {
+                fail("this should not happen");
+            }
+        };
+        
+        for (int i = 0; i < 100; i++) {
+            String pl = "Entry " + (i + 1);
+            l.append(new LogEntry(ReusableBuffer.wrap(pl.getBytes()), sl, LogEntry.PAYLOAD_TYPE_INSERT));
+        }
+        
+        // all entries have to be written and synced, even though the listener
+        // of the first entry has not returned yet
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((Integer) l.getRuntimeState("diskLogger.processedLogEntryCount") < 100) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        
+        LSN lsn = null;
+        try {
+            l.lock();
+            lsn = l.switchLogFile(false);
+        } finally {
+            l.unlock();
+        }
+        assertEquals(new LSN(1, 100L), lsn);
+        
+        synchronized (synced) {
+            assertEquals(0, synced.size());
+        }
+        
+        // listeners have to be notified in the order of LSNs
+        blocked.countDown();
+        synchronized (synced) {
+            while (synced.size() < 100)
+                synced.wait(5);
+        }
+        for (int i = 0; i < 100; i++)
+            assertEquals(i + 1, synced.get(i).longValue());
+        
+        DiskLogFile f = new DiskLogFile(testdir + "1.1.dbl");
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(f.hasNext());
+            LogEntry tmp = f.next();
+            assertEquals(i, tmp.getLogSequenceNo());
+            tmp.free();
+        }
+        assertFalse(f.hasNext());
+        f.close();
+    }
+    
+    @Test
+    public void testQueueBackPressure() throws Exception {
+        
+        // a queue that holds a single entry at a time
+        l.shutdown();
+        l.waitForShutdown();
+        FSUtils.delTree(new File(testdir));
+        
+        l = new DiskLogger(testdir, new LSN(1, 1L), SyncMode.FSYNC, 0, 1);
+        l.start();
+        l.waitForStartup();
+        
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger(0);
+        
+        final SyncListener sl = new SyncListener() {
+            
+            public void synced(LSN lsn) {
+                
+                // block the logger at the first entry
+                if (lsn.getSequenceNo() == 1) {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException exc) {
+                        fail(exc.toString());
+                    }
+                }
+                
+                synchronized (count) {
+                    count.incrementAndGet();
+                    count.notifyAll();
+                }
+            }
+            
+            public void failed(Exception ex) {
+                fail("this should not happen");
+            }
+        };
+        
+        l.append(new LogEntry(ReusableBuffer.wrap("Entry 1".getBytes()), sl, LogEntry.PAYLOAD_TYPE_INSERT));
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((Integer) l.getRuntimeState("diskLogger.processedLogEntryCount") < 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        
+        // the second entry fits into the empty queue, whereas the third one
+        // has to wait until the second one has been taken from the queue
+        l.append(new LogEntry(ReusableBuffer.wrap("Entry 2".getBytes()), sl, LogEntry.PAYLOAD_TYPE_INSERT));
+        Thread appender = new Thread() {
+            public void run() {
+                try {
+                    l.append(new LogEntry(ReusableBuffer.wrap("Entry 3".getBytes()), sl,
+                        LogEntry.PAYLOAD_TYPE_INSERT));
+                } catch (InterruptedException exc) {
+                    fail(exc.toString());
+                }
+            }
+        };
+        appender.start();
+        
+        deadline = System.currentTimeMillis() + 5000;
+        while (appender.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        assertEquals(Thread.State.WAITING, appender.getState());
+        
+        blocked.countDown();
+        appender.join(5000);
+        assertFalse(appender.isAlive());
+        
+        synchronized (count) {
+            while (count.get() < 3)
+                count.wait(5);
+        }
+    }
+    
+    @Test
+    public void testPreallocatedSegments() throws Exception {
+        
+        l.shutdown();
+        l.waitForShutdown();
+        FSUtils.delTree(new File(testdir));
+        
+        final int segmentSize = 1024;
+        l = new DiskLogger(testdir, new LSN(1, 1L), SyncMode.FDATASYNC, 0, 0, DiskLogger.DEFAULT_MAX_BATCH_SIZE, 0,
+            false, segmentSize, true);
+        l.start();
+        l.waitForStartup();
+        
+        File logFile = new File(testdir + "1.1.dbl");
+        assertEquals(segmentSize, logFile.length());
+        
+        // the log file is extended by further segments
+        int totalSize = appendEntries(1, 100);
+        assertEquals(totalSize, l.getLogFileSize());
+        assertTrue(logFile.length() > totalSize);
+        assertEquals(0, logFile.length() % segmentSize);
+        
+        try {
+            l.lock();
+            l.switchLogFile(false);
+        } finally {
+            l.unlock();
+        }
+        
+        // the zero-filled tail is the end of the log and is not truncated
+        long length = logFile.length();
+        DiskLogFile f = new DiskLogFile(logFile.getAbsolutePath());
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(f.hasNext());
+            LogEntry tmp = f.next();
+            assertEquals(i, tmp.getLogSequenceNo());
+            tmp.free();
+        }
+        assertFalse(f.hasNext());
+        f.close();
+        assertEquals(length, logFile.length());
+        
+        // recycle the obsolete log file; it is zero-filled in the background
+        File recycled = new File(testdir + "1.1.dbl" + DiskLogger.RECYCLED_SEGMENT_SUFFIX);
+        assertTrue(l.removeLogFile(logFile));
+        assertFalse(logFile.exists());
+        l.waitForSegments();
+        assertEquals(segmentSize, recycled.length());
+        
+        // the next log file reuses a recycled segment
+        int numSegments = countRecycledSegments();
+        assertTrue(numSegments >= 2);
+        appendEntries(101, 10);
+        try {
+            l.lock();
+            l.switchLogFile(false);
+        } finally {
+            l.unlock();
+        }
+        l.waitForSegments();
+        assertEquals(numSegments - 1, countRecycledSegments());
+        assertEquals(segmentSize, new File(testdir + "1.111.dbl").length());
+        
+        // the recycled segment must not contain any entries of the old log
+        // file
+        appendEntries(111, 5);
+        DiskLogIterator it = new DiskLogIterator(new File(testdir).listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".dbl");
+            }
+        }), null);
+        for (int i = 101; i <= 115; i++) {
+            assertTrue(it.hasNext());
+            LogEntry tmp = it.next();
+            assertEquals(i, tmp.getLogSequenceNo());
+            tmp.free();
+        }
+        assertFalse(it.hasNext());
+        it.destroy();
+    }
+    
+    @Test
+    public void testLegacyFormat() throws Exception {
+        
+        l.shutdown();
+        l.waitForShutdown();
+        FSUtils.delTree(new File(testdir));
+        new File(testdir).mkdirs();
+        
+        // write a log file in the legacy format
+        FileOutputStream out = new FileOutputStream(testdir + "1.1.dbl");
+        for (int i = 1; i <= 10; i++)
+            out.write(serializeLegacyEntry(1, i, ("Entry " + i).getBytes()));
+        out.close();
+        
+        // append entries in the current format to a subsequent log file
+        l = new DiskLogger(testdir, new LSN(1, 11L), SyncMode.FSYNC, 0, 0);
+        l.start();
+        l.waitForStartup();
+        appendEntries(11, 10);
+        
+        DiskLogIterator it = new DiskLogIterator(new File(testdir).listFiles(), LSMDatabase.NO_DB_LSN);
+        for (int i = 1; i <= 20; i++) {
+            assertTrue(it.hasNext());
+            LogEntry next = it.next();
+            assertEquals(i, next.getLogSequenceNo());
+            assertEquals(LogEntry.PAYLOAD_TYPE_INSERT, next.getPayloadType());
+            assertEquals("Entry " + i, new String(next.getPayload().array()));
+            next.free();
+        }
+        assertFalse(it.hasNext());
+        it.destroy();
+        
+        // a corrupted legacy entry is detected with its CRC32 checksum
+        File logFile = new File(testdir + "1.1.dbl");
+        int entrySize = LogEntry.legacyHeaderLength + "Entry 1".length();
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        raf.seek(entrySize * 5 + entrySize - 8);
+        raf.write('X');
+        raf.close();
+        
+        DiskLogFile f = new DiskLogFile(logFile.getAbsolutePath());
+        for (int i = 1; i <= 5; i++) {
+            LogEntry next = f.next();
+            assertEquals(i, next.getLogSequenceNo());
+            next.free();
+        }
+        assertFalse(f.hasNext());
+        f.close();
+        assertEquals(entrySize * 5, logFile.length());
+        
+        // a complete entry of an unknown format version is truncated like a
+        // corrupted entry
+        raf = new RandomAccessFile(logFile, "rw");
+        raf.seek(entrySize * 4 + Integer.SIZE / 8 * 2);
+        raf.write(0x80 | (LogEntry.FORMAT_VERSION + 1));
+        raf.close();
+        
+        f = new DiskLogFile(logFile.getAbsolutePath());
+        for (int i = 1; i <= 4; i++) {
+            LogEntry next = f.next();
+            assertEquals(i, next.getLogSequenceNo());
+            next.free();
+        }
+        assertFalse(f.hasNext());
+        f.close();
+        assertEquals(entrySize * 4, logFile.length());
+    }
+    
+    @Test
+    public void testChecksumAlgorithms() throws Exception {
+        
+        // entries are deserialized regardless of the checksum algorithm they
+        // have been serialized with
+        for (Checksum csum : new Checksum[] { new CRC32(), new CRC32C() }) {
+            
+            LogEntry e = new LogEntry(ReusableBuffer.wrap("Entry 1".getBytes()), null,
+                LogEntry.PAYLOAD_TYPE_INSERT);
+            e.assignId(1, 1L);
+            ReusableBuffer buf = e.serialize(csum);
+            assertEquals(e.getSerializedSize(), buf.remaining());
+            assertEquals(LogEntry.FORMAT_VERSION, LogEntry.getFormatVersion(buf));
+            
+            LogEntry d = LogEntry.deserialize(buf, LogEntry.createChecksum());
+            assertEquals(new LSN(1, 1L), d.getLSN());
+            assertEquals(0, d.getFlags());
+            assertEquals("Entry 1", new String(d.getPayload().array()));
+            d.free();
+            
+            // a corrupted entry is detected with the entry's checksum
+            buf.getBuffer().put(LogEntry.headerLength - Integer.SIZE / 8 + 1, (byte) 'X');
+            try {
+                LogEntry.deserialize(buf, LogEntry.createChecksum());
+                fail("corrupted entry should not be accepted");
+            } catch (LogEntryException exc) {
+                // expected
+            }
+            BufferPool.free(buf);
+        }
+    }
+    
+    /**
+     * Serializes an entry in the legacy format, which has no version byte and
+     * is checksummed with CRC32.
+     */
+    private static byte[] serializeLegacyEntry(int viewId, long seqNo, byte[] payload) {
+        
+        int size = LogEntry.legacyHeaderLength + payload.length;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(size);
+        buf.putInt(0);
+        buf.putInt(viewId);
+        buf.putLong(seqNo);
+        buf.put(LogEntry.PAYLOAD_TYPE_INSERT);
+        buf.put(payload);
+        buf.putInt(size);
+        
+        CRC32 csum = new CRC32();
+        csum.update(buf.array(), 0, size);
+        buf.putInt(Integer.SIZE / 8, (int) csum.getValue());
+        
+        return buf.array();
+    }
+    
+    /**
+     * Appends entries to the logger and waits until they have been synced.
+     * 
+     * @return the total size of the serialized entries
+     */
+    private int countRecycledSegments() {
+        return new File(testdir).list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(DiskLogger.RECYCLED_SEGMENT_SUFFIX);
+            }
+        }).length;
+    }
+    
+    private int appendEntries(int first, int num) throws Exception {
+        
+        final AtomicInteger count = new AtomicInteger(0);
+        SyncListener sl = new SyncListener() {
+            
+            public void synced(LSN lsn) {
+                synchronized (count) {
+                    count.incrementAndGet();
+                    count.notifyAll();
+                }
+            }
+            
+            public void failed(Exception ex) {
+                fail("this should not happen");
+            }
+        };
+        
+        int size = 0;
+        for (int i = first; i < first + num; i++) {
+            LogEntry e = new LogEntry(ReusableBuffer.wrap(("Entry " + i).getBytes()), sl,
+                LogEntry.PAYLOAD_TYPE_INSERT);
+            size += LogEntry.headerLength + e.getPayload().remaining();
+            l.append(e);
+        }
+        synchronized (count) {
+            while (count.get() < num)
+                count.wait(1000);
+        }
+        
+        return size;
+    }
+    
     private static void copyFile(File src, File dst) throws Exception {
         FileInputStream in = new FileInputStream(src);
         FileOutputStream out = new FileOutputStream(dst);